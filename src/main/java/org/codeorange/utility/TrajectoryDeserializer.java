@@ -28,7 +28,7 @@ public class TrajectoryDeserializer {
         for (int i = 1; i < trajectory.length; i++) {
             var state = trajectory[i];
             states.add(new State(state[0], state[1], state[2],
-                    new Pose2d(new Translation2d(state[3], state[4]), new Rotation2d(5)), state[6]));
+                    new Pose2d(new Translation2d(state[3], state[4]), new Rotation2d(state[5])), state[6]));
         }
         return new TimedTrajectory(new Trajectory(states), trajectory[0][0]);
     }
@@ -0,0 +1,663 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.wpilibj.DriverStation;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every input to a {@link org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator} and the pose it produced, so
+ * that a match can be streamed back through the estimator offline with {@link EstimatorReplayer}.
+ *
+ * <p>Attach a recorder with {@code SwerveDrivePoseEstimator#setRecorder}. The file starts with a header describing the
+ * drivetrain and the estimator's standard deviations, followed by a reset to the estimator's state at the time the recorder
+ * was attached, followed by one record per call. Poses and gyro angles are stored as (x, y, yaw) while the estimator is in
+ * planar mode and as a full translation and quaternion in 3d mode.
+ *
+ * <p>Records are encoded into an in-memory ring buffer, which never blocks and does not allocate, and a daemon thread drains
+ * the ring buffer into the stream, so file I/O never runs on the thread that updates the estimator. If the writer thread falls
+ * so far behind that the ring buffer fills, or writing fails, the error is reported once and recording stops rather than
+ * disturbing the robot loop; the recording then ends partway through a record, which {@link EstimatorReplayer} tolerates.
+ *
+ * <p>Records must be written from one thread at a time, normally the thread that updates the estimator.
+ */
+public class EstimatorRecorder implements Closeable {
+    static final int kMagic = 0x4F525045;
+    static final int kVersion = 1;
+
+    static final byte kReset = 1;
+    static final byte kUpdate = 2;
+    static final byte kVelocityUpdate = 3;
+    static final byte kVision = 4;
+    static final byte kVisionBatch = 5;
+    static final byte kVisionQueued = 6;
+    static final byte kVisionStdDevs = 7;
+    static final byte kMode = 8;
+    static final byte kRollback = 9;
+    static final byte kUndoVision = 10;
+
+    private static final int kBufferSize = 1 << 16;
+    // About 40 seconds of 250 Hz planar updates for a four module drivetrain
+    private static final int kRingSize = 1 << 20;
+    private static final long kWriterIdleNanos = 5_000_000;
+
+    private final ByteRing m_ring = new ByteRing(kRingSize);
+    private final DataOutputStream m_out = new DataOutputStream(m_ring);
+    private final OutputStream m_stream;
+    private final Thread m_writer;
+    private boolean m_3d;
+    private int m_numModules;
+    private boolean m_started = false;
+    private volatile boolean m_failed = false;
+    private volatile boolean m_closing = false;
+
+    // Ring buffer positions that a flush has been requested up to and that have been flushed to the stream
+    private volatile long m_flushRequested = 0;
+    private volatile long m_flushed = 0;
+
+    /**
+     * Constructs an EstimatorRecorder that writes to a stream, and starts its writer thread.
+     *
+     * @param out The stream to write to. It is closed when this recorder is closed.
+     */
+    public EstimatorRecorder(OutputStream out) {
+        m_stream = new BufferedOutputStream(out, kBufferSize);
+        m_writer = new Thread(this::drain, "EstimatorRecorder");
+        m_writer.setDaemon(true);
+        m_writer.start();
+    }
+
+    /**
+     * Constructs an EstimatorRecorder that writes to a file, replacing it if it exists.
+     *
+     * @param file The file to write to.
+     * @throws IOException If the file cannot be opened.
+     */
+    public EstimatorRecorder(Path file) throws IOException {
+        this(Files.newOutputStream(file));
+    }
+
+    /**
+     * Writes the header. Called by the estimator when the recorder is attached, before anything else.
+     *
+     * @param is3d          Whether the estimator is in 3d mode.
+     * @param modules       The locations of the swerve modules.
+     * @param stateStdDevs  The standard deviations of the state in the form [x, y, z, theta].
+     * @param visionStdDevs The default standard deviations of vision measurements in the form [x, y, z, theta].
+     */
+    public void start(boolean is3d, Translation2d[] modules, double[] stateStdDevs, double[] visionStdDevs) {
+        if (m_started) {
+            throw new IllegalStateException("This recorder has already been started");
+        }
+        m_started = true;
+        m_3d = is3d;
+        m_numModules = modules.length;
+
+        try {
+            m_out.writeInt(kMagic);
+            m_out.writeInt(kVersion);
+            m_out.writeBoolean(is3d);
+            m_out.writeInt(modules.length);
+            for (var module : modules) {
+                m_out.writeDouble(module.getX());
+                m_out.writeDouble(module.getY());
+            }
+            writeStdDevs(stateStdDevs);
+            writeStdDevs(visionStdDevs);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a reset of the estimator's position.
+     *
+     * @param gyroAngle       The raw gyro angle.
+     * @param modulePositions The module positions.
+     * @param pose            The pose the estimator was reset to.
+     */
+    public void recordReset(Rotation3d gyroAngle, SwerveModulePosition[] modulePositions, Pose3d pose) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kReset);
+            writeRotation(gyroAngle);
+            writeModulePositions(modulePositions);
+            writePose(pose);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a reset of the estimator's position.
+     *
+     * @param gyroAngle       The raw gyro angle.
+     * @param modulePositions The module positions.
+     * @param pose            The pose the estimator was reset to.
+     */
+    public void recordReset(Rotation2d gyroAngle, SwerveModulePosition[] modulePositions, Pose2d pose) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kReset);
+            writeRotation(gyroAngle);
+            writeModulePositions(modulePositions);
+            writePose(pose);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records an update from module positions and the estimate it produced.
+     *
+     * @param timestampSeconds The time of the update.
+     * @param gyroAngle        The raw gyro angle.
+     * @param modulePositions  The module positions.
+     * @param estimate         The estimate after the update.
+     */
+    public void recordUpdate(double timestampSeconds, Rotation3d gyroAngle, SwerveModulePosition[] modulePositions,
+                             Pose3d estimate) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kUpdate);
+            m_out.writeDouble(timestampSeconds);
+            writeRotation(gyroAngle);
+            writeModulePositions(modulePositions);
+            writePose(estimate);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records an update from module positions and the estimate it produced.
+     *
+     * @param timestampSeconds The time of the update.
+     * @param gyroAngle        The raw gyro angle.
+     * @param modulePositions  The module positions.
+     * @param estimateX        The x position of the estimate after the update.
+     * @param estimateY        The y position of the estimate after the update.
+     * @param estimateRadians  The heading of the estimate after the update.
+     */
+    public void recordUpdate(double timestampSeconds, Rotation2d gyroAngle, SwerveModulePosition[] modulePositions,
+                             double estimateX, double estimateY, double estimateRadians) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kUpdate);
+            m_out.writeDouble(timestampSeconds);
+            writeRotation(gyroAngle);
+            writeModulePositions(modulePositions);
+            writePose(estimateX, estimateY, estimateRadians);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records an update from primitive module readings and the estimate it produced, without allocating in planar mode.
+     *
+     * @param timestampSeconds The time of the update.
+     * @param gyroYaw          The raw gyro yaw, in radians.
+     * @param distances        The distance each module has rolled, in meters.
+     * @param angles           The angle of each module, in radians.
+     * @param estimateX        The x position of the estimate after the update.
+     * @param estimateY        The y position of the estimate after the update.
+     * @param estimateRadians  The heading of the estimate after the update.
+     */
+    public void recordUpdate(double timestampSeconds, double gyroYaw, double[] distances, double[] angles,
+                             double estimateX, double estimateY, double estimateRadians) {
+        if (!isRecording()) {
+            return;
+        }
+        if (distances.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of wheel locations recorded in the header");
+        }
+        try {
+            m_out.writeByte(kUpdate);
+            m_out.writeDouble(timestampSeconds);
+            if (m_3d) {
+                writeRotation(new Rotation3d(0, 0, gyroYaw));
+            } else {
+                m_out.writeDouble(gyroYaw);
+            }
+            for (int i = 0; i < distances.length; i++) {
+                m_out.writeDouble(distances[i]);
+                m_out.writeDouble(angles[i]);
+            }
+            writePose(estimateX, estimateY, estimateRadians);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records an update from a velocity and the estimate it produced.
+     *
+     * @param timestampSeconds The time of the update.
+     * @param gyroAngle        The raw gyro angle.
+     * @param velocity         The velocity passed to the update.
+     * @param dt               The change in time passed to the update.
+     * @param estimate         The estimate after the update.
+     */
+    public void recordVelocityUpdate(double timestampSeconds, Rotation3d gyroAngle, Translation3d velocity, double dt,
+                                     Pose3d estimate) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kVelocityUpdate);
+            m_out.writeDouble(timestampSeconds);
+            writeRotation(gyroAngle);
+            m_out.writeDouble(velocity.getX());
+            m_out.writeDouble(velocity.getY());
+            m_out.writeDouble(velocity.getZ());
+            m_out.writeDouble(dt);
+            writePose(estimate);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a single vision measurement.
+     *
+     * @param cameraId         The camera that produced the measurement.
+     * @param pose             The measured pose.
+     * @param timestampSeconds The time of the measurement.
+     * @param stdDevs          The measurement's own standard deviations in the form [x, y, z, theta], or null if it used the
+     *                         estimator's default standard deviations.
+     */
+    public void recordVision(int cameraId, Pose3d pose, double timestampSeconds, double[] stdDevs) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kVision);
+            writeMeasurement(cameraId, pose, timestampSeconds, stdDevs);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a single vision measurement.
+     *
+     * @param cameraId         The camera that produced the measurement.
+     * @param pose             The measured pose.
+     * @param timestampSeconds The time of the measurement.
+     * @param stdDevs          The measurement's own standard deviations in the form [x, y, z, theta], or null if it used the
+     *                         estimator's default standard deviations.
+     */
+    public void recordVision(int cameraId, Pose2d pose, double timestampSeconds, double[] stdDevs) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kVision);
+            m_out.writeInt(cameraId);
+            m_out.writeDouble(timestampSeconds);
+            writePose(pose);
+            writeOptionalStdDevs(stdDevs);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a batch of vision measurements passed to the estimator directly.
+     *
+     * @param measurements The measurements.
+     * @param count        The number of measurements in the array.
+     */
+    public void recordVisionBatch(VisionMeasurement[] measurements, int count) {
+        recordMeasurements(kVisionBatch, measurements, count);
+    }
+
+    /**
+     * Records a batch of vision measurements drained from the estimator's queue during the next recorded update.
+     *
+     * @param measurements The measurements.
+     * @param count        The number of measurements in the array.
+     */
+    public void recordVisionQueued(VisionMeasurement[] measurements, int count) {
+        recordMeasurements(kVisionQueued, measurements, count);
+    }
+
+    /**
+     * Records a change of the estimator's default vision standard deviations.
+     *
+     * @param stdDevs The new standard deviations in the form [x, y, z, theta].
+     */
+    public void recordVisionStdDevs(double[] stdDevs) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kVisionStdDevs);
+            writeStdDevs(stdDevs);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a switch between planar and 3d mode. Later records use the new mode's format.
+     *
+     * @param is3d Whether the estimator is now in 3d mode.
+     */
+    public void recordMode(boolean is3d) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kMode);
+            m_out.writeBoolean(is3d);
+            m_3d = is3d;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a rollback of the odometry.
+     *
+     * @param timestampSeconds The timestamp rolled back to.
+     */
+    public void recordRollback(double timestampSeconds) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kRollback);
+            m_out.writeDouble(timestampSeconds);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a vision measurement being undone.
+     *
+     * @param preUpdatePose    The estimate from before the measurement was applied.
+     * @param timestampSeconds The time of the measurement.
+     */
+    public void recordUndoVision(Pose3d preUpdatePose, double timestampSeconds) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(kUndoVision);
+            m_out.writeDouble(timestampSeconds);
+            writePose(preUpdatePose);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return Whether this recorder has been started and has not failed or been closed.
+     */
+    public boolean isRecording() {
+        return m_started && !m_failed;
+    }
+
+    /**
+     * Waits for the writer thread to write every record so far to the underlying stream and flush it. This blocks, so it
+     * should not be called from the thread that updates the estimator.
+     */
+    public void flush() {
+        if (m_failed) {
+            return;
+        }
+        long target = m_ring.getWritePosition();
+        m_flushRequested = target;
+        LockSupport.unpark(m_writer);
+        while (m_flushed < target && m_writer.isAlive()) {
+            LockSupport.parkNanos(kWriterIdleNanos);
+        }
+    }
+
+    /**
+     * Stops recording, waits for the writer thread to write every record so far, and closes the stream.
+     *
+     * @throws IOException If the stream cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        m_failed = true;
+        m_closing = true;
+        LockSupport.unpark(m_writer);
+        try {
+            m_writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_stream.close();
+    }
+
+    /**
+     * The writer thread's loop, which drains the ring buffer into the stream until the recorder is closed.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                // Read before draining, so that everything written before the recorder was closed is drained
+                boolean closing = m_closing;
+                boolean drained = m_ring.drainTo(m_stream);
+
+                long flushRequested = m_flushRequested;
+                if (flushRequested > m_flushed && m_ring.getReadPosition() >= flushRequested) {
+                    m_stream.flush();
+                    m_flushed = flushRequested;
+                }
+                if (closing && !drained) {
+                    m_stream.flush();
+                    return;
+                }
+                if (!drained) {
+                    LockSupport.parkNanos(kWriterIdleNanos);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void recordMeasurements(byte type, VisionMeasurement[] measurements, int count) {
+        if (!isRecording()) {
+            return;
+        }
+        try {
+            m_out.writeByte(type);
+            m_out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                var measurement = measurements[i];
+                writeMeasurement(measurement.cameraId, measurement.pose, measurement.timestampSeconds,
+                        measurement.hasStdDevs ? measurement.stdDevs : null);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeMeasurement(int cameraId, Pose3d pose, double timestampSeconds, double[] stdDevs) throws IOException {
+        m_out.writeInt(cameraId);
+        m_out.writeDouble(timestampSeconds);
+        writePose(pose);
+        writeOptionalStdDevs(stdDevs);
+    }
+
+    private void writeOptionalStdDevs(double[] stdDevs) throws IOException {
+        m_out.writeBoolean(stdDevs != null);
+        if (stdDevs != null) {
+            writeStdDevs(stdDevs);
+        }
+    }
+
+    private void writeStdDevs(double[] stdDevs) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            m_out.writeDouble(stdDevs[i]);
+        }
+    }
+
+    private void writeModulePositions(SwerveModulePosition[] modulePositions) throws IOException {
+        if (modulePositions.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of wheel locations recorded in the header");
+        }
+        for (var position : modulePositions) {
+            m_out.writeDouble(position.distanceMeters);
+            m_out.writeDouble(position.angle.getRadians());
+        }
+    }
+
+    private void writeRotation(Rotation3d rotation) throws IOException {
+        if (m_3d) {
+            var q = rotation.getQuaternion();
+            m_out.writeDouble(q.getW());
+            m_out.writeDouble(q.getX());
+            m_out.writeDouble(q.getY());
+            m_out.writeDouble(q.getZ());
+        } else {
+            m_out.writeDouble(rotation.getZ());
+        }
+    }
+
+    private void writeRotation(Rotation2d rotation) throws IOException {
+        if (m_3d) {
+            writeRotation(new Rotation3d(0, 0, rotation.getRadians()));
+        } else {
+            m_out.writeDouble(rotation.getRadians());
+        }
+    }
+
+    private void writePose(Pose3d pose) throws IOException {
+        if (m_3d) {
+            var q = pose.getRotation().getQuaternion();
+            m_out.writeDouble(pose.getX());
+            m_out.writeDouble(pose.getY());
+            m_out.writeDouble(pose.getZ());
+            m_out.writeDouble(q.getW());
+            m_out.writeDouble(q.getX());
+            m_out.writeDouble(q.getY());
+            m_out.writeDouble(q.getZ());
+        } else {
+            writePose(pose.getX(), pose.getY(), pose.getRotation().getZ());
+        }
+    }
+
+    private void writePose(Pose2d pose) throws IOException {
+        if (m_3d) {
+            writePose(new Pose3d(pose));
+        } else {
+            writePose(pose.getX(), pose.getY(), pose.getRotation().getRadians());
+        }
+    }
+
+    private void writePose(double x, double y, double radians) throws IOException {
+        if (m_3d) {
+            writePose(new Pose3d(x, y, 0.0, new Rotation3d(0, 0, radians)));
+        } else {
+            m_out.writeDouble(x);
+            m_out.writeDouble(y);
+            m_out.writeDouble(radians);
+        }
+    }
+
+    /**
+     * A single-producer, single-consumer ring buffer of bytes. Writing never blocks: a write that does not fit throws instead.
+     */
+    private static final class ByteRing extends OutputStream {
+        private final byte[] m_buffer;
+        private final int m_mask;
+        // Total bytes ever written and read; the producer owns the first and the writer thread the second
+        private final AtomicLong m_writePosition = new AtomicLong();
+        private final AtomicLong m_readPosition = new AtomicLong();
+
+        ByteRing(int capacity) {
+            m_buffer = new byte[capacity];
+            m_mask = capacity - 1;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long head = m_writePosition.getPlain();
+            if (head - m_readPosition.getAcquire() >= m_buffer.length) {
+                throw new IOException("Recording buffer is full; the writer thread fell behind");
+            }
+            m_buffer[(int) head & m_mask] = (byte) b;
+            m_writePosition.setRelease(head + 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long head = m_writePosition.getPlain();
+            if (head + len - m_readPosition.getAcquire() > m_buffer.length) {
+                throw new IOException("Recording buffer is full; the writer thread fell behind");
+            }
+            int start = (int) head & m_mask;
+            int first = Math.min(len, m_buffer.length - start);
+            System.arraycopy(b, off, m_buffer, start, first);
+            System.arraycopy(b, off + first, m_buffer, 0, len - first);
+            m_writePosition.setRelease(head + len);
+        }
+
+        /**
+         * Writes everything in the ring buffer to a stream. Called from the writer thread only.
+         *
+         * @return Whether there was anything to write.
+         */
+        boolean drainTo(OutputStream out) throws IOException {
+            long head = m_writePosition.getAcquire();
+            long tail = m_readPosition.getPlain();
+            if (head == tail) {
+                return false;
+            }
+            int start = (int) tail & m_mask;
+            int len = (int) (head - tail);
+            int first = Math.min(len, m_buffer.length - start);
+            out.write(m_buffer, start, first);
+            out.write(m_buffer, 0, len - first);
+            m_readPosition.setRelease(head);
+            return true;
+        }
+
+        long getWritePosition() {
+            return m_writePosition.getAcquire();
+        }
+
+        long getReadPosition() {
+            return m_readPosition.getAcquire();
+        }
+    }
+
+    private void fail(IOException e) {
+        if (!m_failed) {
+            DriverStation.reportError("Pose estimator recording failed: " + e.getMessage(), false);
+        }
+        m_failed = true;
+    }
+}
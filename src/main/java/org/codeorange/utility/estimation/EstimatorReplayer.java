@@ -0,0 +1,381 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.codeorange.utility.estimation.EstimatorRecorder.*;
+
+/**
+ * Streams a recording made by {@link EstimatorRecorder} back through a fresh
+ * {@link SwerveDrivePoseEstimator}, as fast as possible, and compares the poses it produces with the recorded ones.
+ *
+ * <p>The whole recording is decoded up front so that only the estimator itself is timed. Each run constructs a new estimator
+ * from the recorded drivetrain and standard deviations, so a replay is deterministic: replaying with the same configuration
+ * reproduces the recorded poses, and replaying with a different one (e.g. enabling the EKF or a {@link VisionGate}) shows how
+ * far the change moves the estimate.
+ */
+public class EstimatorReplayer {
+    /**
+     * The outcome of a replay.
+     *
+     * @param updates                The number of odometry updates replayed.
+     * @param visionMeasurements     The number of vision measurements replayed.
+     * @param elapsedNanos           The time spent in the estimator, in nanoseconds.
+     * @param maxTranslationError    The largest distance between a replayed and a recorded pose, in meters.
+     * @param rmsTranslationError    The root mean square distance between the replayed and recorded poses, in meters.
+     * @param maxRotationError       The largest angle between a replayed and a recorded pose, in radians.
+     * @param rmsRotationError       The root mean square angle between the replayed and recorded poses, in radians.
+     */
+    public record Result(int updates, int visionMeasurements, long elapsedNanos,
+                         double maxTranslationError, double rmsTranslationError,
+                         double maxRotationError, double rmsRotationError) {
+        /**
+         * @return The number of odometry updates replayed per second.
+         */
+        public double updatesPerSecond() {
+            return elapsedNanos > 0 ? updates * 1.0e9 / elapsedNanos : Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d updates and %d vision measurements in %.3f ms (%.0f updates/s); "
+                            + "translation divergence max %.3g m, rms %.3g m; rotation divergence max %.3g rad, rms %.3g rad",
+                    updates, visionMeasurements, elapsedNanos * 1.0e-6, updatesPerSecond(),
+                    maxTranslationError, rmsTranslationError, maxRotationError, rmsRotationError);
+        }
+    }
+
+    /**
+     * One decoded call to the estimator.
+     */
+    private static class Event {
+        byte type;
+        boolean is3d;
+        double timestampSeconds;
+        Rotation3d gyroAngle;
+        SwerveModulePosition[] modulePositions;
+        Pose3d pose;
+        Translation3d velocity;
+        double dt;
+        VisionMeasurement[] measurements;
+        double[] stdDevs;
+        /** For updates, the index of the update, into the arrays of recorded and replayed poses. */
+        int index;
+    }
+
+    private final Translation2d[] m_modules;
+    private final double[] m_stateStdDevs = new double[4];
+    private final double[] m_visionStdDevs = new double[4];
+    private final boolean m_initially3d;
+    private final Event m_initialReset;
+    private final List<Event> m_events = new ArrayList<>();
+
+    private int m_updateCount = 0;
+    private int m_visionCount = 0;
+    private int m_maxQueued = 0;
+
+    /**
+     * Loads a recording from a file.
+     *
+     * @param file The recording.
+     * @return A replayer for the recording.
+     * @throws IOException If the file cannot be read or is not a recording.
+     */
+    public static EstimatorReplayer load(Path file) throws IOException {
+        try (var in = Files.newInputStream(file)) {
+            return new EstimatorReplayer(in);
+        }
+    }
+
+    /**
+     * Constructs an EstimatorReplayer by reading a whole recording from a stream.
+     *
+     * @param stream The recording. It is read to the end but not closed.
+     * @throws IOException If the stream cannot be read or is not a recording.
+     */
+    public EstimatorReplayer(InputStream stream) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(stream));
+
+        if (in.readInt() != kMagic) {
+            throw new IOException("Not a pose estimator recording");
+        }
+        int version = in.readInt();
+        if (version != kVersion) {
+            throw new IOException("Unsupported pose estimator recording version " + version);
+        }
+
+        boolean is3d = in.readBoolean();
+        m_initially3d = is3d;
+        m_modules = new Translation2d[in.readInt()];
+        for (int i = 0; i < m_modules.length; i++) {
+            m_modules[i] = new Translation2d(in.readDouble(), in.readDouble());
+        }
+        readStdDevs(in, m_stateStdDevs);
+        readStdDevs(in, m_visionStdDevs);
+
+        while (true) {
+            int type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                // A recording that was not closed cleanly may end partway through a record; everything before it is kept
+                break;
+            }
+
+            var event = new Event();
+            event.type = (byte) type;
+            event.is3d = is3d;
+            try {
+                readEvent(in, event);
+            } catch (EOFException e) {
+                break;
+            }
+
+            if (event.type == kMode) {
+                is3d = event.is3d;
+            }
+            m_events.add(event);
+        }
+
+        if (m_events.isEmpty() || m_events.get(0).type != kReset) {
+            throw new IOException("Pose estimator recording does not start with a reset");
+        }
+        m_initialReset = m_events.remove(0);
+    }
+
+    /**
+     * Replays the recording through a new estimator configured the way it was recorded.
+     *
+     * @return The throughput of the estimator and its divergence from the recorded poses.
+     */
+    public Result run() {
+        return run(estimator -> {});
+    }
+
+    /**
+     * Replays the recording through a new estimator.
+     *
+     * @param configure Called with the new estimator before any records are replayed, e.g. to enable replay, the EKF or a
+     *                  {@link VisionGate} the same way the recorded estimator was configured.
+     * @return The throughput of the estimator and its divergence from the recorded poses.
+     */
+    public Result run(Consumer<SwerveDrivePoseEstimator> configure) {
+        var estimator = new SwerveDrivePoseEstimator(
+                new SecondOrderKinematics(m_modules),
+                m_initialReset.gyroAngle,
+                m_initialReset.modulePositions,
+                m_initialReset.pose,
+                VecBuilder.fill(m_stateStdDevs[0], m_stateStdDevs[1], m_stateStdDevs[2], m_stateStdDevs[3]),
+                VecBuilder.fill(m_visionStdDevs[0], m_visionStdDevs[1], m_visionStdDevs[2], m_visionStdDevs[3]));
+        estimator.set3dMode(m_initially3d);
+        configure.accept(estimator);
+
+        VisionMeasurementQueue queue = null;
+        if (m_maxQueued > 0) {
+            queue = new VisionMeasurementQueue(Math.max(2, m_maxQueued));
+            estimator.setVisionQueue(queue);
+        }
+
+        var replayed2d = new Pose2d[m_updateCount];
+        var replayed3d = new Pose3d[m_updateCount];
+        var visionStdDevs = m_visionStdDevs.clone();
+
+        long start = System.nanoTime();
+        for (var event : m_events) {
+            switch (event.type) {
+                case kReset -> {
+                    if (event.is3d) {
+                        estimator.resetPosition(event.gyroAngle, event.modulePositions, event.pose);
+                    } else {
+                        estimator.resetPosition(event.gyroAngle.toRotation2d(), event.modulePositions, event.pose.toPose2d());
+                    }
+                }
+                case kUpdate -> {
+                    if (event.is3d) {
+                        replayed3d[event.index] = estimator.updateWithTime(
+                                event.timestampSeconds, event.gyroAngle, event.modulePositions);
+                    } else {
+                        replayed2d[event.index] = estimator.updateWithTime(
+                                event.timestampSeconds, event.gyroAngle.toRotation2d(), event.modulePositions);
+                    }
+                }
+                case kVelocityUpdate -> replayed3d[event.index] = estimator.updateWithTime(
+                        event.timestampSeconds, event.gyroAngle, event.velocity, event.dt);
+                case kVision -> estimator.addVisionMeasurement(event.measurements[0]);
+                case kVisionBatch -> estimator.addVisionMeasurements(event.measurements, event.measurements.length);
+                case kVisionQueued -> {
+                    for (var measurement : event.measurements) {
+                        var stdDevs = measurement.hasStdDevs ? measurement.stdDevs : visionStdDevs;
+                        queue.offer(measurement.cameraId, measurement.pose, measurement.timestampSeconds,
+                                stdDevs[0], stdDevs[1], stdDevs[2], stdDevs[3], 0, 0, 0);
+                    }
+                }
+                case kVisionStdDevs -> {
+                    System.arraycopy(event.stdDevs, 0, visionStdDevs, 0, 4);
+                    estimator.setVisionMeasurementStdDevs3d(VecBuilder.fill(
+                            event.stdDevs[0], event.stdDevs[1], event.stdDevs[2], event.stdDevs[3]));
+                }
+                case kMode -> estimator.set3dMode(event.is3d);
+                case kRollback -> estimator.rollbackOdometry(event.timestampSeconds);
+                case kUndoVision -> estimator.undoVisionMeasurement(event.pose, event.timestampSeconds);
+                default -> throw new IllegalStateException("Unknown record type " + event.type);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double maxTranslation = 0.0, sumTranslation = 0.0;
+        double maxRotation = 0.0, sumRotation = 0.0;
+        for (var event : m_events) {
+            if (event.type != kUpdate && event.type != kVelocityUpdate) {
+                continue;
+            }
+            var replayed = replayed3d[event.index] != null
+                    ? replayed3d[event.index]
+                    : new Pose3d(replayed2d[event.index]);
+
+            double translation = event.pose.getTranslation().getDistance(replayed.getTranslation());
+            double rotation = event.is3d
+                    ? event.pose.getRotation().minus(replayed.getRotation()).getAngle()
+                    : Math.abs(event.pose.getRotation().toRotation2d().minus(replayed.getRotation().toRotation2d())
+                    .getRadians());
+            maxTranslation = Math.max(maxTranslation, translation);
+            maxRotation = Math.max(maxRotation, rotation);
+            sumTranslation += translation * translation;
+            sumRotation += rotation * rotation;
+        }
+        int n = Math.max(1, m_updateCount);
+
+        return new Result(m_updateCount, m_visionCount, elapsed,
+                maxTranslation, Math.sqrt(sumTranslation / n), maxRotation, Math.sqrt(sumRotation / n));
+    }
+
+    /**
+     * @return The number of odometry updates in the recording.
+     */
+    public int getUpdateCount() {
+        return m_updateCount;
+    }
+
+    /**
+     * @return The number of vision measurements in the recording.
+     */
+    public int getVisionMeasurementCount() {
+        return m_visionCount;
+    }
+
+    private void readEvent(DataInputStream in, Event event) throws IOException {
+        switch (event.type) {
+            case kReset -> {
+                event.gyroAngle = readRotation(in, event.is3d);
+                event.modulePositions = readModulePositions(in);
+                event.pose = readPose(in, event.is3d);
+            }
+            case kUpdate -> {
+                event.timestampSeconds = in.readDouble();
+                event.gyroAngle = readRotation(in, event.is3d);
+                event.modulePositions = readModulePositions(in);
+                event.pose = readPose(in, event.is3d);
+                event.index = m_updateCount++;
+            }
+            case kVelocityUpdate -> {
+                event.timestampSeconds = in.readDouble();
+                event.gyroAngle = readRotation(in, event.is3d);
+                event.velocity = new Translation3d(in.readDouble(), in.readDouble(), in.readDouble());
+                event.dt = in.readDouble();
+                event.pose = readPose(in, event.is3d);
+                event.index = m_updateCount++;
+            }
+            case kVision -> {
+                event.measurements = new VisionMeasurement[] {readMeasurement(in, event.is3d)};
+                m_visionCount++;
+            }
+            case kVisionBatch, kVisionQueued -> {
+                event.measurements = new VisionMeasurement[in.readInt()];
+                for (int i = 0; i < event.measurements.length; i++) {
+                    event.measurements[i] = readMeasurement(in, event.is3d);
+                }
+                m_visionCount += event.measurements.length;
+                if (event.type == kVisionQueued) {
+                    m_maxQueued = Math.max(m_maxQueued, event.measurements.length);
+                }
+            }
+            case kVisionStdDevs -> {
+                event.stdDevs = new double[4];
+                readStdDevs(in, event.stdDevs);
+            }
+            case kMode -> event.is3d = in.readBoolean();
+            case kRollback -> event.timestampSeconds = in.readDouble();
+            case kUndoVision -> {
+                event.timestampSeconds = in.readDouble();
+                event.pose = readPose(in, event.is3d);
+            }
+            default -> throw new IOException("Unknown pose estimator record type " + event.type);
+        }
+    }
+
+    private VisionMeasurement readMeasurement(DataInputStream in, boolean is3d) throws IOException {
+        var measurement = new VisionMeasurement();
+        int cameraId = in.readInt();
+        double timestampSeconds = in.readDouble();
+        var pose = readPose(in, is3d);
+        if (in.readBoolean()) {
+            measurement.set(pose, timestampSeconds, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        } else {
+            measurement.set(pose, timestampSeconds);
+        }
+        measurement.cameraId = cameraId;
+        return measurement;
+    }
+
+    private SwerveModulePosition[] readModulePositions(DataInputStream in) throws IOException {
+        var positions = new SwerveModulePosition[m_modules.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new SwerveModulePosition(in.readDouble(), new Rotation2d(in.readDouble()));
+        }
+        return positions;
+    }
+
+    private static Rotation3d readRotation(DataInputStream in, boolean is3d) throws IOException {
+        if (is3d) {
+            return new Rotation3d(new Quaternion(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble()));
+        }
+        return new Rotation3d(0, 0, in.readDouble());
+    }
+
+    private static Pose3d readPose(DataInputStream in, boolean is3d) throws IOException {
+        if (is3d) {
+            var translation = new Translation3d(in.readDouble(), in.readDouble(), in.readDouble());
+            return new Pose3d(translation, readRotation(in, true));
+        }
+        double x = in.readDouble();
+        double y = in.readDouble();
+        return new Pose3d(x, y, 0.0, new Rotation3d(0, 0, in.readDouble()));
+    }
+
+    private static void readStdDevs(DataInputStream in, double[] out) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out[i] = in.readDouble();
+        }
+    }
+}
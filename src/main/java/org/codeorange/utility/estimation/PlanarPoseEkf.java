@@ -0,0 +1,278 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.geometry.MutablePose2d;
+
+/**
+ * An extended Kalman filter over the planar pose (x, y, theta), with the error state expressed in the field frame.
+ *
+ * <p>Each odometry step propagates the 3x3 covariance through the Jacobian of the pose composition and adds process noise from
+ * a simple noise model: every module's distance error grows with the distance it rolled (slip) plus a fixed encoder error per
+ * step, averaged over the modules, and the gyro's heading error grows with the angle turned (scale error) plus a fixed error
+ * per step. Vision measurements then do a full measurement update with H = I, so confidence tightens after every measurement
+ * and widens again with distance driven since.
+ *
+ * <p>The covariance is kept as the six unique entries of a symmetric matrix in primitive fields and every operation is expanded
+ * by hand, so nothing allocates. This class is not thread-safe; it is meant to be owned by a single estimator.
+ */
+public class PlanarPoseEkf {
+    private final double m_wheelStdDevPerMeter;
+    private final double m_encoderStdDev;
+    private final double m_gyroStdDevPerRadian;
+    private final double m_gyroStdDevPerStep;
+
+    // The unique entries of the symmetric covariance matrix
+    private double m_p00, m_p01, m_p02;
+    private double m_p11, m_p12;
+    private double m_p22;
+
+    /**
+     * Constructs a PlanarPoseEkf.
+     *
+     * @param wheelStdDevPerMeter The standard deviation of a module's distance error per meter it rolls, from slip.
+     * @param encoderStdDev       The standard deviation of a module's distance error per odometry step, in meters.
+     * @param gyroStdDevPerRadian The standard deviation of the gyro's heading error per radian turned, from scale error.
+     * @param gyroStdDevPerStep   The standard deviation of the gyro's heading error per odometry step, in radians.
+     * @param xVariance           The initial variance of x, in square meters.
+     * @param yVariance           The initial variance of y, in square meters.
+     * @param thetaVariance       The initial variance of the heading, in square radians.
+     */
+    public PlanarPoseEkf(double wheelStdDevPerMeter, double encoderStdDev, double gyroStdDevPerRadian, double gyroStdDevPerStep,
+                         double xVariance, double yVariance, double thetaVariance) {
+        if (wheelStdDevPerMeter < 0 || encoderStdDev < 0 || gyroStdDevPerRadian < 0 || gyroStdDevPerStep < 0) {
+            throw new IllegalArgumentException("Noise standard deviations must not be negative");
+        }
+        m_wheelStdDevPerMeter = wheelStdDevPerMeter;
+        m_encoderStdDev = encoderStdDev;
+        m_gyroStdDevPerRadian = gyroStdDevPerRadian;
+        m_gyroStdDevPerStep = gyroStdDevPerStep;
+        reset(xVariance, yVariance, thetaVariance);
+    }
+
+    /**
+     * Resets the covariance to a diagonal matrix.
+     *
+     * @param xVariance     The variance of x, in square meters.
+     * @param yVariance     The variance of y, in square meters.
+     * @param thetaVariance The variance of the heading, in square radians.
+     */
+    public void reset(double xVariance, double yVariance, double thetaVariance) {
+        m_p00 = xVariance;
+        m_p01 = 0.0;
+        m_p02 = 0.0;
+        m_p11 = yVariance;
+        m_p12 = 0.0;
+        m_p22 = thetaVariance;
+    }
+
+    /**
+     * Computes the variance of an odometry step's translation from the distance each module rolled during the step.
+     *
+     * @param moduleDeltas The change in each module's position during the step.
+     * @return The variance of each translation component of the step, in square meters.
+     */
+    public double getTranslationVariance(SwerveModulePosition[] moduleDeltas) {
+        double sum = 0.0;
+        for (var delta : moduleDeltas) {
+            double slip = m_wheelStdDevPerMeter * delta.distanceMeters;
+            sum += slip * slip + m_encoderStdDev * m_encoderStdDev;
+        }
+        // The translation is effectively the mean of the modules' independent measurements
+        return sum / ((double) moduleDeltas.length * moduleDeltas.length);
+    }
+
+    /**
+     * Computes the variance of an odometry step's translation when the module deltas are not known.
+     *
+     * @param distance The distance the robot moved during the step, in meters.
+     * @return The variance of each translation component of the step, in square meters.
+     */
+    public double getTranslationVariance(double distance) {
+        double slip = m_wheelStdDevPerMeter * distance;
+        return slip * slip + m_encoderStdDev * m_encoderStdDev;
+    }
+
+    /**
+     * Propagates the covariance through one odometry step.
+     *
+     * @param headingCos          The cosine of the estimated heading before the step.
+     * @param headingSin          The sine of the estimated heading before the step.
+     * @param delta               The step in the robot's frame.
+     * @param translationVariance The variance of each translation component of the step; see
+     *                            {@link #getTranslationVariance(SwerveModulePosition[])}.
+     */
+    public void predict(double headingCos, double headingSin, Twist2d delta, double translationVariance) {
+        // The step in the field frame, to first order
+        double fieldDx = headingCos * delta.dx - headingSin * delta.dy;
+        double fieldDy = headingSin * delta.dx + headingCos * delta.dy;
+
+        // P = F P Fᵀ + Q, with F = [[1, 0, -fieldDy], [0, 1, fieldDx], [0, 0, 1]]. The translation noise is isotropic, so
+        // rotating it into the field frame leaves it unchanged.
+        double a = -fieldDy;
+        double b = fieldDx;
+        double p02 = m_p02 + a * m_p22;
+        double p12 = m_p12 + b * m_p22;
+
+        m_p00 = m_p00 + 2.0 * a * m_p02 + a * a * m_p22 + translationVariance;
+        m_p01 = m_p01 + a * m_p12 + b * m_p02 + a * b * m_p22;
+        m_p11 = m_p11 + 2.0 * b * m_p12 + b * b * m_p22 + translationVariance;
+        m_p02 = p02;
+        m_p12 = p12;
+
+        double scale = m_gyroStdDevPerRadian * delta.dtheta;
+        m_p22 += scale * scale + m_gyroStdDevPerStep * m_gyroStdDevPerStep;
+    }
+
+    /**
+     * Corrects an estimate with a pose measurement taken at the same time and updates the covariance.
+     *
+     * @param estimate     The estimate to correct in place.
+     * @param measurement  The measured pose.
+     * @param stdDevs      The standard deviations of the measurement in the form [x, y, z, theta]. z is ignored.
+     * @param stdDevScale  A factor to multiply the standard deviations by, such as from a {@link VisionGate}.
+     * @return False if the innovation covariance was singular and the measurement was not applied.
+     */
+    public boolean correct(MutablePose2d estimate, MutablePose2d measurement, double[] stdDevs, double stdDevScale) {
+        double r0 = stdDevs[0] * stdDevScale;
+        double r1 = stdDevs[1] * stdDevScale;
+        double r2 = stdDevs[3] * stdDevScale;
+
+        // S = P + R
+        double s00 = m_p00 + r0 * r0;
+        double s01 = m_p01;
+        double s02 = m_p02;
+        double s11 = m_p11 + r1 * r1;
+        double s12 = m_p12;
+        double s22 = m_p22 + r2 * r2;
+
+        // S⁻¹ from the cofactors of the symmetric matrix S
+        double c00 = s11 * s22 - s12 * s12;
+        double c01 = s02 * s12 - s01 * s22;
+        double c02 = s01 * s12 - s02 * s11;
+        double c11 = s00 * s22 - s02 * s02;
+        double c12 = s01 * s02 - s00 * s12;
+        double c22 = s00 * s11 - s01 * s01;
+        double det = s00 * c00 + s01 * c01 + s02 * c02;
+        if (!(Math.abs(det) > 1e-18)) {
+            return false;
+        }
+        double invDet = 1.0 / det;
+        double i00 = c00 * invDet, i01 = c01 * invDet, i02 = c02 * invDet;
+        double i11 = c11 * invDet, i12 = c12 * invDet;
+        double i22 = c22 * invDet;
+
+        // K = P S⁻¹
+        double k00 = m_p00 * i00 + m_p01 * i01 + m_p02 * i02;
+        double k01 = m_p00 * i01 + m_p01 * i11 + m_p02 * i12;
+        double k02 = m_p00 * i02 + m_p01 * i12 + m_p02 * i22;
+        double k10 = m_p01 * i00 + m_p11 * i01 + m_p12 * i02;
+        double k11 = m_p01 * i01 + m_p11 * i11 + m_p12 * i12;
+        double k12 = m_p01 * i02 + m_p11 * i12 + m_p12 * i22;
+        double k20 = m_p02 * i00 + m_p12 * i01 + m_p22 * i02;
+        double k21 = m_p02 * i01 + m_p12 * i11 + m_p22 * i12;
+        double k22 = m_p02 * i02 + m_p12 * i12 + m_p22 * i22;
+
+        // The innovation in the field frame
+        double cos = estimate.getCos();
+        double sin = estimate.getSin();
+        double v0 = measurement.getX() - estimate.getX();
+        double v1 = measurement.getY() - estimate.getY();
+        double v2 = Math.atan2(
+                cos * measurement.getSin() - sin * measurement.getCos(),
+                cos * measurement.getCos() + sin * measurement.getSin());
+
+        double dx = k00 * v0 + k01 * v1 + k02 * v2;
+        double dy = k10 * v0 + k11 * v1 + k12 * v2;
+        double dtheta = k20 * v0 + k21 * v1 + k22 * v2;
+
+        double cosDtheta = Math.cos(dtheta);
+        double sinDtheta = Math.sin(dtheta);
+        estimate.set(estimate.getX() + dx, estimate.getY() + dy,
+                cos * cosDtheta - sin * sinDtheta, sin * cosDtheta + cos * sinDtheta);
+
+        // P = P - K P, which is P - P S⁻¹ P and so symmetric
+        double p00 = m_p00 - (k00 * m_p00 + k01 * m_p01 + k02 * m_p02);
+        double p01 = m_p01 - (k00 * m_p01 + k01 * m_p11 + k02 * m_p12);
+        double p02 = m_p02 - (k00 * m_p02 + k01 * m_p12 + k02 * m_p22);
+        double p11 = m_p11 - (k10 * m_p01 + k11 * m_p11 + k12 * m_p12);
+        double p12 = m_p12 - (k10 * m_p02 + k11 * m_p12 + k12 * m_p22);
+        double p22 = m_p22 - (k20 * m_p02 + k21 * m_p12 + k22 * m_p22);
+        m_p00 = p00;
+        m_p01 = p01;
+        m_p02 = p02;
+        m_p11 = p11;
+        m_p12 = p12;
+        m_p22 = p22;
+        return true;
+    }
+
+    /**
+     * Writes the diagonal of the covariance in the form [x, y, z, theta], the form {@link VisionGate} takes state variances in.
+     * z is always 0.
+     *
+     * @param out Array of at least four elements to write into.
+     */
+    public void getVariances(double[] out) {
+        out[0] = m_p00;
+        out[1] = m_p11;
+        out[2] = 0.0;
+        out[3] = m_p22;
+    }
+
+    /**
+     * Writes the six unique entries of the covariance in the order [xx, xy, xθ, yy, yθ, θθ].
+     *
+     * @param out Array of at least six elements to write into.
+     */
+    public void getCovariance(double[] out) {
+        out[0] = m_p00;
+        out[1] = m_p01;
+        out[2] = m_p02;
+        out[3] = m_p11;
+        out[4] = m_p12;
+        out[5] = m_p22;
+    }
+
+    /**
+     * Sets the covariance, such as one saved with {@link #getCovariance(double[])}.
+     *
+     * @param covariance The six unique entries of the covariance in the order [xx, xy, xθ, yy, yθ, θθ].
+     */
+    public void setCovariance(double[] covariance) {
+        m_p00 = covariance[0];
+        m_p01 = covariance[1];
+        m_p02 = covariance[2];
+        m_p11 = covariance[3];
+        m_p12 = covariance[4];
+        m_p22 = covariance[5];
+    }
+
+    /**
+     * @return The variance of x, in square meters.
+     */
+    public double getXVariance() {
+        return m_p00;
+    }
+
+    /**
+     * @return The variance of y, in square meters.
+     */
+    public double getYVariance() {
+        return m_p11;
+    }
+
+    /**
+     * @return The variance of the heading, in square radians.
+     */
+    public double getThetaVariance() {
+        return m_p22;
+    }
+
+    /**
+     * @return The covariance between x and y, in square meters.
+     */
+    public double getXYCovariance() {
+        return m_p01;
+    }
+}
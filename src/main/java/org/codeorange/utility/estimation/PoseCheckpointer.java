@@ -0,0 +1,201 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation3d;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Saves a pose estimator's state to a small memory-mapped file a few times per second, so that if robot code restarts, the
+ * new estimator can pick up where the old one left off instead of waiting to see tags.
+ *
+ * <p>A checkpoint holds the estimate, the offset between the estimate's heading and the raw gyro yaw, and the EKF covariance
+ * if there is one. Restoring applies the saved offset to the gyro's current reading rather than restoring the saved heading,
+ * so the heading stays right if the robot turned while the code was down, as long as the gyro itself kept running.
+ *
+ * <p>Writing a checkpoint is a handful of stores into the mapping with no system call; the operating system writes the pages
+ * back on its own, and they survive the process dying. A sequence number is made odd while a checkpoint is written, so one
+ * torn by a crash mid-write is never restored. Keep the file on a RAM-backed file system such as {@code /tmp} on the roboRIO:
+ * it is then cleared by a reboot, after which the gyro has restarted and the saved offset would be wrong anyway.
+ *
+ * <p>This class is not thread-safe; it is meant to be owned by a single estimator.
+ */
+public class PoseCheckpointer {
+    public static final double kDefaultPeriod = 0.2;
+    public static final double kDefaultMaxAge = 5.0;
+
+    private static final int kMagic = 0x4F52434B;
+    private static final int kVersion = 1;
+
+    private static final int kMagicOffset = 0;
+    private static final int kVersionOffset = 4;
+    private static final int kSequenceOffset = 8;
+    private static final int kTimeOffset = 16;
+    private static final int kPoseOffset = 24;
+    private static final int kGyroOffsetOffset = 80;
+    private static final int kHasCovarianceOffset = 88;
+    private static final int kCovarianceOffset = 96;
+    private static final int kSize = 144;
+
+    private final MappedByteBuffer m_buffer;
+    private final double m_period;
+    private final double m_maxAgeMillis;
+    private double m_lastWriteTime = Double.NaN;
+
+    /**
+     * Constructs a PoseCheckpointer with the default write period and maximum age.
+     *
+     * @param file The file to save checkpoints to, created if it does not exist.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public PoseCheckpointer(Path file) throws IOException {
+        this(file, kDefaultPeriod, kDefaultMaxAge);
+    }
+
+    /**
+     * Constructs a PoseCheckpointer.
+     *
+     * @param file          The file to save checkpoints to, created if it does not exist.
+     * @param periodSeconds The time between checkpoints, in seconds.
+     * @param maxAgeSeconds The age past which a checkpoint is too stale to restore, in seconds of wall-clock time.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public PoseCheckpointer(Path file, double periodSeconds, double maxAgeSeconds) throws IOException {
+        if (periodSeconds < 0 || !(maxAgeSeconds > 0)) {
+            throw new IllegalArgumentException("Checkpoint period must not be negative and maximum age must be positive");
+        }
+        m_period = periodSeconds;
+        m_maxAgeMillis = maxAgeSeconds * 1000.0;
+
+        // The mapping stays valid after the channel is closed
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            m_buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, kSize);
+        }
+    }
+
+    /**
+     * Checks whether a checkpoint is due, and if so assumes one will be written now. Time going backwards, such as from a
+     * replay, makes a checkpoint due.
+     *
+     * @param timestampSeconds The time of the estimator's update, in seconds.
+     * @return Whether to write a checkpoint.
+     */
+    public boolean isDue(double timestampSeconds) {
+        double elapsed = timestampSeconds - m_lastWriteTime;
+        // Written so that the first call, where elapsed is NaN, is due
+        if (elapsed >= 0 && elapsed < m_period) {
+            return false;
+        }
+        m_lastWriteTime = timestampSeconds;
+        return true;
+    }
+
+    /**
+     * Writes a checkpoint. Does not allocate.
+     *
+     * @param x          The x position of the estimate, in meters.
+     * @param y          The y position of the estimate, in meters.
+     * @param z          The z position of the estimate, in meters.
+     * @param qw         The w component of the estimate's orientation quaternion.
+     * @param qx         The x component of the estimate's orientation quaternion.
+     * @param qy         The y component of the estimate's orientation quaternion.
+     * @param qz         The z component of the estimate's orientation quaternion.
+     * @param gyroOffset The estimate's yaw minus the raw gyro yaw, in radians.
+     * @param covariance The six unique entries of the EKF covariance as from {@link PlanarPoseEkf#getCovariance}, or null if
+     *                   there is none.
+     */
+    public void write(double x, double y, double z, double qw, double qx, double qy, double qz, double gyroOffset,
+                      double[] covariance) {
+        long sequence = m_buffer.getLong(kSequenceOffset);
+        // Round up past an odd sequence left by a torn write
+        sequence = (sequence + 1) & ~1L;
+
+        m_buffer.putLong(kSequenceOffset, sequence + 1);
+        VarHandle.storeStoreFence();
+
+        m_buffer.putInt(kMagicOffset, kMagic);
+        m_buffer.putInt(kVersionOffset, kVersion);
+        m_buffer.putLong(kTimeOffset, System.currentTimeMillis());
+        m_buffer.putDouble(kPoseOffset, x);
+        m_buffer.putDouble(kPoseOffset + 8, y);
+        m_buffer.putDouble(kPoseOffset + 16, z);
+        m_buffer.putDouble(kPoseOffset + 24, qw);
+        m_buffer.putDouble(kPoseOffset + 32, qx);
+        m_buffer.putDouble(kPoseOffset + 40, qy);
+        m_buffer.putDouble(kPoseOffset + 48, qz);
+        m_buffer.putDouble(kGyroOffsetOffset, gyroOffset);
+        m_buffer.putInt(kHasCovarianceOffset, covariance != null ? 1 : 0);
+        if (covariance != null) {
+            for (int i = 0; i < 6; i++) {
+                m_buffer.putDouble(kCovarianceOffset + 8 * i, covariance[i]);
+            }
+        }
+
+        VarHandle.storeStoreFence();
+        m_buffer.putLong(kSequenceOffset, sequence + 2);
+    }
+
+    /**
+     * Reads the last checkpoint if it is complete and no older than the maximum age.
+     *
+     * @return The checkpoint, or empty if there is none fresh enough to restore.
+     */
+    public Optional<Checkpoint> read() {
+        long sequence = m_buffer.getLong(kSequenceOffset);
+        if (sequence == 0 || (sequence & 1) != 0
+                || m_buffer.getInt(kMagicOffset) != kMagic || m_buffer.getInt(kVersionOffset) != kVersion) {
+            return Optional.empty();
+        }
+
+        // A checkpoint from the future means the clock was changed, so its age is unknown
+        long ageMillis = System.currentTimeMillis() - m_buffer.getLong(kTimeOffset);
+        if (ageMillis < 0 || ageMillis > m_maxAgeMillis) {
+            return Optional.empty();
+        }
+
+        var pose = new Pose3d(
+                m_buffer.getDouble(kPoseOffset),
+                m_buffer.getDouble(kPoseOffset + 8),
+                m_buffer.getDouble(kPoseOffset + 16),
+                new Rotation3d(new Quaternion(
+                        m_buffer.getDouble(kPoseOffset + 24),
+                        m_buffer.getDouble(kPoseOffset + 32),
+                        m_buffer.getDouble(kPoseOffset + 40),
+                        m_buffer.getDouble(kPoseOffset + 48))));
+        double[] covariance = null;
+        if (m_buffer.getInt(kHasCovarianceOffset) != 0) {
+            covariance = new double[6];
+            for (int i = 0; i < 6; i++) {
+                covariance[i] = m_buffer.getDouble(kCovarianceOffset + 8 * i);
+            }
+        }
+        return Optional.of(new Checkpoint(pose, m_buffer.getDouble(kGyroOffsetOffset), covariance, ageMillis / 1000.0));
+    }
+
+    /**
+     * Marks the last checkpoint as stale so that it is never restored, such as when the robot is moved by hand.
+     */
+    public void invalidate() {
+        m_buffer.putLong(kSequenceOffset, 0);
+        m_lastWriteTime = Double.NaN;
+    }
+
+    /**
+     * A saved estimator state.
+     *
+     * @param pose       The estimate.
+     * @param gyroOffset The estimate's yaw minus the raw gyro yaw, in radians.
+     * @param covariance The six unique entries of the EKF covariance, or null if the estimator had none.
+     * @param ageSeconds How long before it was read the checkpoint was written, in seconds.
+     */
+    public record Checkpoint(Pose3d pose, double gyroOffset, double[] covariance, double ageSeconds) {
+    }
+}
@@ -0,0 +1,257 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation3d;
+
+/**
+ * A fixed-capacity circular buffer of timestamped poses, used as a drop-in replacement for
+ * {@link edu.wpi.first.math.interpolation.TimeInterpolatableBuffer TimeInterpolatableBuffer&lt;Pose3d&gt;}.
+ *
+ * <p>Poses are stored as a struct of primitive arrays (t, x, y, z, qw, qx, qy, qz), so adding and sampling poses does not
+ * allocate once the buffer has been constructed. Samples must be added in increasing time order; adding a sample at or before
+ * the newest stored timestamp discards every stored sample at or after that time first, matching the overwrite behaviour of the
+ * map-backed buffer for the common case.
+ */
+public class PoseHistoryBuffer {
+    /**
+     * A mutable holder for a single interpolated pose. Reuse one instance per caller to avoid allocation.
+     */
+    public static class Sample {
+        public double timestampSeconds;
+        public double x;
+        public double y;
+        public double z;
+        public double qw = 1.0;
+        public double qx;
+        public double qy;
+        public double qz;
+
+        /**
+         * Creates a new Pose3d from this sample. This allocates a Pose3d, Translation3d, Rotation3d and Quaternion, so it
+         * should be kept off of hot paths where possible; read the fields directly instead.
+         *
+         * @return The pose stored in this sample.
+         */
+        public Pose3d toPose3d() {
+            return new Pose3d(new Translation3d(x, y, z), new Rotation3d(new Quaternion(qw, qx, qy, qz)));
+        }
+    }
+
+    private final double m_historySeconds;
+    private final int m_mask;
+
+    private final double[] m_t;
+    private final double[] m_x;
+    private final double[] m_y;
+    private final double[] m_z;
+    private final double[] m_qw;
+    private final double[] m_qx;
+    private final double[] m_qy;
+    private final double[] m_qz;
+
+    /** Physical index of the oldest sample. */
+    private int m_head = 0;
+    private int m_size = 0;
+
+    /**
+     * Constructs a PoseHistoryBuffer.
+     *
+     * @param historySeconds The amount of time to keep samples for, in seconds.
+     * @param minCapacity    The minimum number of samples the buffer must be able to hold. This is rounded up to the next power
+     *                       of two. It should be at least the history length multiplied by the fastest update rate.
+     */
+    public PoseHistoryBuffer(double historySeconds, int minCapacity) {
+        if (minCapacity < 2) {
+            throw new IllegalArgumentException("A pose history buffer requires a capacity of at least two samples");
+        }
+        int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+
+        m_historySeconds = historySeconds;
+        m_mask = capacity - 1;
+        m_t = new double[capacity];
+        m_x = new double[capacity];
+        m_y = new double[capacity];
+        m_z = new double[capacity];
+        m_qw = new double[capacity];
+        m_qx = new double[capacity];
+        m_qy = new double[capacity];
+        m_qz = new double[capacity];
+    }
+
+    /**
+     * Adds a sample to the buffer.
+     *
+     * @param timestampSeconds The timestamp of the sample, in seconds.
+     * @param pose             The pose to store.
+     */
+    public void addSample(double timestampSeconds, Pose3d pose) {
+        var q = pose.getRotation().getQuaternion();
+        addSample(timestampSeconds, pose.getX(), pose.getY(), pose.getZ(), q.getW(), q.getX(), q.getY(), q.getZ());
+    }
+
+    /**
+     * Adds a sample to the buffer.
+     *
+     * @param timestampSeconds The timestamp of the sample, in seconds.
+     * @param x                The x position, in meters.
+     * @param y                The y position, in meters.
+     * @param z                The z position, in meters.
+     * @param qw               The w component of the rotation quaternion.
+     * @param qx               The x component of the rotation quaternion.
+     * @param qy               The y component of the rotation quaternion.
+     * @param qz               The z component of the rotation quaternion.
+     */
+    public void addSample(double timestampSeconds, double x, double y, double z, double qw, double qx, double qy, double qz) {
+        // Keep the buffer sorted by dropping anything that would now be out of order
+        while (m_size > 0 && m_t[physical(m_size - 1)] >= timestampSeconds) {
+            m_size--;
+        }
+
+        // Drop samples that have fallen out of the history window
+        while (m_size > 0 && timestampSeconds - m_t[m_head] >= m_historySeconds) {
+            m_head = (m_head + 1) & m_mask;
+            m_size--;
+        }
+
+        // Overwrite the oldest sample if we are out of room
+        if (m_size == m_t.length) {
+            m_head = (m_head + 1) & m_mask;
+            m_size--;
+        }
+
+        int i = physical(m_size);
+        m_t[i] = timestampSeconds;
+        m_x[i] = x;
+        m_y[i] = y;
+        m_z[i] = z;
+        m_qw[i] = qw;
+        m_qx[i] = qx;
+        m_qy[i] = qy;
+        m_qz[i] = qz;
+        m_size++;
+    }
+
+    /**
+     * Samples the buffer at the given time. Poses between two samples are interpolated linearly in translation and with a
+     * normalized quaternion lerp in rotation. Times outside the stored range are clamped to the oldest or newest sample.
+     *
+     * @param timestampSeconds The time at which to sample, in seconds.
+     * @param out              The sample to write the result into.
+     * @return False if the buffer is empty, in which case {@code out} is left untouched.
+     */
+    public boolean getSample(double timestampSeconds, Sample out) {
+        if (m_size == 0) {
+            return false;
+        }
+
+        if (timestampSeconds <= m_t[m_head]) {
+            copy(m_head, out);
+            return true;
+        }
+
+        int newest = physical(m_size - 1);
+        if (timestampSeconds >= m_t[newest]) {
+            copy(newest, out);
+            return true;
+        }
+
+        // Find the last sample at or before the requested time
+        int lo = 0;
+        int hi = m_size - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (m_t[physical(mid)] <= timestampSeconds) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+
+        int a = physical(lo);
+        int b = physical(hi);
+        double t = (timestampSeconds - m_t[a]) / (m_t[b] - m_t[a]);
+
+        out.timestampSeconds = timestampSeconds;
+        out.x = m_x[a] + (m_x[b] - m_x[a]) * t;
+        out.y = m_y[a] + (m_y[b] - m_y[a]) * t;
+        out.z = m_z[a] + (m_z[b] - m_z[a]) * t;
+
+        // Take the shorter path between the two rotations
+        double sign = m_qw[a] * m_qw[b] + m_qx[a] * m_qx[b] + m_qy[a] * m_qy[b] + m_qz[a] * m_qz[b] < 0 ? -1.0 : 1.0;
+        double qw = m_qw[a] + (sign * m_qw[b] - m_qw[a]) * t;
+        double qx = m_qx[a] + (sign * m_qx[b] - m_qx[a]) * t;
+        double qy = m_qy[a] + (sign * m_qy[b] - m_qy[a]) * t;
+        double qz = m_qz[a] + (sign * m_qz[b] - m_qz[a]) * t;
+        double norm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+
+        out.qw = qw / norm;
+        out.qx = qx / norm;
+        out.qy = qy / norm;
+        out.qz = qz / norm;
+        return true;
+    }
+
+    /**
+     * Removes every sample with a timestamp strictly after the given time.
+     *
+     * @param timestampSeconds The time after which samples are removed, in seconds.
+     */
+    public void removeAfter(double timestampSeconds) {
+        while (m_size > 0 && m_t[physical(m_size - 1)] > timestampSeconds) {
+            m_size--;
+        }
+    }
+
+    /**
+     * Removes every sample from the buffer.
+     */
+    public void clear() {
+        m_head = 0;
+        m_size = 0;
+    }
+
+    /**
+     * @return Whether the buffer contains no samples.
+     */
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    /**
+     * @return The number of samples currently stored.
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @return The timestamp of the newest sample, or {@link Double#NaN} if the buffer is empty.
+     */
+    public double getLatestTimestamp() {
+        return m_size == 0 ? Double.NaN : m_t[physical(m_size - 1)];
+    }
+
+    /**
+     * @return The timestamp of the oldest sample, or {@link Double#NaN} if the buffer is empty.
+     */
+    public double getOldestTimestamp() {
+        return m_size == 0 ? Double.NaN : m_t[m_head];
+    }
+
+    private int physical(int logicalIndex) {
+        return (m_head + logicalIndex) & m_mask;
+    }
+
+    private void copy(int i, Sample out) {
+        out.timestampSeconds = m_t[i];
+        out.x = m_x[i];
+        out.y = m_y[i];
+        out.z = m_z[i];
+        out.qw = m_qw[i];
+        out.qx = m_qx[i];
+        out.qy = m_qy[i];
+        out.qz = m_qz[i];
+    }
+}
@@ -0,0 +1,93 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation3d;
+import org.codeorange.utility.geometry.MutablePose2d;
+
+/**
+ * A consistent copy of a pose estimate, its velocity and the time it was made, read from a {@link PoseSnapshotPublisher}.
+ *
+ * <p>Readers keep one of these per thread and refill it with {@link PoseSnapshotPublisher#read}, so reading does not allocate.
+ * The velocity is in the field frame.
+ */
+public class PoseSnapshot {
+    /** The number of snapshots published before this one, or -1 if nothing has been published yet. */
+    public long sequence = -1;
+
+    /** The time of the estimate, in seconds, in the estimator's time base. */
+    public double timestampSeconds;
+
+    /** The position of the estimate, in meters. */
+    public double x, y, z;
+
+    /** The orientation of the estimate as a quaternion. */
+    public double qw = 1.0, qx, qy, qz;
+
+    /** The velocity of the robot in the field frame, in meters per second. */
+    public double vx, vy, vz;
+
+    /** The rate of change of the robot's heading, in radians per second. */
+    public double omega;
+
+    /**
+     * @return The heading of the estimate in radians, between -pi and pi.
+     */
+    public double getYaw() {
+        return Math.atan2(2.0 * (qw * qz + qx * qy), 1.0 - 2.0 * (qy * qy + qz * qz));
+    }
+
+    /**
+     * Writes the projection of the estimate onto the XY plane into a pose, without allocating.
+     *
+     * @param out The pose to write into.
+     * @return {@code out}.
+     */
+    public MutablePose2d getPose(MutablePose2d out) {
+        return out.set(x, y, qw, qx, qy, qz);
+    }
+
+    /**
+     * @return A new Pose2d equal to the projection of the estimate onto the XY plane.
+     */
+    public Pose2d toPose2d() {
+        return getPose(new MutablePose2d()).toPose2d();
+    }
+
+    /**
+     * @return A new Pose3d equal to the estimate.
+     */
+    public Pose3d toPose3d() {
+        return new Pose3d(x, y, z, new Rotation3d(new Quaternion(qw, qx, qy, qz)));
+    }
+
+    /**
+     * Copies another snapshot into this one.
+     *
+     * @param other The snapshot to copy.
+     * @return This PoseSnapshot.
+     */
+    public PoseSnapshot set(PoseSnapshot other) {
+        sequence = other.sequence;
+        timestampSeconds = other.timestampSeconds;
+        x = other.x;
+        y = other.y;
+        z = other.z;
+        qw = other.qw;
+        qx = other.qx;
+        qy = other.qy;
+        qz = other.qz;
+        vx = other.vx;
+        vy = other.vy;
+        vz = other.vz;
+        omega = other.omega;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PoseSnapshot(T: %.3f, X: %.2f, Y: %.2f, Z: %.2f, Yaw: %.2f, Vx: %.2f, Vy: %.2f, Omega: %.2f)",
+                timestampSeconds, x, y, z, getYaw(), vx, vy, omega);
+    }
+}
@@ -0,0 +1,145 @@
+package org.codeorange.utility.estimation;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Publishes pose estimates from the thread that owns the estimator to any number of reader threads, without locks and without
+ * allocating on either side.
+ *
+ * <p>This is a sequence lock over two copies of the snapshot (a "latch"). The writer bumps the sequence number to odd, writes
+ * copy 0, bumps it to even and writes copy 1; readers read the copy the writer is not currently writing and retry only if
+ * the sequence number changed while they were reading. A reader therefore never waits for a write in progress, and a writer
+ * never waits for readers. Only one thread may publish.
+ */
+public class PoseSnapshotPublisher {
+    private static final int kTimestamp = 0;
+    private static final int kX = 1;
+    private static final int kY = 2;
+    private static final int kZ = 3;
+    private static final int kQw = 4;
+    private static final int kQx = 5;
+    private static final int kQy = 6;
+    private static final int kQz = 7;
+    private static final int kVx = 8;
+    private static final int kVy = 9;
+    private static final int kVz = 10;
+    private static final int kOmega = 11;
+    private static final int kFields = 12;
+
+    private static final VarHandle kSequence;
+
+    static {
+        try {
+            kSequence = MethodHandles.lookup().findVarHandle(PoseSnapshotPublisher.class, "m_sequence", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final double[] m_copy0 = new double[kFields];
+    private final double[] m_copy1 = new double[kFields];
+
+    /** Incremented twice per publish; odd while copy 0 is being written. Accessed through {@link #kSequence}. */
+    @SuppressWarnings("unused")
+    private long m_sequence = 0;
+
+    /**
+     * Constructs a PoseSnapshotPublisher. Until something is published, readers get an identity pose at rest with a sequence
+     * number of -1.
+     */
+    public PoseSnapshotPublisher() {
+        m_copy0[kQw] = 1.0;
+        m_copy1[kQw] = 1.0;
+    }
+
+    /**
+     * Publishes a snapshot. Must only be called from a single thread.
+     *
+     * @param timestampSeconds The time of the estimate, in seconds.
+     * @param x                The x position of the estimate, in meters.
+     * @param y                The y position of the estimate, in meters.
+     * @param z                The z position of the estimate, in meters.
+     * @param qw               The w component of the estimate's orientation quaternion.
+     * @param qx               The x component of the estimate's orientation quaternion.
+     * @param qy               The y component of the estimate's orientation quaternion.
+     * @param qz               The z component of the estimate's orientation quaternion.
+     * @param vx               The x velocity in the field frame, in meters per second.
+     * @param vy               The y velocity in the field frame, in meters per second.
+     * @param vz               The z velocity in the field frame, in meters per second.
+     * @param omega            The rate of change of the heading, in radians per second.
+     */
+    public void publish(double timestampSeconds, double x, double y, double z, double qw, double qx, double qy, double qz,
+                        double vx, double vy, double vz, double omega) {
+        long sequence = (long) kSequence.getOpaque(this);
+
+        // Readers move to copy 1 while copy 0 is written. Release, so that a reader that sees the odd sequence also sees
+        // everything written to copy 1 by the last publish
+        kSequence.setRelease(this, sequence + 1);
+        VarHandle.storeStoreFence();
+        write(m_copy0, timestampSeconds, x, y, z, qw, qx, qy, qz, vx, vy, vz, omega);
+
+        // Then back to copy 0 while copy 1 is written
+        kSequence.setRelease(this, sequence + 2);
+        VarHandle.storeStoreFence();
+        write(m_copy1, timestampSeconds, x, y, z, qw, qx, qy, qz, vx, vy, vz, omega);
+    }
+
+    /**
+     * Reads the latest complete snapshot. Safe to call from any thread; never blocks on the writer and does not allocate.
+     *
+     * @param out The snapshot to write into.
+     * @return {@code out}.
+     */
+    public PoseSnapshot read(PoseSnapshot out) {
+        while (true) {
+            long sequence = (long) kSequence.getAcquire(this);
+            var copy = (sequence & 1) == 0 ? m_copy0 : m_copy1;
+
+            out.timestampSeconds = copy[kTimestamp];
+            out.x = copy[kX];
+            out.y = copy[kY];
+            out.z = copy[kZ];
+            out.qw = copy[kQw];
+            out.qx = copy[kQx];
+            out.qy = copy[kQy];
+            out.qz = copy[kQz];
+            out.vx = copy[kVx];
+            out.vy = copy[kVy];
+            out.vz = copy[kVz];
+            out.omega = copy[kOmega];
+
+            VarHandle.loadLoadFence();
+            if ((long) kSequence.getOpaque(this) == sequence) {
+                // Either copy holds the latest publish when the sequence is even, and copy 1 holds the one before it when odd
+                out.sequence = (sequence >> 1) - 1;
+                return out;
+            }
+            // The writer moved on to the copy that was being read; try again
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return The number of snapshots published so far.
+     */
+    public long getPublishCount() {
+        return (long) kSequence.getAcquire(this) >> 1;
+    }
+
+    private static void write(double[] copy, double timestampSeconds, double x, double y, double z,
+                              double qw, double qx, double qy, double qz, double vx, double vy, double vz, double omega) {
+        copy[kTimestamp] = timestampSeconds;
+        copy[kX] = x;
+        copy[kY] = y;
+        copy[kZ] = z;
+        copy[kQw] = qw;
+        copy[kQx] = qx;
+        copy[kQy] = qy;
+        copy[kQz] = qz;
+        copy[kVx] = vx;
+        copy[kVy] = vy;
+        copy[kVz] = vz;
+        copy[kOmega] = omega;
+    }
+}
@@ -0,0 +1,515 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.geometry.Twist3d;
+import org.codeorange.utility.geometry.MutablePose2d;
+import org.codeorange.utility.geometry.MutablePose3d;
+
+/**
+ * Bounded history of odometry steps and vision observations used for replay-based latency compensation.
+ *
+ * <p>Every odometry update is stored as the twist it applied along with the pose estimate after it. When a vision observation
+ * arrives, the history is rewound to the last step before the observation and every step after it is re-integrated, applying
+ * each stored observation at its own timestamp. Observations may therefore arrive late and out of order and still be fused at
+ * the correct point in time.
+ *
+ * <p>Replay work is capped at a fixed number of steps per {@link #process()} call. While a replay is in progress the caller
+ * keeps integrating odometry normally, and the replayed estimate takes over once it has caught up with the newest step.
+ *
+ * <p>Steps and observations are addressed with ever-increasing sequence numbers so that evicting old entries never shifts the
+ * replay cursor. Both are stored as primitives; the planar overloads of {@link #addStep}, {@link #addObservation} and
+ * {@link #process} record and replay them with the SE(2) exponential and logarithm without allocating.
+ */
+public class ReplayHistory {
+    private final double m_historySeconds;
+    private final int m_maxStepsPerProcess;
+
+    // Odometry steps
+    private final int m_stepMask;
+    private final double[] m_stepTime;
+    private final double[] m_dx;
+    private final double[] m_dy;
+    private final double[] m_dz;
+    private final double[] m_rx;
+    private final double[] m_ry;
+    private final double[] m_rz;
+    private final double[] m_x;
+    private final double[] m_y;
+    private final double[] m_z;
+    private final double[] m_qw;
+    private final double[] m_qx;
+    private final double[] m_qy;
+    private final double[] m_qz;
+    private long m_stepTail = 0;
+    private long m_stepHead = 0;
+
+    // Vision observations, sorted by timestamp
+    private final int m_obsMask;
+    private final double[] m_obsTime;
+    private final double[] m_obsX;
+    private final double[] m_obsY;
+    private final double[] m_obsZ;
+    private final double[] m_obsQw;
+    private final double[] m_obsQx;
+    private final double[] m_obsQy;
+    private final double[] m_obsQz;
+    private final double[] m_obsGain;
+    private long m_obsTail = 0;
+    private long m_obsHead = 0;
+
+    // Replay state
+    private double m_pendingFrom = Double.POSITIVE_INFINITY;
+    private boolean m_replaying = false;
+    private long m_stepCursor;
+    private long m_obsCursor;
+    private double m_cursorTime;
+    private double m_replayFrom;
+    private boolean m_replayPlanar;
+    private Pose3d m_working;
+    private final MutablePose2d m_planarWorking = new MutablePose2d();
+    private final MutablePose2d m_planarObservation = new MutablePose2d();
+    private final Twist2d m_planarInnovation = new Twist2d();
+
+    /**
+     * Constructs a ReplayHistory.
+     *
+     * @param historySeconds     How far back late observations may be fused, in seconds.
+     * @param stepCapacity       The minimum number of odometry steps to keep. Rounded up to a power of two.
+     * @param observationCapacity The minimum number of vision observations to keep. Rounded up to a power of two.
+     * @param maxStepsPerProcess The maximum number of odometry steps to re-integrate per call to {@link #process()}.
+     */
+    public ReplayHistory(double historySeconds, int stepCapacity, int observationCapacity, int maxStepsPerProcess) {
+        if (maxStepsPerProcess < 1) {
+            throw new IllegalArgumentException("At least one step must be replayed per cycle");
+        }
+        m_historySeconds = historySeconds;
+        m_maxStepsPerProcess = maxStepsPerProcess;
+
+        int steps = powerOfTwo(stepCapacity);
+        m_stepMask = steps - 1;
+        m_stepTime = new double[steps];
+        m_dx = new double[steps];
+        m_dy = new double[steps];
+        m_dz = new double[steps];
+        m_rx = new double[steps];
+        m_ry = new double[steps];
+        m_rz = new double[steps];
+        m_x = new double[steps];
+        m_y = new double[steps];
+        m_z = new double[steps];
+        m_qw = new double[steps];
+        m_qx = new double[steps];
+        m_qy = new double[steps];
+        m_qz = new double[steps];
+
+        int observations = powerOfTwo(observationCapacity);
+        m_obsMask = observations - 1;
+        m_obsTime = new double[observations];
+        m_obsX = new double[observations];
+        m_obsY = new double[observations];
+        m_obsZ = new double[observations];
+        m_obsQw = new double[observations];
+        m_obsQx = new double[observations];
+        m_obsQy = new double[observations];
+        m_obsQz = new double[observations];
+        m_obsGain = new double[observations * 4];
+    }
+
+    /**
+     * Records an odometry step.
+     *
+     * @param timestampSeconds The time at the end of the step, in seconds.
+     * @param delta            The twist applied by odometry during the step.
+     * @param estimate         The pose estimate after the step, as integrated by the caller.
+     */
+    public void addStep(double timestampSeconds, Twist3d delta, Pose3d estimate) {
+        var q = estimate.getRotation().getQuaternion();
+        addStep(timestampSeconds, delta.dx, delta.dy, delta.dz, delta.rx, delta.ry, delta.rz,
+                estimate.getX(), estimate.getY(), estimate.getZ(), q.getW(), q.getX(), q.getY(), q.getZ());
+    }
+
+    /**
+     * Records an odometry step without allocating.
+     *
+     * @param timestampSeconds The time at the end of the step, in seconds.
+     * @param delta            The twist applied by odometry during the step.
+     * @param estimate         The pose estimate after the step, as integrated by the caller.
+     */
+    public void addStep(double timestampSeconds, Twist3d delta, MutablePose3d estimate) {
+        addStep(timestampSeconds, delta.dx, delta.dy, delta.dz, delta.rx, delta.ry, delta.rz,
+                estimate.getX(), estimate.getY(), estimate.getZ(),
+                estimate.getQw(), estimate.getQx(), estimate.getQy(), estimate.getQz());
+    }
+
+    /**
+     * Records a planar odometry step without allocating.
+     *
+     * @param timestampSeconds The time at the end of the step, in seconds.
+     * @param delta            The twist applied by odometry during the step.
+     * @param estimate         The pose estimate after the step, as integrated by the caller.
+     */
+    public void addStep(double timestampSeconds, Twist2d delta, MutablePose2d estimate) {
+        addStep(timestampSeconds, delta.dx, delta.dy, 0.0, 0.0, 0.0, delta.dtheta,
+                estimate.getX(), estimate.getY(), 0.0, estimate.getHalfCos(), 0.0, 0.0, estimate.getHalfSin());
+    }
+
+    private void addStep(double timestampSeconds, double dx, double dy, double dz, double rx, double ry, double rz,
+                         double x, double y, double z, double qw, double qx, double qy, double qz) {
+        // Time went backwards, so nothing stored after this point is valid anymore
+        if (m_stepHead > m_stepTail && m_stepTime[stepIndex(m_stepHead - 1)] >= timestampSeconds) {
+            removeAfter(timestampSeconds - 1e-9);
+        }
+
+        while (m_stepHead > m_stepTail
+                && (timestampSeconds - m_stepTime[stepIndex(m_stepTail)] >= m_historySeconds
+                || m_stepHead - m_stepTail > m_stepMask)) {
+            m_stepTail++;
+        }
+
+        int i = stepIndex(m_stepHead);
+        m_stepTime[i] = timestampSeconds;
+        m_dx[i] = dx;
+        m_dy[i] = dy;
+        m_dz[i] = dz;
+        m_rx[i] = rx;
+        m_ry[i] = ry;
+        m_rz[i] = rz;
+        storeEstimate(i, x, y, z, qw, qx, qy, qz);
+        m_stepHead++;
+
+        if (m_replaying && m_stepCursor < m_stepTail) {
+            // The replay fell so far behind that its starting point was evicted; start over from the oldest step.
+            restart(m_stepTime[stepIndex(m_stepTail)]);
+        }
+
+        while (m_obsHead > m_obsTail && timestampSeconds - m_obsTime[obsIndex(m_obsTail)] >= m_historySeconds) {
+            m_obsTail++;
+        }
+        m_obsCursor = Math.max(m_obsCursor, m_obsTail);
+    }
+
+    /**
+     * Records a vision observation and schedules a replay from its timestamp.
+     *
+     * @param timestampSeconds The time the observation was captured, in seconds.
+     * @param visionPose       The pose of the robot as measured by the camera.
+     * @param kx               Kalman gain for x.
+     * @param ky               Kalman gain for y.
+     * @param kz               Kalman gain for z.
+     * @param kTheta           Kalman gain for the rotation angle.
+     * @return False if the observation was too old to be replayed and was dropped.
+     */
+    public boolean addObservation(double timestampSeconds, Pose3d visionPose,
+                                  double kx, double ky, double kz, double kTheta) {
+        var q = visionPose.getRotation().getQuaternion();
+        return addObservation(timestampSeconds, visionPose.getX(), visionPose.getY(), visionPose.getZ(),
+                q.getW(), q.getX(), q.getY(), q.getZ(), kx, ky, kz, kTheta);
+    }
+
+    /**
+     * Records a planar vision observation without allocating. See {@link #addObservation(double, Pose3d, double, double,
+     * double, double)}.
+     *
+     * @param timestampSeconds The time the observation was captured, in seconds.
+     * @param visionPose       The pose of the robot as measured by the camera.
+     * @param kx               Kalman gain for x.
+     * @param ky               Kalman gain for y.
+     * @param kTheta           Kalman gain for the heading.
+     * @return False if the observation was too old to be replayed and was dropped.
+     */
+    public boolean addObservation(double timestampSeconds, MutablePose2d visionPose, double kx, double ky, double kTheta) {
+        return addObservation(timestampSeconds, visionPose.getX(), visionPose.getY(), 0.0,
+                visionPose.getHalfCos(), 0.0, 0.0, visionPose.getHalfSin(), kx, ky, 0.0, kTheta);
+    }
+
+    private boolean addObservation(double timestampSeconds, double x, double y, double z,
+                                   double qw, double qx, double qy, double qz,
+                                   double kx, double ky, double kz, double kTheta) {
+        if (m_stepHead == m_stepTail || timestampSeconds <= m_stepTime[stepIndex(m_stepTail)]) {
+            return false;
+        }
+
+        if (m_obsHead - m_obsTail > m_obsMask) {
+            m_obsTail++;
+            m_obsCursor = Math.max(m_obsCursor, m_obsTail);
+        }
+
+        // Sorted insert, shifting any newer observations up by one
+        long seq = m_obsHead;
+        while (seq > m_obsTail && m_obsTime[obsIndex(seq - 1)] > timestampSeconds) {
+            copyObservation(obsIndex(seq - 1), obsIndex(seq));
+            seq--;
+        }
+        int i = obsIndex(seq);
+        m_obsTime[i] = timestampSeconds;
+        m_obsX[i] = x;
+        m_obsY[i] = y;
+        m_obsZ[i] = z;
+        m_obsQw[i] = qw;
+        m_obsQx[i] = qx;
+        m_obsQy[i] = qy;
+        m_obsQz[i] = qz;
+        m_obsGain[i * 4] = kx;
+        m_obsGain[i * 4 + 1] = ky;
+        m_obsGain[i * 4 + 2] = kz;
+        m_obsGain[i * 4 + 3] = kTheta;
+        m_obsHead++;
+
+        if (m_replaying && timestampSeconds <= m_cursorTime) {
+            // The observation lands before the point the replay has already reached
+            restart(timestampSeconds);
+        } else if (!m_replaying) {
+            m_pendingFrom = Math.min(m_pendingFrom, timestampSeconds);
+        }
+        return true;
+    }
+
+    /**
+     * Performs up to the configured number of replay steps.
+     *
+     * @return The replayed estimate at the newest step if a replay finished during this call, otherwise null.
+     */
+    public Pose3d process() {
+        if (!advance(false)) {
+            return null;
+        }
+        var result = m_working;
+        m_working = null;
+        return result;
+    }
+
+    /**
+     * Performs up to the configured number of replay steps in the XY plane, without allocating. Steps and observations are
+     * replayed with the SE(2) exponential and logarithm, and the z gains of observations are ignored.
+     *
+     * @param out The pose to write the replayed estimate at the newest step into if a replay finished during this call.
+     * @return Whether a replay finished during this call. If not, {@code out} is left untouched.
+     */
+    public boolean process(MutablePose2d out) {
+        if (!advance(true)) {
+            return false;
+        }
+        out.set(m_planarWorking);
+        return true;
+    }
+
+    /**
+     * Starts a pending replay if there is one and performs up to the configured number of steps of it.
+     *
+     * @return Whether a replay finished.
+     */
+    private boolean advance(boolean planar) {
+        if (m_replaying && m_replayPlanar != planar) {
+            // Switched between planar and 3d replay part way through, so start over in the new mode
+            restart(m_replayFrom);
+        }
+        if (!m_replaying) {
+            if (m_pendingFrom == Double.POSITIVE_INFINITY || m_stepHead == m_stepTail
+                    || m_stepTime[stepIndex(m_stepHead - 1)] < m_pendingFrom) {
+                // Nothing to do, or odometry has not caught up with the observation yet
+                return false;
+            }
+            begin(m_pendingFrom, planar);
+            m_pendingFrom = Double.POSITIVE_INFINITY;
+        }
+
+        for (int n = 0; n < m_maxStepsPerProcess && m_stepCursor < m_stepHead; n++) {
+            replayStep();
+        }
+
+        if (m_stepCursor < m_stepHead) {
+            return false;
+        }
+
+        m_replaying = false;
+        if (m_obsCursor < m_obsHead) {
+            // Observations newer than the newest odometry step wait for odometry to catch up
+            m_pendingFrom = m_obsTime[obsIndex(m_obsCursor)];
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether a replay has been started but has not yet caught up with the newest step.
+     */
+    public boolean isReplaying() {
+        return m_replaying;
+    }
+
+    /**
+     * Removes every step and observation with a timestamp strictly after the given time, cancelling any replay in progress.
+     *
+     * @param timestampSeconds The time after which entries are removed, in seconds.
+     */
+    public void removeAfter(double timestampSeconds) {
+        while (m_stepHead > m_stepTail && m_stepTime[stepIndex(m_stepHead - 1)] > timestampSeconds) {
+            m_stepHead--;
+        }
+        while (m_obsHead > m_obsTail && m_obsTime[obsIndex(m_obsHead - 1)] > timestampSeconds) {
+            m_obsHead--;
+        }
+        m_replaying = false;
+        m_working = null;
+        m_pendingFrom = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Removes every step and observation.
+     */
+    public void clear() {
+        removeAfter(Double.NEGATIVE_INFINITY);
+        m_stepTail = m_stepHead;
+        m_obsTail = m_obsHead;
+    }
+
+    private void restart(double timestampSeconds) {
+        m_replaying = false;
+        m_working = null;
+        m_pendingFrom = timestampSeconds;
+    }
+
+    private void begin(double timestampSeconds, boolean planar) {
+        // Find the last step strictly before the requested time. Its stored estimate already includes every observation at or
+        // before its own timestamp.
+        long lo = m_stepTail;
+        long hi = m_stepHead - 1;
+        if (m_stepTime[stepIndex(lo)] >= timestampSeconds) {
+            hi = lo;
+        } else {
+            while (hi - lo > 1) {
+                long mid = (lo + hi) >>> 1;
+                if (m_stepTime[stepIndex(mid)] < timestampSeconds) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (m_stepTime[stepIndex(hi)] < timestampSeconds) {
+                lo = hi;
+            }
+        }
+
+        int start = stepIndex(lo);
+        if (planar) {
+            m_planarWorking.set(m_x[start], m_y[start], m_qw[start], m_qx[start], m_qy[start], m_qz[start]);
+        } else {
+            m_working = loadEstimate(start);
+        }
+        m_replayFrom = timestampSeconds;
+        m_replayPlanar = planar;
+        m_cursorTime = m_stepTime[start];
+        m_stepCursor = lo + 1;
+
+        m_obsCursor = m_obsTail;
+        while (m_obsCursor < m_obsHead && m_obsTime[obsIndex(m_obsCursor)] <= m_cursorTime) {
+            m_obsCursor++;
+        }
+        m_replaying = true;
+    }
+
+    private void replayStep() {
+        int i = stepIndex(m_stepCursor);
+        double start = m_cursorTime;
+        double end = m_stepTime[i];
+        double duration = end - start;
+        double integrated = 0;
+
+        // Apply every observation inside this step at its own point in time
+        while (m_obsCursor < m_obsHead && m_obsTime[obsIndex(m_obsCursor)] <= end) {
+            int o = obsIndex(m_obsCursor);
+            double fraction = duration > 0 ? (m_obsTime[o] - start) / duration : 1.0;
+            if (m_replayPlanar) {
+                applyPlanarDelta(i, fraction - integrated);
+                var innovation = m_planarWorking.log(m_planarObservation.set(
+                        m_obsX[o], m_obsY[o], m_obsQw[o], m_obsQx[o], m_obsQy[o], m_obsQz[o]), m_planarInnovation);
+                m_planarWorking.exp(m_obsGain[o * 4] * innovation.dx, m_obsGain[o * 4 + 1] * innovation.dy,
+                        m_obsGain[o * 4 + 3] * innovation.dtheta);
+            } else {
+                m_working = m_working.exp(scaledDelta(i, fraction - integrated));
+                m_working = VisionCorrection.apply(m_working, loadObservation(o),
+                        m_obsGain[o * 4], m_obsGain[o * 4 + 1], m_obsGain[o * 4 + 2], m_obsGain[o * 4 + 3]);
+            }
+            integrated = fraction;
+            m_obsCursor++;
+        }
+
+        if (m_replayPlanar) {
+            applyPlanarDelta(i, 1.0 - integrated);
+            storeEstimate(i, m_planarWorking.getX(), m_planarWorking.getY(), 0.0,
+                    m_planarWorking.getHalfCos(), 0.0, 0.0, m_planarWorking.getHalfSin());
+        } else {
+            m_working = m_working.exp(scaledDelta(i, 1.0 - integrated));
+            storeEstimate(i, m_working);
+        }
+        m_cursorTime = end;
+        m_stepCursor++;
+    }
+
+    private Twist3d scaledDelta(int i, double scale) {
+        return new Twist3d(m_dx[i] * scale, m_dy[i] * scale, m_dz[i] * scale,
+                m_rx[i] * scale, m_ry[i] * scale, m_rz[i] * scale);
+    }
+
+    /**
+     * Applies part of step i's twist to the planar working estimate. Only the planar components of the twist are used.
+     */
+    private void applyPlanarDelta(int i, double scale) {
+        m_planarWorking.exp(m_dx[i] * scale, m_dy[i] * scale, m_rz[i] * scale);
+    }
+
+    private void storeEstimate(int i, Pose3d estimate) {
+        var q = estimate.getRotation().getQuaternion();
+        storeEstimate(i, estimate.getX(), estimate.getY(), estimate.getZ(), q.getW(), q.getX(), q.getY(), q.getZ());
+    }
+
+    private void storeEstimate(int i, double x, double y, double z, double qw, double qx, double qy, double qz) {
+        m_x[i] = x;
+        m_y[i] = y;
+        m_z[i] = z;
+        m_qw[i] = qw;
+        m_qx[i] = qx;
+        m_qy[i] = qy;
+        m_qz[i] = qz;
+    }
+
+    private Pose3d loadEstimate(int i) {
+        return new Pose3d(new Translation3d(m_x[i], m_y[i], m_z[i]),
+                new Rotation3d(new Quaternion(m_qw[i], m_qx[i], m_qy[i], m_qz[i])));
+    }
+
+    private Pose3d loadObservation(int o) {
+        return new Pose3d(new Translation3d(m_obsX[o], m_obsY[o], m_obsZ[o]),
+                new Rotation3d(new Quaternion(m_obsQw[o], m_obsQx[o], m_obsQy[o], m_obsQz[o])));
+    }
+
+    private void copyObservation(int from, int to) {
+        m_obsTime[to] = m_obsTime[from];
+        m_obsX[to] = m_obsX[from];
+        m_obsY[to] = m_obsY[from];
+        m_obsZ[to] = m_obsZ[from];
+        m_obsQw[to] = m_obsQw[from];
+        m_obsQx[to] = m_obsQx[from];
+        m_obsQy[to] = m_obsQy[from];
+        m_obsQz[to] = m_obsQz[from];
+        System.arraycopy(m_obsGain, from * 4, m_obsGain, to * 4, 4);
+    }
+
+    private int stepIndex(long seq) {
+        return (int) (seq & m_stepMask);
+    }
+
+    private int obsIndex(long seq) {
+        return (int) (seq & m_obsMask);
+    }
+
+    private static int powerOfTwo(int minCapacity) {
+        if (minCapacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least two");
+        }
+        return Integer.highestOneBit(minCapacity - 1) << 1;
+    }
+}
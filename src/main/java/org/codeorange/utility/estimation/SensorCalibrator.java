@@ -0,0 +1,247 @@
+package org.codeorange.utility.estimation;
+
+import java.util.Arrays;
+
+/**
+ * Learns a timestamp offset for each camera and a yaw drift rate for the gyro from accepted vision measurements, so that a
+ * pose estimator can correct for both as it runs.
+ *
+ * <p>A constant timestamp error cannot be seen in a single measurement: at constant velocity it looks exactly like the robot
+ * being a little further back, and the estimate absorbs it as a lag. It shows up when the velocity changes. If a camera's
+ * frames were captured {@code offset} seconds after their timestamps, the distance vision says the robot moved between two of
+ * that camera's measurements differs from the distance odometry measured between the same timestamps by {@code offset} times
+ * the change in velocity. The calibrator keeps the previous measurement of each camera as an anchor and, once a later one is far
+ * enough away in time and velocity, takes a normalized least-mean-squares step toward the offset that explains the difference:
+ * offset += gain * (difference · Δvelocity) / |Δvelocity|².
+ *
+ * <p>If the gyro drifts, the heading residual of every measurement keeps the same sign, so the drift rate is adjusted by an
+ * integral step against each heading residual: bias -= gain * residual. The estimator removes the learned drift from the heading
+ * every update, and the bias settles where the heading residuals average out to zero. Vision heading noise is much larger than
+ * typical drift, so the default gain is low and the bias is clamped; raise the gain to learn faster at the cost of more jitter.
+ *
+ * <p>This class is not thread-safe; it is meant to be owned by a single estimator.
+ */
+public class SensorCalibrator {
+    public static final double kDefaultTimeOffsetGain = 0.05;
+    public static final double kDefaultMaxTimeOffset = 0.15;
+    public static final double kDefaultMinVelocityChange = 0.5;
+    public static final double kDefaultGyroBiasGain = 0.01;
+    public static final double kDefaultMaxGyroBias = 0.01;
+
+    /** Anchors closer than this in time are waited on, so that vision noise is small against the displacement. */
+    private static final double kMinBaseline = 0.25;
+    /** Anchors older than this are replaced, as odometry drift grows with the baseline. */
+    private static final double kMaxBaseline = 1.5;
+
+    private final double m_timeOffsetGain;
+    private final double m_maxTimeOffset;
+    private final double m_minVelocityChangeSquared;
+    private final double m_gyroBiasGain;
+    private final double m_maxGyroBias;
+
+    private final double[] m_timeOffsets;
+    private final long[] m_timeSamples;
+    private double m_gyroBias = 0.0;
+    private long m_gyroSamples = 0;
+
+    // Each camera's anchor measurement, as a struct of arrays
+    private final double[] m_anchorTime;
+    private final double[] m_anchorVisionX;
+    private final double[] m_anchorVisionY;
+    private final double[] m_anchorOdometryX;
+    private final double[] m_anchorOdometryY;
+    private final double[] m_anchorVx;
+    private final double[] m_anchorVy;
+
+    /**
+     * Constructs a SensorCalibrator with the default gains and limits.
+     *
+     * @param maxCameras The number of cameras to learn offsets for. Camera ids outside [0, maxCameras) share the last offset.
+     */
+    public SensorCalibrator(int maxCameras) {
+        this(maxCameras, kDefaultTimeOffsetGain, kDefaultMaxTimeOffset, kDefaultMinVelocityChange, kDefaultGyroBiasGain,
+                kDefaultMaxGyroBias);
+    }
+
+    /**
+     * Constructs a SensorCalibrator.
+     *
+     * @param maxCameras        The number of cameras to learn offsets for. Camera ids outside [0, maxCameras) share the last
+     *                          offset.
+     * @param timeOffsetGain    The fraction of each observed timing error to correct, between 0 and 1.
+     * @param maxTimeOffset     The largest timestamp offset to learn, in seconds.
+     * @param minVelocityChange The change in velocity between two measurements below which they say too little about timing
+     *                          to learn from, in meters per second.
+     * @param gyroBiasGain      The change in drift rate per radian of heading residual, in 1/s. 0 disables learning the drift.
+     * @param maxGyroBias       The largest drift rate to learn, in radians per second.
+     */
+    public SensorCalibrator(int maxCameras, double timeOffsetGain, double maxTimeOffset, double minVelocityChange,
+                            double gyroBiasGain, double maxGyroBias) {
+        if (maxCameras < 1) {
+            throw new IllegalArgumentException("A sensor calibrator requires at least one camera");
+        }
+        if (timeOffsetGain < 0 || timeOffsetGain > 1) {
+            throw new IllegalArgumentException("Time offset gain must be between 0 and 1");
+        }
+        if (maxTimeOffset < 0 || minVelocityChange <= 0 || gyroBiasGain < 0 || maxGyroBias < 0) {
+            throw new IllegalArgumentException("Calibration gains and limits must not be negative");
+        }
+        m_timeOffsetGain = timeOffsetGain;
+        m_maxTimeOffset = maxTimeOffset;
+        m_minVelocityChangeSquared = minVelocityChange * minVelocityChange;
+        m_gyroBiasGain = gyroBiasGain;
+        m_maxGyroBias = maxGyroBias;
+
+        m_timeOffsets = new double[maxCameras];
+        m_timeSamples = new long[maxCameras];
+        m_anchorTime = new double[maxCameras];
+        m_anchorVisionX = new double[maxCameras];
+        m_anchorVisionY = new double[maxCameras];
+        m_anchorOdometryX = new double[maxCameras];
+        m_anchorOdometryY = new double[maxCameras];
+        m_anchorVx = new double[maxCameras];
+        m_anchorVy = new double[maxCameras];
+        Arrays.fill(m_anchorTime, Double.NaN);
+    }
+
+    /**
+     * Learns the camera's timing from an accepted vision measurement.
+     *
+     * <p>The odometry position is taken in odometry's own frame, which drifts away from the field frame as the gyro does, so
+     * that only the displacement between two measurements is rotated into the field frame.
+     *
+     * @param cameraId         An identifier for the camera that produced the measurement.
+     * @param timestampSeconds The measurement's timestamp, already corrected by {@link #correctTimestamp}, in seconds.
+     * @param visionX          The x position measured by the camera in the field frame, in meters.
+     * @param visionY          The y position measured by the camera in the field frame, in meters.
+     * @param odometryX        The x position odometry measured at the timestamp, in odometry's frame, in meters.
+     * @param odometryY        The y position odometry measured at the timestamp, in odometry's frame, in meters.
+     * @param odometryCos      The cosine of the rotation from odometry's frame to the field frame.
+     * @param odometrySin      The sine of the rotation from odometry's frame to the field frame.
+     * @param vx               The x velocity measured by odometry at the timestamp in the field frame, in meters per second.
+     * @param vy               The y velocity measured by odometry at the timestamp in the field frame, in meters per second.
+     */
+    public void observeTiming(int cameraId, double timestampSeconds, double visionX, double visionY,
+                              double odometryX, double odometryY, double odometryCos, double odometrySin,
+                              double vx, double vy) {
+        int slot = slot(cameraId);
+        double baseline = timestampSeconds - m_anchorTime[slot];
+
+        // Written so that a camera without an anchor (NaN) gets one
+        if (!(baseline <= kMaxBaseline) || baseline < 0) {
+            setAnchor(slot, timestampSeconds, visionX, visionY, odometryX, odometryY, vx, vy);
+            return;
+        }
+        if (baseline < kMinBaseline) {
+            return;
+        }
+
+        double dvx = vx - m_anchorVx[slot];
+        double dvy = vy - m_anchorVy[slot];
+        double velocityChangeSquared = dvx * dvx + dvy * dvy;
+        if (velocityChangeSquared < m_minVelocityChangeSquared) {
+            // Keep the anchor until the velocity has changed enough, or it gets too old
+            return;
+        }
+
+        // How much further vision says the robot moved than odometry did
+        double odometryDx = odometryX - m_anchorOdometryX[slot];
+        double odometryDy = odometryY - m_anchorOdometryY[slot];
+        double ex = (visionX - m_anchorVisionX[slot]) - (odometryCos * odometryDx - odometrySin * odometryDy);
+        double ey = (visionY - m_anchorVisionY[slot]) - (odometrySin * odometryDx + odometryCos * odometryDy);
+        double timingError = (ex * dvx + ey * dvy) / velocityChangeSquared;
+        m_timeOffsets[slot] = clamp(m_timeOffsets[slot] + m_timeOffsetGain * timingError, m_maxTimeOffset);
+        m_timeSamples[slot]++;
+
+        setAnchor(slot, timestampSeconds, visionX, visionY, odometryX, odometryY, vx, vy);
+    }
+
+    /**
+     * Learns the gyro's drift from the heading residual of an accepted vision measurement.
+     *
+     * @param headingResidual The measured heading minus the estimated heading, in radians.
+     */
+    public void observeHeading(double headingResidual) {
+        // A measured heading behind the estimate means the gyro is reading high
+        m_gyroBias = clamp(m_gyroBias - m_gyroBiasGain * headingResidual, m_maxGyroBias);
+        m_gyroSamples++;
+    }
+
+    /**
+     * Corrects a camera's timestamp by its learned offset.
+     *
+     * @param cameraId         An identifier for the camera.
+     * @param timestampSeconds The timestamp reported with the camera's measurement, in seconds.
+     * @return The estimated time the frame was captured, in seconds.
+     */
+    public double correctTimestamp(int cameraId, double timestampSeconds) {
+        return timestampSeconds + m_timeOffsets[slot(cameraId)];
+    }
+
+    /**
+     * @param cameraId An identifier for the camera.
+     * @return The learned offset to add to the camera's timestamps, in seconds.
+     */
+    public double getTimeOffset(int cameraId) {
+        return m_timeOffsets[slot(cameraId)];
+    }
+
+    /**
+     * @param cameraId An identifier for the camera.
+     * @return The number of timing observations the camera's offset was learned from.
+     */
+    public long getTimeOffsetSampleCount(int cameraId) {
+        return m_timeSamples[slot(cameraId)];
+    }
+
+    /**
+     * @return The learned drift rate of the gyro's yaw, in radians per second. The estimator subtracts this from the heading.
+     */
+    public double getGyroBias() {
+        return m_gyroBias;
+    }
+
+    /**
+     * @return The number of measurements the gyro drift rate was learned from.
+     */
+    public long getGyroBiasSampleCount() {
+        return m_gyroSamples;
+    }
+
+    /**
+     * Forgets the anchors, such as after the estimator's position is reset, but keeps what has been learned.
+     */
+    public void clearAnchors() {
+        Arrays.fill(m_anchorTime, Double.NaN);
+    }
+
+    /**
+     * Forgets everything learned so far.
+     */
+    public void reset() {
+        Arrays.fill(m_timeOffsets, 0.0);
+        Arrays.fill(m_timeSamples, 0);
+        m_gyroBias = 0.0;
+        m_gyroSamples = 0;
+        clearAnchors();
+    }
+
+    private void setAnchor(int slot, double timestampSeconds, double visionX, double visionY,
+                           double odometryX, double odometryY, double vx, double vy) {
+        m_anchorTime[slot] = timestampSeconds;
+        m_anchorVisionX[slot] = visionX;
+        m_anchorVisionY[slot] = visionY;
+        m_anchorOdometryX[slot] = odometryX;
+        m_anchorOdometryY[slot] = odometryY;
+        m_anchorVx[slot] = vx;
+        m_anchorVy[slot] = vy;
+    }
+
+    private int slot(int cameraId) {
+        return cameraId >= 0 && cameraId < m_timeOffsets.length ? cameraId : m_timeOffsets.length - 1;
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
@@ -0,0 +1,54 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Twist3d;
+
+/**
+ * The steady-state Kalman correction shared by the pose estimator's vision update paths.
+ */
+public final class VisionCorrection {
+    private VisionCorrection() {}
+
+    /**
+     * Corrects an estimate towards a vision measurement taken at the same time. The twist between the two poses is scaled by the
+     * diagonal Kalman gain before being applied, so a gain of 0 ignores the measurement and a gain of 1 snaps to it.
+     *
+     * @param estimate   The pose estimate at the time of the measurement.
+     * @param visionPose The pose of the robot as measured by the vision camera.
+     * @param kx         Kalman gain for x.
+     * @param ky         Kalman gain for y.
+     * @param kz         Kalman gain for z.
+     * @param kTheta     Kalman gain for the rotation angle.
+     * @return The corrected estimate.
+     */
+    public static Pose3d apply(Pose3d estimate, Pose3d visionPose, double kx, double ky, double kz, double kTheta) {
+        // Measure the twist between the estimate and the vision pose.
+        return apply(estimate, estimate.log(visionPose), kx, ky, kz, kTheta);
+    }
+
+    /**
+     * Corrects an estimate by a twist that has already been measured, such as one that has been gated.
+     *
+     * @param estimate   The pose estimate at the time of the measurement.
+     * @param innovation The twist from the estimate to the pose measured by the vision camera.
+     * @param kx         Kalman gain for x.
+     * @param ky         Kalman gain for y.
+     * @param kz         Kalman gain for z.
+     * @param kTheta     Kalman gain for the rotation angle.
+     * @return The corrected estimate.
+     */
+    public static Pose3d apply(Pose3d estimate, Twist3d innovation, double kx, double ky, double kz, double kTheta) {
+        // We should not trust the twist entirely, so instead we scale this twist by the Kalman gain. The rotation vector keeps its
+        // axis and has its angle scaled, which is the same as scaling each component.
+        var scaledTwist =
+                new Twist3d(
+                        kx * innovation.dx,
+                        ky * innovation.dy,
+                        kz * innovation.dz,
+                        kTheta * innovation.rx,
+                        kTheta * innovation.ry,
+                        kTheta * innovation.rz);
+
+        return estimate.exp(scaledTwist);
+    }
+}
@@ -0,0 +1,190 @@
+package org.codeorange.utility.estimation;
+
+import java.util.Arrays;
+
+/**
+ * Caches the steady-state vision Kalman gains for the standard deviations that measurements are passed with.
+ *
+ * <p>Standard deviations are quantized (by default to 1 mm / 1 mrad) into a key of four longs, and gains are stored in a
+ * fixed-size open-addressed table of primitive arrays. Looking up a gain never allocates and never touches the estimator's
+ * default gain, so per-measurement standard deviations can be used freely. When a probe sequence is full the entry in the home
+ * slot is replaced.
+ *
+ * <p>Each key field holds up to 2<sup>52</sup> quanta, so even the very large standard deviations used to ignore a component
+ * of a measurement (such as 9999999 for the heading) are cached; only infinite standard deviations skip the cache. NaN and
+ * negative standard deviations are rejected rather than quantized, as they would otherwise round to a gain of 1.
+ *
+ * <p>This class is not thread-safe; it is meant to be owned by a single estimator.
+ */
+public class VisionGainCache {
+    private static final double kDefaultQuantum = 1e-3;
+    // Beyond this many quanta a double can no longer resolve a single quantum
+    private static final long kMaxQuantized = 1L << 52;
+    private static final int kMaxProbes = 4;
+
+    private final double[] m_q = new double[4];
+    private final double m_quantum;
+    private final int m_mask;
+
+    // The quantized [x, y, z, theta] standard deviations of each slot
+    private final long[] m_keys;
+    private final boolean[] m_occupied;
+    private final double[] m_gains;
+
+    private long m_hits;
+    private long m_misses;
+
+    /**
+     * Constructs a VisionGainCache with 256 entries and a 1 mm / 1 mrad quantum.
+     *
+     * @param stateVariances The variances of the state estimate in the form [x, y, z, theta].
+     */
+    public VisionGainCache(double[] stateVariances) {
+        this(stateVariances, 256, kDefaultQuantum);
+    }
+
+    /**
+     * Constructs a VisionGainCache.
+     *
+     * @param stateVariances The variances of the state estimate in the form [x, y, z, theta].
+     * @param minCapacity    The minimum number of gains to cache. Rounded up to a power of two.
+     * @param quantum        The resolution standard deviations are rounded to before lookup, in meters or radians.
+     */
+    public VisionGainCache(double[] stateVariances, int minCapacity, double quantum) {
+        if (minCapacity < 2) {
+            throw new IllegalArgumentException("A gain cache requires a capacity of at least two entries");
+        }
+        System.arraycopy(stateVariances, 0, m_q, 0, 4);
+        m_quantum = quantum;
+
+        int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        m_mask = capacity - 1;
+        m_keys = new long[capacity * 4];
+        m_occupied = new boolean[capacity];
+        m_gains = new double[capacity * 4];
+    }
+
+    /**
+     * Looks up the Kalman gains for the given vision standard deviations, computing and caching them if needed.
+     *
+     * @param xStdDev     Standard deviation of the x position, in meters.
+     * @param yStdDev     Standard deviation of the y position, in meters.
+     * @param zStdDev     Standard deviation of the z position, in meters.
+     * @param thetaStdDev Standard deviation of the heading, in radians.
+     * @param out         Array of at least four elements that the gains [kx, ky, kz, ktheta] are written into.
+     * @throws IllegalArgumentException If a standard deviation is NaN or negative.
+     */
+    public void getGains(double xStdDev, double yStdDev, double zStdDev, double thetaStdDev, double[] out) {
+        // Written so that NaN fails the check
+        if (!(xStdDev >= 0 && yStdDev >= 0 && zStdDev >= 0 && thetaStdDev >= 0)) {
+            throw new IllegalArgumentException("Vision standard deviations must not be NaN or negative");
+        }
+
+        long qx = quantize(xStdDev);
+        long qy = quantize(yStdDev);
+        long qz = quantize(zStdDev);
+        long qTheta = quantize(thetaStdDev);
+
+        if (qx < 0 || qy < 0 || qz < 0 || qTheta < 0) {
+            // Out of the representable range, so just compute the gain directly
+            m_misses++;
+            out[0] = computeGain(m_q[0], xStdDev);
+            out[1] = computeGain(m_q[1], yStdDev);
+            out[2] = computeGain(m_q[2], zStdDev);
+            out[3] = computeGain(m_q[3], thetaStdDev);
+            return;
+        }
+
+        int home = hash(qx, qy, qz, qTheta);
+
+        for (int probe = 0; probe < kMaxProbes; probe++) {
+            int slot = (home + probe) & m_mask;
+            if (!m_occupied[slot]) {
+                fill(slot, qx, qy, qz, qTheta);
+                copyGains(slot, out);
+                return;
+            }
+            if (m_keys[slot * 4] == qx && m_keys[slot * 4 + 1] == qy && m_keys[slot * 4 + 2] == qz
+                    && m_keys[slot * 4 + 3] == qTheta) {
+                m_hits++;
+                copyGains(slot, out);
+                return;
+            }
+        }
+
+        fill(home, qx, qy, qz, qTheta);
+        copyGains(home, out);
+    }
+
+    /**
+     * Computes the closed form Kalman gain for a continuous Kalman filter with A = 0 and C = I. See wpimath/algorithms.md.
+     *
+     * @param stateVariance The variance of the state estimate.
+     * @param stdDev        The standard deviation of the measurement.
+     * @return The Kalman gain.
+     */
+    public static double computeGain(double stateVariance, double stdDev) {
+        if (stateVariance == 0.0) {
+            return 0.0;
+        }
+        return stateVariance / (stateVariance + Math.sqrt(stateVariance * stdDev * stdDev));
+    }
+
+    /**
+     * Removes every cached gain.
+     */
+    public void clear() {
+        Arrays.fill(m_occupied, false);
+    }
+
+    /**
+     * @return The number of lookups served from the cache.
+     */
+    public long getHits() {
+        return m_hits;
+    }
+
+    /**
+     * @return The number of lookups that had to compute the gain.
+     */
+    public long getMisses() {
+        return m_misses;
+    }
+
+    private void fill(int slot, long qx, long qy, long qz, long qTheta) {
+        m_misses++;
+        m_keys[slot * 4] = qx;
+        m_keys[slot * 4 + 1] = qy;
+        m_keys[slot * 4 + 2] = qz;
+        m_keys[slot * 4 + 3] = qTheta;
+        m_occupied[slot] = true;
+        m_gains[slot * 4] = computeGain(m_q[0], qx * m_quantum);
+        m_gains[slot * 4 + 1] = computeGain(m_q[1], qy * m_quantum);
+        m_gains[slot * 4 + 2] = computeGain(m_q[2], qz * m_quantum);
+        m_gains[slot * 4 + 3] = computeGain(m_q[3], qTheta * m_quantum);
+    }
+
+    private void copyGains(int slot, double[] out) {
+        out[0] = m_gains[slot * 4];
+        out[1] = m_gains[slot * 4 + 1];
+        out[2] = m_gains[slot * 4 + 2];
+        out[3] = m_gains[slot * 4 + 3];
+    }
+
+    /**
+     * @return The quantized standard deviation, or -1 if it is too large to be represented.
+     */
+    private long quantize(double stdDev) {
+        long quantized = Math.round(stdDev / m_quantum);
+        return quantized > kMaxQuantized ? -1 : quantized;
+    }
+
+    private int hash(long qx, long qy, long qz, long qTheta) {
+        long h = qx;
+        h = h * 0x9E3779B97F4A7C15L + qy;
+        h = h * 0x9E3779B97F4A7C15L + qz;
+        h = h * 0x9E3779B97F4A7C15L + qTheta;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & m_mask;
+    }
+}
@@ -0,0 +1,198 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Twist3d;
+
+import java.util.Arrays;
+
+/**
+ * Screens vision measurements for outliers before they are fused into the pose estimate.
+ *
+ * <p>The innovation is the twist from the estimate at the time of the measurement to the measured pose. Its squared Mahalanobis
+ * distance is computed over x, y and the rotation angle using the diagonal innovation covariance S = P + R, where P is the
+ * state variance and R the measurement variance. Measurements beyond the rejection threshold are discarded. Measurements
+ * between the down-weight and rejection thresholds are kept, but their variance is inflated by d² / threshold so that they pull
+ * the estimate less.
+ *
+ * <p>Accepted, down-weighted and rejected measurements are counted per camera. This class is not thread-safe; it is meant to be
+ * owned by a single estimator.
+ */
+public class VisionGate {
+    /**
+     * The outcome of gating a single measurement.
+     */
+    public enum Result {
+        ACCEPTED,
+        DOWN_WEIGHTED,
+        REJECTED
+    }
+
+    /** The 99% point of the chi-square distribution with 3 degrees of freedom. */
+    public static final double kDefaultRejectThreshold = 11.345;
+    /** The 95% point of the chi-square distribution with 3 degrees of freedom. */
+    public static final double kDefaultDownWeightThreshold = 7.815;
+
+    private double m_downWeightThreshold;
+    private double m_rejectThreshold;
+
+    private final long[] m_accepted;
+    private final long[] m_downWeighted;
+    private final long[] m_rejected;
+
+    private double m_lastDistanceSquared;
+    private double m_lastStdDevScale = 1.0;
+
+    /**
+     * Constructs a VisionGate with the default thresholds.
+     *
+     * @param maxCameras The number of cameras to keep counters for. Camera ids outside [0, maxCameras) share the last counter.
+     */
+    public VisionGate(int maxCameras) {
+        this(maxCameras, kDefaultDownWeightThreshold, kDefaultRejectThreshold);
+    }
+
+    /**
+     * Constructs a VisionGate.
+     *
+     * @param maxCameras          The number of cameras to keep counters for. Camera ids outside [0, maxCameras) share the last
+     *                            counter.
+     * @param downWeightThreshold The squared Mahalanobis distance above which measurements are down-weighted.
+     * @param rejectThreshold     The squared Mahalanobis distance above which measurements are rejected.
+     */
+    public VisionGate(int maxCameras, double downWeightThreshold, double rejectThreshold) {
+        if (maxCameras < 1) {
+            throw new IllegalArgumentException("A vision gate requires at least one camera");
+        }
+        m_accepted = new long[maxCameras];
+        m_downWeighted = new long[maxCameras];
+        m_rejected = new long[maxCameras];
+        setThresholds(downWeightThreshold, rejectThreshold);
+    }
+
+    /**
+     * Sets the gating thresholds. Setting both to the same value disables down-weighting.
+     *
+     * @param downWeightThreshold The squared Mahalanobis distance above which measurements are down-weighted.
+     * @param rejectThreshold     The squared Mahalanobis distance above which measurements are rejected.
+     */
+    public void setThresholds(double downWeightThreshold, double rejectThreshold) {
+        if (!(downWeightThreshold > 0) || rejectThreshold < downWeightThreshold) {
+            throw new IllegalArgumentException(
+                    "Gate thresholds must be positive with the rejection threshold at least the down-weight threshold");
+        }
+        m_downWeightThreshold = downWeightThreshold;
+        m_rejectThreshold = rejectThreshold;
+    }
+
+    /**
+     * Gates a measurement and updates the counters of the camera that produced it.
+     *
+     * @param cameraId       An identifier for the camera that produced the measurement.
+     * @param innovation     The twist from the estimate at the time of the measurement to the measured pose.
+     * @param stateVariances The variances of the state estimate in the form [x, y, z, theta].
+     * @param stdDevs        The standard deviations of the measurement in the form [x, y, z, theta].
+     * @return Whether the measurement should be used as is, down-weighted, or discarded. When down-weighted, the measurement's
+     * standard deviations should be multiplied by {@link #getStdDevScale()}.
+     */
+    public Result evaluate(int cameraId, Twist3d innovation, double[] stateVariances, double[] stdDevs) {
+        double angle = Math.sqrt(innovation.rx * innovation.rx + innovation.ry * innovation.ry + innovation.rz * innovation.rz);
+        return evaluate(cameraId, innovation.dx, innovation.dy, angle, stateVariances, stdDevs);
+    }
+
+    /**
+     * Gates a measurement and updates the counters of the camera that produced it. See
+     * {@link #evaluate(int, Twist3d, double[], double[])}.
+     *
+     * @param cameraId       An identifier for the camera that produced the measurement.
+     * @param dx             The x component of the innovation, in meters.
+     * @param dy             The y component of the innovation, in meters.
+     * @param angle          The rotation angle of the innovation, in radians.
+     * @param stateVariances The variances of the state estimate in the form [x, y, z, theta].
+     * @param stdDevs        The standard deviations of the measurement in the form [x, y, z, theta].
+     * @return Whether the measurement should be used as is, down-weighted, or discarded.
+     */
+    public Result evaluate(int cameraId, double dx, double dy, double angle, double[] stateVariances, double[] stdDevs) {
+        double distanceSquared = term(dx, stateVariances[0], stdDevs[0])
+                + term(dy, stateVariances[1], stdDevs[1])
+                + term(angle, stateVariances[3], stdDevs[3]);
+
+        m_lastDistanceSquared = distanceSquared;
+        m_lastStdDevScale = 1.0;
+
+        int slot = slot(cameraId);
+
+        // Written so that a NaN distance is rejected
+        if (!(distanceSquared <= m_rejectThreshold)) {
+            m_rejected[slot]++;
+            return Result.REJECTED;
+        }
+        if (distanceSquared > m_downWeightThreshold) {
+            m_lastStdDevScale = Math.sqrt(distanceSquared / m_downWeightThreshold);
+            m_downWeighted[slot]++;
+            return Result.DOWN_WEIGHTED;
+        }
+        m_accepted[slot]++;
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * @return The squared Mahalanobis distance of the last measurement gated.
+     */
+    public double getLastDistanceSquared() {
+        return m_lastDistanceSquared;
+    }
+
+    /**
+     * @return The factor to multiply the last measurement's standard deviations by, which is 1 unless it was down-weighted.
+     */
+    public double getStdDevScale() {
+        return m_lastStdDevScale;
+    }
+
+    /**
+     * @param cameraId An identifier for the camera.
+     * @return The number of measurements from the camera that were accepted as is.
+     */
+    public long getAcceptedCount(int cameraId) {
+        return m_accepted[slot(cameraId)];
+    }
+
+    /**
+     * @param cameraId An identifier for the camera.
+     * @return The number of measurements from the camera that were down-weighted.
+     */
+    public long getDownWeightedCount(int cameraId) {
+        return m_downWeighted[slot(cameraId)];
+    }
+
+    /**
+     * @param cameraId An identifier for the camera.
+     * @return The number of measurements from the camera that were rejected.
+     */
+    public long getRejectedCount(int cameraId) {
+        return m_rejected[slot(cameraId)];
+    }
+
+    /**
+     * Resets every camera's counters to zero.
+     */
+    public void resetCounts() {
+        Arrays.fill(m_accepted, 0);
+        Arrays.fill(m_downWeighted, 0);
+        Arrays.fill(m_rejected, 0);
+    }
+
+    private int slot(int cameraId) {
+        return cameraId >= 0 && cameraId < m_accepted.length ? cameraId : m_accepted.length - 1;
+    }
+
+    /**
+     * @return The squared innovation divided by its variance, or 0 for an axis that has no uncertainty at all.
+     */
+    private static double term(double innovation, double stateVariance, double stdDev) {
+        double variance = stateVariance + stdDev * stdDev;
+        if (variance <= 0.0) {
+            return 0.0;
+        }
+        return innovation * innovation / variance;
+    }
+}
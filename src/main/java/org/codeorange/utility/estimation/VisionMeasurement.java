@@ -0,0 +1,122 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+
+/**
+ * A single vision pose observation. Instances are mutable so that they can be reused from loop to loop when passing batches of
+ * measurements to {@link org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator#addVisionMeasurements}.
+ */
+public class VisionMeasurement {
+    /** The pose of the robot as measured by the camera. */
+    public Pose3d pose;
+
+    /** The time the image was captured, in seconds, using the same epoch as the estimator's odometry updates. */
+    public double timestampSeconds;
+
+    /** Standard deviations of the measurement in the form [x, y, z, theta], with units in meters and radians. */
+    public final double[] stdDevs = new double[4];
+
+    /** Whether {@link #stdDevs} should be used, or the estimator's current vision standard deviations. */
+    public boolean hasStdDevs;
+
+    /** An identifier for the camera that produced this measurement. */
+    public int cameraId;
+
+    /** The number of tags used to compute the pose, or 0 if unknown. */
+    public int tagCount;
+
+    /** The average distance to the tags used, in meters, or 0 if unknown. */
+    public double avgTagDist;
+
+    /** The average area of the tags used, as a percent of the image, or 0 if unknown. */
+    public double avgTagArea;
+
+    /**
+     * Constructs an empty VisionMeasurement.
+     */
+    public VisionMeasurement() {
+        pose = new Pose3d();
+    }
+
+    /**
+     * Constructs a VisionMeasurement that uses the estimator's current vision standard deviations.
+     *
+     * @param pose             The pose of the robot as measured by the camera.
+     * @param timestampSeconds The time the image was captured, in seconds.
+     */
+    public VisionMeasurement(Pose3d pose, double timestampSeconds) {
+        set(pose, timestampSeconds);
+    }
+
+    /**
+     * Sets this measurement to use the estimator's current vision standard deviations.
+     *
+     * @param pose             The pose of the robot as measured by the camera.
+     * @param timestampSeconds The time the image was captured, in seconds.
+     * @return This VisionMeasurement.
+     */
+    public VisionMeasurement set(Pose3d pose, double timestampSeconds) {
+        this.pose = pose;
+        this.timestampSeconds = timestampSeconds;
+        this.hasStdDevs = false;
+        return this;
+    }
+
+    /**
+     * Sets the camera and tag statistics of this measurement.
+     *
+     * @param cameraId   An identifier for the camera that produced this measurement.
+     * @param tagCount   The number of tags used to compute the pose.
+     * @param avgTagDist The average distance to the tags used, in meters.
+     * @param avgTagArea The average area of the tags used, as a percent of the image.
+     * @return This VisionMeasurement.
+     */
+    public VisionMeasurement setSource(int cameraId, int tagCount, double avgTagDist, double avgTagArea) {
+        this.cameraId = cameraId;
+        this.tagCount = tagCount;
+        this.avgTagDist = avgTagDist;
+        this.avgTagArea = avgTagArea;
+        return this;
+    }
+
+    /**
+     * Copies every field of another measurement into this one.
+     *
+     * @param other The measurement to copy.
+     * @return This VisionMeasurement.
+     */
+    public VisionMeasurement set(VisionMeasurement other) {
+        pose = other.pose;
+        timestampSeconds = other.timestampSeconds;
+        System.arraycopy(other.stdDevs, 0, stdDevs, 0, 4);
+        hasStdDevs = other.hasStdDevs;
+        cameraId = other.cameraId;
+        tagCount = other.tagCount;
+        avgTagDist = other.avgTagDist;
+        avgTagArea = other.avgTagArea;
+        return this;
+    }
+
+    /**
+     * Sets this measurement with its own standard deviations.
+     *
+     * @param pose             The pose of the robot as measured by the camera.
+     * @param timestampSeconds The time the image was captured, in seconds.
+     * @param xStdDev          Standard deviation of the x position, in meters.
+     * @param yStdDev          Standard deviation of the y position, in meters.
+     * @param zStdDev          Standard deviation of the z position, in meters.
+     * @param thetaStdDev      Standard deviation of the heading, in radians.
+     * @return This VisionMeasurement.
+     */
+    public VisionMeasurement set(Pose3d pose, double timestampSeconds,
+                                 double xStdDev, double yStdDev, double zStdDev, double thetaStdDev) {
+        this.pose = pose;
+        this.timestampSeconds = timestampSeconds;
+        this.stdDevs[0] = xStdDev;
+        this.stdDevs[1] = yStdDev;
+        this.stdDevs[2] = zStdDev;
+        this.stdDevs[3] = thetaStdDev;
+        this.hasStdDevs = true;
+        return this;
+    }
+}
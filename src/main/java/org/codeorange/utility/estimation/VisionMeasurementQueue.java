@@ -0,0 +1,154 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import org.codeorange.utility.LimelightHelpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer queue of vision measurements.
+ *
+ * <p>Each camera can parse its results on its own thread and {@link #offer} them here, while the thread that owns the pose
+ * estimator {@link #drain drains} them once per update. The queue holds a fixed array of preallocated measurement slots, each
+ * guarded by a sequence number (a bounded queue in the style of Dmitry Vyukov's), so neither side takes a lock or allocates.
+ * When the queue is full, new measurements are dropped and counted rather than blocking the camera thread.
+ */
+public class VisionMeasurementQueue {
+    private final int m_mask;
+    private final VisionMeasurement[] m_slots;
+    private final AtomicLongArray m_sequences;
+
+    private final AtomicLong m_tail = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /** Only touched by the consumer. */
+    private long m_head = 0;
+
+    /**
+     * Constructs a VisionMeasurementQueue.
+     *
+     * @param minCapacity The minimum number of measurements the queue can hold. Rounded up to a power of two.
+     */
+    public VisionMeasurementQueue(int minCapacity) {
+        if (minCapacity < 2) {
+            throw new IllegalArgumentException("A vision queue requires a capacity of at least two measurements");
+        }
+        int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        m_mask = capacity - 1;
+        m_slots = new VisionMeasurement[capacity];
+        m_sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            m_slots[i] = new VisionMeasurement();
+            m_sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a measurement to the queue. Safe to call from any number of threads.
+     *
+     * @param cameraId         An identifier for the camera that produced this measurement.
+     * @param pose             The pose of the robot as measured by the camera.
+     * @param timestampSeconds The time the image was captured, in seconds, in the estimator's time base.
+     * @param xStdDev          Standard deviation of the x position, in meters.
+     * @param yStdDev          Standard deviation of the y position, in meters.
+     * @param zStdDev          Standard deviation of the z position, in meters.
+     * @param thetaStdDev      Standard deviation of the heading, in radians.
+     * @param tagCount         The number of tags used to compute the pose.
+     * @param avgTagDist       The average distance to the tags used, in meters.
+     * @param avgTagArea       The average area of the tags used, as a percent of the image.
+     * @return False if the queue was full and the measurement was dropped.
+     */
+    public boolean offer(int cameraId, Pose3d pose, double timestampSeconds,
+                         double xStdDev, double yStdDev, double zStdDev, double thetaStdDev,
+                         int tagCount, double avgTagDist, double avgTagArea) {
+        long position = m_tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & m_mask);
+            long difference = m_sequences.get(index) - position;
+            if (difference == 0) {
+                // The slot is free for this lap; try to claim it
+                if (m_tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = m_tail.get();
+            } else if (difference < 0) {
+                // The consumer has not freed this slot yet, so the queue is full
+                m_dropped.incrementAndGet();
+                return false;
+            } else {
+                // Another producer claimed this slot first
+                position = m_tail.get();
+            }
+        }
+
+        m_slots[index]
+                .set(pose, timestampSeconds, xStdDev, yStdDev, zStdDev, thetaStdDev)
+                .setSource(cameraId, tagCount, avgTagDist, avgTagArea);
+
+        // Publish the slot to the consumer
+        m_sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Adds a Limelight pose estimate to the queue. Estimates that did not see any tags are ignored. Safe to call from any number
+     * of threads.
+     *
+     * @param cameraId    An identifier for the camera that produced this measurement.
+     * @param estimate    The pose estimate from {@link LimelightHelpers}.
+     * @param xStdDev     Standard deviation of the x position, in meters.
+     * @param yStdDev     Standard deviation of the y position, in meters.
+     * @param thetaStdDev Standard deviation of the heading, in radians.
+     * @return False if the estimate was empty or the queue was full.
+     */
+    public boolean offer(int cameraId, LimelightHelpers.PoseEstimate estimate,
+                         double xStdDev, double yStdDev, double thetaStdDev) {
+        if (estimate == null || estimate.tagCount == 0) {
+            return false;
+        }
+        return offer(cameraId, new Pose3d(estimate.pose), estimate.timestampSeconds,
+                xStdDev, yStdDev, 0, thetaStdDev,
+                estimate.tagCount, estimate.avgTagDist, estimate.avgTagArea);
+    }
+
+    /**
+     * Moves every published measurement into the given array, oldest first. Must only be called from a single thread.
+     *
+     * @param out Preallocated measurements to copy into. At most {@code out.length} measurements are drained.
+     * @return The number of measurements written into {@code out}.
+     */
+    public int drain(VisionMeasurement[] out) {
+        int count = 0;
+        while (count < out.length) {
+            int index = (int) (m_head & m_mask);
+            if (m_sequences.get(index) != m_head + 1) {
+                // Empty, or the next producer has claimed the slot but not published it yet
+                break;
+            }
+
+            out[count++].set(m_slots[index]);
+            m_slots[index].pose = null;
+
+            // Hand the slot back to producers for their next lap
+            m_sequences.set(index, m_head + m_slots.length);
+            m_head++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of measurements this queue can hold.
+     */
+    public int capacity() {
+        return m_slots.length;
+    }
+
+    /**
+     * @return The number of measurements dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+}
@@ -0,0 +1,301 @@
+package org.codeorange.utility.geometry;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Twist2d;
+
+/**
+ * A pose in a 2d coordinate frame stored as primitives: a translation and a rotation represented as a point on the unit circle
+ * (cosine and sine).
+ *
+ * <p>Unlike {@link Pose2d}, this class is mutable: {@link #exp} and the setters modify this pose in place and return it, and
+ * {@link #log} writes into a caller-provided {@link Twist2d}. This makes it suitable for integrating odometry every loop without
+ * allocating.
+ */
+public class MutablePose2d {
+    private double m_x;
+    private double m_y;
+    private double m_cos = 1.0;
+    private double m_sin = 0.0;
+
+    /**
+     * Constructs a MutablePose2d at the origin facing toward the positive X axis.
+     */
+    public MutablePose2d() {}
+
+    /**
+     * Constructs a MutablePose2d with the given position and heading.
+     *
+     * @param x       The x component of the translation.
+     * @param y       The y component of the translation.
+     * @param radians The heading in radians.
+     */
+    public MutablePose2d(double x, double y, double radians) {
+        set(x, y, Math.cos(radians), Math.sin(radians));
+    }
+
+    /**
+     * Constructs a MutablePose2d from a Pose2d.
+     *
+     * @param pose The pose to copy.
+     */
+    public MutablePose2d(Pose2d pose) {
+        set(pose);
+    }
+
+    /**
+     * Sets this pose to the given position and rotation. The cosine and sine don't have to be normalized.
+     *
+     * @param x   The x component of the translation.
+     * @param y   The y component of the translation.
+     * @param cos The x component or cosine of the rotation.
+     * @param sin The y component or sine of the rotation.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d set(double x, double y, double cos, double sin) {
+        m_x = x;
+        m_y = y;
+        return setRotation(cos, sin);
+    }
+
+    /**
+     * Sets this pose to another pose.
+     *
+     * @param other The pose to copy.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d set(MutablePose2d other) {
+        m_x = other.m_x;
+        m_y = other.m_y;
+        m_cos = other.m_cos;
+        m_sin = other.m_sin;
+        return this;
+    }
+
+    /**
+     * Sets this pose to a Pose2d.
+     *
+     * @param pose The pose to copy.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d set(Pose2d pose) {
+        var rotation = pose.getRotation();
+        m_x = pose.getX();
+        m_y = pose.getY();
+        m_cos = rotation.getCos();
+        m_sin = rotation.getSin();
+        return this;
+    }
+
+    /**
+     * Sets this pose to the projection of a Pose3d onto the XY plane, keeping its yaw.
+     *
+     * @param pose The pose to project.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d set(Pose3d pose) {
+        var q = pose.getRotation().getQuaternion();
+        return set(pose.getX(), pose.getY(), q.getW(), q.getX(), q.getY(), q.getZ());
+    }
+
+    /**
+     * Sets this pose to the projection of a 3d position and orientation onto the XY plane, keeping its yaw.
+     *
+     * @param x  The x component of the translation.
+     * @param y  The y component of the translation.
+     * @param qw The w component of the orientation quaternion.
+     * @param qx The x component of the orientation quaternion.
+     * @param qy The y component of the orientation quaternion.
+     * @param qz The z component of the orientation quaternion.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d set(double x, double y, double qw, double qx, double qy, double qz) {
+        return set(x, y, 1.0 - 2.0 * (qy * qy + qz * qz), 2.0 * (qw * qz + qx * qy));
+    }
+
+    /**
+     * Sets the rotation of this pose. The cosine and sine don't have to be normalized.
+     *
+     * @param cos The x component or cosine of the rotation.
+     * @param sin The y component or sine of the rotation.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d setRotation(double cos, double sin) {
+        double magnitude = Math.sqrt(cos * cos + sin * sin);
+        if (magnitude > 1.0e-6) {
+            m_cos = cos / magnitude;
+            m_sin = sin / magnitude;
+        } else {
+            m_cos = 1.0;
+            m_sin = 0.0;
+        }
+        return this;
+    }
+
+    /**
+     * Applies a twist to this pose in place. This is the closed-form exponential map of SE(2); see
+     * {@link Pose2d#exp(Twist2d)}.
+     *
+     * @param twist The change in pose in the robot's coordinate frame since this pose.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d exp(Twist2d twist) {
+        return exp(twist.dx, twist.dy, twist.dtheta);
+    }
+
+    /**
+     * Applies a twist to this pose in place. See {@link #exp(Twist2d)}.
+     *
+     * @param dx     The change in x in the robot's coordinate frame.
+     * @param dy     The change in y in the robot's coordinate frame.
+     * @param dtheta The change in heading, in radians.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d exp(double dx, double dy, double dtheta) {
+        return exp(dx, dy, dtheta, Math.cos(dtheta), Math.sin(dtheta));
+    }
+
+    /**
+     * Applies a twist to this pose in place, for when the cosine and sine of the change in heading are already known (e.g. from
+     * the difference of two gyro readings). See {@link #exp(Twist2d)}.
+     *
+     * @param dx        The change in x in the robot's coordinate frame.
+     * @param dy        The change in y in the robot's coordinate frame.
+     * @param dtheta    The change in heading, in radians.
+     * @param cosDtheta The cosine of dtheta.
+     * @param sinDtheta The sine of dtheta.
+     * @return This MutablePose2d.
+     */
+    public MutablePose2d exp(double dx, double dy, double dtheta, double cosDtheta, double sinDtheta) {
+        double sinTerm;
+        double cosTerm;
+        if (Math.abs(dtheta) < 1e-9) {
+            sinTerm = 1.0 - dtheta * dtheta / 6.0;
+            cosTerm = 0.5 * dtheta;
+        } else {
+            sinTerm = sinDtheta / dtheta;
+            cosTerm = (1 - cosDtheta) / dtheta;
+        }
+
+        // The translation of the twist in the robot's frame, then rotated into the field frame
+        double localX = dx * sinTerm - dy * cosTerm;
+        double localY = dx * cosTerm + dy * sinTerm;
+        m_x += localX * m_cos - localY * m_sin;
+        m_y += localX * m_sin + localY * m_cos;
+
+        double cos = m_cos * cosDtheta - m_sin * sinDtheta;
+        double sin = m_cos * sinDtheta + m_sin * cosDtheta;
+
+        // First order renormalization keeps the rotation on the unit circle without a square root
+        double scale = 0.5 * (3.0 - (cos * cos + sin * sin));
+        m_cos = cos * scale;
+        m_sin = sin * scale;
+        return this;
+    }
+
+    /**
+     * Computes the twist that maps this pose to another, the closed-form logarithm map of SE(2); see
+     * {@link Pose2d#log(Pose2d)}.
+     *
+     * @param end The end pose.
+     * @param out The twist to write into.
+     * @return The twist that maps this pose to the end pose, which is {@code out}.
+     */
+    public Twist2d log(MutablePose2d end, Twist2d out) {
+        // The end pose relative to this one
+        double worldDx = end.m_x - m_x;
+        double worldDy = end.m_y - m_y;
+        double dx = worldDx * m_cos + worldDy * m_sin;
+        double dy = -worldDx * m_sin + worldDy * m_cos;
+        double cos = m_cos * end.m_cos + m_sin * end.m_sin;
+        double sin = m_cos * end.m_sin - m_sin * end.m_cos;
+
+        double dtheta = Math.atan2(sin, cos);
+        double halfDtheta = 0.5 * dtheta;
+        double cosMinusOne = cos - 1;
+
+        double halfThetaByTanOfHalfDtheta;
+        if (Math.abs(cosMinusOne) < 1e-9) {
+            halfThetaByTanOfHalfDtheta = 1.0 - 1.0 / 12.0 * dtheta * dtheta;
+        } else {
+            halfThetaByTanOfHalfDtheta = -(halfDtheta * sin) / cosMinusOne;
+        }
+
+        // Rotating by (halfThetaByTanOfHalfDtheta, -halfDtheta) and scaling by its norm is a complex multiplication
+        out.dx = dx * halfThetaByTanOfHalfDtheta + dy * halfDtheta;
+        out.dy = -dx * halfDtheta + dy * halfThetaByTanOfHalfDtheta;
+        out.dtheta = dtheta;
+        return out;
+    }
+
+    /**
+     * @return The x component of the translation.
+     */
+    public double getX() {
+        return m_x;
+    }
+
+    /**
+     * @return The y component of the translation.
+     */
+    public double getY() {
+        return m_y;
+    }
+
+    /**
+     * @return The cosine of the heading.
+     */
+    public double getCos() {
+        return m_cos;
+    }
+
+    /**
+     * @return The sine of the heading.
+     */
+    public double getSin() {
+        return m_sin;
+    }
+
+    /**
+     * @return The heading in radians, between -pi and pi.
+     */
+    public double getRadians() {
+        return Math.atan2(m_sin, m_cos);
+    }
+
+    /**
+     * @return A new Pose2d equal to this pose.
+     */
+    public Pose2d toPose2d() {
+        return new Pose2d(m_x, m_y, new Rotation2d(m_cos, m_sin));
+    }
+
+    /**
+     * @return A new Pose3d on the XY plane equal to this pose.
+     */
+    public Pose3d toPose3d() {
+        return new Pose3d(m_x, m_y, 0.0, new Rotation3d(new Quaternion(getHalfCos(), 0.0, 0.0, getHalfSin())));
+    }
+
+    /**
+     * @return The cosine of half the heading, which is the w component of the heading as a quaternion about the Z axis.
+     */
+    public double getHalfCos() {
+        return Math.sqrt(Math.max(0.0, 0.5 * (1.0 + m_cos)));
+    }
+
+    /**
+     * @return The sine of half the heading, which is the z component of the heading as a quaternion about the Z axis.
+     */
+    public double getHalfSin() {
+        return Math.copySign(Math.sqrt(Math.max(0.0, 0.5 * (1.0 - m_cos))), m_sin);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MutablePose2d(X: %.2f, Y: %.2f, Rads: %.2f)", m_x, m_y, getRadians());
+    }
+}
@@ -0,0 +1,385 @@
+package org.codeorange.utility.geometry;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.geometry.Twist3d;
+
+/**
+ * A pose in 3d space stored as primitives: a translation and a rotation represented as a unit quaternion.
+ *
+ * <p>Unlike {@link Pose3d}, this class is mutable: {@link #exp} and the setters modify this pose in place and return it, and
+ * {@link #log} writes into a caller-provided {@link Twist3d}. It is the 3d counterpart of {@link MutablePose2d}, and follows the
+ * same exponential and logarithm maps as {@link Pose3d#exp(Twist3d)} and {@link Pose3d#log(Pose3d)} without allocating. The
+ * maps are evaluated with half angles where the full-angle forms lose precision, so that {@link #exp} undoes {@link #log} to
+ * rounding error even for the tiny rotations of a single odometry step.
+ */
+public class MutablePose3d {
+    private double m_x;
+    private double m_y;
+    private double m_z;
+    private double m_qw = 1.0;
+    private double m_qx;
+    private double m_qy;
+    private double m_qz;
+
+    // Scratch space for rotating vectors by quaternions
+    private final double[] m_rotated = new double[3];
+
+    /**
+     * Constructs a MutablePose3d at the origin with no rotation.
+     */
+    public MutablePose3d() {}
+
+    /**
+     * Constructs a MutablePose3d from a Pose3d.
+     *
+     * @param pose The pose to copy.
+     */
+    public MutablePose3d(Pose3d pose) {
+        set(pose);
+    }
+
+    /**
+     * Sets this pose to the given position and rotation. The quaternion doesn't have to be normalized.
+     *
+     * @param x  The x component of the translation.
+     * @param y  The y component of the translation.
+     * @param z  The z component of the translation.
+     * @param qw The w component of the rotation quaternion.
+     * @param qx The x component of the rotation quaternion.
+     * @param qy The y component of the rotation quaternion.
+     * @param qz The z component of the rotation quaternion.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d set(double x, double y, double z, double qw, double qx, double qy, double qz) {
+        m_x = x;
+        m_y = y;
+        m_z = z;
+        return setRotation(qw, qx, qy, qz);
+    }
+
+    /**
+     * Sets this pose to another pose.
+     *
+     * @param other The pose to copy.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d set(MutablePose3d other) {
+        m_x = other.m_x;
+        m_y = other.m_y;
+        m_z = other.m_z;
+        m_qw = other.m_qw;
+        m_qx = other.m_qx;
+        m_qy = other.m_qy;
+        m_qz = other.m_qz;
+        return this;
+    }
+
+    /**
+     * Sets this pose to a Pose3d.
+     *
+     * @param pose The pose to copy.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d set(Pose3d pose) {
+        var q = pose.getRotation().getQuaternion();
+        m_x = pose.getX();
+        m_y = pose.getY();
+        m_z = pose.getZ();
+        m_qw = q.getW();
+        m_qx = q.getX();
+        m_qy = q.getY();
+        m_qz = q.getZ();
+        return this;
+    }
+
+    /**
+     * Sets this pose to a planar pose, on the XY plane.
+     *
+     * @param pose The pose to copy.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d set(MutablePose2d pose) {
+        m_x = pose.getX();
+        m_y = pose.getY();
+        m_z = 0.0;
+        m_qw = pose.getHalfCos();
+        m_qx = 0.0;
+        m_qy = 0.0;
+        m_qz = pose.getHalfSin();
+        return this;
+    }
+
+    /**
+     * Sets the rotation of this pose. The quaternion doesn't have to be normalized.
+     *
+     * @param qw The w component of the rotation quaternion.
+     * @param qx The x component of the rotation quaternion.
+     * @param qy The y component of the rotation quaternion.
+     * @param qz The z component of the rotation quaternion.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d setRotation(double qw, double qx, double qy, double qz) {
+        double norm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+        if (norm > 1.0e-9) {
+            m_qw = qw / norm;
+            m_qx = qx / norm;
+            m_qy = qy / norm;
+            m_qz = qz / norm;
+        } else {
+            m_qw = 1.0;
+            m_qx = m_qy = m_qz = 0.0;
+        }
+        return this;
+    }
+
+    /**
+     * Rotates this pose about the Z axis of the field frame, keeping its translation.
+     *
+     * @param radians The angle to rotate by.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d rotateAboutZ(double radians) {
+        double w = Math.cos(0.5 * radians);
+        double z = Math.sin(0.5 * radians);
+        // (w, 0, 0, z) * q
+        return setRotation(w * m_qw - z * m_qz, w * m_qx - z * m_qy, w * m_qy + z * m_qx, w * m_qz + z * m_qw);
+    }
+
+    /**
+     * Applies a twist to this pose in place. This is the exponential map of SE(3); see {@link Pose3d#exp(Twist3d)}.
+     *
+     * @param twist The change in pose in the robot's coordinate frame since this pose.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d exp(Twist3d twist) {
+        return exp(twist.dx, twist.dy, twist.dz, twist.rx, twist.ry, twist.rz);
+    }
+
+    /**
+     * Applies a twist to this pose in place. See {@link #exp(Twist3d)}.
+     *
+     * @param dx The change in x in the robot's coordinate frame.
+     * @param dy The change in y in the robot's coordinate frame.
+     * @param dz The change in z in the robot's coordinate frame.
+     * @param rx The x component of the rotation vector, in radians.
+     * @param ry The y component of the rotation vector, in radians.
+     * @param rz The z component of the rotation vector, in radians.
+     * @return This MutablePose3d.
+     */
+    public MutablePose3d exp(double dx, double dy, double dz, double rx, double ry, double rz) {
+        double thetaSq = rx * rx + ry * ry + rz * rz;
+        double theta = Math.sqrt(thetaSq);
+        double b;
+        double c;
+        double halfSinByTheta;
+        if (thetaSq < 1e-9 * 1e-9) {
+            b = 0.5 - thetaSq / 24.0;
+            c = 1.0 / 6.0 - thetaSq / 120.0;
+            halfSinByTheta = 0.5 - thetaSq / 48.0;
+        } else {
+            double a = Math.sin(theta) / theta;
+            halfSinByTheta = Math.sin(0.5 * theta) / theta;
+            // (1 - cos θ) / θ², written with the half angle so that it does not cancel for small angles
+            b = 2.0 * halfSinByTheta * halfSinByTheta;
+            c = (1.0 - a) / thetaSq;
+        }
+
+        // V = I + BΩ + CΩ², where Ωu = ω × u
+        double cx = ry * dz - rz * dy;
+        double cy = rz * dx - rx * dz;
+        double cz = rx * dy - ry * dx;
+        double ccx = ry * cz - rz * cy;
+        double ccy = rz * cx - rx * cz;
+        double ccz = rx * cy - ry * cx;
+        double localX = dx + b * cx + c * ccx;
+        double localY = dy + b * cy + c * ccy;
+        double localZ = dz + b * cz + c * ccz;
+
+        // The translation in the robot's frame, then rotated into the field frame
+        rotate(m_qw, m_qx, m_qy, m_qz, localX, localY, localZ, m_rotated);
+        m_x += m_rotated[0];
+        m_y += m_rotated[1];
+        m_z += m_rotated[2];
+
+        // q * Δq, where Δq is the rotation vector as a quaternion
+        double ww = Math.cos(0.5 * theta);
+        double wx = halfSinByTheta * rx;
+        double wy = halfSinByTheta * ry;
+        double wz = halfSinByTheta * rz;
+        return setRotation(
+                m_qw * ww - m_qx * wx - m_qy * wy - m_qz * wz,
+                m_qw * wx + m_qx * ww + m_qy * wz - m_qz * wy,
+                m_qw * wy - m_qx * wz + m_qy * ww + m_qz * wx,
+                m_qw * wz + m_qx * wy - m_qy * wx + m_qz * ww);
+    }
+
+    /**
+     * Computes the twist that maps this pose to another, the logarithm map of SE(3); see {@link Pose3d#log(Pose3d)}.
+     *
+     * @param end The end pose.
+     * @param out The twist to write into.
+     * @return The twist that maps this pose to the end pose, which is {@code out}.
+     */
+    public Twist3d log(MutablePose3d end, Twist3d out) {
+        return log(end.m_x, end.m_y, end.m_z, end.m_qw, end.m_qx, end.m_qy, end.m_qz, out);
+    }
+
+    /**
+     * Computes the twist that maps this pose to another given as primitives. See {@link #log(MutablePose3d, Twist3d)}.
+     *
+     * @param x   The x component of the end pose's translation.
+     * @param y   The y component of the end pose's translation.
+     * @param z   The z component of the end pose's translation.
+     * @param qw  The w component of the end pose's rotation quaternion.
+     * @param qx  The x component of the end pose's rotation quaternion.
+     * @param qy  The y component of the end pose's rotation quaternion.
+     * @param qz  The z component of the end pose's rotation quaternion.
+     * @param out The twist to write into.
+     * @return The twist that maps this pose to the end pose, which is {@code out}.
+     */
+    public Twist3d log(double x, double y, double z, double qw, double qx, double qy, double qz, Twist3d out) {
+        // The end pose relative to this one: rotation conj(q) * qEnd, translation rotated by conj(q)
+        double ow = m_qw, ox = -m_qx, oy = -m_qy, oz = -m_qz;
+        double rw = ow * qw - ox * qx - oy * qy - oz * qz;
+        double rx = ow * qx + ox * qw + oy * qz - oz * qy;
+        double ry = ow * qy - ox * qz + oy * qw + oz * qx;
+        double rz = ow * qz + ox * qy - oy * qx + oz * qw;
+        rotate(ow, ox, oy, oz, x - m_x, y - m_y, z - m_z, m_rotated);
+        double tx = m_rotated[0], ty = m_rotated[1], tz = m_rotated[2];
+
+        // The relative rotation as a rotation vector, taking the shorter way around like Quaternion#toRotationVector
+        double norm = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        double coefficient;
+        if (norm < 1e-9) {
+            coefficient = 2.0 / rw - 2.0 / 3.0 * norm * norm / (rw * rw * rw);
+        } else if (rw < 0.0) {
+            coefficient = 2.0 * Math.atan2(-norm, -rw) / norm;
+        } else {
+            coefficient = 2.0 * Math.atan2(norm, rw) / norm;
+        }
+        rx *= coefficient;
+        ry *= coefficient;
+        rz *= coefficient;
+
+        double thetaSq = rx * rx + ry * ry + rz * rz;
+        double c;
+        if (thetaSq < 1e-9 * 1e-9) {
+            c = 1.0 / 12.0 + thetaSq / 720.0;
+        } else {
+            double theta = Math.sqrt(thetaSq);
+            double a = Math.sin(theta) / theta;
+            // (1 - cos θ) / θ², written with the half angle so that it does not cancel for small angles
+            double halfSinByTheta = Math.sin(0.5 * theta) / theta;
+            double b = 2.0 * halfSinByTheta * halfSinByTheta;
+            c = (1.0 - a / (2.0 * b)) / thetaSq;
+        }
+
+        // V⁻¹ = I - Ω/2 + CΩ²
+        double cx = ry * tz - rz * ty;
+        double cy = rz * tx - rx * tz;
+        double cz = rx * ty - ry * tx;
+        double ccx = ry * cz - rz * cy;
+        double ccy = rz * cx - rx * cz;
+        double ccz = rx * cy - ry * cx;
+        out.dx = tx - 0.5 * cx + c * ccx;
+        out.dy = ty - 0.5 * cy + c * ccy;
+        out.dz = tz - 0.5 * cz + c * ccz;
+        out.rx = rx;
+        out.ry = ry;
+        out.rz = rz;
+        return out;
+    }
+
+    /**
+     * Rotates a vector by a unit quaternion, writing the result into the first three elements of {@code out}.
+     */
+    public static void rotate(double qw, double qx, double qy, double qz, double vx, double vy, double vz, double[] out) {
+        // v + 2w(q × v) + 2q × (q × v)
+        double cx = qy * vz - qz * vy;
+        double cy = qz * vx - qx * vz;
+        double cz = qx * vy - qy * vx;
+        out[0] = vx + 2.0 * (qw * cx + qy * cz - qz * cy);
+        out[1] = vy + 2.0 * (qw * cy + qz * cx - qx * cz);
+        out[2] = vz + 2.0 * (qw * cz + qx * cy - qy * cx);
+    }
+
+    /**
+     * @return The x component of the translation.
+     */
+    public double getX() {
+        return m_x;
+    }
+
+    /**
+     * @return The y component of the translation.
+     */
+    public double getY() {
+        return m_y;
+    }
+
+    /**
+     * @return The z component of the translation.
+     */
+    public double getZ() {
+        return m_z;
+    }
+
+    /**
+     * @return The w component of the rotation quaternion.
+     */
+    public double getQw() {
+        return m_qw;
+    }
+
+    /**
+     * @return The x component of the rotation quaternion.
+     */
+    public double getQx() {
+        return m_qx;
+    }
+
+    /**
+     * @return The y component of the rotation quaternion.
+     */
+    public double getQy() {
+        return m_qy;
+    }
+
+    /**
+     * @return The z component of the rotation quaternion.
+     */
+    public double getQz() {
+        return m_qz;
+    }
+
+    /**
+     * @return The yaw of the rotation in radians, between -pi and pi, as {@link Rotation3d#getZ()} computes it.
+     */
+    public double getYaw() {
+        return Math.atan2(2.0 * (m_qw * m_qz + m_qx * m_qy), 1.0 - 2.0 * (m_qy * m_qy + m_qz * m_qz));
+    }
+
+    /**
+     * @return A new Pose2d equal to the projection of this pose onto the XY plane.
+     */
+    public Pose2d toPose2d() {
+        return new Pose2d(m_x, m_y, new Rotation2d(getYaw()));
+    }
+
+    /**
+     * @return A new Pose3d equal to this pose.
+     */
+    public Pose3d toPose3d() {
+        return new Pose3d(new Translation3d(m_x, m_y, m_z), new Rotation3d(new Quaternion(m_qw, m_qx, m_qy, m_qz)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MutablePose3d(X: %.2f, Y: %.2f, Z: %.2f, Yaw: %.2f)", m_x, m_y, m_z, getYaw());
+    }
+}
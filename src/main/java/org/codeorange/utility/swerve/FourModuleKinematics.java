@@ -0,0 +1,140 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+
+/**
+ * Kinematics specialized for a drivetrain with exactly four modules, which {@link SecondOrderKinematics} delegates to when it
+ * is given four. The module locations and the forward kinematics coefficients are held as final fields and every operation is
+ * written out module by module, so there are no matrices, arrays of coefficients, or loops for the JIT to see through.
+ *
+ * <p>This class holds no state that changes, so it is safe to share between threads.
+ */
+final class FourModuleKinematics {
+    private final double m_x0, m_y0, m_x1, m_y1, m_x2, m_y2, m_x3, m_y3;
+
+    // Rows of the forward kinematics matrix: the chassis dx, dy, and dtheta from each module's x and y motion
+    private final double m_fx0x, m_fx0y, m_fx1x, m_fx1y, m_fx2x, m_fx2y, m_fx3x, m_fx3y;
+    private final double m_fy0x, m_fy0y, m_fy1x, m_fy1y, m_fy2x, m_fy2y, m_fy3x, m_fy3y;
+    private final double m_ft0x, m_ft0y, m_ft1x, m_ft1y, m_ft2x, m_ft2y, m_ft3x, m_ft3y;
+
+    /**
+     * Constructs a FourModuleKinematics.
+     *
+     * @param modules             The locations of the four modules relative to the physical center of the robot.
+     * @param forwardCoefficients The 3x8 forward kinematics matrix flattened row-major.
+     */
+    FourModuleKinematics(Translation2d[] modules, double[] forwardCoefficients) {
+        if (modules.length != 4 || forwardCoefficients.length != 24) {
+            throw new IllegalArgumentException("Four-module kinematics requires exactly four modules");
+        }
+        m_x0 = modules[0].getX();
+        m_y0 = modules[0].getY();
+        m_x1 = modules[1].getX();
+        m_y1 = modules[1].getY();
+        m_x2 = modules[2].getX();
+        m_y2 = modules[2].getY();
+        m_x3 = modules[3].getX();
+        m_y3 = modules[3].getY();
+
+        double[] f = forwardCoefficients;
+        m_fx0x = f[0];
+        m_fx0y = f[1];
+        m_fx1x = f[2];
+        m_fx1y = f[3];
+        m_fx2x = f[4];
+        m_fx2y = f[5];
+        m_fx3x = f[6];
+        m_fx3y = f[7];
+        m_fy0x = f[8];
+        m_fy0y = f[9];
+        m_fy1x = f[10];
+        m_fy1y = f[11];
+        m_fy2x = f[12];
+        m_fy2y = f[13];
+        m_fy3x = f[14];
+        m_fy3y = f[15];
+        m_ft0x = f[16];
+        m_ft0y = f[17];
+        m_ft1x = f[18];
+        m_ft1y = f[19];
+        m_ft2x = f[20];
+        m_ft2y = f[21];
+        m_ft3x = f[22];
+        m_ft3y = f[23];
+    }
+
+    /**
+     * Performs forward kinematics on the motion of each module in the robot's frame, which may be velocities or displacements.
+     */
+    Twist2d toTwist2d(double dx0, double dy0, double dx1, double dy1, double dx2, double dy2, double dx3, double dy3,
+                      Twist2d out) {
+        out.dx = m_fx0x * dx0 + m_fx0y * dy0 + m_fx1x * dx1 + m_fx1y * dy1
+                + m_fx2x * dx2 + m_fx2y * dy2 + m_fx3x * dx3 + m_fx3y * dy3;
+        out.dy = m_fy0x * dx0 + m_fy0y * dy0 + m_fy1x * dx1 + m_fy1y * dy1
+                + m_fy2x * dx2 + m_fy2y * dy2 + m_fy3x * dx3 + m_fy3y * dy3;
+        out.dtheta = m_ft0x * dx0 + m_ft0y * dy0 + m_ft1x * dx1 + m_ft1y * dy1
+                + m_ft2x * dx2 + m_ft2y * dy2 + m_ft3x * dx3 + m_ft3y * dy3;
+        return out;
+    }
+
+    /**
+     * Performs forward kinematics on primitive module deltas. See {@link SecondOrderKinematics#toTwist2d}.
+     */
+    Twist2d toTwist2d(double[] distanceDeltas, double[] angles, Twist2d out) {
+        double a0 = angles[0], a1 = angles[1], a2 = angles[2], a3 = angles[3];
+        double d0 = distanceDeltas[0], d1 = distanceDeltas[1], d2 = distanceDeltas[2], d3 = distanceDeltas[3];
+        return toTwist2d(
+                d0 * Math.cos(a0), d0 * Math.sin(a0),
+                d1 * Math.cos(a1), d1 * Math.sin(a1),
+                d2 * Math.cos(a2), d2 * Math.sin(a2),
+                d3 * Math.cos(a3), d3 * Math.sin(a3),
+                out);
+    }
+
+    /**
+     * Performs forward kinematics on module displacements. See {@link SecondOrderKinematics#toTwist2dFromDisplacements}.
+     */
+    Twist2d toTwist2dFromDisplacements(double[] moduleDx, double[] moduleDy, Twist2d out) {
+        return toTwist2d(
+                moduleDx[0], moduleDy[0],
+                moduleDx[1], moduleDy[1],
+                moduleDx[2], moduleDy[2],
+                moduleDx[3], moduleDy[3],
+                out);
+    }
+
+    /**
+     * Performs inverse kinematics for a moving chassis. A module on the center of rotation keeps the heading in
+     * {@code headingCos} and {@code headingSin} and does not turn. The headings and steer rates are updated in place.
+     */
+    void toModuleStates(double vx, double vy, double omega, double corX, double corY,
+                        double[] headingCos, double[] headingSin, double[] moduleOmegas, ModuleStateBuffer out) {
+        double omegaSquared = omega * omega;
+        setModule(0, m_x0 - corX, m_y0 - corY, vx, vy, omega, omegaSquared, headingCos, headingSin, moduleOmegas, out);
+        setModule(1, m_x1 - corX, m_y1 - corY, vx, vy, omega, omegaSquared, headingCos, headingSin, moduleOmegas, out);
+        setModule(2, m_x2 - corX, m_y2 - corY, vx, vy, omega, omegaSquared, headingCos, headingSin, moduleOmegas, out);
+        setModule(3, m_x3 - corX, m_y3 - corY, vx, vy, omega, omegaSquared, headingCos, headingSin, moduleOmegas, out);
+    }
+
+    private static void setModule(int i, double rx, double ry, double chassisVx, double chassisVy, double omega,
+                                  double omegaSquared, double[] headingCos, double[] headingSin, double[] moduleOmegas,
+                                  ModuleStateBuffer out) {
+        double vx = chassisVx - omega * ry;
+        double vy = chassisVy + omega * rx;
+        double speed = Math.hypot(vx, vy);
+        if (speed < SecondOrderKinematics.kMinModuleSpeed) {
+            out.set(i, 0.0, headingCos[i], headingSin[i], 0.0);
+            moduleOmegas[i] = 0.0;
+            return;
+        }
+        double cos = vx / speed;
+        double sin = vy / speed;
+        // The centripetal acceleration -omega^2 r across the module's heading, over its speed
+        double moduleOmega = omegaSquared * (sin * rx - cos * ry) / speed - omega;
+        out.set(i, speed, cos, sin, moduleOmega);
+        headingCos[i] = cos;
+        headingSin[i] = sin;
+        moduleOmegas[i] = moduleOmega;
+    }
+}
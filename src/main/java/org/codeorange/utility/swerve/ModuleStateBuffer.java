@@ -0,0 +1,149 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+import java.util.Arrays;
+
+/**
+ * The states of every swerve module, kept as a struct of primitive arrays so that kinematics can write them every loop without
+ * allocating. Module i's state is {@code speeds[i]}, the angle with cosine {@code cos[i]} and sine {@code sin[i]}, and the
+ * steer rate {@code omegas[i]}, in the order the modules were passed to the kinematics.
+ *
+ * <p>Allocate one buffer per drivetrain and refill it every loop with
+ * {@link SecondOrderKinematics#toSwerveModuleStates(ChassisSpeeds, ModuleStateBuffer)}.
+ */
+public class ModuleStateBuffer {
+    /** The speed of each module's wheel, in meters per second. */
+    public final double[] speeds;
+
+    /** The cosine of each module's angle. */
+    public final double[] cos;
+
+    /** The sine of each module's angle. */
+    public final double[] sin;
+
+    /** The angular velocity of each module, in radians per second. */
+    public final double[] omegas;
+
+    /**
+     * Constructs a ModuleStateBuffer with every module at rest facing forward.
+     *
+     * @param numModules The number of modules.
+     */
+    public ModuleStateBuffer(int numModules) {
+        if (numModules < 1) {
+            throw new IllegalArgumentException("A module state buffer requires at least one module");
+        }
+        speeds = new double[numModules];
+        cos = new double[numModules];
+        sin = new double[numModules];
+        omegas = new double[numModules];
+        Arrays.fill(cos, 1.0);
+    }
+
+    /**
+     * @return The number of modules.
+     */
+    public int size() {
+        return speeds.length;
+    }
+
+    /**
+     * Sets the state of a module.
+     *
+     * @param module The index of the module.
+     * @param speed  The speed of the module's wheel, in meters per second.
+     * @param cos    The cosine of the module's angle.
+     * @param sin    The sine of the module's angle.
+     * @param omega  The angular velocity of the module, in radians per second.
+     */
+    public void set(int module, double speed, double cos, double sin, double omega) {
+        speeds[module] = speed;
+        this.cos[module] = cos;
+        this.sin[module] = sin;
+        omegas[module] = omega;
+    }
+
+    /**
+     * Minimizes the change in heading a module's state would require by potentially reversing the direction its wheel spins,
+     * in place and without allocating. The steer rate is unchanged. See
+     * {@link SecondOrderModuleState#optimize(double, double, boolean)} for cosine scaling.
+     *
+     * @param module             The index of the module.
+     * @param currentCos         The cosine of the module's current angle.
+     * @param currentSin         The sine of the module's current angle.
+     * @param scaleByCosineError Whether to scale the speed by the cosine of the remaining steering error.
+     * @return Whether the wheel was reversed.
+     */
+    public boolean optimize(int module, double currentCos, double currentSin, boolean scaleByCosineError) {
+        double errorCos = cos[module] * currentCos + sin[module] * currentSin;
+        boolean reversed = errorCos < 0;
+        if (reversed) {
+            speeds[module] = -speeds[module];
+            cos[module] = -cos[module];
+            sin[module] = -sin[module];
+            errorCos = -errorCos;
+        }
+        if (scaleByCosineError) {
+            speeds[module] *= errorCos;
+        }
+        return reversed;
+    }
+
+    /**
+     * Optimizes every module's state against its current angle. See {@link #optimize(int, double, double, boolean)}.
+     *
+     * @param currentAnglesRadians The current angle of each module, in radians.
+     * @param scaleByCosineError   Whether to scale the speeds by the cosine of the remaining steering errors.
+     */
+    public void optimize(double[] currentAnglesRadians, boolean scaleByCosineError) {
+        if (currentAnglesRadians.length != speeds.length) {
+            throw new IllegalArgumentException("Number of module angles is not consistent with the number of modules");
+        }
+        for (int i = 0; i < speeds.length; i++) {
+            optimize(i, Math.cos(currentAnglesRadians[i]), Math.sin(currentAnglesRadians[i]), scaleByCosineError);
+        }
+    }
+
+    /**
+     * @param module The index of the module.
+     * @return The angle of the module in radians, between -pi and pi.
+     */
+    public double getAngleRadians(int module) {
+        return Math.atan2(sin[module], cos[module]);
+    }
+
+    /**
+     * Copies the states into module state objects, such as for logging or code that takes {@link SecondOrderModuleState}s. A
+     * state's angle is only replaced when it changed, so copying states that did not change does not allocate.
+     *
+     * @param out The states to write into, one per module.
+     * @return {@code out}.
+     */
+    public SecondOrderModuleState[] copyTo(SecondOrderModuleState[] out) {
+        if (out.length != speeds.length) {
+            throw new IllegalArgumentException("Number of module states is not consistent with the number of modules");
+        }
+        for (int i = 0; i < speeds.length; i++) {
+            var state = out[i];
+            state.speedMetersPerSecond = speeds[i];
+            state.omega = omegas[i];
+            if (state.angle == null || state.angle.getCos() != cos[i] || state.angle.getSin() != sin[i]) {
+                state.angle = new Rotation2d(cos[i], sin[i]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return New module state objects equal to the states in this buffer.
+     */
+    public SecondOrderModuleState[] toArray() {
+        var states = new SecondOrderModuleState[speeds.length];
+        for (int i = 0; i < speeds.length; i++) {
+            states[i] = new SecondOrderModuleState(speeds[i], new Rotation2d(cos[i], sin[i]), omegas[i]);
+        }
+        return states;
+    }
+}
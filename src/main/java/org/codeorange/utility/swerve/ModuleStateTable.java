@@ -0,0 +1,357 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.trajectory.Trajectory;
+import org.codeorange.utility.TrajectoryDeserializer.TimedTrajectory;
+
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Module states precomputed for a whole trajectory at a fixed step, so that a follower can interpolate them each loop instead
+ * of sampling the trajectory and running inverse kinematics.
+ *
+ * <p>The table is computed when the trajectory is loaded. Sampling the trajectory and inverse kinematics run in parallel
+ * across the common fork-join pool, in chunks that each get their own copy of the kinematics; a short sequential pass then
+ * carries module headings through samples where a module is stopped, reverses wheels rather than letting an angle jump by
+ * more than 90 degrees between samples, and differentiates the module speeds into accelerations. Optionally, the states are
+ * then run through a {@link SwerveSetpointGenerator} so that the table only holds setpoints the modules can follow.
+ *
+ * <p>Each sample holds the robot-relative chassis speeds feeding forward the trajectory, and for each module its speed, which
+ * may be negative where the wheel is reversed, the cosine and sine of its angle, its steer rate, and its drive acceleration.
+ * Sampling does not allocate, and the table is immutable once computed, so it can be sampled from any thread.
+ */
+public final class ModuleStateTable {
+    private static final int kChunkSize = 256;
+    // The time step for differentiating the heading, in seconds
+    private static final double kHeadingDifferenceStep = 1e-3;
+
+    private final int m_numModules;
+    private final int m_numSamples;
+    private final double m_startTime;
+    private final double m_dt;
+
+    // Chassis speeds per sample, and module states packed per sample then per module
+    private final double[] m_vx;
+    private final double[] m_vy;
+    private final double[] m_omega;
+    private final double[] m_speeds;
+    private final double[] m_cos;
+    private final double[] m_sin;
+    private final double[] m_steerRates;
+    private final double[] m_accelerations;
+
+    private ModuleStateTable(int numModules, int numSamples, double startTime, double dt) {
+        m_numModules = numModules;
+        m_numSamples = numSamples;
+        m_startTime = startTime;
+        m_dt = dt;
+        m_vx = new double[numSamples];
+        m_vy = new double[numSamples];
+        m_omega = new double[numSamples];
+        m_speeds = new double[numSamples * numModules];
+        m_cos = new double[numSamples * numModules];
+        m_sin = new double[numSamples * numModules];
+        m_steerRates = new double[numSamples * numModules];
+        m_accelerations = new double[numSamples * numModules];
+    }
+
+    /**
+     * Precomputes the module states of a trajectory. See {@link #compute(SecondOrderKinematics, Trajectory,
+     * DoubleUnaryOperator, double, SwerveSetpointGenerator)}.
+     *
+     * @param kinematics     The kinematics of the drivetrain.
+     * @param trajectory     The trajectory to follow.
+     * @param headingRadians The robot's heading on the field at each time along the trajectory, in radians.
+     * @param dtSeconds      The time between samples, usually the loop period, in seconds.
+     * @return The table, sampled from time 0.
+     */
+    public static ModuleStateTable compute(SecondOrderKinematics kinematics, Trajectory trajectory,
+                                           DoubleUnaryOperator headingRadians, double dtSeconds) {
+        return compute(kinematics, trajectory, 0.0, headingRadians, dtSeconds, null);
+    }
+
+    /**
+     * Precomputes the module states of a trajectory, limited to what the modules can follow.
+     *
+     * @param kinematics     The kinematics of the drivetrain.
+     * @param trajectory     The trajectory to follow.
+     * @param headingRadians The robot's heading on the field at each time along the trajectory, in radians. It is called
+     *                       from several threads at once, so it must not have side effects.
+     * @param dtSeconds      The time between samples, usually the loop period, in seconds.
+     * @param limits         A generator to run the states through in order, or null to store them unlimited. It is reset
+     *                       to the first sample and left at the last one.
+     * @return The table, sampled from time 0.
+     */
+    public static ModuleStateTable compute(SecondOrderKinematics kinematics, Trajectory trajectory,
+                                           DoubleUnaryOperator headingRadians, double dtSeconds,
+                                           SwerveSetpointGenerator limits) {
+        return compute(kinematics, trajectory, 0.0, headingRadians, dtSeconds, limits);
+    }
+
+    /**
+     * Precomputes the module states of a deserialized trajectory. The table is sampled with the same clock as the
+     * trajectory's start time, so it starts at that time.
+     *
+     * @param kinematics     The kinematics of the drivetrain.
+     * @param trajectory     The trajectory to follow.
+     * @param headingRadians The robot's heading on the field at each time along the trajectory, measured from the start of
+     *                       the trajectory, in radians. It must not have side effects.
+     * @param dtSeconds      The time between samples, usually the loop period, in seconds.
+     * @param limits         A generator to run the states through in order, or null to store them unlimited.
+     * @return The table.
+     */
+    public static ModuleStateTable compute(SecondOrderKinematics kinematics, TimedTrajectory trajectory,
+                                           DoubleUnaryOperator headingRadians, double dtSeconds,
+                                           SwerveSetpointGenerator limits) {
+        return compute(kinematics, trajectory.trajectory(), trajectory.startTime(), headingRadians, dtSeconds, limits);
+    }
+
+    private static ModuleStateTable compute(SecondOrderKinematics kinematics, Trajectory trajectory, double startTime,
+                                            DoubleUnaryOperator headingRadians, double dtSeconds,
+                                            SwerveSetpointGenerator limits) {
+        if (!(dtSeconds > 0)) {
+            throw new IllegalArgumentException("Sample period must be positive");
+        }
+        var modules = kinematics.getModuleTranslations();
+        int numModules = modules.length;
+        int numSamples = (int) Math.ceil(trajectory.getTotalTimeSeconds() / dtSeconds) + 1;
+        var table = new ModuleStateTable(numModules, numSamples, startTime, dtSeconds);
+
+        int numChunks = (numSamples + kChunkSize - 1) / kChunkSize;
+        IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+            // Inverse kinematics keep state, so each chunk gets its own
+            var chunkKinematics = new SecondOrderKinematics(modules);
+            var states = new ModuleStateBuffer(numModules);
+            int end = Math.min(numSamples, (chunk + 1) * kChunkSize);
+            for (int k = chunk * kChunkSize; k < end; k++) {
+                table.computeSample(k, trajectory, headingRadians, chunkKinematics, states);
+            }
+        });
+
+        table.carryHeadings();
+        if (limits != null) {
+            table.applyLimits(limits);
+        }
+        table.differentiateSpeeds();
+        return table;
+    }
+
+    /**
+     * Fills in sample k from the trajectory, marking stopped modules with a NaN angle for {@link #carryHeadings()}.
+     */
+    private void computeSample(int k, Trajectory trajectory, DoubleUnaryOperator headingRadians,
+                               SecondOrderKinematics kinematics, ModuleStateBuffer states) {
+        double t = Math.min(k * m_dt, trajectory.getTotalTimeSeconds());
+        var state = trajectory.sample(t);
+        double fieldVx = state.velocityMetersPerSecond * state.poseMeters.getRotation().getCos();
+        double fieldVy = state.velocityMetersPerSecond * state.poseMeters.getRotation().getSin();
+
+        double heading = headingRadians.applyAsDouble(t);
+        double omega = MathUtil.angleModulus(headingRadians.applyAsDouble(t + kHeadingDifferenceStep)
+                - headingRadians.applyAsDouble(t - kHeadingDifferenceStep)) / (2.0 * kHeadingDifferenceStep);
+        double cos = Math.cos(heading);
+        double sin = Math.sin(heading);
+        m_vx[k] = cos * fieldVx + sin * fieldVy;
+        m_vy[k] = -sin * fieldVx + cos * fieldVy;
+        m_omega[k] = omega;
+
+        kinematics.toSwerveModuleStates(m_vx[k], m_vy[k], m_omega[k], 0.0, 0.0, states);
+        for (int i = 0; i < m_numModules; i++) {
+            int index = k * m_numModules + i;
+            m_speeds[index] = states.speeds[i];
+            if (states.speeds[i] == 0.0) {
+                m_cos[index] = Double.NaN;
+                m_sin[index] = Double.NaN;
+                m_steerRates[index] = 0.0;
+            } else {
+                m_cos[index] = states.cos[i];
+                m_sin[index] = states.sin[i];
+                m_steerRates[index] = states.omegas[i];
+            }
+        }
+    }
+
+    /**
+     * Gives stopped modules the angle they had last, or before they first move, the angle they first move at, and reverses
+     * wheels so that no module turns by more than 90 degrees between samples.
+     */
+    private void carryHeadings() {
+        for (int i = 0; i < m_numModules; i++) {
+            int first = -1;
+            for (int k = 0; k < m_numSamples; k++) {
+                if (!Double.isNaN(m_cos[k * m_numModules + i])) {
+                    first = k;
+                    break;
+                }
+            }
+            double cos = first >= 0 ? m_cos[first * m_numModules + i] : 1.0;
+            double sin = first >= 0 ? m_sin[first * m_numModules + i] : 0.0;
+
+            for (int k = 0; k < m_numSamples; k++) {
+                int index = k * m_numModules + i;
+                if (Double.isNaN(m_cos[index])) {
+                    m_cos[index] = cos;
+                    m_sin[index] = sin;
+                    continue;
+                }
+                if (m_cos[index] * cos + m_sin[index] * sin < 0.0) {
+                    m_cos[index] = -m_cos[index];
+                    m_sin[index] = -m_sin[index];
+                    m_speeds[index] = -m_speeds[index];
+                }
+                cos = m_cos[index];
+                sin = m_sin[index];
+            }
+        }
+    }
+
+    /**
+     * Replaces the states with the setpoints a generator produces when following them in order.
+     */
+    private void applyLimits(SwerveSetpointGenerator limits) {
+        var angles = new double[m_numModules];
+        for (int i = 0; i < m_numModules; i++) {
+            angles[i] = Math.atan2(m_sin[i], m_cos[i]);
+        }
+        limits.reset(m_vx[0], m_vy[0], m_omega[0], angles);
+
+        var states = new ModuleStateBuffer(m_numModules);
+        var speeds = new ChassisSpeeds();
+        for (int k = 0; k < m_numSamples; k++) {
+            limits.generate(m_vx[k], m_vy[k], m_omega[k], m_dt, states);
+            limits.getChassisSpeeds(speeds);
+            m_vx[k] = speeds.vxMetersPerSecond;
+            m_vy[k] = speeds.vyMetersPerSecond;
+            m_omega[k] = speeds.omegaRadiansPerSecond;
+            for (int i = 0; i < m_numModules; i++) {
+                int index = k * m_numModules + i;
+                m_speeds[index] = states.speeds[i];
+                m_cos[index] = states.cos[i];
+                m_sin[index] = states.sin[i];
+                m_steerRates[index] = states.omegas[i];
+            }
+        }
+    }
+
+    private void differentiateSpeeds() {
+        if (m_numSamples < 2) {
+            return;
+        }
+        for (int k = 0; k < m_numSamples; k++) {
+            int before = Math.max(k - 1, 0);
+            int after = Math.min(k + 1, m_numSamples - 1);
+            double span = (after - before) * m_dt;
+            for (int i = 0; i < m_numModules; i++) {
+                m_accelerations[k * m_numModules + i] =
+                        (m_speeds[after * m_numModules + i] - m_speeds[before * m_numModules + i]) / span;
+            }
+        }
+    }
+
+    /**
+     * Interpolates the module states at a time. Times outside the table are clamped to its ends.
+     *
+     * @param timestampSeconds The time to sample, on the same clock as {@link #getStartTime()}, in seconds.
+     * @param out              The buffer to write the module states into. Speeds may be negative where a wheel is reversed.
+     * @return {@code out}.
+     */
+    public ModuleStateBuffer sample(double timestampSeconds, ModuleStateBuffer out) {
+        if (out.size() != m_numModules) {
+            throw new IllegalArgumentException("Number of module states is not consistent with the table");
+        }
+        double position = MathUtil.clamp((timestampSeconds - m_startTime) / m_dt, 0.0, m_numSamples - 1);
+        int k = Math.min((int) position, m_numSamples - 2);
+        if (k < 0) {
+            for (int i = 0; i < m_numModules; i++) {
+                out.set(i, m_speeds[i], m_cos[i], m_sin[i], m_steerRates[i]);
+            }
+            return out;
+        }
+        double fraction = position - k;
+        for (int i = 0; i < m_numModules; i++) {
+            int a = k * m_numModules + i;
+            int b = a + m_numModules;
+            // Headings never differ by more than 90 degrees between samples, so normalizing their blend is well defined
+            double cos = m_cos[a] + fraction * (m_cos[b] - m_cos[a]);
+            double sin = m_sin[a] + fraction * (m_sin[b] - m_sin[a]);
+            double norm = Math.hypot(cos, sin);
+            out.set(i,
+                    m_speeds[a] + fraction * (m_speeds[b] - m_speeds[a]),
+                    cos / norm,
+                    sin / norm,
+                    m_steerRates[a] + fraction * (m_steerRates[b] - m_steerRates[a]));
+        }
+        return out;
+    }
+
+    /**
+     * Interpolates the robot-relative chassis speeds at a time. See {@link #sample(double, ModuleStateBuffer)}.
+     *
+     * @param timestampSeconds The time to sample, in seconds.
+     * @param out              The chassis speeds to write into.
+     * @return {@code out}.
+     */
+    public ChassisSpeeds sampleChassisSpeeds(double timestampSeconds, ChassisSpeeds out) {
+        double position = MathUtil.clamp((timestampSeconds - m_startTime) / m_dt, 0.0, m_numSamples - 1);
+        int k = Math.max(Math.min((int) position, m_numSamples - 2), 0);
+        int next = Math.min(k + 1, m_numSamples - 1);
+        double fraction = position - k;
+        out.vxMetersPerSecond = m_vx[k] + fraction * (m_vx[next] - m_vx[k]);
+        out.vyMetersPerSecond = m_vy[k] + fraction * (m_vy[next] - m_vy[k]);
+        out.omegaRadiansPerSecond = m_omega[k] + fraction * (m_omega[next] - m_omega[k]);
+        return out;
+    }
+
+    /**
+     * Interpolates a module's drive acceleration at a time, such as for a drive feedforward.
+     *
+     * @param timestampSeconds The time to sample, in seconds.
+     * @param module           The index of the module.
+     * @return The rate of change of the module's speed, in meters per second squared.
+     */
+    public double sampleAcceleration(double timestampSeconds, int module) {
+        double position = MathUtil.clamp((timestampSeconds - m_startTime) / m_dt, 0.0, m_numSamples - 1);
+        int k = Math.max(Math.min((int) position, m_numSamples - 2), 0);
+        int next = Math.min(k + 1, m_numSamples - 1);
+        double fraction = position - k;
+        double a = m_accelerations[k * m_numModules + module];
+        return a + fraction * (m_accelerations[next * m_numModules + module] - a);
+    }
+
+    /**
+     * @return The time of the first sample, in seconds.
+     */
+    public double getStartTime() {
+        return m_startTime;
+    }
+
+    /**
+     * @return The time of the last sample, in seconds.
+     */
+    public double getEndTime() {
+        return m_startTime + (m_numSamples - 1) * m_dt;
+    }
+
+    /**
+     * @return The time between samples, in seconds.
+     */
+    public double getPeriod() {
+        return m_dt;
+    }
+
+    /**
+     * @return The number of samples.
+     */
+    public int getSampleCount() {
+        return m_numSamples;
+    }
+
+    /**
+     * @return The number of modules.
+     */
+    public int getNumModules() {
+        return m_numModules;
+    }
+}
@@ -0,0 +1,268 @@
+package org.codeorange.utility.swerve;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.CANBus;
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.StatusSignal;
+import com.ctre.phoenix6.hardware.Pigeon2;
+import com.ctre.phoenix6.hardware.TalonFX;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Threads;
+import edu.wpi.first.wpilibj.Timer;
+import org.codeorange.utility.estimation.PoseSnapshot;
+import org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs swerve odometry on its own real-time thread, faster than the main robot loop.
+ *
+ * <p>Each cycle waits for fresh module drive and steer positions and Pigeon 2 yaw with
+ * {@link BaseStatusSignal#waitForAll}, compensates them for latency with their velocities, and passes them to the
+ * estimator's {@link SwerveDrivePoseEstimator#updateWithTime updateWithTime} stamped with the current FPGA time, which is the
+ * time latency compensation extrapolated them to. On
+ * a CAN FD bus the devices publish their signals in sync, so the wait wakes up once per frame; on the roboRIO's bus the thread
+ * sleeps for a period and refreshes the signals instead.
+ *
+ * <p>Once the thread is started it owns the estimator, which is not thread-safe. Other threads must read the pose with
+ * {@link #getSnapshot}, add vision measurements through a {@link org.codeorange.utility.estimation.VisionMeasurementQueue}
+ * set on the estimator beforehand, and reset the pose with {@link #resetPosition}, which the thread applies on its next cycle.
+ *
+ * <p>In simulation, update the devices' sim states from the simulation loop as usual and the thread reads them like real
+ * hardware. Tests that need to step deterministically can leave the thread stopped and call {@link #runOnce()} instead.
+ */
+public class OdometryThread {
+    public static final double kDefaultFrequency = 250.0;
+
+    private static final int kPriority = 1;
+
+    private final SwerveDrivePoseEstimator m_estimator;
+    private final double m_frequency;
+    private final double m_driveRotationsToMeters;
+    private final boolean m_timeSynced;
+
+    private final StatusSignal<Double>[] m_drivePositions;
+    private final StatusSignal<Double>[] m_driveVelocities;
+    private final StatusSignal<Double>[] m_steerPositions;
+    private final StatusSignal<Double>[] m_steerVelocities;
+    private final StatusSignal<Double> m_yaw;
+    private final StatusSignal<Double> m_yawRate;
+    private final BaseStatusSignal[] m_signals;
+
+    private final double[] m_distances;
+    private final double[] m_angles;
+    private final AtomicReference<Pose2d> m_pendingReset = new AtomicReference<>();
+
+    private Thread m_thread;
+    private volatile boolean m_running = false;
+    private volatile long m_successfulCycles = 0;
+    private volatile long m_failedCycles = 0;
+    private StatusCode m_lastError = StatusCode.OK;
+
+    /**
+     * Constructs an OdometryThread that runs at {@link #kDefaultFrequency}.
+     *
+     * @param estimator              The estimator to update.
+     * @param pigeon                 The gyro.
+     * @param driveMotors            The drive motor of each module, in the same order as the estimator's kinematics.
+     * @param steerMotors            The steer motor of each module, whose position must be in rotations of the module.
+     * @param driveRotationsToMeters The distance a module rolls per rotation of its drive motor's position signal, in meters.
+     */
+    public OdometryThread(SwerveDrivePoseEstimator estimator, Pigeon2 pigeon, TalonFX[] driveMotors, TalonFX[] steerMotors,
+                          double driveRotationsToMeters) {
+        this(estimator, pigeon, driveMotors, steerMotors, driveRotationsToMeters, kDefaultFrequency);
+    }
+
+    /**
+     * Constructs an OdometryThread, and sets the update frequency of the signals it reads.
+     *
+     * @param estimator              The estimator to update.
+     * @param pigeon                 The gyro.
+     * @param driveMotors            The drive motor of each module, in the same order as the estimator's kinematics.
+     * @param steerMotors            The steer motor of each module, whose position must be in rotations of the module.
+     * @param driveRotationsToMeters The distance a module rolls per rotation of its drive motor's position signal, in meters.
+     * @param frequencyHz            The rate to run odometry at, in hertz.
+     */
+    @SuppressWarnings("unchecked")
+    public OdometryThread(SwerveDrivePoseEstimator estimator, Pigeon2 pigeon, TalonFX[] driveMotors, TalonFX[] steerMotors,
+                          double driveRotationsToMeters, double frequencyHz) {
+        if (driveMotors.length != steerMotors.length || driveMotors.length == 0) {
+            throw new IllegalArgumentException("Every module requires one drive motor and one steer motor");
+        }
+        if (!(frequencyHz > 0)) {
+            throw new IllegalArgumentException("Odometry frequency must be positive");
+        }
+        m_estimator = estimator;
+        m_frequency = frequencyHz;
+        m_driveRotationsToMeters = driveRotationsToMeters;
+
+        int numModules = driveMotors.length;
+        m_drivePositions = new StatusSignal[numModules];
+        m_driveVelocities = new StatusSignal[numModules];
+        m_steerPositions = new StatusSignal[numModules];
+        m_steerVelocities = new StatusSignal[numModules];
+        m_distances = new double[numModules];
+        m_angles = new double[numModules];
+        m_signals = new BaseStatusSignal[numModules * 4 + 2];
+        for (int i = 0; i < numModules; i++) {
+            m_drivePositions[i] = driveMotors[i].getPosition();
+            m_driveVelocities[i] = driveMotors[i].getVelocity();
+            m_steerPositions[i] = steerMotors[i].getPosition();
+            m_steerVelocities[i] = steerMotors[i].getVelocity();
+            m_signals[i * 4] = m_drivePositions[i];
+            m_signals[i * 4 + 1] = m_driveVelocities[i];
+            m_signals[i * 4 + 2] = m_steerPositions[i];
+            m_signals[i * 4 + 3] = m_steerVelocities[i];
+        }
+        m_yaw = pigeon.getYaw();
+        m_yawRate = pigeon.getAngularVelocityZWorld();
+        m_signals[numModules * 4] = m_yaw;
+        m_signals[numModules * 4 + 1] = m_yawRate;
+
+        // Synchronized waits only work when every device is on the same CAN FD bus
+        boolean timeSynced = CANBus.isNetworkFD(pigeon.getNetwork());
+        for (int i = 0; i < numModules; i++) {
+            timeSynced &= driveMotors[i].getNetwork().equals(pigeon.getNetwork())
+                    && steerMotors[i].getNetwork().equals(pigeon.getNetwork());
+        }
+        m_timeSynced = timeSynced;
+
+        BaseStatusSignal.setUpdateFrequencyForAll(frequencyHz, m_signals);
+    }
+
+    /**
+     * Starts the odometry thread. Does nothing if it is already running.
+     */
+    public synchronized void start() {
+        if (m_running) {
+            return;
+        }
+        m_running = true;
+        m_thread = new Thread(this::run, "Odometry");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Stops the odometry thread and waits for it to finish its current cycle. The estimator can then be used from the calling
+     * thread again.
+     */
+    public synchronized void stop() {
+        if (!m_running) {
+            return;
+        }
+        m_running = false;
+        m_thread.interrupt();
+        try {
+            m_thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_thread = null;
+    }
+
+    /**
+     * @return Whether the odometry thread is running.
+     */
+    public boolean isRunning() {
+        return m_running;
+    }
+
+    /**
+     * Waits for one set of samples and updates the estimator with them. The odometry thread calls this in a loop; call it
+     * directly only while the thread is stopped.
+     *
+     * @return Whether the samples arrived and the estimator was updated.
+     */
+    public boolean runOnce() {
+        StatusCode status;
+        if (m_timeSynced) {
+            status = BaseStatusSignal.waitForAll(2.0 / m_frequency, m_signals);
+        } else {
+            try {
+                Thread.sleep((long) (1000.0 / m_frequency));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            status = BaseStatusSignal.refreshAll(m_signals);
+        }
+
+        if (!status.isOK()) {
+            m_failedCycles++;
+            if (status != m_lastError) {
+                DriverStation.reportError("Odometry failed to read signals: " + status, false);
+                m_lastError = status;
+            }
+            return false;
+        }
+        m_lastError = StatusCode.OK;
+
+        // Latency compensation extrapolates every value to now, so they are stamped with now rather than when they were sampled
+        for (int i = 0; i < m_distances.length; i++) {
+            m_distances[i] = m_driveRotationsToMeters
+                    * BaseStatusSignal.getLatencyCompensatedValue(m_drivePositions[i], m_driveVelocities[i]);
+            m_angles[i] = 2.0 * Math.PI
+                    * BaseStatusSignal.getLatencyCompensatedValue(m_steerPositions[i], m_steerVelocities[i]);
+        }
+        double gyroYaw = Math.toRadians(BaseStatusSignal.getLatencyCompensatedValue(m_yaw, m_yawRate));
+        double timestampSeconds = Timer.getFPGATimestamp();
+
+        var reset = m_pendingReset.getAndSet(null);
+        if (reset != null) {
+            var modulePositions = new SwerveModulePosition[m_distances.length];
+            for (int i = 0; i < m_distances.length; i++) {
+                modulePositions[i] = new SwerveModulePosition(m_distances[i], new Rotation2d(m_angles[i]));
+            }
+            m_estimator.resetPosition(new Rotation2d(gyroYaw), modulePositions, reset);
+        }
+        // Allocation-free in planar mode
+        m_estimator.updateWithTime(timestampSeconds, m_distances, m_angles, gyroYaw);
+        m_successfulCycles++;
+        return true;
+    }
+
+    private void run() {
+        Threads.setCurrentThreadPriority(true, kPriority);
+        while (m_running) {
+            runOnce();
+        }
+    }
+
+    /**
+     * Resets the estimator's pose on the odometry thread's next cycle. Safe to call from any thread; if it is called again
+     * before the next cycle, only the latest pose is applied.
+     *
+     * @param poseMeters The position on the field that the robot is at.
+     */
+    public void resetPosition(Pose2d poseMeters) {
+        m_pendingReset.set(poseMeters);
+    }
+
+    /**
+     * Reads the latest estimate. Safe to call from any thread. See {@link SwerveDrivePoseEstimator#getSnapshot}.
+     *
+     * @param out The snapshot to write into.
+     * @return {@code out}.
+     */
+    public PoseSnapshot getSnapshot(PoseSnapshot out) {
+        return m_estimator.getSnapshot(out);
+    }
+
+    /**
+     * @return The number of cycles that updated the estimator.
+     */
+    public long getSuccessfulCycles() {
+        return m_successfulCycles;
+    }
+
+    /**
+     * @return The number of cycles whose signals did not all arrive in time.
+     */
+    public long getFailedCycles() {
+        return m_failedCycles;
+    }
+}
@@ -4,6 +4,7 @@ import edu.wpi.first.math.MathSharedStore;
 import edu.wpi.first.math.MathUsageId;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
 import edu.wpi.first.units.Angle;
@@ -13,6 +14,8 @@ import edu.wpi.first.units.Velocity;
 import org.ejml.simple.SimpleMatrix;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static edu.wpi.first.units.Units.MetersPerSecond;
 import static edu.wpi.first.units.Units.RadiansPerSecond;
@@ -46,13 +49,35 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
         }
     }
 
-    private final SimpleMatrix m_inverseKinematics;
+    // Modules slower than this are treated as sitting on the center of rotation and keep their heading
+    static final double kMinModuleSpeed = 1e-9;
+
+    public static final int kCenterOfRotationCacheSize = 8;
+
+    // The inverse kinematics matrices about m_prevCoR, which are entries of m_inverseCache
+    private SimpleMatrix m_inverseKinematics;
+    private SimpleMatrix m_2ndOInvKinematics;
     private final SimpleMatrix m_forwardKinematics;
-    private final SimpleMatrix m_2ndOInvKinematics;
+    // The inverse kinematics matrices about recently used centers of rotation, least recently used first
+    private final LinkedHashMap<Translation2d, InverseMatrices> m_inverseCache =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Translation2d, InverseMatrices> eldest) {
+                    return size() > kCenterOfRotationCacheSize;
+                }
+            };
+    // The forward kinematics matrix flattened row-major, so primitive forward kinematics can skip SimpleMatrix
+    private final double[] m_forwardCoefficients;
+    // Straight-line kinematics used instead of the generic path when there are exactly four modules, otherwise null
+    private final FourModuleKinematics m_fourModules;
+    private final ModuleStateBuffer m_objectStates;
 
     private final int m_numModules;
     private final Translation2d[] m_modules;
-    private Rotation2d[] m_moduleHeadings;
+    // The last module headings as primitives, and as rotations built lazily from them for the object path
+    private final double[] m_headingCos;
+    private final double[] m_headingSin;
+    private final Rotation2d[] m_moduleHeadings;
     private double[] m_omega;
     private Translation2d m_prevCoR = new Translation2d();
 
@@ -67,29 +92,71 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
      *     the robot.
      */
     public SecondOrderKinematics(Translation2d... moduleTranslationsMeters) {
+        this(true, moduleTranslationsMeters);
+    }
+
+    /**
+     * Constructs a second-order swerve drive kinematics object, optionally without the four-module specialization, such as to
+     * benchmark the generic path against it. See {@link #SecondOrderKinematics(Translation2d...)}.
+     *
+     * @param specialize Whether to use straight-line kinematics when there are exactly four modules.
+     * @param moduleTranslationsMeters The locations of the modules relative to the physical center of
+     *     the robot.
+     */
+    public SecondOrderKinematics(boolean specialize, Translation2d... moduleTranslationsMeters) {
         super(moduleTranslationsMeters);
         if (moduleTranslationsMeters.length < 2) {
             throw new IllegalArgumentException("A swerve drive requires at least two modules");
         }
         m_numModules = moduleTranslationsMeters.length;
         m_modules = Arrays.copyOf(moduleTranslationsMeters, m_numModules);
+        m_headingCos = new double[m_numModules];
+        m_headingSin = new double[m_numModules];
         m_moduleHeadings = new Rotation2d[m_numModules];
         m_omega = new double[m_numModules];
+        Arrays.fill(m_headingCos, 1.0);
         Arrays.fill(m_moduleHeadings, new Rotation2d());
-        m_inverseKinematics = new SimpleMatrix(m_numModules * 2, 3);
-        m_2ndOInvKinematics = new SimpleMatrix(m_numModules * 2, 4);
-
-        for (int i = 0; i < m_numModules; i++) {
-            m_inverseKinematics.setRow(i * 2 + 0, 0, /* Start Data */ 1, 0, -m_modules[i].getY());
-            m_inverseKinematics.setRow(i * 2 + 1, 0, /* Start Data */ 0, 1, +m_modules[i].getX());
-            m_2ndOInvKinematics.setRow(i * 2 + 0, 0, /* Start Data */ 1, 0, -m_modules[i].getX(), -m_modules[i].getY());
-            m_2ndOInvKinematics.setRow(i * 2 + 1, 0, /* Start Data */ 0, 1, -m_modules[i].getY(), +m_modules[i].getX());
-        }
+        var matrices = buildInverseMatrices(m_prevCoR);
+        m_inverseCache.put(m_prevCoR, matrices);
+        m_inverseKinematics = matrices.firstOrder();
+        m_2ndOInvKinematics = matrices.secondOrder();
         m_forwardKinematics = m_inverseKinematics.pseudoInverse();
+        m_forwardCoefficients = new double[3 * m_numModules * 2];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < m_numModules * 2; col++) {
+                m_forwardCoefficients[row * m_numModules * 2 + col] = m_forwardKinematics.get(row, col);
+            }
+        }
+        m_fourModules = specialize && m_numModules == 4 ? new FourModuleKinematics(m_modules, m_forwardCoefficients) : null;
+        m_objectStates = new ModuleStateBuffer(m_numModules);
 
         MathSharedStore.reportUsage(MathUsageId.kKinematics_SwerveDrive, 1);
     }
 
+    /**
+     * Returns the locations of the modules relative to the physical center of the robot, in the order
+     * they were passed into the constructor.
+     *
+     * @return A copy of the module locations.
+     */
+    public Translation2d[] getModuleTranslations() {
+        return Arrays.copyOf(m_modules, m_numModules);
+    }
+
+    /**
+     * @return Whether this object uses the straight-line four-module kinematics rather than the generic path.
+     */
+    public boolean isSpecialized() {
+        return m_fourModules != null;
+    }
+
+    /**
+     * @return Whether the inverse kinematics matrices about a center of rotation are cached. Checking does not count as a use.
+     */
+    boolean isCenterOfRotationCached(Translation2d centerOfRotationMeters) {
+        return m_inverseCache.containsKey(centerOfRotationMeters);
+    }
+
     /**
      * Reset the internal swerve module headings.
      *
@@ -102,7 +169,63 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
                     "Number of headings is not consistent with number of module locations provided in "
                             + "constructor");
         }
-        m_moduleHeadings = Arrays.copyOf(moduleHeadings, m_numModules);
+        for (int i = 0; i < m_numModules; i++) {
+            setHeading(i, moduleHeadings[i]);
+        }
+    }
+
+    private void setHeading(int module, Rotation2d heading) {
+        m_headingCos[module] = heading.getCos();
+        m_headingSin[module] = heading.getSin();
+        m_moduleHeadings[module] = heading;
+    }
+
+    private Rotation2d getHeading(int module) {
+        var heading = m_moduleHeadings[module];
+        if (heading.getCos() != m_headingCos[module] || heading.getSin() != m_headingSin[module]) {
+            m_moduleHeadings[module] = new Rotation2d(m_headingCos[module], m_headingSin[module]);
+        }
+        return m_moduleHeadings[module];
+    }
+
+    /**
+     * Builds the first- and second-order inverse kinematics matrices about a center of rotation.
+     */
+    private InverseMatrices buildInverseMatrices(Translation2d centerOfRotationMeters) {
+        var firstOrder = new SimpleMatrix(m_numModules * 2, 3);
+        var secondOrder = new SimpleMatrix(m_numModules * 2, 4);
+        for (int i = 0; i < m_numModules; i++) {
+            firstOrder.setRow(
+                    i * 2 + 0,
+                    0, /* Start Data */
+                    1,
+                    0,
+                    -m_modules[i].getY() + centerOfRotationMeters.getY());
+            firstOrder.setRow(
+                    i * 2 + 1,
+                    0, /* Start Data */
+                    0,
+                    1,
+                    +m_modules[i].getX() - centerOfRotationMeters.getX());
+            secondOrder.setRow(
+                    i * 2 + 0,
+                    0, /* Start Data */
+                    1,
+                    0,
+                    -m_modules[i].getX() + centerOfRotationMeters.getX(),
+                    -m_modules[i].getY() + centerOfRotationMeters.getY());
+            secondOrder.setRow(
+                    i * 2 + 1,
+                    0, /* Start Data */
+                    0,
+                    1,
+                    -m_modules[i].getY() + centerOfRotationMeters.getY(),
+                    +m_modules[i].getX() - centerOfRotationMeters.getX());
+        }
+        return new InverseMatrices(firstOrder, secondOrder);
+    }
+
+    private record InverseMatrices(SimpleMatrix firstOrder, SimpleMatrix secondOrder) {
     }
 
     /**
@@ -134,41 +257,29 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
                 && chassisSpeeds.vyMetersPerSecond == 0.0
                 && chassisSpeeds.omegaRadiansPerSecond == 0.0) {
             for (int i = 0; i < m_numModules; i++) {
-                moduleStates[i] = new SecondOrderModuleState(0.0, m_moduleHeadings[i], m_omega[i]);
+                moduleStates[i] = new SecondOrderModuleState(0.0, getHeading(i), m_omega[i]);
             }
 
             return moduleStates;
         }
 
-        if (!centerOfRotationMeters.equals(m_prevCoR)) {
+        if (m_fourModules != null) {
+            toSwerveModuleStates(chassisSpeeds, centerOfRotationMeters, m_objectStates);
             for (int i = 0; i < m_numModules; i++) {
-                m_inverseKinematics.setRow(
-                        i * 2 + 0,
-                        0, /* Start Data */
-                        1,
-                        0,
-                        -m_modules[i].getY() + centerOfRotationMeters.getY());
-                m_inverseKinematics.setRow(
-                        i * 2 + 1,
-                        0, /* Start Data */
-                        0,
-                        1,
-                        +m_modules[i].getX() - centerOfRotationMeters.getX());
-                m_2ndOInvKinematics.setRow(
-                        i * 2 + 0,
-                        0, /* Start Data */
-                        1,
-                        0,
-                        -m_modules[i].getX() + centerOfRotationMeters.getX(),
-                        -m_modules[i].getY() + centerOfRotationMeters.getY());
-                m_2ndOInvKinematics.setRow(
-                        i * 2 + 1,
-                        0, /* Start Data */
-                        0,
-                        1,
-                        -m_modules[i].getY() + centerOfRotationMeters.getY(),
-                        +m_modules[i].getX() - centerOfRotationMeters.getX());
+                moduleStates[i] = new SecondOrderModuleState(
+                        m_objectStates.speeds[i], getHeading(i), m_objectStates.omegas[i]);
+            }
+            return moduleStates;
+        }
+
+        if (!centerOfRotationMeters.equals(m_prevCoR)) {
+            var matrices = m_inverseCache.get(centerOfRotationMeters);
+            if (matrices == null) {
+                matrices = buildInverseMatrices(centerOfRotationMeters);
+                m_inverseCache.put(centerOfRotationMeters, matrices);
             }
+            m_inverseKinematics = matrices.firstOrder();
+            m_2ndOInvKinematics = matrices.secondOrder();
             m_prevCoR = centerOfRotationMeters;
         }
 
@@ -212,7 +323,7 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
             var omega = (thetaMatrix.mult(accelMatrix).get(1,0) / speed) - chassisSpeeds.omegaRadiansPerSecond;
 
             moduleStates[i] = new SecondOrderModuleState(speed, angle, omega);
-            m_moduleHeadings[i] = angle;
+            setHeading(i, angle);
             m_omega[i] = omega;
         }
 
@@ -230,6 +341,116 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
         return toSwerveModuleStates(chassisSpeeds, new Translation2d());
     }
 
+    /**
+     * Performs inverse kinematics into a caller-owned buffer, without allocating. The results match
+     * {@link #toSwerveModuleStates(ChassisSpeeds, Translation2d)}, but each module's state is expanded by hand instead of
+     * multiplied out with matrices, so this is the overload to call from the drive loop.
+     *
+     * <p>A module that sits on the center of rotation has no velocity to take an angle from, so it keeps its previous angle
+     * and does not turn.
+     *
+     * @param vxMetersPerSecond The desired velocity along the robot's x axis, in meters per second.
+     * @param vyMetersPerSecond The desired velocity along the robot's y axis, in meters per second.
+     * @param omegaRadiansPerSecond The desired angular velocity of the robot, in radians per second.
+     * @param centerOfRotationX The x coordinate of the center of rotation relative to the physical center of the robot, in
+     *     meters.
+     * @param centerOfRotationY The y coordinate of the center of rotation, in meters.
+     * @param out The buffer to write the module states into, sized for the number of modules.
+     * @return {@code out}.
+     */
+    public ModuleStateBuffer toSwerveModuleStates(
+            double vxMetersPerSecond,
+            double vyMetersPerSecond,
+            double omegaRadiansPerSecond,
+            double centerOfRotationX,
+            double centerOfRotationY,
+            ModuleStateBuffer out) {
+        if (out.size() != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of module states is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+
+        if (vxMetersPerSecond == 0.0 && vyMetersPerSecond == 0.0 && omegaRadiansPerSecond == 0.0) {
+            for (int i = 0; i < m_numModules; i++) {
+                out.set(i, 0.0, m_headingCos[i], m_headingSin[i], m_omega[i]);
+            }
+            return out;
+        }
+
+        if (m_fourModules != null) {
+            m_fourModules.toModuleStates(vxMetersPerSecond, vyMetersPerSecond, omegaRadiansPerSecond,
+                    centerOfRotationX, centerOfRotationY, m_headingCos, m_headingSin, m_omega, out);
+            return out;
+        }
+
+        double omegaSquared = omegaRadiansPerSecond * omegaRadiansPerSecond;
+        for (int i = 0; i < m_numModules; i++) {
+            double rx = m_modules[i].getX() - centerOfRotationX;
+            double ry = m_modules[i].getY() - centerOfRotationY;
+            // First order: v + omega x r. Second order: the centripetal acceleration -omega^2 r.
+            double vx = vxMetersPerSecond - omegaRadiansPerSecond * ry;
+            double vy = vyMetersPerSecond + omegaRadiansPerSecond * rx;
+            double ax = -omegaSquared * rx;
+            double ay = -omegaSquared * ry;
+
+            double speed = Math.hypot(vx, vy);
+            if (speed < kMinModuleSpeed) {
+                out.set(i, 0.0, m_headingCos[i], m_headingSin[i], 0.0);
+                m_omega[i] = 0.0;
+                continue;
+            }
+            double cos = vx / speed;
+            double sin = vy / speed;
+            // The acceleration across the module's heading turns it
+            double omega = (-sin * ax + cos * ay) / speed - omegaRadiansPerSecond;
+
+            out.set(i, speed, cos, sin, omega);
+            m_headingCos[i] = cos;
+            m_headingSin[i] = sin;
+            m_omega[i] = omega;
+        }
+        return out;
+    }
+
+    /**
+     * Performs inverse kinematics into a caller-owned buffer, without allocating. See
+     * {@link #toSwerveModuleStates(double, double, double, double, double, ModuleStateBuffer)}.
+     *
+     * @param chassisSpeeds The desired chassis speed.
+     * @param centerOfRotationMeters The center of rotation.
+     * @param out The buffer to write the module states into.
+     * @return {@code out}.
+     */
+    public ModuleStateBuffer toSwerveModuleStates(
+            ChassisSpeeds chassisSpeeds, Translation2d centerOfRotationMeters, ModuleStateBuffer out) {
+        return toSwerveModuleStates(
+                chassisSpeeds.vxMetersPerSecond,
+                chassisSpeeds.vyMetersPerSecond,
+                chassisSpeeds.omegaRadiansPerSecond,
+                centerOfRotationMeters.getX(),
+                centerOfRotationMeters.getY(),
+                out);
+    }
+
+    /**
+     * Performs inverse kinematics about the physical center of the robot into a caller-owned buffer, without allocating. See
+     * {@link #toSwerveModuleStates(double, double, double, double, double, ModuleStateBuffer)}.
+     *
+     * @param chassisSpeeds The desired chassis speed.
+     * @param out The buffer to write the module states into.
+     * @return {@code out}.
+     */
+    public ModuleStateBuffer toSwerveModuleStates(ChassisSpeeds chassisSpeeds, ModuleStateBuffer out) {
+        return toSwerveModuleStates(
+                chassisSpeeds.vxMetersPerSecond,
+                chassisSpeeds.vyMetersPerSecond,
+                chassisSpeeds.omegaRadiansPerSecond,
+                0.0,
+                0.0,
+                out);
+    }
+
     public SwerveDriveWheelStates toWheelSpeeds(ChassisSpeeds chassisSpeeds) {
         return new SwerveDriveWheelStates(toSwerveModuleStates(chassisSpeeds));
     }
@@ -250,6 +471,19 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
                     "Number of modules is not consistent with number of module locations provided in "
                             + "constructor");
         }
+        if (m_fourModules != null) {
+            var twist = m_fourModules.toTwist2d(
+                    moduleStates[0].speedMetersPerSecond * moduleStates[0].angle.getCos(),
+                    moduleStates[0].speedMetersPerSecond * moduleStates[0].angle.getSin(),
+                    moduleStates[1].speedMetersPerSecond * moduleStates[1].angle.getCos(),
+                    moduleStates[1].speedMetersPerSecond * moduleStates[1].angle.getSin(),
+                    moduleStates[2].speedMetersPerSecond * moduleStates[2].angle.getCos(),
+                    moduleStates[2].speedMetersPerSecond * moduleStates[2].angle.getSin(),
+                    moduleStates[3].speedMetersPerSecond * moduleStates[3].angle.getCos(),
+                    moduleStates[3].speedMetersPerSecond * moduleStates[3].angle.getSin(),
+                    new Twist2d());
+            return new ChassisSpeeds(twist.dx, twist.dy, twist.dtheta);
+        }
         var moduleStatesMatrix = new SimpleMatrix(m_numModules * 2, 1);
 
         for (int i = 0; i < m_numModules; i++) {
@@ -269,6 +503,77 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
         return toChassisSpeeds(wheelStates.states);
     }
 
+    /**
+     * Performs forward kinematics on primitive module deltas to return the resulting twist, without allocating.
+     *
+     * @param distanceDeltas The change in distance each module has rolled, in meters, in the same order as passed into the
+     *     constructor of this class.
+     * @param angles The angle of each module during the change, in radians.
+     * @param out The twist to write the result into.
+     * @return {@code out}.
+     */
+    public Twist2d toTwist2d(double[] distanceDeltas, double[] angles, Twist2d out) {
+        if (distanceDeltas.length != m_numModules || angles.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        if (m_fourModules != null) {
+            return m_fourModules.toTwist2d(distanceDeltas, angles, out);
+        }
+        int yRow = m_numModules * 2;
+        int thetaRow = m_numModules * 4;
+        double dx = 0.0, dy = 0.0, dtheta = 0.0;
+        for (int i = 0; i < m_numModules; i++) {
+            double moduleDx = distanceDeltas[i] * Math.cos(angles[i]);
+            double moduleDy = distanceDeltas[i] * Math.sin(angles[i]);
+            int col = i * 2;
+            dx += m_forwardCoefficients[col] * moduleDx + m_forwardCoefficients[col + 1] * moduleDy;
+            dy += m_forwardCoefficients[yRow + col] * moduleDx + m_forwardCoefficients[yRow + col + 1] * moduleDy;
+            dtheta += m_forwardCoefficients[thetaRow + col] * moduleDx + m_forwardCoefficients[thetaRow + col + 1] * moduleDy;
+        }
+        out.dx = dx;
+        out.dy = dy;
+        out.dtheta = dtheta;
+        return out;
+    }
+
+    /**
+     * Performs forward kinematics on the displacement of each module in the robot's frame to return the resulting twist,
+     * without allocating. Use this when the displacements are integrated along each module's path rather than taken along its
+     * current angle.
+     *
+     * @param moduleDx The displacement of each module along the robot's x axis, in meters, in the same order as passed into
+     *     the constructor of this class.
+     * @param moduleDy The displacement of each module along the robot's y axis, in meters.
+     * @param out The twist to write the result into.
+     * @return {@code out}.
+     */
+    public Twist2d toTwist2dFromDisplacements(double[] moduleDx, double[] moduleDy, Twist2d out) {
+        if (moduleDx.length != m_numModules || moduleDy.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        if (m_fourModules != null) {
+            return m_fourModules.toTwist2dFromDisplacements(moduleDx, moduleDy, out);
+        }
+        int yRow = m_numModules * 2;
+        int thetaRow = m_numModules * 4;
+        double dx = 0.0, dy = 0.0, dtheta = 0.0;
+        for (int i = 0; i < m_numModules; i++) {
+            int col = i * 2;
+            dx += m_forwardCoefficients[col] * moduleDx[i] + m_forwardCoefficients[col + 1] * moduleDy[i];
+            dy += m_forwardCoefficients[yRow + col] * moduleDx[i] + m_forwardCoefficients[yRow + col + 1] * moduleDy[i];
+            dtheta += m_forwardCoefficients[thetaRow + col] * moduleDx[i]
+                    + m_forwardCoefficients[thetaRow + col + 1] * moduleDy[i];
+        }
+        out.dx = dx;
+        out.dy = dy;
+        out.dtheta = dtheta;
+        return out;
+    }
+
     /**
      * Renormalizes the wheel speeds if any individual speed is above the specified maximum.
      *
@@ -312,6 +617,166 @@ public class SecondOrderKinematics extends SwerveDriveKinematics {
         desaturateWheelSpeeds(moduleStates, attainableMaxSpeed.in(MetersPerSecond));
     }
 
+    /**
+     * Renormalizes the module states so that they are feasible to command after the previous ones, scaling the speeds and the
+     * steer rates by the same factor.
+     *
+     * <p>Scaling the chassis speeds by a factor scales every module's speed and, for second-order states, its steer rate by
+     * that same factor, so scaling both keeps the states consistent with one chassis motion and the steer feedforward matched
+     * to the speeds. The factor is the one closest to 1 for which no module is faster than the maximum speed and no module's
+     * speed changes by more than the maximum drive acceleration times the step from its previous command, measured along its
+     * new angle. The factor may exceed 1 when the modules would otherwise brake harder than allowed. If no factor satisfies
+     * every module's acceleration limit, the one that exceeds them least is used. The factor is never negative and never
+     * exceeds what the maximum speed allows.
+     *
+     * <p>No factor can slow a module that is commanded to stop, and the factor that exceeds the limits least may still exceed
+     * some of them. So after scaling, any module whose speed is still further than the acceleration limit allows from its
+     * previous speed along its new angle is clamped to the limit, on its own. In particular, a stop command brakes every
+     * module at the maximum drive acceleration rather than all at once. Clamped modules no longer share one chassis motion,
+     * and their steer rates are not changed.
+     *
+     * @param moduleStates Reference to array of module states. The array will be mutated with the
+     *     normalized speeds and steer rates, and clamped speeds!
+     * @param previousStates The previously commanded module states, or null to only limit the speed.
+     * @param attainableMaxSpeedMetersPerSecond The absolute max speed that a module can reach.
+     * @param maxDriveAccelerationMetersPerSecondSq The fastest a module's speed can change, in meters per second squared.
+     * @param dtSeconds The time since the previous command, in seconds.
+     * @return The factor the speeds and steer rates were scaled by, before any module was clamped.
+     */
+    public static double desaturateModuleStates(
+            SecondOrderModuleState[] moduleStates,
+            SecondOrderModuleState[] previousStates,
+            double attainableMaxSpeedMetersPerSecond,
+            double maxDriveAccelerationMetersPerSecondSq,
+            double dtSeconds) {
+        if (previousStates != null && previousStates.length != moduleStates.length) {
+            throw new IllegalArgumentException("Number of previous module states is not consistent with the module states");
+        }
+        double realMaxSpeed = 0;
+        for (SecondOrderModuleState moduleState : moduleStates) {
+            realMaxSpeed = Math.max(realMaxSpeed, Math.abs(moduleState.speedMetersPerSecond));
+        }
+        // Braking more gently than asked may need speeds above the desired ones, up to the maximum
+        double maxScale = realMaxSpeed > 0.0 ? attainableMaxSpeedMetersPerSecond / realMaxSpeed : 1.0;
+
+        double lower = 0.0;
+        double upper = Double.POSITIVE_INFINITY;
+        if (previousStates != null) {
+            double maxChange = maxDriveAccelerationMetersPerSecondSq * dtSeconds;
+            for (int i = 0; i < moduleStates.length; i++) {
+                var state = moduleStates[i];
+                var previous = previousStates[i];
+                double previousSpeed = previous.speedMetersPerSecond * (previous.angle.getCos() * state.angle.getCos()
+                        + previous.angle.getSin() * state.angle.getSin());
+                double speed = state.speedMetersPerSecond;
+                if (speed == 0.0) {
+                    continue;
+                }
+                double a = (previousSpeed - maxChange) / speed;
+                double b = (previousSpeed + maxChange) / speed;
+                lower = Math.max(lower, Math.min(a, b));
+                upper = Math.min(upper, Math.max(a, b));
+            }
+        }
+        double scale = feasibleScale(lower, upper, maxScale);
+
+        for (SecondOrderModuleState moduleState : moduleStates) {
+            moduleState.speedMetersPerSecond *= scale;
+            moduleState.omega *= scale;
+        }
+        if (previousStates != null) {
+            double maxChange = maxDriveAccelerationMetersPerSecondSq * dtSeconds;
+            for (int i = 0; i < moduleStates.length; i++) {
+                var state = moduleStates[i];
+                var previous = previousStates[i];
+                double previousSpeed = previous.speedMetersPerSecond * (previous.angle.getCos() * state.angle.getCos()
+                        + previous.angle.getSin() * state.angle.getSin());
+                state.speedMetersPerSecond = clampChange(state.speedMetersPerSecond, previousSpeed, maxChange);
+            }
+        }
+        return scale;
+    }
+
+    /**
+     * Renormalizes module states in a buffer, without allocating. See
+     * {@link #desaturateModuleStates(SecondOrderModuleState[], SecondOrderModuleState[], double, double, double)}.
+     *
+     * @param moduleStates The module states to normalize in place.
+     * @param previousStates The previously commanded module states, or null to only limit the speed.
+     * @param attainableMaxSpeedMetersPerSecond The absolute max speed that a module can reach.
+     * @param maxDriveAccelerationMetersPerSecondSq The fastest a module's speed can change, in meters per second squared.
+     * @param dtSeconds The time since the previous command, in seconds.
+     * @return The factor the speeds and steer rates were scaled by, before any module was clamped.
+     */
+    public static double desaturateModuleStates(
+            ModuleStateBuffer moduleStates,
+            ModuleStateBuffer previousStates,
+            double attainableMaxSpeedMetersPerSecond,
+            double maxDriveAccelerationMetersPerSecondSq,
+            double dtSeconds) {
+        int numModules = moduleStates.size();
+        if (previousStates != null && previousStates.size() != numModules) {
+            throw new IllegalArgumentException("Number of previous module states is not consistent with the module states");
+        }
+        double realMaxSpeed = 0;
+        for (int i = 0; i < numModules; i++) {
+            realMaxSpeed = Math.max(realMaxSpeed, Math.abs(moduleStates.speeds[i]));
+        }
+        // Braking more gently than asked may need speeds above the desired ones, up to the maximum
+        double maxScale = realMaxSpeed > 0.0 ? attainableMaxSpeedMetersPerSecond / realMaxSpeed : 1.0;
+
+        double lower = 0.0;
+        double upper = Double.POSITIVE_INFINITY;
+        if (previousStates != null) {
+            double maxChange = maxDriveAccelerationMetersPerSecondSq * dtSeconds;
+            for (int i = 0; i < numModules; i++) {
+                double previousSpeed = previousStates.speeds[i] * (previousStates.cos[i] * moduleStates.cos[i]
+                        + previousStates.sin[i] * moduleStates.sin[i]);
+                double speed = moduleStates.speeds[i];
+                if (speed == 0.0) {
+                    continue;
+                }
+                double a = (previousSpeed - maxChange) / speed;
+                double b = (previousSpeed + maxChange) / speed;
+                lower = Math.max(lower, Math.min(a, b));
+                upper = Math.min(upper, Math.max(a, b));
+            }
+        }
+        double scale = feasibleScale(lower, upper, maxScale);
+
+        for (int i = 0; i < numModules; i++) {
+            moduleStates.speeds[i] *= scale;
+            moduleStates.omegas[i] *= scale;
+        }
+        if (previousStates != null) {
+            double maxChange = maxDriveAccelerationMetersPerSecondSq * dtSeconds;
+            for (int i = 0; i < numModules; i++) {
+                double previousSpeed = previousStates.speeds[i] * (previousStates.cos[i] * moduleStates.cos[i]
+                        + previousStates.sin[i] * moduleStates.sin[i]);
+                moduleStates.speeds[i] = clampChange(moduleStates.speeds[i], previousSpeed, maxChange);
+            }
+        }
+        return scale;
+    }
+
+    /**
+     * Clamps a module's speed to within the maximum change of its previous speed.
+     */
+    private static double clampChange(double speed, double previousSpeed, double maxChange) {
+        return Math.max(previousSpeed - maxChange, Math.min(previousSpeed + maxChange, speed));
+    }
+
+    /**
+     * Picks the scale closest to 1 within the acceleration bounds and the speed limit, or the one that exceeds the
+     * acceleration bounds least if they do not overlap.
+     */
+    private static double feasibleScale(double lower, double upper, double maxScale) {
+        double scale = lower <= upper
+                ? Math.max(lower, Math.min(upper, 1.0))
+                : 0.5 * (lower + upper);
+        return Math.max(0.0, Math.min(scale, maxScale));
+    }
+
     /**
      * Renormalizes the wheel speeds if any individual speed is above the specified maximum, as well
      * as getting rid of joystick saturation at edges of joystick.
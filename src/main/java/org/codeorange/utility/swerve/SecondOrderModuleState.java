@@ -37,15 +37,39 @@ public class SecondOrderModuleState extends SwerveModuleState {
      */
     public static SecondOrderModuleState optimize(
             SecondOrderModuleState desiredState, Rotation2d currentAngle) {
-        var delta = desiredState.angle.minus(currentAngle);
-        if (delta.getCos() < 0) {
-            return new SecondOrderModuleState(
-                    -desiredState.speedMetersPerSecond,
-                    desiredState.angle.rotateBy(Rotation2d.fromDegrees(180.0)),
-                    desiredState.omega);
-        } else {
-            return new SecondOrderModuleState(desiredState.speedMetersPerSecond, desiredState.angle, desiredState.omega);
+        var optimized = new SecondOrderModuleState(
+                desiredState.speedMetersPerSecond, desiredState.angle, desiredState.omega);
+        optimized.optimize(currentAngle.getCos(), currentAngle.getSin(), false);
+        return optimized;
+    }
+
+    /**
+     * Minimize the change in heading this state would require by potentially reversing the direction the wheel spins,
+     * in place. Angular velocity is unchanged. Only reversing allocates, for the reversed angle; use
+     * {@link ModuleStateBuffer#optimize(int, double, double, boolean)} to avoid that too.
+     *
+     * <p>With cosine scaling, the speed is also multiplied by the cosine of the angle the module still has to turn. A module
+     * that is still steering then only drives with the part of its velocity along where it points, which keeps it from
+     * scrubbing sideways during steer transitions.
+     *
+     * @param currentCos         The cosine of the current module angle.
+     * @param currentSin         The sine of the current module angle.
+     * @param scaleByCosineError Whether to scale the speed by the cosine of the remaining steering error.
+     * @return Whether the wheel was reversed.
+     */
+    public boolean optimize(double currentCos, double currentSin, boolean scaleByCosineError) {
+        // The cosine of the angle between the desired and current angles
+        double errorCos = angle.getCos() * currentCos + angle.getSin() * currentSin;
+        boolean reversed = errorCos < 0;
+        if (reversed) {
+            speedMetersPerSecond = -speedMetersPerSecond;
+            angle = new Rotation2d(-angle.getCos(), -angle.getSin());
+            errorCos = -errorCos;
+        }
+        if (scaleByCosineError) {
+            speedMetersPerSecond *= errorCos;
         }
+        return reversed;
     }
 
     /**
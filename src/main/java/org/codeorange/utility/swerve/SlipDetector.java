@@ -0,0 +1,310 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+
+import java.util.Arrays;
+
+/**
+ * Detects slipping swerve modules and computes odometry twists that are robust to them.
+ *
+ * <p>With no slip, every module's motion is explained by one rigid-body twist of the chassis, and forward kinematics is the
+ * least-squares fit of that twist. A module that slips, such as one whose wheel spins out when the robot is shoved, pulls the
+ * fit toward its own motion. This detector fits the twist by weighted least squares instead and re-weights the modules from
+ * their residuals a few times (iteratively reweighted least squares). A module whose motion differs from the fitted twist by
+ * more than the residual threshold is down-weighted by the square of how far off it is, and excluded once it is off by more
+ * than twice the threshold. A module whose velocity changed faster than the acceleration threshold, which the wheel cannot do
+ * without breaking traction, is excluded outright. Modules with either problem are flagged as slipping for the step.
+ *
+ * <p>Each fit is solved with {@link WeightedForwardKinematics}, and {@link #setModuleWeights} can give it a prior confidence in
+ * each module that the detector's weights are multiplied into. When fewer than two modules are left with any weight, the twist
+ * cannot be fit from them alone, and the step falls back to the prior weights, or to plain forward kinematics if those cannot
+ * fit it either, with every module flagged. This class does not allocate after construction and is not thread-safe.
+ */
+public class SlipDetector {
+    public static final double kDefaultMaxResidual = 0.25;
+    public static final double kDefaultMaxAcceleration = 12.0;
+
+    private static final int kIterations = 3;
+    // Modules whose threshold is less than this fraction of their residual are excluded rather than down-weighted
+    private static final double kExclusionRatio = 0.5;
+    private final int m_numModules;
+    private final double[] m_moduleX;
+    private final double[] m_moduleY;
+    private final double m_maxResidual;
+    private final double m_maxAcceleration;
+    private final WeightedForwardKinematics m_forwardKinematics;
+    private final double[] m_priorWeights;
+
+    // Scratch and per-module results of the last step, as a struct of arrays
+    private final double[] m_dx;
+    private final double[] m_dy;
+    private final double[] m_weights;
+    private final double[] m_residuals;
+    private final double[] m_accelerations;
+    private final boolean[] m_slipping;
+    private final long[] m_slipCounts;
+    private final double[] m_previousVx;
+    private final double[] m_previousVy;
+
+    /**
+     * Constructs a SlipDetector with the default thresholds.
+     *
+     * @param kinematics The kinematics of the drivetrain.
+     */
+    public SlipDetector(SecondOrderKinematics kinematics) {
+        this(kinematics, kDefaultMaxResidual, kDefaultMaxAcceleration);
+    }
+
+    /**
+     * Constructs a SlipDetector.
+     *
+     * @param kinematics      The kinematics of the drivetrain.
+     * @param maxResidual     The speed by which a module's motion may differ from the rigid-body fit before it is down-weighted
+     *                        and flagged, in meters per second.
+     * @param maxAcceleration The acceleration of a module above which it is excluded and flagged, in meters per second squared.
+     */
+    public SlipDetector(SecondOrderKinematics kinematics, double maxResidual, double maxAcceleration) {
+        if (!(maxResidual > 0) || !(maxAcceleration > 0)) {
+            throw new IllegalArgumentException("Slip thresholds must be positive");
+        }
+        Translation2d[] modules = kinematics.getModuleTranslations();
+        m_numModules = modules.length;
+        m_moduleX = new double[m_numModules];
+        m_moduleY = new double[m_numModules];
+        for (int i = 0; i < m_numModules; i++) {
+            m_moduleX[i] = modules[i].getX();
+            m_moduleY[i] = modules[i].getY();
+        }
+        m_maxResidual = maxResidual;
+        m_maxAcceleration = maxAcceleration;
+        m_forwardKinematics = new WeightedForwardKinematics(kinematics);
+        m_priorWeights = new double[m_numModules];
+        Arrays.fill(m_priorWeights, 1.0);
+
+        m_dx = new double[m_numModules];
+        m_dy = new double[m_numModules];
+        m_weights = new double[m_numModules];
+        m_residuals = new double[m_numModules];
+        m_accelerations = new double[m_numModules];
+        m_slipping = new boolean[m_numModules];
+        m_slipCounts = new long[m_numModules];
+        m_previousVx = new double[m_numModules];
+        m_previousVy = new double[m_numModules];
+        reset();
+    }
+
+    /**
+     * Fits the chassis twist to one odometry step, down-weighting and flagging slipping modules.
+     *
+     * @param dtSeconds      The duration of the step, in seconds. Steps without a positive duration are fit with plain forward
+     *                       kinematics and flag nothing.
+     * @param distanceDeltas The change in distance each module has rolled during the step, in meters.
+     * @param angles         The angle of each module during the step, in radians.
+     * @param out            The twist to write the fit into.
+     * @return {@code out}.
+     */
+    public Twist2d solve(double dtSeconds, double[] distanceDeltas, double[] angles, Twist2d out) {
+        if (distanceDeltas.length != m_numModules || angles.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+
+        for (int i = 0; i < m_numModules; i++) {
+            m_dx[i] = distanceDeltas[i] * Math.cos(angles[i]);
+            m_dy[i] = distanceDeltas[i] * Math.sin(angles[i]);
+        }
+        return solve(dtSeconds, out);
+    }
+
+    /**
+     * Fits the chassis twist to one odometry step given the displacement of each module in the robot's frame, such as one
+     * integrated along the module's path. See {@link #solve(double, double[], double[], Twist2d)}.
+     *
+     * @param dtSeconds The duration of the step, in seconds.
+     * @param moduleDx  The displacement of each module along the robot's x axis during the step, in meters.
+     * @param moduleDy  The displacement of each module along the robot's y axis during the step, in meters.
+     * @param out       The twist to write the fit into.
+     * @return {@code out}.
+     */
+    public Twist2d solveDisplacements(double dtSeconds, double[] moduleDx, double[] moduleDy, Twist2d out) {
+        if (moduleDx.length != m_numModules || moduleDy.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+
+        System.arraycopy(moduleDx, 0, m_dx, 0, m_numModules);
+        System.arraycopy(moduleDy, 0, m_dy, 0, m_numModules);
+        return solve(dtSeconds, out);
+    }
+
+    /**
+     * Fits the twist to the module displacements already in {@code m_dx} and {@code m_dy}.
+     */
+    private Twist2d solve(double dtSeconds, Twist2d out) {
+        // Written so that a NaN duration falls back too
+        if (!(dtSeconds > 0)) {
+            System.arraycopy(m_priorWeights, 0, m_weights, 0, m_numModules);
+            Arrays.fill(m_slipping, false);
+            fit(out);
+            computeResiduals(out, 1.0);
+            return out;
+        }
+
+        // A module's velocity can only change as fast as its wheel's traction allows
+        for (int i = 0; i < m_numModules; i++) {
+            double vx = m_dx[i] / dtSeconds;
+            double vy = m_dy[i] / dtSeconds;
+            // Written so that the first step, where the previous velocity is NaN, is not flagged
+            double acceleration = Math.hypot(vx - m_previousVx[i], vy - m_previousVy[i]) / dtSeconds;
+            m_accelerations[i] = acceleration;
+            m_weights[i] = acceleration > m_maxAcceleration ? 0.0 : m_priorWeights[i];
+            m_previousVx[i] = vx;
+            m_previousVy[i] = vy;
+        }
+
+        double maxStepResidual = m_maxResidual * dtSeconds;
+        for (int iteration = 0; iteration < kIterations; iteration++) {
+            if (!fit(out)) {
+                break;
+            }
+            computeResiduals(out, 1.0);
+            for (int i = 0; i < m_numModules; i++) {
+                if (m_accelerations[i] > m_maxAcceleration) {
+                    continue;
+                }
+                double ratio = maxStepResidual / m_residuals[i];
+                if (ratio >= 1.0) {
+                    m_weights[i] = m_priorWeights[i];
+                } else if (ratio > kExclusionRatio) {
+                    m_weights[i] = m_priorWeights[i] * ratio * ratio;
+                } else {
+                    m_weights[i] = 0.0;
+                }
+            }
+        }
+        if (!fit(out)) {
+            // Too few modules are left to fit from, so every module is suspect
+            System.arraycopy(m_priorWeights, 0, m_weights, 0, m_numModules);
+            fit(out);
+            computeResiduals(out, dtSeconds);
+            Arrays.fill(m_slipping, true);
+            countSlips();
+            return out;
+        }
+
+        computeResiduals(out, dtSeconds);
+        for (int i = 0; i < m_numModules; i++) {
+            m_slipping[i] = m_accelerations[i] > m_maxAcceleration || m_residuals[i] > m_maxResidual;
+        }
+        countSlips();
+        return out;
+    }
+
+    /**
+     * Fits the twist to the module motion with the current weights.
+     *
+     * @return False if too few modules have weight to determine a twist, in which case {@code out} holds the plain forward
+     * kinematics.
+     */
+    private boolean fit(Twist2d out) {
+        return m_forwardKinematics.solve(m_dx, m_dy, m_weights, out);
+    }
+
+    /**
+     * Computes each module's distance from the motion the twist predicts for it, divided by {@code scale}.
+     */
+    private void computeResiduals(Twist2d twist, double scale) {
+        for (int i = 0; i < m_numModules; i++) {
+            double ex = m_dx[i] - (twist.dx - twist.dtheta * m_moduleY[i]);
+            double ey = m_dy[i] - (twist.dy + twist.dtheta * m_moduleX[i]);
+            m_residuals[i] = Math.hypot(ex, ey) / scale;
+        }
+    }
+
+    private void countSlips() {
+        for (int i = 0; i < m_numModules; i++) {
+            if (m_slipping[i]) {
+                m_slipCounts[i]++;
+            }
+        }
+    }
+
+    /**
+     * Sets the prior confidence in each module, such as a lower weight for a module drawing high current. The weights the
+     * detector computes are multiplied by these.
+     *
+     * @param weights The confidence in each module's measurement between 0 and 1, or null to trust every module equally.
+     */
+    public void setModuleWeights(double[] weights) {
+        if (weights == null) {
+            Arrays.fill(m_priorWeights, 1.0);
+            return;
+        }
+        if (weights.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of weights is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        System.arraycopy(weights, 0, m_priorWeights, 0, m_numModules);
+    }
+
+    /**
+     * @param module The index of the module, in the order passed to the kinematics.
+     * @return Whether the module was flagged as slipping in the last step.
+     */
+    public boolean isSlipping(int module) {
+        return m_slipping[module];
+    }
+
+    /**
+     * @return A bit mask of the modules flagged as slipping in the last step, with bit i set for module i. Convenient for
+     * logging.
+     */
+    public int getSlippingModules() {
+        int mask = 0;
+        for (int i = 0; i < m_numModules; i++) {
+            if (m_slipping[i]) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param module The index of the module, in the order passed to the kinematics.
+     * @return The weight the module had in the last fit, between 0 and 1.
+     */
+    public double getWeight(int module) {
+        return m_weights[module];
+    }
+
+    /**
+     * @param module The index of the module, in the order passed to the kinematics.
+     * @return How far the module's motion was from the fitted twist in the last step, in meters per second, or in meters if
+     * the step had no duration.
+     */
+    public double getResidual(int module) {
+        return m_residuals[module];
+    }
+
+    /**
+     * @param module The index of the module, in the order passed to the kinematics.
+     * @return The number of steps the module has been flagged as slipping in.
+     */
+    public long getSlipCount(int module) {
+        return m_slipCounts[module];
+    }
+
+    /**
+     * Forgets the modules' previous velocities, such as after the modules' positions jump.
+     */
+    public void reset() {
+        Arrays.fill(m_previousVx, Double.NaN);
+        Arrays.fill(m_previousVy, Double.NaN);
+        System.arraycopy(m_priorWeights, 0, m_weights, 0, m_numModules);
+        Arrays.fill(m_slipping, false);
+    }
+}
@@ -0,0 +1,339 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+/**
+ * Turns desired chassis speeds into a setpoint the modules can actually follow from the previous one.
+ *
+ * <p>Each call limits the desired speeds so that no module is asked for more than the maximum module speed, then moves the
+ * chassis setpoint from the previous setpoint toward them by the largest fraction for which every module stays within two
+ * limits over the step:
+ * <ul>
+ *     <li>Drive acceleration: a module's velocity can change by at most the maximum drive acceleration times the step.
+ *     Module velocities are linear in the chassis speeds, so this fraction is found in closed form.</li>
+ *     <li>Steer rate: a moving module can turn by at most the maximum steer rate times the step, where a module may reverse
+ *     its wheel instead of turning more than 90 degrees. This fraction is found by bisection with a fixed number of
+ *     iterations.</li>
+ * </ul>
+ * The result is the closest feasible setpoint along the straight line between the two, so the robot follows the driver's
+ * intent without flipping modules at speed or browning out on sudden reversals.
+ *
+ * <p>A module that starts the step stopped, or that is already further off than one step can turn, does not limit the chassis;
+ * instead its heading is rate-limited toward the one its velocity needs, and its speed is the part of that velocity along its
+ * heading. Every module's speed is then clamped so that its velocity changes by at most the maximum drive acceleration times
+ * the step from the velocity it was last given, and a fast module turns less than the steer rate allows if turning further
+ * would change its velocity by more than that. When any module was limited this way, the chassis setpoint becomes the
+ * forward kinematics of the module states in the output, so the next step starts from what the modules were actually asked
+ * to do. The module states in the output are already optimized against the previous headings, so they should be sent to the
+ * modules as they are.
+ *
+ * <p>This class does not allocate after construction and is not thread-safe. It calls the kinematics' inverse kinematics,
+ * so it should run on the thread that owns them.
+ */
+public class SwerveSetpointGenerator {
+    // Module speeds below this are treated as stopped, in meters per second
+    private static final double kStoppedSpeed = 1e-6;
+    // Bisection iterations for the steer limit, which resolve the step to 1/4096 of the way to the desired speeds
+    private static final int kSteerIterations = 12;
+
+    private final SecondOrderKinematics m_kinematics;
+    private final int m_numModules;
+    private final double[] m_moduleX;
+    private final double[] m_moduleY;
+    private final double m_maxModuleSpeed;
+    private final double m_maxDriveAcceleration;
+    private final double m_maxSteerRate;
+
+    // The previous setpoint, and the speed of each module along its heading in it
+    private double m_vx, m_vy, m_omega;
+    private final double[] m_headingCos;
+    private final double[] m_headingSin;
+    private final double[] m_speeds;
+
+    // Module velocities at the previous setpoint and their change to the desired speeds, as a struct of arrays
+    private final double[] m_startVx;
+    private final double[] m_startVy;
+    private final double[] m_deltaVx;
+    private final double[] m_deltaVy;
+    private final ModuleStateBuffer m_desired;
+    private final double[] m_outputVx;
+    private final double[] m_outputVy;
+    private final Twist2d m_outputSpeeds = new Twist2d();
+
+    /**
+     * Constructs a SwerveSetpointGenerator with every module stopped facing forward.
+     *
+     * @param kinematics           The kinematics of the drivetrain.
+     * @param maxModuleSpeed       The fastest a module can drive, in meters per second.
+     * @param maxDriveAcceleration The fastest a module's velocity can change, in meters per second squared.
+     * @param maxSteerRate         The fastest a module can turn, in radians per second.
+     */
+    public SwerveSetpointGenerator(SecondOrderKinematics kinematics, double maxModuleSpeed, double maxDriveAcceleration,
+                                   double maxSteerRate) {
+        if (!(maxModuleSpeed > 0) || !(maxDriveAcceleration > 0) || !(maxSteerRate > 0)) {
+            throw new IllegalArgumentException("Setpoint limits must be positive");
+        }
+        m_kinematics = kinematics;
+        Translation2d[] modules = kinematics.getModuleTranslations();
+        m_numModules = modules.length;
+        m_moduleX = new double[m_numModules];
+        m_moduleY = new double[m_numModules];
+        for (int i = 0; i < m_numModules; i++) {
+            m_moduleX[i] = modules[i].getX();
+            m_moduleY[i] = modules[i].getY();
+        }
+        m_maxModuleSpeed = maxModuleSpeed;
+        m_maxDriveAcceleration = maxDriveAcceleration;
+        m_maxSteerRate = maxSteerRate;
+
+        m_headingCos = new double[m_numModules];
+        m_headingSin = new double[m_numModules];
+        m_speeds = new double[m_numModules];
+        m_startVx = new double[m_numModules];
+        m_startVy = new double[m_numModules];
+        m_deltaVx = new double[m_numModules];
+        m_deltaVy = new double[m_numModules];
+        m_desired = new ModuleStateBuffer(m_numModules);
+        m_outputVx = new double[m_numModules];
+        m_outputVy = new double[m_numModules];
+        reset(0.0, 0.0, 0.0, null);
+    }
+
+    /**
+     * Resets the previous setpoint, such as to the measured state when the robot is enabled.
+     *
+     * @param vxMetersPerSecond     The chassis velocity along the robot's x axis, in meters per second.
+     * @param vyMetersPerSecond     The chassis velocity along the robot's y axis, in meters per second.
+     * @param omegaRadiansPerSecond The chassis angular velocity, in radians per second.
+     * @param moduleAnglesRadians   The angle of each module, in radians, or null for every module facing forward.
+     */
+    public void reset(double vxMetersPerSecond, double vyMetersPerSecond, double omegaRadiansPerSecond,
+                      double[] moduleAnglesRadians) {
+        if (moduleAnglesRadians != null && moduleAnglesRadians.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of module angles is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        m_vx = vxMetersPerSecond;
+        m_vy = vyMetersPerSecond;
+        m_omega = omegaRadiansPerSecond;
+        for (int i = 0; i < m_numModules; i++) {
+            double angle = moduleAnglesRadians != null ? moduleAnglesRadians[i] : 0.0;
+            m_headingCos[i] = Math.cos(angle);
+            m_headingSin[i] = Math.sin(angle);
+            m_speeds[i] = (m_vx - m_omega * m_moduleY[i]) * m_headingCos[i]
+                    + (m_vy + m_omega * m_moduleX[i]) * m_headingSin[i];
+        }
+    }
+
+    /**
+     * Generates the next setpoint. See {@link #generate(double, double, double, double, ModuleStateBuffer)}.
+     *
+     * @param desiredSpeeds The desired chassis speeds.
+     * @param dtSeconds     The time until the next setpoint, usually the loop period, in seconds.
+     * @param out           The buffer to write the module states into.
+     * @return {@code out}.
+     */
+    public ModuleStateBuffer generate(ChassisSpeeds desiredSpeeds, double dtSeconds, ModuleStateBuffer out) {
+        return generate(desiredSpeeds.vxMetersPerSecond, desiredSpeeds.vyMetersPerSecond,
+                desiredSpeeds.omegaRadiansPerSecond, dtSeconds, out);
+    }
+
+    /**
+     * Generates the next setpoint: the closest chassis speeds to the desired ones that the modules can reach from the
+     * previous setpoint within one step, and the module states for them.
+     *
+     * @param vxMetersPerSecond     The desired chassis velocity along the robot's x axis, in meters per second.
+     * @param vyMetersPerSecond     The desired chassis velocity along the robot's y axis, in meters per second.
+     * @param omegaRadiansPerSecond The desired chassis angular velocity, in radians per second.
+     * @param dtSeconds             The time until the next setpoint, usually the loop period, in seconds.
+     * @param out                   The buffer to write the module states into.
+     * @return {@code out}.
+     */
+    public ModuleStateBuffer generate(double vxMetersPerSecond, double vyMetersPerSecond, double omegaRadiansPerSecond,
+                                      double dtSeconds, ModuleStateBuffer out) {
+        if (out.size() != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of module states is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        if (!(dtSeconds > 0)) {
+            throw new IllegalArgumentException("Setpoint step must be positive");
+        }
+
+        // Scale the desired speeds down until no module is asked to drive faster than it can
+        double fastest = 0.0;
+        for (int i = 0; i < m_numModules; i++) {
+            fastest = Math.max(fastest, Math.hypot(
+                    vxMetersPerSecond - omegaRadiansPerSecond * m_moduleY[i],
+                    vyMetersPerSecond + omegaRadiansPerSecond * m_moduleX[i]));
+        }
+        if (fastest > m_maxModuleSpeed) {
+            double scale = m_maxModuleSpeed / fastest;
+            vxMetersPerSecond *= scale;
+            vyMetersPerSecond *= scale;
+            omegaRadiansPerSecond *= scale;
+        }
+
+        double dvx = vxMetersPerSecond - m_vx;
+        double dvy = vyMetersPerSecond - m_vy;
+        double domega = omegaRadiansPerSecond - m_omega;
+        for (int i = 0; i < m_numModules; i++) {
+            m_startVx[i] = m_vx - m_omega * m_moduleY[i];
+            m_startVy[i] = m_vy + m_omega * m_moduleX[i];
+            m_deltaVx[i] = dvx - domega * m_moduleY[i];
+            m_deltaVy[i] = dvy + domega * m_moduleX[i];
+        }
+
+        double maxVelocityChange = m_maxDriveAcceleration * dtSeconds;
+        double maxTurn = m_maxSteerRate * dtSeconds;
+        // Modules may reverse instead of turning past 90 degrees, so a turn limit of 90 degrees or more never binds
+        double tanMaxTurn = maxTurn < Math.PI / 2 ? Math.tan(maxTurn) : Double.POSITIVE_INFINITY;
+
+        double fraction = 1.0;
+        for (int i = 0; i < m_numModules; i++) {
+            double velocityChange = Math.hypot(m_deltaVx[i], m_deltaVy[i]);
+            if (velocityChange > maxVelocityChange) {
+                fraction = Math.min(fraction, maxVelocityChange / velocityChange);
+            }
+        }
+        for (int i = 0; i < m_numModules; i++) {
+            if (Math.hypot(m_startVx[i], m_startVy[i]) < kStoppedSpeed || withinTurn(i, fraction, tanMaxTurn)) {
+                continue;
+            }
+            if (!withinTurn(i, 0.0, tanMaxTurn)) {
+                // Already further off than one step can fix; the heading rate limit below takes care of it
+                continue;
+            }
+            double feasible = 0.0;
+            double infeasible = fraction;
+            for (int iteration = 0; iteration < kSteerIterations; iteration++) {
+                double mid = 0.5 * (feasible + infeasible);
+                if (withinTurn(i, mid, tanMaxTurn)) {
+                    feasible = mid;
+                } else {
+                    infeasible = mid;
+                }
+            }
+            fraction = feasible;
+        }
+
+        m_vx += fraction * dvx;
+        m_vy += fraction * dvy;
+        m_omega += fraction * domega;
+        m_kinematics.toSwerveModuleStates(m_vx, m_vy, m_omega, 0.0, 0.0, m_desired);
+
+        double maxTurnCos = Math.cos(Math.min(maxTurn, Math.PI));
+        double maxTurnSin = Math.sin(Math.min(maxTurn, Math.PI));
+        // After reversing, no module turns more than 90 degrees, however high the limit
+        double maxTurnReachSin = maxTurn < Math.PI / 2 ? maxTurnSin : 1.0;
+        boolean realized = true;
+        for (int i = 0; i < m_numModules; i++) {
+            double speed = m_desired.speeds[i];
+            double prevCos = m_headingCos[i];
+            double prevSin = m_headingSin[i];
+            double prevSpeed = m_speeds[i];
+            double cos = prevCos;
+            double sin = prevSin;
+            double moduleOmega = 0.0;
+            if (speed < kStoppedSpeed) {
+                speed = 0.0;
+            } else {
+                // Reverse the wheel rather than turn it more than 90 degrees
+                cos = m_desired.cos[i];
+                sin = m_desired.sin[i];
+                moduleOmega = m_desired.omegas[i];
+                if (cos * prevCos + sin * prevSin < 0.0) {
+                    cos = -cos;
+                    sin = -sin;
+                    speed = -speed;
+                }
+
+                // Turning a rolling wheel changes its velocity as well, so a fast module turns no further than the
+                // acceleration limit allows
+                double limitCos = maxTurnCos;
+                double limitSin = maxTurnSin;
+                double limitRate = m_maxSteerRate;
+                if (Math.abs(prevSpeed) * maxTurnReachSin > maxVelocityChange) {
+                    limitSin = maxVelocityChange / Math.abs(prevSpeed);
+                    limitCos = Math.sqrt(1.0 - limitSin * limitSin);
+                    limitRate = Math.asin(limitSin) / dtSeconds;
+                }
+
+                double turnSin = sin * prevCos - cos * prevSin;
+                double turnCos = cos * prevCos + sin * prevSin;
+                if (turnCos < limitCos) {
+                    // Turn as far as allowed, and drive with the part of the module's velocity along where it points
+                    double direction = Math.signum(turnSin);
+                    double limitedCos = prevCos * limitCos - prevSin * direction * limitSin;
+                    double limitedSin = prevSin * limitCos + prevCos * direction * limitSin;
+                    speed *= cos * limitedCos + sin * limitedSin;
+                    cos = limitedCos;
+                    sin = limitedSin;
+                    moduleOmega = direction * limitRate;
+                    realized = false;
+                } else {
+                    moduleOmega = Math.max(-m_maxSteerRate, Math.min(m_maxSteerRate, moduleOmega));
+                }
+            }
+
+            // Along the new heading, the speeds within the acceleration limit of the module's previous velocity are those
+            // within reach of its projection, where reach shrinks with the part of the previous velocity across the heading
+            double along = prevSpeed * (cos * prevCos + sin * prevSin);
+            double across = prevSpeed * (sin * prevCos - cos * prevSin);
+            double reach = Math.sqrt(Math.max(0.0, maxVelocityChange * maxVelocityChange - across * across));
+            double limitedSpeed = Math.max(along - reach, Math.min(along + reach, speed));
+            if (limitedSpeed != speed) {
+                speed = limitedSpeed;
+                realized = false;
+            }
+
+            out.set(i, speed, cos, sin, moduleOmega);
+            m_headingCos[i] = cos;
+            m_headingSin[i] = sin;
+            m_speeds[i] = speed;
+            m_outputVx[i] = speed * cos;
+            m_outputVy[i] = speed * sin;
+        }
+
+        if (!realized) {
+            // Start the next step from the chassis speeds the limited module states produce
+            m_kinematics.toTwist2dFromDisplacements(m_outputVx, m_outputVy, m_outputSpeeds);
+            m_vx = m_outputSpeeds.dx;
+            m_vy = m_outputSpeeds.dy;
+            m_omega = m_outputSpeeds.dtheta;
+        }
+        return out;
+    }
+
+    /**
+     * Checks whether module i's velocity at the given fraction of the way to the desired speeds is within one step's turn of
+     * its previous heading, allowing it to reverse.
+     */
+    private boolean withinTurn(int i, double fraction, double tanMaxTurn) {
+        double vx = m_startVx[i] + fraction * m_deltaVx[i];
+        double vy = m_startVy[i] + fraction * m_deltaVy[i];
+        if (Math.hypot(vx, vy) < kStoppedSpeed) {
+            return true;
+        }
+        double along = Math.abs(vx * m_headingCos[i] + vy * m_headingSin[i]);
+        double across = Math.abs(vy * m_headingCos[i] - vx * m_headingSin[i]);
+        return across <= tanMaxTurn * along;
+    }
+
+    /**
+     * Writes the chassis speeds of the last setpoint, which are the forward kinematics of its module states if any module had
+     * to be limited.
+     *
+     * @param out The chassis speeds to write into.
+     * @return {@code out}.
+     */
+    public ChassisSpeeds getChassisSpeeds(ChassisSpeeds out) {
+        out.vxMetersPerSecond = m_vx;
+        out.vyMetersPerSecond = m_vy;
+        out.omegaRadiansPerSecond = m_omega;
+        return out;
+    }
+}
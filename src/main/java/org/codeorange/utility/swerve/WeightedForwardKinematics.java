@@ -0,0 +1,195 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+import java.util.Arrays;
+
+/**
+ * Forward kinematics that weighs each module's measurement by a confidence, such as a lower weight for a module drawing high
+ * current or one that was detected slipping.
+ *
+ * <p>{@link SecondOrderKinematics#toChassisSpeeds} is the least-squares fit of the chassis motion to every module equally.
+ * This class solves the weighted least-squares problem instead through its 3x3 normal equations. The normal matrix depends
+ * only on the module locations and the weights, so its inverse is cached and reused for as long as the weights do not change;
+ * a call with the same weights as the last costs one pass over the modules, the same as unweighted forward kinematics.
+ *
+ * <p>Modules with a weight below {@link #kMinWeight} are left out of the fit. If fewer than two modules are left, the motion
+ * cannot be determined from them, and the fit falls back to equal weights.
+ *
+ * <p>This class does not allocate after construction, except in the methods that return new objects, and is not
+ * thread-safe; give each thread that needs weighted forward kinematics its own instance.
+ */
+public class WeightedForwardKinematics {
+    /** Weights below this leave their module out of the fit. */
+    public static final double kMinWeight = 1e-3;
+
+    private final SecondOrderKinematics m_kinematics;
+    private final int m_numModules;
+    private final double[] m_moduleX;
+    private final double[] m_moduleY;
+    private final double[] m_moduleX2Y2;
+    private final double[] m_dx;
+    private final double[] m_dy;
+    private final Twist2d m_twist = new Twist2d();
+
+    // The weights the cached inverse was computed for, and the unique entries of the symmetric inverse
+    private final double[] m_factoredWeights;
+    private boolean m_factored = false;
+    private boolean m_solvable;
+    private double m_i00, m_i01, m_i02, m_i11, m_i12, m_i22;
+
+    /**
+     * Constructs a WeightedForwardKinematics.
+     *
+     * @param kinematics The kinematics of the drivetrain.
+     */
+    public WeightedForwardKinematics(SecondOrderKinematics kinematics) {
+        m_kinematics = kinematics;
+        Translation2d[] modules = kinematics.getModuleTranslations();
+        m_numModules = modules.length;
+        m_moduleX = new double[m_numModules];
+        m_moduleY = new double[m_numModules];
+        m_moduleX2Y2 = new double[m_numModules];
+        for (int i = 0; i < m_numModules; i++) {
+            m_moduleX[i] = modules[i].getX();
+            m_moduleY[i] = modules[i].getY();
+            m_moduleX2Y2[i] = m_moduleX[i] * m_moduleX[i] + m_moduleY[i] * m_moduleY[i];
+        }
+        m_dx = new double[m_numModules];
+        m_dy = new double[m_numModules];
+        m_factoredWeights = new double[m_numModules];
+    }
+
+    /**
+     * Fits the chassis motion to the motion of each module in the robot's frame, which may be velocities or displacements.
+     *
+     * @param moduleDx The motion of each module along the robot's x axis, in the same order as passed to the kinematics.
+     * @param moduleDy The motion of each module along the robot's y axis.
+     * @param weights  The confidence in each module's measurement. Only their ratios matter.
+     * @param out      The twist to write the fit into.
+     * @return False if too few modules had weight and the fit fell back to equal weights.
+     */
+    public boolean solve(double[] moduleDx, double[] moduleDy, double[] weights, Twist2d out) {
+        if (moduleDx.length != m_numModules || moduleDy.length != m_numModules || weights.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+
+        if (!m_factored || !Arrays.equals(weights, m_factoredWeights)) {
+            factor(weights);
+        }
+        if (!m_solvable) {
+            m_kinematics.toTwist2dFromDisplacements(moduleDx, moduleDy, out);
+            return false;
+        }
+
+        double b0 = 0, b1 = 0, b2 = 0;
+        for (int i = 0; i < m_numModules; i++) {
+            double w = weights[i];
+            if (!(w >= kMinWeight)) {
+                continue;
+            }
+            // Each module contributes rows [1, 0, -y] and [0, 1, x]
+            b0 += w * moduleDx[i];
+            b1 += w * moduleDy[i];
+            b2 += w * (m_moduleX[i] * moduleDy[i] - m_moduleY[i] * moduleDx[i]);
+        }
+        out.dx = m_i00 * b0 + m_i01 * b1 + m_i02 * b2;
+        out.dy = m_i01 * b0 + m_i11 * b1 + m_i12 * b2;
+        out.dtheta = m_i02 * b0 + m_i12 * b1 + m_i22 * b2;
+        return true;
+    }
+
+    /**
+     * Fits the chassis twist to primitive module deltas. See {@link #solve}.
+     *
+     * @param distanceDeltas The change in distance each module has rolled, in meters.
+     * @param angles         The angle of each module during the change, in radians.
+     * @param weights        The confidence in each module's measurement.
+     * @param out            The twist to write the fit into.
+     * @return False if too few modules had weight and the fit fell back to equal weights.
+     */
+    public boolean toTwist2d(double[] distanceDeltas, double[] angles, double[] weights, Twist2d out) {
+        if (distanceDeltas.length != m_numModules || angles.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        for (int i = 0; i < m_numModules; i++) {
+            m_dx[i] = distanceDeltas[i] * Math.cos(angles[i]);
+            m_dy[i] = distanceDeltas[i] * Math.sin(angles[i]);
+        }
+        return solve(m_dx, m_dy, weights, out);
+    }
+
+    /**
+     * Fits the chassis speeds to measured module states. See {@link #solve}.
+     *
+     * @param weights      The confidence in each module's measurement.
+     * @param moduleStates The state of each module, in the same order as passed to the kinematics.
+     * @return The resulting chassis speed.
+     */
+    public ChassisSpeeds toChassisSpeeds(double[] weights, SecondOrderModuleState... moduleStates) {
+        if (moduleStates.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        for (int i = 0; i < m_numModules; i++) {
+            m_dx[i] = moduleStates[i].speedMetersPerSecond * moduleStates[i].angle.getCos();
+            m_dy[i] = moduleStates[i].speedMetersPerSecond * moduleStates[i].angle.getSin();
+        }
+        solve(m_dx, m_dy, weights, m_twist);
+        return new ChassisSpeeds(m_twist.dx, m_twist.dy, m_twist.dtheta);
+    }
+
+    /**
+     * Computes and caches the inverse of the weighted normal matrix.
+     */
+    private void factor(double[] weights) {
+        System.arraycopy(weights, 0, m_factoredWeights, 0, m_numModules);
+        m_factored = true;
+        m_solvable = false;
+
+        double n00 = 0, n02 = 0, n12 = 0, n22 = 0;
+        int weighted = 0;
+        for (int i = 0; i < m_numModules; i++) {
+            double w = weights[i];
+            // Written so that NaN weights are left out too
+            if (!(w >= kMinWeight)) {
+                continue;
+            }
+            weighted++;
+            n00 += w;
+            n02 -= w * m_moduleY[i];
+            n12 += w * m_moduleX[i];
+            n22 += w * m_moduleX2Y2[i];
+        }
+        if (weighted < 2) {
+            return;
+        }
+
+        // The normal matrix is [[n00, 0, n02], [0, n00, n12], [n02, n12, n22]]; invert it with its cofactors
+        double c00 = n00 * n22 - n12 * n12;
+        double c01 = n02 * n12;
+        double c02 = -n02 * n00;
+        double c11 = n00 * n22 - n02 * n02;
+        double c12 = -n00 * n12;
+        double c22 = n00 * n00;
+        double det = n00 * c00 + n02 * c02;
+        if (!(Math.abs(det) > 1e-12 * n00 * n00 * n22)) {
+            return;
+        }
+        double invDet = 1.0 / det;
+        m_i00 = c00 * invDet;
+        m_i01 = c01 * invDet;
+        m_i02 = c02 * invDet;
+        m_i11 = c11 * invDet;
+        m_i12 = c12 * invDet;
+        m_i22 = c22 * invDet;
+        m_solvable = true;
+    }
+}
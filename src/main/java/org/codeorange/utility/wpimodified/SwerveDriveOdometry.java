@@ -8,7 +8,14 @@ import edu.wpi.first.math.MathSharedStore;
 import edu.wpi.first.math.MathUsageId;
 import edu.wpi.first.math.geometry.*;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.util.WPIUtilJNI;
+import org.codeorange.utility.geometry.MutablePose2d;
 import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.codeorange.utility.swerve.SecondOrderModuleState;
+import org.codeorange.utility.swerve.SlipDetector;
+import org.codeorange.utility.swerve.WeightedForwardKinematics;
+
+import java.util.Arrays;
 
 /**
  * Class for swerve drive odometry. Odometry allows you to track the robot's position on the field over a course of a match using
@@ -16,6 +23,10 @@ import org.codeorange.utility.swerve.SecondOrderKinematics;
  *
  * <p>Teams can use odometry during the autonomous period for complex tasks like path following.
  * Furthermore, odometry can be used for latency compensation when using computer-vision systems.
+ *
+ * <p>Odometry constructed with 2d types runs in planar mode: the pose is kept as primitives and integrated with the closed-form
+ * SE(2) exponential, and 3d gyro angles are reduced to their yaw. Odometry constructed with 3d types runs in 3d mode, which
+ * integrates the full orientation with quaternions. See {@link #set3dMode(boolean)}.
  */
 public class SwerveDriveOdometry {
     private final SecondOrderKinematics m_kinematics;
@@ -25,6 +36,32 @@ public class SwerveDriveOdometry {
     private Rotation3d m_previousAngle;
     private final int m_numModules;
     private SwerveModulePosition[] m_previousModulePositions;
+    private final SwerveModulePosition[] m_moduleDeltas;
+    // The module deltas as primitives, which every update fits its twist from
+    private final double[] m_distanceDeltas;
+    private final double[] m_deltaAngles;
+    private final Twist2d m_twist = new Twist2d();
+
+    private SlipDetector m_slipDetector;
+    private double m_lastUpdateTime = Double.NaN;
+    // The confidence in each module, or null to trust every module equally
+    private double[] m_moduleWeights;
+    private final WeightedForwardKinematics m_weightedKinematics;
+
+    // Arc integration of each module's displacement, with the module angles and steer rates from the last update. Steer
+    // rates are NaN where they are not known.
+    private boolean m_arcIntegration = false;
+    private final double[] m_previousAngles;
+    private final double[] m_steerRates;
+    private final double[] m_previousSteerRates;
+    private final double[] m_moduleDx;
+    private final double[] m_moduleDy;
+
+    private boolean m_planar = false;
+    private final MutablePose2d m_planarPose = new MutablePose2d();
+    // The gyro offset in planar mode, as a cosine and sine. The previous heading is the heading of the planar pose.
+    private double m_gyroOffsetCos = 1.0;
+    private double m_gyroOffsetSin = 0.0;
 
     /**
      * Constructs a SwerveDriveOdometry object.
@@ -52,6 +89,20 @@ public class SwerveDriveOdometry {
                             modulePositions[index].distanceMeters, modulePositions[index].angle);
         }
 
+        m_moduleDeltas = new SwerveModulePosition[m_numModules];
+        for (int index = 0; index < m_numModules; index++) {
+            m_moduleDeltas[index] = new SwerveModulePosition();
+        }
+        m_distanceDeltas = new double[m_numModules];
+        m_deltaAngles = new double[m_numModules];
+        m_previousAngles = new double[m_numModules];
+        m_steerRates = new double[m_numModules];
+        m_previousSteerRates = new double[m_numModules];
+        m_moduleDx = new double[m_numModules];
+        m_moduleDy = new double[m_numModules];
+        m_weightedKinematics = new WeightedForwardKinematics(kinematics);
+        resetModuleAngles(modulePositions);
+
         MathSharedStore.reportUsage(MathUsageId.kOdometry_SwerveDrive, 1);
     }
 
@@ -73,6 +124,7 @@ public class SwerveDriveOdometry {
                 new Rotation3d(0, 0, gyroAngle.getRadians()),
                 modulePositions,
                 new Pose3d(initialPose));
+        set3dMode(false);
     }
 
     /**
@@ -103,6 +155,106 @@ public class SwerveDriveOdometry {
         this(kinematics, gyroAngle, modulePositions, new Pose2d());
     }
 
+    /**
+     * Switches between planar and 3d mode, carrying the current pose over. Switching to planar mode drops the z position, roll
+     * and pitch of the pose.
+     *
+     * @param enabled True to track the full 3d pose, false to track the pose on the XY plane only.
+     */
+    public void set3dMode(boolean enabled) {
+        if (enabled != m_planar) {
+            return;
+        }
+
+        if (enabled) {
+            m_poseMeters = m_planarPose.toPose3d();
+            m_previousAngle = m_poseMeters.getRotation();
+            m_gyroOffset = new Rotation3d(0, 0, Math.atan2(m_gyroOffsetSin, m_gyroOffsetCos));
+        } else {
+            m_planarPose.set(m_poseMeters);
+            double offset = m_gyroOffset.getZ();
+            m_gyroOffsetCos = Math.cos(offset);
+            m_gyroOffsetSin = Math.sin(offset);
+        }
+        m_planar = !enabled;
+    }
+
+    /**
+     * @return Whether the full 3d pose is being tracked, rather than the pose on the XY plane only.
+     */
+    public boolean is3dMode() {
+        return !m_planar;
+    }
+
+    /**
+     * Sets a detector that fits each update's twist robustly to slipping modules, instead of plain forward kinematics. Updates
+     * without a timestamp are timed with the current time.
+     *
+     * @param detector The detector to use, or null to use plain forward kinematics.
+     */
+    public void setSlipDetector(SlipDetector detector) {
+        m_slipDetector = detector;
+        if (detector != null) {
+            detector.reset();
+            detector.setModuleWeights(m_moduleWeights);
+        }
+    }
+
+    /**
+     * Sets the confidence in each module's measurement, such as a lower weight for a module drawing high current. Each
+     * update's twist is then the weighted least-squares fit to the modules; with a {@link #setSlipDetector slip detector},
+     * these weights are the prior its own weights are multiplied into. Changing the weights costs one 3x3 inversion on the
+     * next update; updates with the same weights cost nothing extra.
+     *
+     * @param weights The confidence in each module between 0 and 1, in the same order as the kinematics, or null to trust
+     *                every module equally.
+     */
+    public void setModuleWeights(double[] weights) {
+        if (weights != null && weights.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of weights is not consistent with number of module locations provided in "
+                            + "constructor");
+        }
+        if (weights == null) {
+            m_moduleWeights = null;
+        } else if (m_moduleWeights == null) {
+            m_moduleWeights = weights.clone();
+        } else {
+            System.arraycopy(weights, 0, m_moduleWeights, 0, m_numModules);
+        }
+        if (m_slipDetector != null) {
+            m_slipDetector.setModuleWeights(m_moduleWeights);
+        }
+    }
+
+    /**
+     * @return The detector fitting each update's twist, or null if plain forward kinematics is used.
+     */
+    public SlipDetector getSlipDetector() {
+        return m_slipDetector;
+    }
+
+    /**
+     * Enables or disables arc integration. By default, each module is assumed to have rolled its whole distance at the angle
+     * it reports at the end of the update, so a module that steers during the update is credited with motion in the wrong
+     * direction, and the error grows with the steer rate. With arc integration, each module's displacement is integrated
+     * along its path from its previous angle to its current one, as an arc swept at a constant rate or, when the updates pass
+     * steer rates, as the cubic that matches the rates at both ends. The chassis twist is then fit to those displacements.
+     * This keeps odometry accurate at a lower update rate.
+     *
+     * @param enabled True to integrate each module's arc, false to use its current angle only.
+     */
+    public void setArcIntegration(boolean enabled) {
+        m_arcIntegration = enabled;
+    }
+
+    /**
+     * @return Whether each module's displacement is integrated along its arc.
+     */
+    public boolean isArcIntegration() {
+        return m_arcIntegration;
+    }
+
     /**
      * Resets the robot's position on the field.
      *
@@ -117,6 +269,11 @@ public class SwerveDriveOdometry {
      */
     public void resetPosition(
             Rotation3d gyroAngle, SwerveModulePosition[] modulePositions, Pose3d pose) {
+        if (m_planar) {
+            resetPosition(gyroAngle.toRotation2d(), modulePositions, pose.toPose2d());
+            return;
+        }
+
         if (modulePositions.length != m_numModules) {
             throw new IllegalArgumentException(
                     "Number of modules is not consistent with number of wheel locations provided in "
@@ -131,6 +288,7 @@ public class SwerveDriveOdometry {
                     new SwerveModulePosition(
                             modulePositions[index].distanceMeters, modulePositions[index].angle);
         }
+        resetModuleAngles(modulePositions);
     }
 
     /**
@@ -147,7 +305,30 @@ public class SwerveDriveOdometry {
      */
     public void resetPosition(
             Rotation2d gyroAngle, SwerveModulePosition[] modulePositions, Pose2d pose) {
-        resetPosition(new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions, new Pose3d(pose));
+        if (!m_planar) {
+            resetPosition(new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions, new Pose3d(pose));
+            return;
+        }
+
+        if (modulePositions.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of wheel locations provided in "
+                            + "constructor");
+        }
+
+        m_planarPose.set(pose);
+
+        // The offset is the pose's heading minus the gyro angle
+        var rotation = pose.getRotation();
+        m_gyroOffsetCos = rotation.getCos() * gyroAngle.getCos() + rotation.getSin() * gyroAngle.getSin();
+        m_gyroOffsetSin = rotation.getSin() * gyroAngle.getCos() - rotation.getCos() * gyroAngle.getSin();
+
+        for (int index = 0; index < m_numModules; index++) {
+            m_previousModulePositions[index] =
+                    new SwerveModulePosition(
+                            modulePositions[index].distanceMeters, modulePositions[index].angle);
+        }
+        resetModuleAngles(modulePositions);
     }
 
     /**
@@ -156,6 +337,9 @@ public class SwerveDriveOdometry {
      * @return The pose of the robot (x and y are in meters).
      */
     public Pose2d getPoseMeters() {
+        if (m_planar) {
+            return m_planarPose.toPose2d();
+        }
         return m_poseMeters.toPose2d();
     }
 
@@ -165,9 +349,57 @@ public class SwerveDriveOdometry {
      * @return The pose of the robot (x and y are in meters).
      */
     public Pose3d getPoseMeters3d() {
+        if (m_planar) {
+            return m_planarPose.toPose3d();
+        }
         return m_poseMeters;
     }
 
+    /**
+     * Returns the position of the robot on the field in planar mode. The returned pose is updated in place by later updates
+     * and must not be modified.
+     *
+     * @return The pose of the robot (x and y are in meters).
+     */
+    MutablePose2d getPlanarPose() {
+        return m_planarPose;
+    }
+
+    /**
+     * @return The change in each module's position during the last update. Updated in place and must not be modified. The
+     * primitive updates only update the distances.
+     */
+    SwerveModulePosition[] getModuleDeltas() {
+        return m_moduleDeltas;
+    }
+
+    /**
+     * @return The module positions from the last update or reset. Updated in place and must not be modified.
+     */
+    SwerveModulePosition[] getPreviousModulePositions() {
+        // Primitive updates only keep the angles as radians, so the modules' angles are brought up to date here
+        for (int index = 0; index < m_numModules; index++) {
+            var previous = m_previousModulePositions[index];
+            if (previous.angle.getRadians() != m_previousAngles[index]) {
+                previous.angle = new Rotation2d(m_previousAngles[index]);
+            }
+        }
+        return m_previousModulePositions;
+    }
+
+    /**
+     * @return The raw gyro angle passed into the last update or reset, before the offset was applied.
+     */
+    Rotation3d getLastGyroAngle() {
+        if (m_planar) {
+            // heading - offset
+            double cos = m_planarPose.getCos() * m_gyroOffsetCos + m_planarPose.getSin() * m_gyroOffsetSin;
+            double sin = m_planarPose.getSin() * m_gyroOffsetCos - m_planarPose.getCos() * m_gyroOffsetSin;
+            return new Rotation3d(0, 0, Math.atan2(sin, cos));
+        }
+        return m_previousAngle.minus(m_gyroOffset);
+    }
+
     /**
      * Updates the robot's position on the field using forward kinematics and integration of the pose over time. This method
      * automatically calculates the current time to calculate period (difference between two timestamps). The period is used to
@@ -180,40 +412,28 @@ public class SwerveDriveOdometry {
      * @return The new pose of the robot.
      */
     public Pose3d update(Rotation3d gyroAngle, SwerveModulePosition[] modulePositions) {
-        if (modulePositions.length != m_numModules) {
-            throw new IllegalArgumentException(
-                    "Number of modules is not consistent with number of wheel locations provided in "
-                            + "constructor");
-        }
-
-        var moduleDeltas = new SwerveModulePosition[m_numModules];
-        for (int index = 0; index < m_numModules; index++) {
-            var current = modulePositions[index];
-            var previous = m_previousModulePositions[index];
+        return update(WPIUtilJNI.now() * 1.0e-6, gyroAngle, modulePositions);
+    }
 
-            moduleDeltas[index] =
-                    new SwerveModulePosition(current.distanceMeters - previous.distanceMeters, current.angle);
-            previous.distanceMeters = current.distanceMeters;
+    /**
+     * Updates the robot's position on the field at a given time. The time is only used to time the step for the
+     * {@link #setSlipDetector slip detector}. See {@link #update(Rotation3d, SwerveModulePosition[])}.
+     *
+     * @param currentTimeSeconds The time of the readings, in seconds.
+     * @param gyroAngle          The angle reported by the gyroscope.
+     * @param modulePositions    The current position of all swerve modules.
+     * @return The new pose of the robot.
+     */
+    public Pose3d update(double currentTimeSeconds, Rotation3d gyroAngle, SwerveModulePosition[] modulePositions) {
+        if (m_planar) {
+            updatePlanar(currentTimeSeconds, gyroAngle.toRotation2d(), modulePositions);
+            return m_planarPose.toPose3d();
         }
 
-        var angle = gyroAngle.plus(m_gyroOffset);
-        var angle_difference = angle.minus(m_previousAngle).getQuaternion().toRotationVector();
-
-        var twist2d = m_kinematics.toTwist2d(moduleDeltas);
-        var twist =
-                new Twist3d(
-                        twist2d.dx,
-                        twist2d.dy,
-                        0,
-                        angle_difference.get(0, 0),
-                        angle_difference.get(1, 0),
-                        angle_difference.get(2, 0));
-
-        var newPose = m_poseMeters.exp(twist);
-
-        m_previousAngle = angle;
-        m_poseMeters = new Pose3d(newPose.getTranslation(), angle);
+        updateModuleDeltas(modulePositions);
 
+        var twist2d = fitTwist(currentTimeSeconds);
+        integrate3d(gyroAngle, twist2d.dx, twist2d.dy);
         return m_poseMeters;
     }
 
@@ -230,6 +450,12 @@ public class SwerveDriveOdometry {
      */
     public Pose3d updateWithTime(
             Rotation3d gyroAngle, Translation3d velocity, double dt) {
+        if (m_planar) {
+            var gyroAngle2d = gyroAngle.toRotation2d();
+            integratePlanar(gyroAngle2d.getCos(), gyroAngle2d.getSin(), velocity.getX(), velocity.getY());
+            return m_planarPose.toPose3d();
+        }
+
         var period = dt < 0 ? 0 : dt;
         var angle = gyroAngle.plus(m_gyroOffset);
         var angle_difference = angle.minus(m_previousAngle).getQuaternion().toRotationVector();
@@ -264,6 +490,259 @@ public class SwerveDriveOdometry {
      * @return The new pose of the robot.
      */
     public Pose2d update(Rotation2d gyroAngle, SwerveModulePosition[] modulePositions) {
-        return update(new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions).toPose2d();
+        double currentTimeSeconds = WPIUtilJNI.now() * 1.0e-6;
+        if (m_planar) {
+            updatePlanar(currentTimeSeconds, gyroAngle, modulePositions);
+            return m_planarPose.toPose2d();
+        }
+        return update(currentTimeSeconds, new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions).toPose2d();
+    }
+
+    /**
+     * Updates the robot's position on the field from primitive module readings. In planar mode this does not allocate, so it
+     * suits a high-rate odometry loop.
+     *
+     * @param distances The distance each module has rolled, in meters, in the same order in which you instantiated your
+     *                  SecondOrderKinematics.
+     * @param angles    The angle of each module, in radians.
+     * @param gyroYaw   The yaw reported by the gyroscope, in radians.
+     * @return The new pose of the robot, projected onto the XY plane in 3d mode. Updated in place by later updates and must
+     *         not be modified.
+     */
+    public MutablePose2d update(double[] distances, double[] angles, double gyroYaw) {
+        return update(WPIUtilJNI.now() * 1.0e-6, distances, angles, gyroYaw);
+    }
+
+    /**
+     * Updates the robot's position on the field from primitive module readings at a given time. The time is only used to time
+     * the step for the {@link #setSlipDetector slip detector}. See {@link #update(double[], double[], double)}.
+     *
+     * @param currentTimeSeconds The time of the readings, in seconds.
+     * @param distances          The distance each module has rolled, in meters.
+     * @param angles             The angle of each module, in radians.
+     * @param gyroYaw            The yaw reported by the gyroscope, in radians.
+     * @return The new pose of the robot, projected onto the XY plane in 3d mode. Updated in place by later updates and must
+     *         not be modified.
+     */
+    public MutablePose2d update(double currentTimeSeconds, double[] distances, double[] angles, double gyroYaw) {
+        return update(currentTimeSeconds, distances, angles, null, gyroYaw);
+    }
+
+    /**
+     * Updates the robot's position on the field from primitive module readings, including each module's steer rate for
+     * {@link #setArcIntegration arc integration}. See {@link #update(double[], double[], double)}.
+     *
+     * @param currentTimeSeconds The time of the readings, in seconds.
+     * @param distances          The distance each module has rolled, in meters.
+     * @param angles             The angle of each module, in radians.
+     * @param steerRates         The rate each module is steering at, in radians per second, or null if not known.
+     * @param gyroYaw            The yaw reported by the gyroscope, in radians.
+     * @return The new pose of the robot, projected onto the XY plane in 3d mode. Updated in place by later updates and must
+     *         not be modified.
+     */
+    public MutablePose2d update(double currentTimeSeconds, double[] distances, double[] angles, double[] steerRates,
+                                double gyroYaw) {
+        if (distances.length != m_numModules || angles.length != m_numModules
+                || (steerRates != null && steerRates.length != m_numModules)) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of wheel locations provided in "
+                            + "constructor");
+        }
+
+        for (int index = 0; index < m_numModules; index++) {
+            var previous = m_previousModulePositions[index];
+            double delta = distances[index] - previous.distanceMeters;
+            m_distanceDeltas[index] = delta;
+            m_deltaAngles[index] = angles[index];
+            m_moduleDeltas[index].distanceMeters = delta;
+            previous.distanceMeters = distances[index];
+        }
+        if (steerRates != null) {
+            System.arraycopy(steerRates, 0, m_steerRates, 0, m_numModules);
+        }
+        var twist = fitTwist(currentTimeSeconds);
+
+        if (m_planar) {
+            integratePlanar(Math.cos(gyroYaw), Math.sin(gyroYaw), twist.dx, twist.dy);
+            return m_planarPose;
+        }
+        integrate3d(new Rotation3d(0, 0, gyroYaw), twist.dx, twist.dy);
+        // The planar pose is unused in 3d mode, so it can hold the projection
+        return m_planarPose.set(m_poseMeters);
+    }
+
+    /**
+     * Updates the robot's position on the field, taking each module's steer rate for {@link #setArcIntegration arc
+     * integration} from its measured state. See {@link #update(Rotation2d, SwerveModulePosition[])}.
+     *
+     * @param currentTimeSeconds The time of the readings, in seconds.
+     * @param gyroAngle          The angle reported by the gyroscope.
+     * @param modulePositions    The current position of all swerve modules.
+     * @param moduleStates       The current measured state of all swerve modules, whose {@code omega} is the steer rate.
+     * @return The new pose of the robot.
+     */
+    public Pose2d update(double currentTimeSeconds, Rotation2d gyroAngle, SwerveModulePosition[] modulePositions,
+                         SecondOrderModuleState[] moduleStates) {
+        if (moduleStates.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of wheel locations provided in "
+                            + "constructor");
+        }
+        for (int index = 0; index < m_numModules; index++) {
+            m_steerRates[index] = moduleStates[index].omega;
+        }
+
+        if (m_planar) {
+            updatePlanar(currentTimeSeconds, gyroAngle, modulePositions);
+            return m_planarPose.toPose2d();
+        }
+        return update(currentTimeSeconds, new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions).toPose2d();
+    }
+
+    /**
+     * Updates the planar pose without allocating a returned pose. See {@link #update(Rotation2d, SwerveModulePosition[])}.
+     */
+    void updatePlanar(double currentTimeSeconds, Rotation2d gyroAngle, SwerveModulePosition[] modulePositions) {
+        updateModuleDeltas(modulePositions);
+
+        var twist = fitTwist(currentTimeSeconds);
+        integratePlanar(gyroAngle.getCos(), gyroAngle.getSin(), twist.dx, twist.dy);
+    }
+
+    /**
+     * Fits the twist of the step to the module deltas, through the slip detector if there is one and weighted by the module
+     * weights if there are any.
+     */
+    private Twist2d fitTwist(double currentTimeSeconds) {
+        double dt = currentTimeSeconds - m_lastUpdateTime;
+        m_lastUpdateTime = currentTimeSeconds;
+
+        Twist2d twist;
+        if (m_arcIntegration) {
+            integrateArcs(dt);
+            if (m_slipDetector != null) {
+                twist = m_slipDetector.solveDisplacements(dt, m_moduleDx, m_moduleDy, m_twist);
+            } else if (m_moduleWeights != null) {
+                m_weightedKinematics.solve(m_moduleDx, m_moduleDy, m_moduleWeights, m_twist);
+                twist = m_twist;
+            } else {
+                twist = m_kinematics.toTwist2dFromDisplacements(m_moduleDx, m_moduleDy, m_twist);
+            }
+        } else {
+            if (m_slipDetector != null) {
+                twist = m_slipDetector.solve(dt, m_distanceDeltas, m_deltaAngles, m_twist);
+            } else if (m_moduleWeights != null) {
+                m_weightedKinematics.toTwist2d(m_distanceDeltas, m_deltaAngles, m_moduleWeights, m_twist);
+                twist = m_twist;
+            } else {
+                twist = m_kinematics.toTwist2d(m_distanceDeltas, m_deltaAngles, m_twist);
+            }
+        }
+
+        System.arraycopy(m_deltaAngles, 0, m_previousAngles, 0, m_numModules);
+        System.arraycopy(m_steerRates, 0, m_previousSteerRates, 0, m_numModules);
+        Arrays.fill(m_steerRates, Double.NaN);
+        return twist;
+    }
+
+    /**
+     * Integrates each module's displacement in the robot's frame along its path from its previous angle to its current one.
+     */
+    private void integrateArcs(double dt) {
+        for (int index = 0; index < m_numModules; index++) {
+            double start = m_previousAngles[index];
+            // The shorter way around, as a module cannot steer half a turn in one update
+            double sweep = Math.IEEEremainder(m_deltaAngles[index] - start, 2.0 * Math.PI);
+            double distance = m_distanceDeltas[index];
+
+            double startRate = m_previousSteerRates[index];
+            double endRate = m_steerRates[index];
+            // Written so that unknown (NaN) rates or durations fall through to the constant-rate arc
+            if (dt > 0 && !Double.isNaN(startRate) && !Double.isNaN(endRate)) {
+                // Simpson's rule over the cubic (Hermite) angle path, whose midpoint is offset from the arc's by the rates
+                double end = start + sweep;
+                double middle = start + 0.5 * sweep + (startRate - endRate) * dt / 8.0;
+                m_moduleDx[index] = distance / 6.0 * (Math.cos(start) + 4.0 * Math.cos(middle) + Math.cos(end));
+                m_moduleDy[index] = distance / 6.0 * (Math.sin(start) + 4.0 * Math.sin(middle) + Math.sin(end));
+            } else {
+                // The mean direction over an arc swept at a constant rate is the middle direction scaled by sinc
+                double halfSweep = 0.5 * sweep;
+                double scale = Math.abs(halfSweep) < 1e-4 ? 1.0 - halfSweep * halfSweep / 6.0 : Math.sin(halfSweep) / halfSweep;
+                double middle = start + halfSweep;
+                m_moduleDx[index] = distance * scale * Math.cos(middle);
+                m_moduleDy[index] = distance * scale * Math.sin(middle);
+            }
+        }
+    }
+
+    private void resetModuleAngles(SwerveModulePosition[] modulePositions) {
+        for (int index = 0; index < m_numModules; index++) {
+            m_previousAngles[index] = modulePositions[index].angle.getRadians();
+        }
+        Arrays.fill(m_steerRates, Double.NaN);
+        Arrays.fill(m_previousSteerRates, Double.NaN);
+    }
+
+    /**
+     * Applies a translation in the robot's frame and the change in orientation since the last gyro reading to the 3d pose.
+     */
+    private void integrate3d(Rotation3d gyroAngle, double dx, double dy) {
+        var angle = gyroAngle.plus(m_gyroOffset);
+        var angle_difference = angle.minus(m_previousAngle).getQuaternion().toRotationVector();
+
+        var twist =
+                new Twist3d(
+                        dx,
+                        dy,
+                        0,
+                        angle_difference.get(0, 0),
+                        angle_difference.get(1, 0),
+                        angle_difference.get(2, 0));
+
+        var newPose = m_poseMeters.exp(twist);
+
+        m_previousAngle = angle;
+        m_poseMeters = new Pose3d(newPose.getTranslation(), angle);
+    }
+
+    /**
+     * Applies a translation in the robot's frame and the change in heading since the last gyro reading to the planar pose. The
+     * heading is only ever combined as a cosine and sine, so the only trigonometric call is the atan2 for the change in heading.
+     */
+    private void integratePlanar(double gyroCos, double gyroSin, double dx, double dy) {
+        // angle = gyroAngle + offset
+        double cos = gyroCos * m_gyroOffsetCos - gyroSin * m_gyroOffsetSin;
+        double sin = gyroCos * m_gyroOffsetSin + gyroSin * m_gyroOffsetCos;
+
+        // angle - previous angle
+        double previousCos = m_planarPose.getCos();
+        double previousSin = m_planarPose.getSin();
+        double differenceCos = previousCos * cos + previousSin * sin;
+        double differenceSin = previousCos * sin - previousSin * cos;
+
+        m_planarPose
+                .exp(dx, dy, Math.atan2(differenceSin, differenceCos), differenceCos, differenceSin)
+                .setRotation(cos, sin);
+    }
+
+    private void updateModuleDeltas(SwerveModulePosition[] modulePositions) {
+        if (modulePositions.length != m_numModules) {
+            throw new IllegalArgumentException(
+                    "Number of modules is not consistent with number of wheel locations provided in "
+                            + "constructor");
+        }
+
+        for (int index = 0; index < m_numModules; index++) {
+            var current = modulePositions[index];
+            var previous = m_previousModulePositions[index];
+            var delta = m_moduleDeltas[index];
+
+            delta.distanceMeters = current.distanceMeters - previous.distanceMeters;
+            delta.angle = current.angle;
+            previous.distanceMeters = current.distanceMeters;
+            previous.angle = current.angle;
+            m_distanceDeltas[index] = delta.distanceMeters;
+            m_deltaAngles[index] = current.angle.getRadians();
+        }
     }
 }
\ No newline at end of file
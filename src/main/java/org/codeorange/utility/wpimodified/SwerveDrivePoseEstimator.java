@@ -5,10 +5,8 @@
 package org.codeorange.utility.wpimodified;
 
 import edu.wpi.first.math.Matrix;
-import edu.wpi.first.math.Nat;
 import edu.wpi.first.math.VecBuilder;
 import edu.wpi.first.math.geometry.*;
-import edu.wpi.first.math.interpolation.TimeInterpolatableBuffer;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
@@ -16,7 +14,24 @@ import edu.wpi.first.math.numbers.N4;
 import edu.wpi.first.util.WPIUtilJNI;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.Timer;
+import org.codeorange.utility.estimation.EstimatorRecorder;
+import org.codeorange.utility.estimation.PlanarPoseEkf;
+import org.codeorange.utility.estimation.PoseCheckpointer;
+import org.codeorange.utility.estimation.PoseHistoryBuffer;
+import org.codeorange.utility.estimation.PoseSnapshot;
+import org.codeorange.utility.estimation.PoseSnapshotPublisher;
+import org.codeorange.utility.estimation.ReplayHistory;
+import org.codeorange.utility.estimation.SensorCalibrator;
+import org.codeorange.utility.estimation.VisionGainCache;
+import org.codeorange.utility.estimation.VisionGate;
+import org.codeorange.utility.estimation.VisionMeasurement;
+import org.codeorange.utility.estimation.VisionMeasurementQueue;
+import org.codeorange.utility.geometry.MutablePose2d;
+import org.codeorange.utility.geometry.MutablePose3d;
 import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.codeorange.utility.swerve.SlipDetector;
+
+import java.util.Optional;
 
 /**
  * This class wraps {@link SwerveDriveOdometry Swerve Drive Odometry} to fuse latency-compensated vision measurements with swerve
@@ -27,19 +42,85 @@ import org.codeorange.utility.swerve.SecondOrderKinematics;
  *
  * <p>{@link SwerveDrivePoseEstimator#addVisionMeasurement} can be called as infrequently as you
  * want; if you never call it, then this class will behave as regular encoder odometry.
+ *
+ * <p>An estimator constructed with 2d types runs in planar mode, which keeps the estimate as primitives and uses the
+ * closed-form SE(2) exponential and logarithm; 3d inputs are projected onto the XY plane. An estimator constructed with 3d
+ * types runs in 3d mode. See {@link #set3dMode(boolean)}.
+ *
+ * <p>Vision measurements, rollbacks, undos and {@link #getPoseAt} are allocation-free in both modes: the 3d estimate is kept
+ * in a {@link MutablePose3d}, which does the SE(3) exponential and logarithm on primitives. 3d odometry updates still allocate
+ * in {@link SwerveDriveOdometry}.
  */
 public class SwerveDrivePoseEstimator {
+    private final SecondOrderKinematics m_kinematics;
     private final SwerveDriveOdometry m_odometry;
-    private final Matrix<N4, N1> m_q = new Matrix<>(Nat.N4(), Nat.N1());
+    private final double[] m_q = new double[4];
     private final int m_numModules;
-    private Matrix<N4, N4> m_visionK = new Matrix<>(Nat.N4(), Nat.N4());
+    private final double[] m_visionK = new double[4];
+    private final double[] m_visionStdDevs = new double[4];
+    private final double[] m_measurementK = new double[4];
+    private final double[] m_measurementStdDevs = new double[4];
+    private final double[] m_gatedK = new double[4];
+    private final VisionGainCache m_gainCache;
 
-    private static final double kBufferDuration = 1.5;
+    private VisionGate m_gate;
+    private SensorCalibrator m_calibrator;
 
-    private final TimeInterpolatableBuffer<Pose3d> m_poseBuffer =
-            TimeInterpolatableBuffer.createBuffer(kBufferDuration);
+    private PlanarPoseEkf m_ekf;
+    private final double[] m_ekfVariances = new double[4];
 
-    private Pose3d m_poseEstimate;
+    private static final double kBufferDuration = 1.5;
+    // Enough room for the full buffer duration at a 250 Hz odometry rate
+    private static final int kBufferCapacity = 512;
+    private static final int kReplayObservationCapacity = 256;
+
+    private final PoseHistoryBuffer m_poseBuffer = new PoseHistoryBuffer(kBufferDuration, kBufferCapacity);
+    private final PoseHistoryBuffer.Sample m_sample = new PoseHistoryBuffer.Sample();
+    private final PoseHistoryBuffer.Sample m_calibrationSample = new PoseHistoryBuffer.Sample();
+    private final double[] m_rotated = new double[3];
+    // The window the odometry velocity at a vision measurement is taken over, for calibration
+    private static final double kCalibrationVelocityWindow = 0.02;
+    private static final double kCalibrationRotationBlend = 0.05;
+    private double m_odometryToFieldCos = Double.NaN, m_odometryToFieldSin = Double.NaN;
+
+    private ReplayHistory m_replay;
+
+    private VisionMeasurementQueue m_visionQueue;
+    private VisionMeasurement[] m_drainedMeasurements;
+
+    private final MutablePose3d m_poseEstimate = new MutablePose3d();
+    // Scratch poses and twists for the 3d path
+    private final MutablePose3d m_odometryPose = new MutablePose3d();
+    private final MutablePose3d m_previousRecord = new MutablePose3d();
+    private final MutablePose3d m_working = new MutablePose3d();
+    private final MutablePose3d m_vision = new MutablePose3d();
+    private final Twist3d m_delta = new Twist3d();
+    private final Twist3d m_backtrack = new Twist3d();
+    private final Twist3d m_innovation = new Twist3d();
+
+    private EstimatorRecorder m_recorder;
+
+    private PoseCheckpointer m_checkpointer;
+    private final double[] m_checkpointCovariance = new double[6];
+
+    private final PoseSnapshotPublisher m_snapshots = new PoseSnapshotPublisher();
+    private double m_lastTimestamp = Double.NaN;
+    // The velocity over the last odometry step and the low-pass filtered acceleration, in the field frame
+    private double m_vx, m_vy, m_vz, m_omega;
+    private double m_ax, m_ay, m_alpha;
+    private static final double kAccelerationTimeConstant = 0.1;
+
+    private boolean m_planar = false;
+    private final MutablePose2d m_planarEstimate = new MutablePose2d();
+    // Scratch poses and twists for the planar path
+    private final MutablePose2d m_planarLastOdometry = new MutablePose2d();
+    private final MutablePose2d m_planarRecord = new MutablePose2d();
+    private final MutablePose2d m_planarPreviousRecord = new MutablePose2d();
+    private final MutablePose2d m_planarWorking = new MutablePose2d();
+    private final MutablePose2d m_planarVision = new MutablePose2d();
+    private final Twist2d m_planarDelta = new Twist2d();
+    private final Twist2d m_planarBacktrack = new Twist2d();
+    private final Twist2d m_planarInnovation = new Twist2d();
 
     /**
      * Constructs a SwerveDrivePoseEstimator with default standard deviations for the model and vision measurements.
@@ -113,16 +194,19 @@ public class SwerveDrivePoseEstimator {
             Pose3d initialPoseMeters,
             Matrix<N4, N1> stateStdDevs,
             Matrix<N4, N1> visionMeasurementStdDevs) {
+        m_kinematics = kinematics;
         m_odometry = new SwerveDriveOdometry(kinematics, gyroAngle, modulePositions, initialPoseMeters);
-        m_poseEstimate = m_odometry.getPoseMeters3d();
+        m_poseEstimate.set(m_odometry.getPoseMeters3d());
 
         for (int i = 0; i < 4; ++i) {
-            m_q.set(i, 0, stateStdDevs.get(i, 0) * stateStdDevs.get(i, 0));
+            m_q[i] = stateStdDevs.get(i, 0) * stateStdDevs.get(i, 0);
         }
+        m_gainCache = new VisionGainCache(m_q);
 
         m_numModules = modulePositions.length;
 
         setVisionMeasurementStdDevs3d(visionMeasurementStdDevs);
+        publishSnapshot();
     }
 
     /**
@@ -156,6 +240,40 @@ public class SwerveDrivePoseEstimator {
                         visionMeasurementStdDevs.get(1, 0),
                         0,
                         visionMeasurementStdDevs.get(2, 0)));
+        set3dMode(false);
+    }
+
+    /**
+     * Switches between planar and 3d mode, carrying the current estimate over. Switching to planar mode drops the z position,
+     * roll and pitch of the estimate; the odometry history is kept.
+     *
+     * @param enabled True to estimate the full 3d pose, false to estimate the pose on the XY plane only.
+     */
+    public void set3dMode(boolean enabled) {
+        if (enabled != m_planar) {
+            return;
+        }
+
+        m_odometry.set3dMode(enabled);
+        if (enabled) {
+            m_poseEstimate.set(m_planarEstimate);
+        } else {
+            m_planarEstimate.set(m_poseEstimate.getX(), m_poseEstimate.getY(), m_poseEstimate.getQw(), m_poseEstimate.getQx(),
+                    m_poseEstimate.getQy(), m_poseEstimate.getQz());
+        }
+        m_planar = !enabled;
+        publishSnapshot();
+
+        if (m_recorder != null) {
+            m_recorder.recordMode(enabled);
+        }
+    }
+
+    /**
+     * @return Whether the full 3d pose is being estimated, rather than the pose on the XY plane only.
+     */
+    public boolean is3dMode() {
+        return !m_planar;
     }
 
     /**
@@ -184,21 +302,270 @@ public class SwerveDrivePoseEstimator {
      *                                 meters and radians.
      */
     public void setVisionMeasurementStdDevs3d(Matrix<N4, N1> visionMeasurementStdDevs) {
-        var r = new double[4];
-        for (int i = 0; i < 4; ++i) {
-            r[i] = visionMeasurementStdDevs.get(i, 0) * visionMeasurementStdDevs.get(i, 0);
-        }
+        setVisionMeasurementStdDevs3d(
+                visionMeasurementStdDevs.get(0, 0),
+                visionMeasurementStdDevs.get(1, 0),
+                visionMeasurementStdDevs.get(2, 0),
+                visionMeasurementStdDevs.get(3, 0));
+    }
 
+    private void setVisionMeasurementStdDevs3d(double xStdDev, double yStdDev, double zStdDev, double thetaStdDev) {
         // Solve for closed form Kalman gain for continuous Kalman filter with A = 0
         // and C = I. See wpimath/algorithms.md.
-        for (int row = 0; row < 4; ++row) {
-            if (m_q.get(row, 0) == 0.0) {
-                m_visionK.set(row, row, 0.0);
-            } else {
-                m_visionK.set(
-                        row, row, m_q.get(row, 0) / (m_q.get(row, 0) + Math.sqrt(m_q.get(row, 0) * r[row])));
-            }
+        m_visionStdDevs[0] = xStdDev;
+        m_visionStdDevs[1] = yStdDev;
+        m_visionStdDevs[2] = zStdDev;
+        m_visionStdDevs[3] = thetaStdDev;
+        m_visionK[0] = VisionGainCache.computeGain(m_q[0], xStdDev);
+        m_visionK[1] = VisionGainCache.computeGain(m_q[1], yStdDev);
+        m_visionK[2] = VisionGainCache.computeGain(m_q[2], zStdDev);
+        m_visionK[3] = VisionGainCache.computeGain(m_q[3], thetaStdDev);
+
+        if (m_recorder != null) {
+            m_recorder.recordVisionStdDevs(m_visionStdDevs);
+        }
+    }
+
+    /**
+     * Enables replay-based latency compensation.
+     *
+     * <p>In this mode every odometry step and vision measurement is kept in a bounded history. A vision measurement rewinds the
+     * estimate to its timestamp and re-integrates all odometry and vision after it, so late and out-of-order measurements are
+     * fused at the point in time they were captured rather than approximated with a single backtrack and fast-forward. Replay
+     * runs inside {@link #updateWithTime}; the estimate keeps following odometry until the replay has caught up.
+     *
+     * @param maxReplayStepsPerUpdate The maximum number of odometry steps to re-integrate per update, which bounds the extra
+     *                                work done in any one loop.
+     */
+    public void enableReplay(int maxReplayStepsPerUpdate) {
+        m_replay = new ReplayHistory(kBufferDuration, kBufferCapacity, kReplayObservationCapacity, maxReplayStepsPerUpdate);
+    }
+
+    /**
+     * Disables replay-based latency compensation and discards the replay history.
+     */
+    public void disableReplay() {
+        m_replay = null;
+    }
+
+    /**
+     * @return Whether replay-based latency compensation is enabled.
+     */
+    public boolean isReplayEnabled() {
+        return m_replay != null;
+    }
+
+    /**
+     * Enables the EKF mode of the planar estimator.
+     *
+     * <p>Instead of correcting with a fixed steady-state gain, the estimator tracks the full 3x3 covariance of (x, y, theta):
+     * it grows with every odometry step according to a module and gyro noise model and shrinks with every vision measurement.
+     * Vision measurements are fused with a full Kalman update, and a {@link VisionGate} uses the current covariance. See
+     * {@link PlanarPoseEkf}. The covariance starts at the state standard deviations this estimator was constructed with.
+     *
+     * <p>The EKF only applies in planar mode and when replay is disabled; otherwise the steady-state gain is used.
+     *
+     * @param wheelStdDevPerMeter The standard deviation of a module's distance error per meter it rolls, from slip.
+     * @param encoderStdDev       The standard deviation of a module's distance error per odometry step, in meters.
+     * @param gyroStdDevPerRadian The standard deviation of the gyro's heading error per radian turned, from scale error.
+     * @param gyroStdDevPerStep   The standard deviation of the gyro's heading error per odometry step, in radians.
+     */
+    public void enableEkf(double wheelStdDevPerMeter, double encoderStdDev, double gyroStdDevPerRadian,
+                          double gyroStdDevPerStep) {
+        m_ekf = new PlanarPoseEkf(wheelStdDevPerMeter, encoderStdDev, gyroStdDevPerRadian, gyroStdDevPerStep,
+                m_q[0], m_q[1], m_q[3]);
+    }
+
+    /**
+     * Disables the EKF mode and returns to the steady-state gain.
+     */
+    public void disableEkf() {
+        m_ekf = null;
+    }
+
+    /**
+     * @return Whether the EKF mode is enabled.
+     */
+    public boolean isEkfEnabled() {
+        return m_ekf != null;
+    }
+
+    /**
+     * @return The EKF tracking the estimate's covariance, or null if the EKF mode is disabled.
+     */
+    public PlanarPoseEkf getEkf() {
+        return m_ekf;
+    }
+
+    /**
+     * Sets a gate that screens vision measurements for outliers before they are fused. Each measurement's innovation is taken
+     * against the estimate at its timestamp, reconstructed from the odometry buffer, and measurements too far from it are
+     * rejected or down-weighted. See {@link VisionGate}.
+     *
+     * @param gate The gate to use, or null to fuse every measurement.
+     */
+    public void setVisionGate(VisionGate gate) {
+        m_gate = gate;
+    }
+
+    /**
+     * @return The gate screening vision measurements, or null if there is none.
+     */
+    public VisionGate getVisionGate() {
+        return m_gate;
+    }
+
+    /**
+     * Sets a calibrator that learns each camera's timestamp offset and the gyro's yaw drift from the residuals of vision
+     * measurements, and applies both: vision timestamps are shifted by their camera's offset before they are looked up, and
+     * the drift is removed from the estimate's heading every update. Only measurements that pass the {@link VisionGate} without
+     * being down-weighted are learned from. See {@link SensorCalibrator}.
+     *
+     * @param calibrator The calibrator to use, or null to stop calibrating.
+     */
+    public void setSensorCalibrator(SensorCalibrator calibrator) {
+        m_calibrator = calibrator;
+    }
+
+    /**
+     * @return The calibrator learning timestamp offsets and gyro drift, or null if there is none.
+     */
+    public SensorCalibrator getSensorCalibrator() {
+        return m_calibrator;
+    }
+
+    /**
+     * Sets a detector that makes odometry robust to slipping modules. See {@link SwerveDriveOdometry#setSlipDetector}.
+     *
+     * @param detector The detector to use, or null to use plain forward kinematics.
+     */
+    public void setSlipDetector(SlipDetector detector) {
+        m_odometry.setSlipDetector(detector);
+    }
+
+    /**
+     * @return The detector making odometry robust to slipping modules, or null if there is none.
+     */
+    public SlipDetector getSlipDetector() {
+        return m_odometry.getSlipDetector();
+    }
+
+    /**
+     * Sets the confidence in each module's measurement for odometry. See {@link SwerveDriveOdometry#setModuleWeights}.
+     *
+     * @param weights The confidence in each module between 0 and 1, or null to trust every module equally.
+     */
+    public void setModuleWeights(double[] weights) {
+        m_odometry.setModuleWeights(weights);
+    }
+
+    /**
+     * Enables or disables integrating each module's displacement along its arc. See
+     * {@link SwerveDriveOdometry#setArcIntegration}.
+     *
+     * @param enabled True to integrate each module's arc, false to use its current angle only.
+     */
+    public void setArcIntegration(boolean enabled) {
+        m_odometry.setArcIntegration(enabled);
+    }
+
+    /**
+     * Sets a queue that vision measurements are drained from once per {@link #updateWithTime} call.
+     *
+     * <p>Cameras can then parse their results and {@link VisionMeasurementQueue#offer offer} them from their own threads, and
+     * only the thread that updates this estimator ever touches the pose estimate.
+     *
+     * @param queue The queue to drain, or null to stop draining.
+     */
+    public void setVisionQueue(VisionMeasurementQueue queue) {
+        m_visionQueue = queue;
+        if (queue == null) {
+            m_drainedMeasurements = null;
+            return;
+        }
+
+        m_drainedMeasurements = new VisionMeasurement[queue.capacity()];
+        for (int i = 0; i < m_drainedMeasurements.length; i++) {
+            m_drainedMeasurements[i] = new VisionMeasurement();
+        }
+    }
+
+    /**
+     * Starts recording every update and vision measurement to a recorder, so the run can be replayed offline with
+     * {@link org.codeorange.utility.estimation.EstimatorReplayer}. The recording starts from the current estimate; attach the
+     * recorder before the first update for the replay to reproduce the run exactly.
+     *
+     * @param recorder The recorder to write to, which must not have been started yet, or null to stop recording. The recorder
+     *                 is not closed when it is detached.
+     */
+    public void setRecorder(EstimatorRecorder recorder) {
+        m_recorder = recorder;
+        if (recorder == null) {
+            return;
+        }
+
+        double[] stateStdDevs = new double[4];
+        for (int i = 0; i < 4; i++) {
+            stateStdDevs[i] = Math.sqrt(m_q[i]);
+        }
+        recorder.start(!m_planar, m_kinematics.getModuleTranslations(), stateStdDevs, m_visionStdDevs);
+        recorder.recordReset(m_odometry.getLastGyroAngle(), m_odometry.getPreviousModulePositions(),
+                getEstimatedPosition3d());
+    }
+
+    /**
+     * @return The recorder this estimator is writing to, or null if it is not being recorded.
+     */
+    public EstimatorRecorder getRecorder() {
+        return m_recorder;
+    }
+
+    /**
+     * Restores the estimate from a checkpointer if it holds a fresh checkpoint, then saves a checkpoint to it every
+     * {@link PoseCheckpointer#kDefaultPeriod period} of updates. Set this right after constructing the estimator, so that after
+     * robot code restarts the pose is available before the first update rather than once tags are seen again.
+     *
+     * <p>The checkpoint's heading is restored relative to the gyro angle this estimator was constructed or last reset with, and
+     * its EKF covariance is restored if full-covariance mode is enabled. The position is restored as it was saved, so a robot
+     * pushed while code was down is off by however far it moved until vision corrects it.
+     *
+     * @param checkpointer The checkpointer to restore from and save to, or null to stop checkpointing.
+     * @return Whether a checkpoint was restored.
+     */
+    public boolean setCheckpointer(PoseCheckpointer checkpointer) {
+        m_checkpointer = checkpointer;
+        if (checkpointer == null) {
+            return false;
+        }
+
+        var checkpoint = checkpointer.read();
+        if (checkpoint.isEmpty()) {
+            return false;
+        }
+
+        var saved = checkpoint.get();
+        var gyroAngle = m_odometry.getLastGyroAngle();
+        double yaw = gyroAngle.getZ() + saved.gyroOffset();
+        var modulePositions = m_odometry.getPreviousModulePositions();
+        if (m_planar) {
+            resetPosition(gyroAngle.toRotation2d(), modulePositions,
+                    new Pose2d(saved.pose().getX(), saved.pose().getY(), new Rotation2d(yaw)));
+        } else {
+            var rotation = saved.pose().getRotation();
+            resetPosition(gyroAngle, modulePositions, new Pose3d(saved.pose().getTranslation(),
+                    new Rotation3d(rotation.getX(), rotation.getY(), yaw)));
         }
+        if (m_ekf != null && saved.covariance() != null) {
+            m_ekf.setCovariance(saved.covariance());
+        }
+        return true;
+    }
+
+    /**
+     * @return The checkpointer this estimator is saving to, or null if there is none.
+     */
+    public PoseCheckpointer getCheckpointer() {
+        return m_checkpointer;
     }
 
     /**
@@ -215,8 +582,11 @@ public class SwerveDrivePoseEstimator {
             Rotation3d gyroAngle, SwerveModulePosition[] modulePositions, Pose3d poseMeters) {
         // Reset state estimate and error covariance
         m_odometry.resetPosition(gyroAngle, modulePositions, poseMeters);
-        m_poseBuffer.clear();
-        m_poseEstimate = m_odometry.getPoseMeters3d();
+        resetEstimate();
+
+        if (m_recorder != null) {
+            m_recorder.recordReset(gyroAngle, modulePositions, poseMeters);
+        }
     }
 
     /**
@@ -231,8 +601,40 @@ public class SwerveDrivePoseEstimator {
      */
     public void resetPosition(
             Rotation2d gyroAngle, SwerveModulePosition[] modulePositions, Pose2d poseMeters) {
-        resetPosition(
-                new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions, new Pose3d(poseMeters));
+        if (!m_planar) {
+            resetPosition(
+                    new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions, new Pose3d(poseMeters));
+            return;
+        }
+
+        m_odometry.resetPosition(gyroAngle, modulePositions, poseMeters);
+        resetEstimate();
+
+        if (m_recorder != null) {
+            m_recorder.recordReset(gyroAngle, modulePositions, poseMeters);
+        }
+    }
+
+    private void resetEstimate() {
+        m_poseBuffer.clear();
+        if (m_replay != null) {
+            m_replay.clear();
+        }
+        if (m_ekf != null) {
+            m_ekf.reset(m_q[0], m_q[1], m_q[3]);
+        }
+        if (m_planar) {
+            m_planarEstimate.set(m_odometry.getPlanarPose());
+        } else {
+            m_poseEstimate.set(m_odometry.getPoseMeters3d());
+        }
+        m_vx = m_vy = m_vz = m_omega = 0.0;
+        m_ax = m_ay = m_alpha = 0.0;
+        if (m_calibrator != null) {
+            m_calibrator.clearAnchors();
+        }
+        m_odometryToFieldCos = m_odometryToFieldSin = Double.NaN;
+        publishSnapshot();
     }
 
     /**
@@ -241,6 +643,9 @@ public class SwerveDrivePoseEstimator {
      * @return The estimated robot pose in meters.
      */
     public Pose2d getEstimatedPosition() {
+        if (m_planar) {
+            return m_planarEstimate.toPose2d();
+        }
         return m_poseEstimate.toPose2d();
     }
 
@@ -250,7 +655,202 @@ public class SwerveDrivePoseEstimator {
      * @return The estimated robot pose in meters.
      */
     public Pose3d getEstimatedPosition3d() {
-        return m_poseEstimate;
+        if (m_planar) {
+            return m_planarEstimate.toPose3d();
+        }
+        return m_poseEstimate.toPose3d();
+    }
+
+    /**
+     * Reads the latest estimate together with the robot's velocity and the time of the last update. Unlike
+     * {@link #getEstimatedPosition()}, this is safe to call from any thread while the estimator is being updated: the snapshot
+     * is published at the end of every update, reset and vision measurement, and reading it never blocks or allocates. See
+     * {@link PoseSnapshotPublisher}.
+     *
+     * @param out The snapshot to write into, typically one kept per reading thread.
+     * @return {@code out}.
+     */
+    public PoseSnapshot getSnapshot(PoseSnapshot out) {
+        return m_snapshots.read(out);
+    }
+
+    /**
+     * Publishes the current estimate and velocity to {@link #getSnapshot} readers.
+     */
+    private void publishSnapshot() {
+        if (m_planar) {
+            m_snapshots.publish(m_lastTimestamp, m_planarEstimate.getX(), m_planarEstimate.getY(), 0.0,
+                    m_planarEstimate.getHalfCos(), 0.0, 0.0, m_planarEstimate.getHalfSin(), m_vx, m_vy, 0.0, m_omega);
+        } else {
+            m_snapshots.publish(m_lastTimestamp, m_poseEstimate.getX(), m_poseEstimate.getY(), m_poseEstimate.getZ(),
+                    m_poseEstimate.getQw(), m_poseEstimate.getQx(), m_poseEstimate.getQy(), m_poseEstimate.getQz(),
+                    m_vx, m_vy, m_vz, m_omega);
+        }
+    }
+
+    /**
+     * Saves a checkpoint of the estimate if one is due.
+     */
+    private void checkpoint(double currentTimeSeconds) {
+        if (m_checkpointer == null || !m_checkpointer.isDue(currentTimeSeconds)) {
+            return;
+        }
+
+        double[] covariance = null;
+        if (m_ekf != null) {
+            m_ekf.getCovariance(m_checkpointCovariance);
+            covariance = m_checkpointCovariance;
+        }
+        double gyroYaw = m_odometry.getLastGyroAngle().getZ();
+        if (m_planar) {
+            m_checkpointer.write(m_planarEstimate.getX(), m_planarEstimate.getY(), 0.0,
+                    m_planarEstimate.getHalfCos(), 0.0, 0.0, m_planarEstimate.getHalfSin(),
+                    m_planarEstimate.getRadians() - gyroYaw, covariance);
+        } else {
+            m_checkpointer.write(m_poseEstimate.getX(), m_poseEstimate.getY(), m_poseEstimate.getZ(),
+                    m_poseEstimate.getQw(), m_poseEstimate.getQx(), m_poseEstimate.getQy(), m_poseEstimate.getQz(),
+                    m_poseEstimate.getYaw() - gyroYaw, covariance);
+        }
+    }
+
+    /**
+     * Sets the velocity from an odometry step in the field frame. Steps without a positive change in time keep the previous
+     * velocity.
+     */
+    private void setVelocity(double currentTimeSeconds, double dx, double dy, double dz, double dtheta) {
+        double dt = currentTimeSeconds - m_lastTimestamp;
+        m_lastTimestamp = currentTimeSeconds;
+        // Written so that the first step, where dt is NaN, is skipped
+        if (!(dt > 0.0)) {
+            return;
+        }
+        double vx = dx / dt;
+        double vy = dy / dt;
+        double omega = dtheta / dt;
+
+        // Differentiating the velocity amplifies encoder noise, so the acceleration is low-pass filtered
+        double blend = dt / (kAccelerationTimeConstant + dt);
+        m_ax += ((vx - m_vx) / dt - m_ax) * blend;
+        m_ay += ((vy - m_vy) / dt - m_ay) * blend;
+        m_alpha += ((omega - m_omega) / dt - m_alpha) * blend;
+
+        m_vx = vx;
+        m_vy = vy;
+        m_vz = dz / dt;
+        m_omega = omega;
+    }
+
+    /**
+     * Gets the estimated pose of the robot at a past time, such as the time a camera frame was captured. The odometry history
+     * is sampled at that time with an O(log n) interpolated lookup, and the pose is carried from the current estimate through
+     * the odometry between then and now, so it includes every vision correction made since.
+     *
+     * <p>Allocation-free in both modes. Not thread-safe; call it from the thread that updates this estimator.
+     *
+     * @param timestampSeconds The time to get the pose at, in seconds, in the same time base as the updates. Times after the
+     *                         latest update give the current estimate.
+     * @param out              The pose to write into. Only the projection onto the XY plane is written in 3d mode.
+     * @return False if there is no odometry history covering the time, in which case {@code out} is left untouched.
+     */
+    public boolean getPoseAt(double timestampSeconds, MutablePose2d out) {
+        if (m_poseBuffer.isEmpty() || m_poseBuffer.getLatestTimestamp() - kBufferDuration > timestampSeconds) {
+            return false;
+        }
+        if (!m_poseBuffer.getSample(timestampSeconds, m_sample)) {
+            return false;
+        }
+
+        if (m_planar) {
+            setRecord(m_planarRecord, m_sample);
+            out.set(m_planarEstimate).exp(m_odometry.getPlanarPose().log(m_planarRecord, m_planarBacktrack));
+        } else {
+            setPastPose3d(m_sample, out);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the projection of the 3d estimate at the time of a history sample. Carrying the estimate back through the
+     * odometry, {@code estimate.exp(odometry.log(record))}, is the rigid transform estimate * odometry⁻¹ * record, so it is
+     * composed here directly from quaternions and translations instead of through {@link Pose3d#exp} and
+     * {@link Pose3d#log}, which allocate.
+     */
+    private void setPastPose3d(PoseHistoryBuffer.Sample record, MutablePose2d out) {
+        var odometry = m_odometry.getPoseMeters3d();
+        var qo = odometry.getRotation().getQuaternion();
+
+        // The record relative to the current odometry pose: rotation conj(qo) * qr, translation rotated by conj(qo)
+        double ow = qo.getW(), ox = -qo.getX(), oy = -qo.getY(), oz = -qo.getZ();
+        double rw = ow * record.qw - ox * record.qx - oy * record.qy - oz * record.qz;
+        double rx = ow * record.qx + ox * record.qw + oy * record.qz - oz * record.qy;
+        double ry = ow * record.qy - ox * record.qz + oy * record.qw + oz * record.qx;
+        double rz = ow * record.qz + ox * record.qy - oy * record.qx + oz * record.qw;
+        double tx = record.x - odometry.getX();
+        double ty = record.y - odometry.getY();
+        double tz = record.z - odometry.getZ();
+        double[] relative = m_rotated;
+        MutablePose3d.rotate(ow, ox, oy, oz, tx, ty, tz, relative);
+
+        // Then applied to the current estimate
+        double ew = m_poseEstimate.getQw(), ex = m_poseEstimate.getQx(), ey = m_poseEstimate.getQy(),
+                ez = m_poseEstimate.getQz();
+        double qw = ew * rw - ex * rx - ey * ry - ez * rz;
+        double qx = ew * rx + ex * rw + ey * rz - ez * ry;
+        double qy = ew * ry - ex * rz + ey * rw + ez * rx;
+        double qz = ew * rz + ex * ry - ey * rx + ez * rw;
+        MutablePose3d.rotate(ew, ex, ey, ez, relative[0], relative[1], relative[2], relative);
+        out.set(m_poseEstimate.getX() + relative[0], m_poseEstimate.getY() + relative[1], qw, qx, qy, qz);
+    }
+
+    /**
+     * Gets the estimated pose of the robot at a past time. See {@link #getPoseAt(double, MutablePose2d)}.
+     *
+     * @param timestampSeconds The time to get the pose at, in seconds.
+     * @return The pose at the given time, or an empty Optional if there is no odometry history covering it.
+     */
+    public Optional<Pose2d> getPoseAt(double timestampSeconds) {
+        var pose = new MutablePose2d();
+        return getPoseAt(timestampSeconds, pose) ? Optional.of(pose.toPose2d()) : Optional.empty();
+    }
+
+    /**
+     * Extrapolates the estimated pose into the future, such as to where the robot will be when a game piece leaves the shooter.
+     * The robot is assumed to keep its current field-relative velocity and acceleration, and its current rate of turning and
+     * angular acceleration. The velocity comes from the last odometry step and the acceleration is low-pass filtered.
+     *
+     * <p>Allocation-free. Not thread-safe; call it from the thread that updates this estimator.
+     *
+     * @param dtSeconds How far past the latest update to extrapolate, in seconds.
+     * @param out       The pose to write into.
+     * @return {@code out}.
+     */
+    public MutablePose2d predictPose(double dtSeconds, MutablePose2d out) {
+        if (m_planar) {
+            out.set(m_planarEstimate);
+        } else {
+            out.set(m_poseEstimate.getX(), m_poseEstimate.getY(), m_poseEstimate.getQw(), m_poseEstimate.getQx(),
+                    m_poseEstimate.getQy(), m_poseEstimate.getQz());
+        }
+
+        double halfDtSquared = 0.5 * dtSeconds * dtSeconds;
+        double dtheta = m_omega * dtSeconds + m_alpha * halfDtSquared;
+        double cos = Math.cos(dtheta);
+        double sin = Math.sin(dtheta);
+        return out.set(
+                out.getX() + m_vx * dtSeconds + m_ax * halfDtSquared,
+                out.getY() + m_vy * dtSeconds + m_ay * halfDtSquared,
+                out.getCos() * cos - out.getSin() * sin,
+                out.getSin() * cos + out.getCos() * sin);
+    }
+
+    /**
+     * Extrapolates the estimated pose into the future. See {@link #predictPose(double, MutablePose2d)}.
+     *
+     * @param dtSeconds How far past the latest update to extrapolate, in seconds.
+     * @return The predicted pose.
+     */
+    public Pose2d predictPose(double dtSeconds) {
+        return predictPose(dtSeconds, new MutablePose2d()).toPose2d();
     }
 
     /**
@@ -272,7 +872,16 @@ public class SwerveDrivePoseEstimator {
      *                              the epochs.
      */
     public void addVisionMeasurement(Pose2d visionRobotPoseMeters, double timestampSeconds) {
-        addVisionMeasurement(new Pose3d(visionRobotPoseMeters), timestampSeconds);
+        if (m_recorder != null) {
+            m_recorder.recordVision(0, visionRobotPoseMeters, timestampSeconds, null);
+        }
+        if (m_planar) {
+            m_planarVision.set(visionRobotPoseMeters);
+            addPlanarVisionMeasurement(0, m_planarVision, timestampSeconds, m_visionStdDevs, m_visionK);
+        } else {
+            addVisionMeasurement(0, new Pose3d(visionRobotPoseMeters), timestampSeconds, m_visionStdDevs, m_visionK);
+        }
+        publishSnapshot();
     }
 
     /**
@@ -296,62 +905,483 @@ public class SwerveDrivePoseEstimator {
     double errorTime;
 
     public void addVisionMeasurement(Pose3d visionRobotPoseMeters, double timestampSeconds) {
+        if (m_recorder != null) {
+            m_recorder.recordVision(0, visionRobotPoseMeters, timestampSeconds, null);
+        }
+        addVisionMeasurement(0, visionRobotPoseMeters, timestampSeconds, m_visionStdDevs, m_visionK);
+        publishSnapshot();
+    }
+
+    /**
+     * Adds a single vision measurement to the Kalman Filter. Unlike the other overloads, this keeps track of which camera the
+     * measurement came from for the {@link VisionGate} counters.
+     *
+     * @param measurement The measurement to apply.
+     */
+    public void addVisionMeasurement(VisionMeasurement measurement) {
+        if (m_recorder != null) {
+            m_recorder.recordVision(measurement.cameraId, measurement.pose, measurement.timestampSeconds,
+                    measurement.hasStdDevs ? measurement.stdDevs : null);
+        }
+        applyVisionMeasurement(measurement);
+        publishSnapshot();
+    }
+
+    private void applyVisionMeasurement(VisionMeasurement measurement) {
+        var gains = getGains(measurement);
+        if (gains != null) {
+            addVisionMeasurement(measurement.cameraId, measurement.pose, measurement.timestampSeconds,
+                    getStdDevs(measurement), gains);
+        }
+    }
+
+    private void addVisionMeasurement(int cameraId, Pose3d visionRobotPoseMeters, double timestampSeconds,
+                                      double[] stdDevs, double[] gains) {
+        if (m_planar) {
+            m_planarVision.set(visionRobotPoseMeters);
+            addPlanarVisionMeasurement(cameraId, m_planarVision, timestampSeconds, stdDevs, gains);
+            return;
+        }
+
+        timestampSeconds = correctTimestamp(cameraId, timestampSeconds);
+        if (m_replay != null && m_gate == null) {
+            m_replay.addObservation(timestampSeconds, visionRobotPoseMeters, gains[0], gains[1], gains[2], gains[3]);
+            return;
+        }
+
         try {
 
             // Step 0: If this measurement is old enough to be outside the pose buffer's timespan, skip.
-            var lastEntry = m_poseBuffer.getInternalBuffer().lastEntry();
-            if (lastEntry != null && lastEntry.getKey() - kBufferDuration > timestampSeconds) {
+            if (!m_poseBuffer.isEmpty() && m_poseBuffer.getLatestTimestamp() - kBufferDuration > timestampSeconds) {
                 return;
             }
 
             // Step 1: Get the pose odometry measured at the moment the vision measurement was made.
-            var sample = m_poseBuffer.getSample(timestampSeconds);
+            if (!m_poseBuffer.getSample(timestampSeconds, m_sample)) {
+                return;
+            }
+
+            var odometry_backtrack = logFromOdometry(m_sample, m_backtrack);
+            var old_estimate = m_working.set(m_poseEstimate).exp(odometry_backtrack);
+
+            // Step 2: Measure the innovation against the estimate at the time of the measurement, and screen out outliers.
+            var innovation = old_estimate.log(m_vision.set(visionRobotPoseMeters), m_innovation);
+            gains = gate(cameraId, innovation, stdDevs, gains);
+            if (gains == null) {
+                return;
+            }
+            calibrate(cameraId, timestampSeconds, visionRobotPoseMeters.getX(), visionRobotPoseMeters.getY(), innovation.rz);
 
-            if (sample.isEmpty()) {
+            if (m_replay != null) {
+                m_replay.addObservation(timestampSeconds, visionRobotPoseMeters, gains[0], gains[1], gains[2], gains[3]);
                 return;
             }
 
-            var record = sample.get();
-
-            var odometry_backtrack = m_odometry.getPoseMeters3d().log(record);
-            var odometry_fastforward =
-                    new Twist3d(
-                            -odometry_backtrack.dx,
-                            -odometry_backtrack.dy,
-                            -odometry_backtrack.dz,
-                            -odometry_backtrack.rx,
-                            -odometry_backtrack.ry,
-                            -odometry_backtrack.rz);
-
-            var old_estimate = m_poseEstimate.exp(odometry_backtrack);
-
-            // Step 2: Measure the twist between the odometry pose and the vision pose.
-            var twist = old_estimate.log(visionRobotPoseMeters);
-
-            // Step 3: We should not trust the twist entirely, so instead we scale this twist by a Kalman
-            // gain matrix representing how much we trust vision measurements compared to our current pose.
-            var twist_rvec = VecBuilder.fill(twist.rx, twist.ry, twist.rz);
-            var twist_angle = twist_rvec.norm();
-            var k_times_twist = m_visionK.times(VecBuilder.fill(twist.dx, twist.dy, twist.dz, twist_angle));
-
-            // Step 4: Convert back to Twist3d.
-            var scaledTwist =
-                    new Twist3d(
-                            k_times_twist.get(0, 0),
-                            k_times_twist.get(1, 0),
-                            k_times_twist.get(2, 0),
-                            twist_rvec.get(0, 0) / twist_angle * k_times_twist.get(3, 0),
-                            twist_rvec.get(1, 0) / twist_angle * k_times_twist.get(3, 0),
-                            twist_rvec.get(2, 0) / twist_angle * k_times_twist.get(3, 0));
-
-            old_estimate = old_estimate.exp(scaledTwist);
-
-            m_poseEstimate = old_estimate.exp(odometry_fastforward);
+            // Steps 3-4: Correct the estimate at the time of the measurement.
+            correct(old_estimate, innovation, gains);
+
+            fastForward(m_poseEstimate.set(old_estimate), odometry_backtrack);
+        } catch (IllegalArgumentException e) {
+            reportVisionError();
+        }
+    }
+
+    /**
+     * The planar counterpart of {@link #addVisionMeasurement(int, Pose3d, double, double[], double[])}.
+     */
+    private void addPlanarVisionMeasurement(int cameraId, MutablePose2d visionRobotPose, double timestampSeconds,
+                                            double[] stdDevs, double[] gains) {
+        timestampSeconds = correctTimestamp(cameraId, timestampSeconds);
+        if (m_replay != null && m_gate == null) {
+            m_replay.addObservation(timestampSeconds, visionRobotPose, gains[0], gains[1], gains[3]);
+            return;
+        }
+
+        // Step 0: If this measurement is old enough to be outside the pose buffer's timespan, skip.
+        if (!m_poseBuffer.isEmpty() && m_poseBuffer.getLatestTimestamp() - kBufferDuration > timestampSeconds) {
+            return;
+        }
+
+        // Step 1: Get the pose odometry measured at the moment the vision measurement was made.
+        if (!m_poseBuffer.getSample(timestampSeconds, m_sample)) {
+            return;
+        }
+        setRecord(m_planarRecord, m_sample);
+
+        var backtrack = m_odometry.getPlanarPose().log(m_planarRecord, m_planarBacktrack);
+        var estimate = m_planarWorking.set(m_planarEstimate).exp(backtrack);
+
+        // Step 2: Measure the innovation against the estimate at the time of the measurement, and screen out outliers.
+        var innovation = estimate.log(visionRobotPose, m_planarInnovation);
+
+        // Steps 3-4: Correct the estimate at the time of the measurement, then fast-forward it to the present.
+        if (m_ekf != null && m_replay == null) {
+            if (!correctEkf(cameraId, timestampSeconds, estimate, visionRobotPose, innovation, stdDevs)) {
+                return;
+            }
+        } else {
+            gains = gate(cameraId, innovation, stdDevs, gains);
+            if (gains == null) {
+                return;
+            }
+            calibrate(cameraId, timestampSeconds, visionRobotPose.getX(), visionRobotPose.getY(), innovation.dtheta);
+
+            if (m_replay != null) {
+                m_replay.addObservation(timestampSeconds, visionRobotPose, gains[0], gains[1], gains[3]);
+                return;
+            }
+
+            estimate.exp(gains[0] * innovation.dx, gains[1] * innovation.dy, gains[3] * innovation.dtheta);
+        }
+        m_planarEstimate.set(estimate).exp(-backtrack.dx, -backtrack.dy, -backtrack.dtheta);
+    }
+
+    /**
+     * Adds a batch of vision measurements to the Kalman Filter, such as every camera result received during one robot loop.
+     *
+     * <p>The measurements are sorted by timestamp and applied in a single pass: the estimate is moved back to the oldest
+     * measurement, corrected, carried forward through each subsequent measurement using the odometry between them, and finally
+     * fast-forwarded to the present. This needs one odometry lookup per measurement instead of a full backtrack and fast-forward
+     * for each one.
+     *
+     * <p>Measurements that carry their own standard deviations use them for that measurement only, as in
+     * {@link #addVisionMeasurement(Pose3d, double, Matrix)}. If a {@link VisionGate} is set, each measurement is gated against
+     * the estimate carried to its timestamp and counted under its camera.
+     *
+     * @param measurements The measurements to apply. The first {@code count} elements of this array are sorted in place by
+     *                     their corrected timestamps.
+     * @param count        The number of measurements in the array to apply.
+     */
+    public void addVisionMeasurements(VisionMeasurement[] measurements, int count) {
+        if (m_recorder != null && count > 0) {
+            m_recorder.recordVisionBatch(measurements, count);
+        }
+        applyVisionMeasurements(measurements, count);
+        publishSnapshot();
+    }
+
+    private void applyVisionMeasurements(VisionMeasurement[] measurements, int count) {
+        if (count <= 0 || m_poseBuffer.isEmpty()) {
+            return;
+        }
+
+        sortByTimestamp(measurements, count);
+
+        if (m_replay != null) {
+            for (int i = 0; i < count; i++) {
+                applyVisionMeasurement(measurements[i]);
+            }
+            return;
+        }
+
+        if (m_planar) {
+            addPlanarVisionMeasurements(measurements, count);
+            return;
+        }
+
+        try {
+            var odometryNow = m_odometryPose.set(m_odometry.getPoseMeters3d());
+            var oldestAllowed = m_poseBuffer.getLatestTimestamp() - kBufferDuration;
+
+            // The odometry pose at the time the working estimate corresponds to
+            var lastRecord = m_previousRecord.set(odometryNow);
+            var estimate = m_working.set(m_poseEstimate);
+
+            for (int i = 0; i < count; i++) {
+                var measurement = measurements[i];
+
+                // Skip anything older than the pose buffer's timespan
+                double timestampSeconds = correctTimestamp(measurement.cameraId, measurement.timestampSeconds);
+                if (timestampSeconds < oldestAllowed) {
+                    continue;
+                }
+                var gains = getGains(measurement);
+                if (gains == null) {
+                    continue;
+                }
+
+                m_poseBuffer.getSample(timestampSeconds, m_sample);
+
+                // Carry the estimate to the time of this measurement using the odometry between the two samples
+                estimate.exp(log(lastRecord, m_sample, m_delta));
+                setRecord(lastRecord, m_sample);
+
+                var innovation = estimate.log(m_vision.set(measurement.pose), m_innovation);
+                gains = gate(measurement.cameraId, innovation, getStdDevs(measurement), gains);
+                if (gains != null) {
+                    calibrate(measurement.cameraId, timestampSeconds, measurement.pose.getX(), measurement.pose.getY(),
+                            innovation.rz);
+                    correct(estimate, innovation, gains);
+                }
+            }
+
+            m_poseEstimate.set(estimate.exp(lastRecord.log(odometryNow, m_delta)));
+        } catch (IllegalArgumentException e) {
+            reportVisionError();
+        }
+    }
+
+    /**
+     * The planar counterpart of the single pass in {@link #addVisionMeasurements(VisionMeasurement[], int)}.
+     */
+    private void addPlanarVisionMeasurements(VisionMeasurement[] measurements, int count) {
+        var odometryNow = m_odometry.getPlanarPose();
+        var oldestAllowed = m_poseBuffer.getLatestTimestamp() - kBufferDuration;
+
+        // The odometry pose at the time the working estimate corresponds to
+        var lastRecord = m_planarPreviousRecord.set(odometryNow);
+        var estimate = m_planarWorking.set(m_planarEstimate);
+
+        for (int i = 0; i < count; i++) {
+            var measurement = measurements[i];
+
+            // Skip anything older than the pose buffer's timespan
+            double timestampSeconds = correctTimestamp(measurement.cameraId, measurement.timestampSeconds);
+            if (timestampSeconds < oldestAllowed) {
+                continue;
+            }
+            var gains = getGains(measurement);
+            if (gains == null) {
+                continue;
+            }
+
+            m_poseBuffer.getSample(timestampSeconds, m_sample);
+            setRecord(m_planarRecord, m_sample);
+
+            // Carry the estimate to the time of this measurement using the odometry between the two samples
+            estimate.exp(lastRecord.log(m_planarRecord, m_planarDelta));
+            lastRecord.set(m_planarRecord);
+
+            var vision = m_planarVision.set(measurement.pose);
+            var innovation = estimate.log(vision, m_planarInnovation);
+            if (m_ekf != null) {
+                correctEkf(measurement.cameraId, timestampSeconds, estimate, vision, innovation, getStdDevs(measurement));
+                continue;
+            }
+
+            gains = gate(measurement.cameraId, innovation, getStdDevs(measurement), gains);
+            if (gains != null) {
+                calibrate(measurement.cameraId, timestampSeconds, vision.getX(), vision.getY(), innovation.dtheta);
+                estimate.exp(gains[0] * innovation.dx, gains[1] * innovation.dy, gains[3] * innovation.dtheta);
+            }
+        }
+
+        m_planarEstimate.set(estimate.exp(lastRecord.log(odometryNow, m_planarDelta)));
+    }
+
+    /**
+     * Gates a measurement against the EKF's covariance and, if it passes, applies a full Kalman update to the estimate.
+     *
+     * @return False if the measurement was rejected.
+     */
+    private boolean correctEkf(int cameraId, double timestampSeconds, MutablePose2d estimate, MutablePose2d vision,
+                               Twist2d innovation, double[] stdDevs) {
+        double stdDevScale = 1.0;
+        if (m_gate != null) {
+            m_ekf.getVariances(m_ekfVariances);
+            var result = m_gate.evaluate(
+                    cameraId, innovation.dx, innovation.dy, Math.abs(innovation.dtheta), m_ekfVariances, stdDevs);
+            if (result == VisionGate.Result.REJECTED) {
+                return false;
+            }
+            stdDevScale = m_gate.getStdDevScale();
+        }
+        calibrate(cameraId, timestampSeconds, vision.getX(), vision.getY(), innovation.dtheta);
+        return m_ekf.correct(estimate, vision, stdDevs, stdDevScale);
+    }
+
+    /**
+     * @return The timestamp shifted by the camera's learned offset, or unchanged if there is no calibrator.
+     */
+    private double correctTimestamp(int cameraId, double timestampSeconds) {
+        return m_calibrator != null ? m_calibrator.correctTimestamp(cameraId, timestampSeconds) : timestampSeconds;
+    }
+
+    /**
+     * Feeds a measurement that passed the gate to the calibrator. Down-weighted measurements are left out. {@code m_sample} must
+     * hold the odometry at the measurement's timestamp.
+     */
+    private void calibrate(int cameraId, double timestampSeconds, double visionX, double visionY, double headingResidual) {
+        if (m_calibrator == null || (m_gate != null && m_gate.getStdDevScale() != 1.0)) {
+            return;
+        }
+        m_calibrator.observeHeading(headingResidual);
+
+        // The odometry velocity just before the measurement
+        m_poseBuffer.getSample(timestampSeconds - kCalibrationVelocityWindow, m_calibrationSample);
+        double dt = m_sample.timestampSeconds - m_calibrationSample.timestampSeconds;
+        if (!(dt > 1e-3)) {
+            return;
+        }
+        double vx = (m_sample.x - m_calibrationSample.x) / dt;
+        double vy = (m_sample.y - m_calibrationSample.y) / dt;
+
+        // The rotation from odometry's frame to the field frame is the heading the estimate has been corrected by. Every vision
+        // measurement jolts it, so it is smoothed over several measurements.
+        double cos;
+        double sin;
+        if (m_planar) {
+            var odometry = m_odometry.getPlanarPose();
+            cos = m_planarEstimate.getCos() * odometry.getCos() + m_planarEstimate.getSin() * odometry.getSin();
+            sin = m_planarEstimate.getSin() * odometry.getCos() - m_planarEstimate.getCos() * odometry.getSin();
+        } else {
+            double correction = m_poseEstimate.getYaw() - m_odometry.getPoseMeters3d().getRotation().getZ();
+            cos = Math.cos(correction);
+            sin = Math.sin(correction);
+        }
+        if (Double.isNaN(m_odometryToFieldCos)) {
+            m_odometryToFieldCos = cos;
+            m_odometryToFieldSin = sin;
+        } else {
+            cos = m_odometryToFieldCos + (cos - m_odometryToFieldCos) * kCalibrationRotationBlend;
+            sin = m_odometryToFieldSin + (sin - m_odometryToFieldSin) * kCalibrationRotationBlend;
+            double norm = Math.hypot(cos, sin);
+            m_odometryToFieldCos = cos /= norm;
+            m_odometryToFieldSin = sin /= norm;
+        }
+        m_calibrator.observeTiming(cameraId, timestampSeconds, visionX, visionY, m_sample.x, m_sample.y, cos, sin,
+                cos * vx - sin * vy, sin * vx + cos * vy);
+    }
+
+    /**
+     * @return The rotation about the robot's z axis that removes the gyro drift the calibrator has learned over an odometry step,
+     * in radians. It is folded into the step's twist, so that a replay of the step removes the same drift.
+     */
+    private double getDriftCorrection(double dt) {
+        if (m_calibrator == null || !(dt > 0.0)) {
+            return 0.0;
+        }
+        return -m_calibrator.getGyroBias() * dt;
+    }
+
+    private static void setRecord(MutablePose2d record, PoseHistoryBuffer.Sample sample) {
+        record.set(sample.x, sample.y, sample.qw, sample.qx, sample.qy, sample.qz);
+    }
+
+    private static void setRecord(MutablePose3d record, PoseHistoryBuffer.Sample sample) {
+        record.set(sample.x, sample.y, sample.z, sample.qw, sample.qx, sample.qy, sample.qz);
+    }
+
+    /**
+     * @return The twist from a pose to a history sample, which is {@code out}.
+     */
+    private static Twist3d log(MutablePose3d start, PoseHistoryBuffer.Sample sample, Twist3d out) {
+        return start.log(sample.x, sample.y, sample.z, sample.qw, sample.qx, sample.qy, sample.qz, out);
+    }
+
+    /**
+     * @return The twist from the current 3d odometry pose back to a history sample, which is {@code out}.
+     */
+    private Twist3d logFromOdometry(PoseHistoryBuffer.Sample sample, Twist3d out) {
+        return log(m_odometryPose.set(m_odometry.getPoseMeters3d()), sample, out);
+    }
+
+    /**
+     * Undoes a backtrack from the current odometry pose, carrying a pose at the time of a history sample forward to now.
+     */
+    private static MutablePose3d fastForward(MutablePose3d pose, Twist3d backtrack) {
+        return pose.exp(-backtrack.dx, -backtrack.dy, -backtrack.dz, -backtrack.rx, -backtrack.ry, -backtrack.rz);
+    }
+
+    /**
+     * Applies the steady-state Kalman correction: the innovation scaled by the diagonal gain. The rotation vector keeps its axis
+     * and has its angle scaled, which is the same as scaling each component.
+     */
+    private static void correct(MutablePose3d estimate, Twist3d innovation, double[] gains) {
+        estimate.exp(gains[0] * innovation.dx, gains[1] * innovation.dy, gains[2] * innovation.dz,
+                gains[3] * innovation.rx, gains[3] * innovation.ry, gains[3] * innovation.rz);
+    }
+
+    /**
+     * Adds a batch of vision measurements to the Kalman Filter. See {@link #addVisionMeasurements(VisionMeasurement[], int)}.
+     *
+     * @param measurements The measurements to apply. This array is sorted in place.
+     */
+    public void addVisionMeasurements(VisionMeasurement... measurements) {
+        addVisionMeasurements(measurements, measurements.length);
+    }
+
+    /**
+     * @return The gains to correct with, or null if the gate rejected the measurement. Down-weighted measurements have their
+     * gains recomputed from inflated standard deviations into a scratch array.
+     */
+    private double[] gate(int cameraId, Twist3d innovation, double[] stdDevs, double[] gains) {
+        if (m_gate == null) {
+            return gains;
+        }
+        return gatedGains(m_gate.evaluate(cameraId, innovation, m_q, stdDevs), stdDevs, gains);
+    }
+
+    private double[] gate(int cameraId, Twist2d innovation, double[] stdDevs, double[] gains) {
+        if (m_gate == null) {
+            return gains;
+        }
+        return gatedGains(
+                m_gate.evaluate(cameraId, innovation.dx, innovation.dy, Math.abs(innovation.dtheta), m_q, stdDevs),
+                stdDevs, gains);
+    }
+
+    private double[] gatedGains(VisionGate.Result result, double[] stdDevs, double[] gains) {
+        switch (result) {
+            case REJECTED:
+                return null;
+            case DOWN_WEIGHTED:
+                double scale = m_gate.getStdDevScale();
+                for (int i = 0; i < 4; i++) {
+                    m_gatedK[i] = VisionGainCache.computeGain(m_q[i], stdDevs[i] * scale);
+                }
+                return m_gatedK;
+            default:
+                return gains;
+        }
+    }
+
+    private double[] getStdDevs(VisionMeasurement measurement) {
+        return measurement.hasStdDevs ? measurement.stdDevs : m_visionStdDevs;
+    }
+
+    /**
+     * @return The gains to use for a measurement, or null if its standard deviations are NaN or negative. Measurements with their
+     * own standard deviations are looked up in the gain cache and written into a scratch array, leaving the default gain
+     * untouched.
+     */
+    private double[] getGains(VisionMeasurement measurement) {
+        if (!measurement.hasStdDevs) {
+            return m_visionK;
+        }
+        try {
+            m_gainCache.getGains(measurement.stdDevs[0], measurement.stdDevs[1], measurement.stdDevs[2],
+                    measurement.stdDevs[3], m_measurementK);
         } catch (IllegalArgumentException e) {
-            if (Timer.getFPGATimestamp() - errorTime >= 0.5) {
-                DriverStation.reportError("Failed to add Vision Measurement", false);
+            // Measurements arrive from other threads through the queue, so a bad one is reported rather than thrown
+            reportVisionError();
+            return null;
+        }
+        return m_measurementK;
+    }
+
+    private void reportVisionError() {
+        if (Timer.getFPGATimestamp() - errorTime >= 0.5) {
+            DriverStation.reportError("Failed to add Vision Measurement", false);
+        }
+        errorTime = Timer.getFPGATimestamp();
+    }
+
+    /**
+     * Insertion sort, as batches are small and usually already close to sorted. Measurements are ordered by their corrected
+     * timestamps, the times the single pass applies them at, so that cameras with different learned offsets interleave
+     * correctly.
+     */
+    private void sortByTimestamp(VisionMeasurement[] measurements, int count) {
+        for (int i = 1; i < count; i++) {
+            var measurement = measurements[i];
+            double timestampSeconds = correctTimestamp(measurement.cameraId, measurement.timestampSeconds);
+            int j = i - 1;
+            while (j >= 0 && correctTimestamp(measurements[j].cameraId, measurements[j].timestampSeconds) > timestampSeconds) {
+                measurements[j + 1] = measurements[j];
+                j--;
             }
-            errorTime = Timer.getFPGATimestamp();
+            measurements[j + 1] = measurement;
         }
     }
 
@@ -365,8 +1395,8 @@ public class SwerveDrivePoseEstimator {
      * <p>To promote stability of the pose estimate and make it robust to bad vision data, we
      * recommend only adding vision measurements that are already within one meter or so of the current pose estimate.
      *
-     * <p>Note that the vision measurement standard deviations passed into this method will continue
-     * to apply to future measurements until a subsequent call to {@link #setVisionMeasurementStdDevs(Matrix)} or this method.
+     * <p>The vision measurement standard deviations passed into this method only apply to this measurement. Their Kalman gain
+     * is looked up in a cache, so varying them per measurement (e.g. by distance to the tag) is cheap.
      *
      * @param visionRobotPoseMeters    The pose of the robot as measured by the vision camera.
      * @param timestampSeconds         The timestamp of the vision measurement in seconds. Note that if you don't use your own
@@ -383,8 +1413,50 @@ public class SwerveDrivePoseEstimator {
             Pose3d visionRobotPoseMeters,
             double timestampSeconds,
             Matrix<N4, N1> visionMeasurementStdDevs) {
-        setVisionMeasurementStdDevs3d(visionMeasurementStdDevs);
-        addVisionMeasurement(visionRobotPoseMeters, timestampSeconds);
+        addVisionMeasurement(
+                visionRobotPoseMeters,
+                timestampSeconds,
+                visionMeasurementStdDevs.get(0, 0),
+                visionMeasurementStdDevs.get(1, 0),
+                visionMeasurementStdDevs.get(2, 0),
+                visionMeasurementStdDevs.get(3, 0));
+    }
+
+    /**
+     * Adds a vision measurement to the Kalman Filter with its own standard deviations. See
+     * {@link #addVisionMeasurement(Pose3d, double, Matrix)}; this overload avoids building a matrix for every measurement.
+     *
+     * @param visionRobotPoseMeters The pose of the robot as measured by the vision camera.
+     * @param timestampSeconds      The timestamp of the vision measurement in seconds.
+     * @param xStdDev               Standard deviation of the x position, in meters.
+     * @param yStdDev               Standard deviation of the y position, in meters.
+     * @param zStdDev               Standard deviation of the z position, in meters.
+     * @param thetaStdDev           Standard deviation of the heading, in radians.
+     */
+    public void addVisionMeasurement(
+            Pose3d visionRobotPoseMeters,
+            double timestampSeconds,
+            double xStdDev,
+            double yStdDev,
+            double zStdDev,
+            double thetaStdDev) {
+        setMeasurementStdDevs(xStdDev, yStdDev, zStdDev, thetaStdDev);
+        if (m_recorder != null) {
+            m_recorder.recordVision(0, visionRobotPoseMeters, timestampSeconds, m_measurementStdDevs);
+        }
+        addVisionMeasurement(0, visionRobotPoseMeters, timestampSeconds, m_measurementStdDevs, m_measurementK);
+        publishSnapshot();
+    }
+
+    /**
+     * Fills the scratch standard deviations and gains for a single measurement.
+     */
+    private void setMeasurementStdDevs(double xStdDev, double yStdDev, double zStdDev, double thetaStdDev) {
+        m_measurementStdDevs[0] = xStdDev;
+        m_measurementStdDevs[1] = yStdDev;
+        m_measurementStdDevs[2] = zStdDev;
+        m_measurementStdDevs[3] = thetaStdDev;
+        m_gainCache.getGains(xStdDev, yStdDev, zStdDev, thetaStdDev, m_measurementK);
     }
 
     /**
@@ -397,8 +1469,8 @@ public class SwerveDrivePoseEstimator {
      * <p>To promote stability of the pose estimate and make it robust to bad vision data, we
      * recommend only adding vision measurements that are already within one meter or so of the current pose estimate.
      *
-     * <p>Note that the vision measurement standard deviations passed into this method will continue
-     * to apply to future measurements until a subsequent call to {@link #setVisionMeasurementStdDevs(Matrix)} or this method.
+     * <p>The vision measurement standard deviations passed into this method only apply to this measurement. Their Kalman gain
+     * is looked up in a cache, so varying them per measurement (e.g. by distance to the tag) is cheap.
      *
      * @param visionRobotPoseMeters    The pose of the robot as measured by the vision camera.
      * @param timestampSeconds         The timestamp of the vision measurement in seconds. Note that if you don't use your own
@@ -415,8 +1487,27 @@ public class SwerveDrivePoseEstimator {
             Pose2d visionRobotPoseMeters,
             double timestampSeconds,
             Matrix<N3, N1> visionMeasurementStdDevs) {
-        setVisionMeasurementStdDevs(visionMeasurementStdDevs);
-        addVisionMeasurement(new Pose3d(visionRobotPoseMeters), timestampSeconds);
+        if (m_planar) {
+            setMeasurementStdDevs(
+                    visionMeasurementStdDevs.get(0, 0),
+                    visionMeasurementStdDevs.get(1, 0),
+                    0,
+                    visionMeasurementStdDevs.get(2, 0));
+            if (m_recorder != null) {
+                m_recorder.recordVision(0, visionRobotPoseMeters, timestampSeconds, m_measurementStdDevs);
+            }
+            m_planarVision.set(visionRobotPoseMeters);
+            addPlanarVisionMeasurement(0, m_planarVision, timestampSeconds, m_measurementStdDevs, m_measurementK);
+            publishSnapshot();
+            return;
+        }
+        addVisionMeasurement(
+                new Pose3d(visionRobotPoseMeters),
+                timestampSeconds,
+                visionMeasurementStdDevs.get(0, 0),
+                visionMeasurementStdDevs.get(1, 0),
+                0,
+                visionMeasurementStdDevs.get(2, 0));
     }
 
     /**
@@ -451,9 +1542,50 @@ public class SwerveDrivePoseEstimator {
      */
     public Pose2d updateWithTime(
             double currentTimeSeconds, Rotation2d gyroAngle, SwerveModulePosition[] modulePositions) {
-        return updateWithTime(
-                currentTimeSeconds, new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions)
-                .toPose2d();
+        if (!m_planar) {
+            return updateWithTime(
+                    currentTimeSeconds, new Rotation3d(0, 0, gyroAngle.getRadians()), modulePositions)
+                    .toPose2d();
+        }
+
+        m_planarLastOdometry.set(m_odometry.getPlanarPose());
+        m_odometry.updatePlanar(currentTimeSeconds, gyroAngle, modulePositions);
+        integratePlanarOdometry(currentTimeSeconds, true);
+
+        if (m_recorder != null) {
+            m_recorder.recordUpdate(currentTimeSeconds, gyroAngle, modulePositions,
+                    m_planarEstimate.getX(), m_planarEstimate.getY(), m_planarEstimate.getRadians());
+        }
+        return m_planarEstimate.toPose2d();
+    }
+
+    /**
+     * Updates the pose estimator with primitive wheel encoder and gyro readings. In planar mode this does not allocate, so it
+     * suits a high-rate odometry loop; read the estimate with {@link #getSnapshot} or {@link #getEstimatedPosition()}.
+     *
+     * @param currentTimeSeconds Time at which the readings were taken, in seconds.
+     * @param distances          The distance each swerve module has rolled, in meters.
+     * @param angles             The angle of each swerve module, in radians.
+     * @param gyroYaw            The current gyroscope yaw, in radians.
+     */
+    public void updateWithTime(double currentTimeSeconds, double[] distances, double[] angles, double gyroYaw) {
+        if (!m_planar) {
+            var modulePositions = new SwerveModulePosition[distances.length];
+            for (int i = 0; i < distances.length; i++) {
+                modulePositions[i] = new SwerveModulePosition(distances[i], new Rotation2d(angles[i]));
+            }
+            updateWithTime(currentTimeSeconds, new Rotation3d(0, 0, gyroYaw), modulePositions);
+            return;
+        }
+
+        m_planarLastOdometry.set(m_odometry.getPlanarPose());
+        m_odometry.update(currentTimeSeconds, distances, angles, gyroYaw);
+        integratePlanarOdometry(currentTimeSeconds, true);
+
+        if (m_recorder != null) {
+            m_recorder.recordUpdate(currentTimeSeconds, gyroYaw, distances, angles,
+                    m_planarEstimate.getX(), m_planarEstimate.getY(), m_planarEstimate.getRadians());
+        }
     }
 
     /**
@@ -466,7 +1598,10 @@ public class SwerveDrivePoseEstimator {
      */
     public Pose3d updateWithTime(
             double currentTimeSeconds, Rotation3d gyroAngle, SwerveModulePosition[] modulePositions) {
-
+        if (m_planar) {
+            updateWithTime(currentTimeSeconds, gyroAngle.toRotation2d(), modulePositions);
+            return getEstimatedPosition3d();
+        }
 
         if (modulePositions.length != m_numModules) {
             throw new IllegalArgumentException(
@@ -475,15 +1610,15 @@ public class SwerveDrivePoseEstimator {
         }
 
         var lastOdom = m_odometry.getPoseMeters3d();
-        var currOdom = m_odometry.update(gyroAngle, modulePositions);
+        var currOdom = m_odometry.update(currentTimeSeconds, gyroAngle, modulePositions);
         try {
-            m_poseBuffer.addSample(currentTimeSeconds, currOdom);
-
-            m_poseEstimate = m_poseEstimate.exp(lastOdom.log(currOdom));
+            integrateOdometry(currentTimeSeconds, lastOdom, currOdom);
 
+            if (m_recorder != null) {
+                m_recorder.recordUpdate(currentTimeSeconds, gyroAngle, modulePositions, m_poseEstimate.toPose3d());
+            }
             return getEstimatedPosition3d();
         } catch (Exception e) {
-            m_poseBuffer.getInternalBuffer().put(currentTimeSeconds, currOdom);
             e.printStackTrace();
 
             return currOdom;
@@ -500,14 +1635,98 @@ public class SwerveDrivePoseEstimator {
      */
     public Pose3d updateWithTime(
             double currentTimeSeconds, Rotation3d gyroAngle, Translation3d velocity, double dt) {
+        if (m_planar) {
+            m_planarLastOdometry.set(m_odometry.getPlanarPose());
+            m_odometry.updateWithTime(gyroAngle, velocity, dt);
+            integratePlanarOdometry(currentTimeSeconds, false);
+        } else {
+            var lastOdom = m_odometry.getPoseMeters3d();
+            var currOdom = m_odometry.updateWithTime(gyroAngle, velocity, dt);
+            integrateOdometry(currentTimeSeconds, lastOdom, currOdom);
+        }
 
-        var lastOdom = m_odometry.getPoseMeters3d();
-        var currOdom = m_odometry.updateWithTime(gyroAngle, velocity, dt);
+        var estimate = getEstimatedPosition3d();
+        if (m_recorder != null) {
+            m_recorder.recordVelocityUpdate(currentTimeSeconds, gyroAngle, velocity, dt, estimate);
+        }
+        return estimate;
+    }
+
+    private void integrateOdometry(double currentTimeSeconds, Pose3d lastOdom, Pose3d currOdom) {
         m_poseBuffer.addSample(currentTimeSeconds, currOdom);
 
-        m_poseEstimate = m_poseEstimate.exp(lastOdom.log(currOdom));
+        var delta = m_previousRecord.set(lastOdom).log(m_odometryPose.set(currOdom), m_delta);
+        double dt = currentTimeSeconds - m_lastTimestamp;
+        delta.rz += getDriftCorrection(dt);
+        var fieldDelta = m_rotated;
+        MutablePose3d.rotate(m_poseEstimate.getQw(), m_poseEstimate.getQx(), m_poseEstimate.getQy(), m_poseEstimate.getQz(),
+                delta.dx, delta.dy, delta.dz, fieldDelta);
+        setVelocity(currentTimeSeconds, fieldDelta[0], fieldDelta[1], fieldDelta[2], delta.rz);
+        m_poseEstimate.exp(delta);
+
+        if (m_replay != null) {
+            m_replay.addStep(currentTimeSeconds, delta, m_poseEstimate);
+        }
+
+        processVisionAndReplay();
+        publishSnapshot();
+        checkpoint(currentTimeSeconds);
+    }
+
+    /**
+     * The planar counterpart of {@link #integrateOdometry}, for after the odometry has moved on from
+     * {@code m_planarLastOdometry}.
+     *
+     * @param fromModules Whether the odometry step came from the modules, so that their deltas can feed the EKF's noise model.
+     */
+    private void integratePlanarOdometry(double currentTimeSeconds, boolean fromModules) {
+        var odometry = m_odometry.getPlanarPose();
+        m_poseBuffer.addSample(currentTimeSeconds, odometry.getX(), odometry.getY(), 0.0,
+                odometry.getHalfCos(), 0.0, 0.0, odometry.getHalfSin());
+
+        var delta = m_planarLastOdometry.log(odometry, m_planarDelta);
+        double dt = currentTimeSeconds - m_lastTimestamp;
+        delta.dtheta += getDriftCorrection(dt);
+        double cos = m_planarEstimate.getCos();
+        double sin = m_planarEstimate.getSin();
+        setVelocity(currentTimeSeconds, cos * delta.dx - sin * delta.dy, sin * delta.dx + cos * delta.dy, 0.0, delta.dtheta);
+        if (m_ekf != null) {
+            double translationVariance = fromModules
+                    ? m_ekf.getTranslationVariance(m_odometry.getModuleDeltas())
+                    : m_ekf.getTranslationVariance(Math.hypot(delta.dx, delta.dy));
+            m_ekf.predict(cos, sin, delta, translationVariance);
+        }
+        m_planarEstimate.exp(delta);
+
+        if (m_replay != null) {
+            m_replay.addStep(currentTimeSeconds, delta, m_planarEstimate);
+        }
 
-        return getEstimatedPosition3d();
+        processVisionAndReplay();
+        publishSnapshot();
+        checkpoint(currentTimeSeconds);
+    }
+
+    private void processVisionAndReplay() {
+        if (m_visionQueue != null) {
+            int count = m_visionQueue.drain(m_drainedMeasurements);
+            if (m_recorder != null && count > 0) {
+                // Recorded ahead of the update that drained them, so a replay can queue them up for that update
+                m_recorder.recordVisionQueued(m_drainedMeasurements, count);
+            }
+            applyVisionMeasurements(m_drainedMeasurements, count);
+        }
+
+        if (m_replay != null) {
+            if (m_planar) {
+                m_replay.process(m_planarEstimate);
+            } else {
+                var replayed = m_replay.process();
+                if (replayed != null) {
+                    m_poseEstimate.set(replayed);
+                }
+            }
+        }
     }
 
 
@@ -516,58 +1735,63 @@ public class SwerveDrivePoseEstimator {
      * @return Whether the odometry was rolled back successfully.
      */
     public boolean rollbackOdometry(double timestampSeconds) {
+        if (m_recorder != null) {
+            m_recorder.recordRollback(timestampSeconds);
+        }
+
         // Step 0: If this measurement is old enough to be outside the pose buffer's timespan, skip.
-        if (m_poseBuffer.getInternalBuffer().lastKey() - kBufferDuration > timestampSeconds) {
+        if (m_poseBuffer.isEmpty() || m_poseBuffer.getLatestTimestamp() - kBufferDuration > timestampSeconds) {
             return false;
         }
 
         // Step 1: Get the pose odometry measured at the moment the timestamp was taken.
-        var sample = m_poseBuffer.getSample(timestampSeconds);
-
-        if (sample.isEmpty()) {
+        if (!m_poseBuffer.getSample(timestampSeconds, m_sample)) {
             return false;
         }
 
-        var record = sample.get();
-
-        var odometry_backtrack = m_odometry.getPoseMeters3d().log(record);
-
         // Step 2: Roll back the odometry.
-        m_poseEstimate = m_poseEstimate.exp(odometry_backtrack);
+        if (m_planar) {
+            setRecord(m_planarRecord, m_sample);
+            m_planarEstimate.exp(m_odometry.getPlanarPose().log(m_planarRecord, m_planarBacktrack));
+        } else {
+            m_poseEstimate.exp(logFromOdometry(m_sample, m_backtrack));
+        }
 
         // Step 3: Clear the pose buffer of all measurements after the timestamp.
-        m_poseBuffer.getInternalBuffer().tailMap(timestampSeconds, false).clear();
+        m_poseBuffer.removeAfter(timestampSeconds);
+        if (m_replay != null) {
+            m_replay.removeAfter(timestampSeconds);
+        }
+        publishSnapshot();
         return true;
     }
 
 
     public void undoVisionMeasurement(Pose3d preUpdatePose, double timestampSeconds) {
+        if (m_recorder != null) {
+            m_recorder.recordUndoVision(preUpdatePose, timestampSeconds);
+        }
+
         // Step 0: If this measurement is old enough to be outside the pose buffer's timespan, skip.
-        if (m_poseBuffer.getInternalBuffer().lastKey() - kBufferDuration > timestampSeconds) {
+        if (m_poseBuffer.isEmpty() || m_poseBuffer.getLatestTimestamp() - kBufferDuration > timestampSeconds) {
             return;
         }
 
         // Step 1: Get the pose odometry measured at the moment the vision measurement was made.
-        var sample = m_poseBuffer.getSample(timestampSeconds);
-
-        if (sample.isEmpty()) {
+        if (!m_poseBuffer.getSample(timestampSeconds, m_sample)) {
             return;
         }
 
-        var record = sample.get();
-
-        var odometry_backtrack = m_odometry.getPoseMeters3d().log(record);
-        var odometry_fastforward =
-                new Twist3d(
-                        -odometry_backtrack.dx,
-                        -odometry_backtrack.dy,
-                        -odometry_backtrack.dz,
-                        -odometry_backtrack.rx,
-                        -odometry_backtrack.ry,
-                        -odometry_backtrack.rz);
-
-        var old_estimate = preUpdatePose;
+        if (m_planar) {
+            setRecord(m_planarRecord, m_sample);
+            var backtrack = m_odometry.getPlanarPose().log(m_planarRecord, m_planarBacktrack);
+            m_planarEstimate.set(preUpdatePose).exp(-backtrack.dx, -backtrack.dy, -backtrack.dtheta);
+            publishSnapshot();
+            return;
+        }
 
-        m_poseEstimate = old_estimate.exp(odometry_fastforward);
+        var odometry_backtrack = logFromOdometry(m_sample, m_backtrack);
+        fastForward(m_poseEstimate.set(preUpdatePose), odometry_backtrack);
+        publishSnapshot();
     }
 }
\ No newline at end of file
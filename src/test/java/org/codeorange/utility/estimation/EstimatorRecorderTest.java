@@ -0,0 +1,215 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EstimatorRecorderTest {
+    private static SwerveDrivePoseEstimator createEstimator(SwerveModulePosition[] positions) {
+        var kinematics = new SecondOrderKinematics(
+                new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+                new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new SwerveModulePosition(0, new Rotation2d());
+        }
+        return new SwerveDrivePoseEstimator(kinematics, new Rotation2d(0.5), positions, new Pose2d(1, 2, new Rotation2d(0.1)));
+    }
+
+    /**
+     * Drives part of a ten second curve, from step {@code first} through step {@code last} of 500, with single, queued and
+     * batched vision measurements.
+     */
+    private static void drive(SwerveDrivePoseEstimator estimator, SwerveModulePosition[] positions,
+                              VisionMeasurementQueue queue, boolean is3d, int first, int last) {
+        for (int t = first; t <= last; t++) {
+            double time = t * 0.02;
+            for (int i = 0; i < 4; i++) {
+                positions[i] = new SwerveModulePosition(positions[i].distanceMeters + 0.02, new Rotation2d(0.3 + 0.001 * t));
+            }
+            if (is3d) {
+                estimator.updateWithTime(time, new Rotation3d(0, 0, 0.002 * t), positions);
+            } else {
+                estimator.updateWithTime(time, new Rotation2d(0.002 * t), positions);
+            }
+
+            var estimate = estimator.getEstimatedPosition();
+            if (t % 25 == 0) {
+                estimator.addVisionMeasurement(new Pose2d(estimate.getX() + 0.1, estimate.getY() - 0.05,
+                        estimate.getRotation().plus(new Rotation2d(0.01))), time - 0.05);
+            }
+            if (t % 40 == 0) {
+                queue.offer(1, new Pose3d(new Pose2d(estimate.getX() - 0.1, estimate.getY() + 0.02, estimate.getRotation())),
+                        time - 0.03, 0.3, 0.3, 1, 0.4, 1, 1, 1);
+            }
+            if (t % 70 == 0) {
+                var batch = new VisionMeasurement[] {
+                        new VisionMeasurement().set(
+                                new Pose3d(new Pose2d(estimate.getX() + 0.2, estimate.getY(), estimate.getRotation())),
+                                time - 0.1),
+                        new VisionMeasurement().set(
+                                new Pose3d(new Pose2d(estimate.getX() + 0.1, estimate.getY(), estimate.getRotation())),
+                                time - 0.12, 0.5, 0.5, 1, 0.5)};
+                batch[0].cameraId = 2;
+                estimator.addVisionMeasurements(batch, 2);
+            }
+        }
+    }
+
+    private static EstimatorReplayer record(boolean is3d, Consumer<SwerveDrivePoseEstimator> configure) throws IOException {
+        return record(is3d, configure, 0);
+    }
+
+    /**
+     * Records the drive, attaching the recorder after the given number of steps.
+     */
+    private static EstimatorReplayer record(boolean is3d, Consumer<SwerveDrivePoseEstimator> configure, int attachAfter)
+            throws IOException {
+        var positions = new SwerveModulePosition[4];
+        var estimator = createEstimator(positions);
+        if (is3d) {
+            estimator.set3dMode(true);
+        }
+        configure.accept(estimator);
+        var queue = new VisionMeasurementQueue(16);
+        estimator.setVisionQueue(queue);
+
+        drive(estimator, positions, queue, is3d, 1, attachAfter);
+
+        var bytes = new ByteArrayOutputStream();
+        var recorder = new EstimatorRecorder(bytes);
+        estimator.setRecorder(recorder);
+        drive(estimator, positions, queue, is3d, attachAfter + 1, 500);
+        recorder.close();
+        return new EstimatorReplayer(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void assertReplaysExactly(boolean is3d, Consumer<SwerveDrivePoseEstimator> configure) throws IOException {
+        var replayer = record(is3d, configure);
+        var result = replayer.run(configure);
+        assertEquals(500, result.updates());
+        // Rotations are recorded as radians, so the replayed module angles only match to rounding
+        assertEquals(0.0, result.maxTranslationError(), 1e-9);
+        assertEquals(0.0, result.maxRotationError(), 1e-9);
+
+        // Replaying twice gives the same result
+        var again = replayer.run(configure);
+        assertEquals(result.rmsTranslationError(), again.rmsTranslationError());
+    }
+
+    @Test
+    void planarReplayIsDeterministic() throws IOException {
+        assertReplaysExactly(false, estimator -> {});
+    }
+
+    @Test
+    void planarReplayWithGateAndEkfIsDeterministic() throws IOException {
+        assertReplaysExactly(false, estimator -> {
+            estimator.enableEkf(0.05, 0.001, 0.01, 0.0005);
+            estimator.setVisionGate(new VisionGate(3));
+        });
+    }
+
+    @Test
+    void replay3dIsDeterministic() throws IOException {
+        assertReplaysExactly(true, estimator -> estimator.setVisionGate(new VisionGate(3)));
+    }
+
+    @Test
+    void recorderAttachedMidRunWithArcIntegrationReplaysExactly() throws IOException {
+        for (boolean is3d : new boolean[] {false, true}) {
+            Consumer<SwerveDrivePoseEstimator> configure = estimator -> estimator.setArcIntegration(true);
+            // By then the modules have steered away from the angle they started at
+            var replayer = record(is3d, configure, 100);
+            var result = replayer.run(configure);
+            assertEquals(400, result.updates());
+            assertEquals(0.0, result.maxTranslationError(), 1e-9);
+            assertEquals(0.0, result.maxRotationError(), 1e-9);
+        }
+    }
+
+    @Test
+    void replayWithADifferentConfigurationDiverges() throws IOException {
+        var replayer = record(false, estimator -> {});
+        var result = replayer.run(estimator -> estimator.setVisionGate(new VisionGate(3, 0.01, 0.02)));
+        assertTrue(result.maxTranslationError() > 0.01);
+    }
+
+    @Test
+    void stopsRecordingInsteadOfBlockingWhenTheWriterFallsBehind() throws Exception {
+        var release = new CountDownLatch(1);
+        var written = new ByteArrayOutputStream();
+        var slow = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.write(b, off, len);
+            }
+        };
+
+        var positions = new SwerveModulePosition[4];
+        var estimator = createEstimator(positions);
+        var recorder = new EstimatorRecorder(slow);
+        estimator.setRecorder(recorder);
+
+        double[] distances = new double[4];
+        double[] angles = new double[4];
+        int updates = 0;
+        long start = System.nanoTime();
+        while (recorder.isRecording()) {
+            updates++;
+            distances[0] += 0.01;
+            estimator.updateWithTime(updates * 0.004, distances, angles, 0.0);
+        }
+        // The loop never waited on the stalled stream
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        assertTrue(updates > 1000);
+
+        release.countDown();
+        recorder.close();
+        var replayer = new EstimatorReplayer(new ByteArrayInputStream(written.toByteArray()));
+        var result = replayer.run();
+        // Everything up to the record that did not fit is kept
+        assertEquals(updates - 1, result.updates());
+        assertEquals(0.0, result.maxTranslationError(), 1e-9);
+    }
+
+    @Test
+    void flushWritesRecordsThrough() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var recorder = new EstimatorRecorder(bytes);
+        var positions = new SwerveModulePosition[4];
+        var estimator = createEstimator(positions);
+        estimator.setRecorder(recorder);
+        estimator.updateWithTime(0.02, new double[4], new double[4], 0.0);
+
+        recorder.flush();
+        int flushed = bytes.size();
+        assertTrue(flushed > 0);
+        recorder.close();
+        assertEquals(flushed, bytes.size());
+    }
+}
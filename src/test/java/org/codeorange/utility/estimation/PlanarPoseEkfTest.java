@@ -0,0 +1,121 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.geometry.MutablePose2d;
+import org.ejml.simple.SimpleMatrix;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlanarPoseEkfTest {
+    private static final double[] kCovariance = {0.04, 0.01, 0.002, 0.09, -0.003, 0.01};
+
+    private static SimpleMatrix covariance(PlanarPoseEkf ekf) {
+        var p = new double[6];
+        ekf.getCovariance(p);
+        return new SimpleMatrix(3, 3, true, new double[] {
+                p[0], p[1], p[2],
+                p[1], p[3], p[4],
+                p[2], p[4], p[5]});
+    }
+
+    private static void assertMatrixEquals(SimpleMatrix expected, SimpleMatrix actual, double delta) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                assertEquals(expected.get(row, col), actual.get(row, col), delta);
+            }
+        }
+    }
+
+    private static PlanarPoseEkf createEkf() {
+        var ekf = new PlanarPoseEkf(0.05, 0.001, 0.02, 0.0005, 0, 0, 0);
+        ekf.setCovariance(kCovariance);
+        return ekf;
+    }
+
+    @Test
+    void predictMatchesTheJacobianPropagation() {
+        var ekf = createEkf();
+        var before = covariance(ekf);
+        double heading = 0.7;
+        var delta = new Twist2d(0.08, -0.03, 0.05);
+        double translationVariance = 2e-5;
+        ekf.predict(Math.cos(heading), Math.sin(heading), delta, translationVariance);
+
+        double fieldDx = Math.cos(heading) * delta.dx - Math.sin(heading) * delta.dy;
+        double fieldDy = Math.sin(heading) * delta.dx + Math.cos(heading) * delta.dy;
+        var f = new SimpleMatrix(3, 3, true, new double[] {
+                1, 0, -fieldDy,
+                0, 1, fieldDx,
+                0, 0, 1});
+        double gyro = 0.02 * delta.dtheta;
+        var q = SimpleMatrix.diag(translationVariance, translationVariance, gyro * gyro + 0.0005 * 0.0005);
+        var expected = f.mult(before).mult(f.transpose()).plus(q);
+
+        assertMatrixEquals(expected, covariance(ekf), 1e-15);
+    }
+
+    @Test
+    void correctMatchesTheKalmanUpdate() {
+        var ekf = createEkf();
+        var p = covariance(ekf);
+        var estimate = new MutablePose2d(1.0, 2.0, 0.3);
+        var measurement = new MutablePose2d(1.2, 1.9, 0.35);
+        double[] stdDevs = {0.2, 0.3, 100, 0.1};
+        assertTrue(ekf.correct(estimate, measurement, stdDevs, 1.5));
+
+        var r = SimpleMatrix.diag(0.3 * 0.3, 0.45 * 0.45, 0.15 * 0.15);
+        var k = p.mult(p.plus(r).invert());
+        var innovation = new SimpleMatrix(3, 1, true, new double[] {0.2, -0.1, 0.05});
+        var correction = k.mult(innovation);
+
+        assertEquals(1.0 + correction.get(0), estimate.getX(), 1e-12);
+        assertEquals(2.0 + correction.get(1), estimate.getY(), 1e-12);
+        assertEquals(0.3 + correction.get(2), estimate.getRadians(), 1e-12);
+        assertMatrixEquals(p.minus(k.mult(p)), covariance(ekf), 1e-15);
+    }
+
+    @Test
+    void measurementsTightenAndDrivingWidensTheCovariance() {
+        var ekf = new PlanarPoseEkf(0.05, 0.001, 0.02, 0.0005, 1.0, 1.0, 0.1);
+        var estimate = new MutablePose2d();
+        double[] stdDevs = {0.1, 0.1, 0.1, 0.05};
+        ekf.correct(estimate, new MutablePose2d(), stdDevs, 1.0);
+        double corrected = ekf.getXVariance();
+        assertTrue(corrected < 0.1 * 0.1);
+
+        for (int i = 0; i < 50; i++) {
+            ekf.predict(estimate.getCos(), estimate.getSin(), new Twist2d(0.05, 0, 0), ekf.getTranslationVariance(0.05));
+        }
+        assertTrue(ekf.getXVariance() > corrected);
+        // Driving along x with an uncertain heading makes y uncertain, not x
+        assertTrue(ekf.getYVariance() > ekf.getXVariance());
+    }
+
+    @Test
+    void translationVarianceAveragesTheModules() {
+        var ekf = new PlanarPoseEkf(0.1, 0.002, 0, 0, 0, 0, 0);
+        var deltas = new SwerveModulePosition[4];
+        for (int i = 0; i < 4; i++) {
+            deltas[i] = new SwerveModulePosition(0.05, new Rotation2d());
+        }
+        double perModule = 0.005 * 0.005 + 0.002 * 0.002;
+        assertEquals(perModule / 4, ekf.getTranslationVariance(deltas), 1e-18);
+        assertEquals(perModule, ekf.getTranslationVariance(0.05), 1e-18);
+    }
+
+    @Test
+    void skipsSingularUpdates() {
+        var ekf = new PlanarPoseEkf(0, 0, 0, 0, 0, 0, 0);
+        var estimate = new MutablePose2d(1.0, 1.0, 0.0);
+        assertFalse(ekf.correct(estimate, new MutablePose2d(), new double[4], 1.0));
+        assertEquals(1.0, estimate.getX());
+    }
+
+    @Test
+    void rejectsNegativeNoise() {
+        assertThrows(IllegalArgumentException.class, () -> new PlanarPoseEkf(-1, 0, 0, 0, 0, 0, 0));
+    }
+}
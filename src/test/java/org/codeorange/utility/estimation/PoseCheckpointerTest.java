@@ -0,0 +1,128 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoseCheckpointerTest {
+    private static final double[] kCovariance = {0.01, 0.002, 0.0003, 0.02, -0.0004, 0.005};
+
+    @TempDir
+    Path m_directory;
+
+    private Path file() {
+        return m_directory.resolve("pose.checkpoint");
+    }
+
+    private static SwerveDrivePoseEstimator createEstimator(Rotation2d gyroAngle) {
+        var kinematics = new SecondOrderKinematics(
+                new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+                new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+        var positions = new SwerveModulePosition[4];
+        for (int i = 0; i < 4; i++) {
+            positions[i] = new SwerveModulePosition(0, new Rotation2d());
+        }
+        return new SwerveDrivePoseEstimator(kinematics, gyroAngle, positions, new Pose2d());
+    }
+
+    @Test
+    void roundTripsThroughTheFile() throws IOException {
+        double halfAngle = 0.35;
+        new PoseCheckpointer(file()).write(1.5, -2.5, 0.1, Math.cos(halfAngle), 0.0, 0.0, Math.sin(halfAngle), 0.25,
+                kCovariance);
+
+        // A new checkpointer on the same file, as after a restart
+        var checkpoint = new PoseCheckpointer(file()).read();
+        assertTrue(checkpoint.isPresent());
+        var saved = checkpoint.get();
+        assertEquals(1.5, saved.pose().getX());
+        assertEquals(-2.5, saved.pose().getY());
+        assertEquals(0.1, saved.pose().getZ());
+        assertEquals(0.7, saved.pose().getRotation().getZ(), 1e-12);
+        assertEquals(0.25, saved.gyroOffset());
+        assertArrayEquals(kCovariance, saved.covariance());
+        assertTrue(saved.ageSeconds() >= 0 && saved.ageSeconds() < 5);
+    }
+
+    @Test
+    void roundTripsWithoutACovariance() throws IOException {
+        var checkpointer = new PoseCheckpointer(file());
+        checkpointer.write(1, 2, 0, 1, 0, 0, 0, 0, kCovariance);
+        checkpointer.write(3, 4, 0, 1, 0, 0, 0, 0, null);
+        var saved = checkpointer.read().orElseThrow();
+        assertEquals(3.0, saved.pose().getX());
+        assertNull(saved.covariance());
+    }
+
+    @Test
+    void neverRestoresATornWrite() throws IOException {
+        var checkpointer = new PoseCheckpointer(file());
+        checkpointer.write(1, 2, 0, 1, 0, 0, 0, 0, null);
+
+        // Leave the sequence number odd, as a crash part way through a write would
+        try (var channel = FileChannel.open(file(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putLong(0, 3), 8);
+        }
+        assertTrue(new PoseCheckpointer(file()).read().isEmpty());
+
+        // The next write recovers
+        checkpointer.write(5, 6, 0, 1, 0, 0, 0, 0, null);
+        assertEquals(5.0, new PoseCheckpointer(file()).read().orElseThrow().pose().getX());
+    }
+
+    @Test
+    void neverRestoresStaleOrInvalidatedCheckpoints() throws Exception {
+        assertTrue(new PoseCheckpointer(file()).read().isEmpty());
+
+        var checkpointer = new PoseCheckpointer(file(), 0.2, 0.01);
+        checkpointer.write(1, 2, 0, 1, 0, 0, 0, 0, null);
+        Thread.sleep(50);
+        assertTrue(checkpointer.read().isEmpty());
+
+        var fresh = new PoseCheckpointer(file());
+        fresh.write(1, 2, 0, 1, 0, 0, 0, 0, null);
+        fresh.invalidate();
+        assertTrue(fresh.read().isEmpty());
+    }
+
+    @Test
+    void isDueOncePerPeriod() throws IOException {
+        var checkpointer = new PoseCheckpointer(file(), 0.2, 5.0);
+        assertTrue(checkpointer.isDue(1.0));
+        assertFalse(checkpointer.isDue(1.1));
+        assertTrue(checkpointer.isDue(1.25));
+        // Time going backwards, such as in a replay
+        assertTrue(checkpointer.isDue(0.5));
+    }
+
+    @Test
+    void estimatorRestoresRelativeToTheGyro() throws IOException {
+        var before = createEstimator(new Rotation2d(0.2));
+        before.resetPosition(new Rotation2d(0.2), new SwerveModulePosition[] {
+                new SwerveModulePosition(), new SwerveModulePosition(),
+                new SwerveModulePosition(), new SwerveModulePosition()}, new Pose2d(3, 4, new Rotation2d(1.0)));
+        assertFalse(before.setCheckpointer(new PoseCheckpointer(file())));
+        before.updateWithTime(0.02, new double[4], new double[4], 0.2);
+
+        // The robot turned by 0.5 radians while code was down, which the gyro saw
+        var after = createEstimator(new Rotation2d(0.7));
+        assertTrue(after.setCheckpointer(new PoseCheckpointer(file())));
+        var restored = after.getEstimatedPosition();
+        assertEquals(3.0, restored.getX(), 1e-9);
+        assertEquals(4.0, restored.getY(), 1e-9);
+        assertEquals(1.5, restored.getRotation().getRadians(), 1e-9);
+    }
+}
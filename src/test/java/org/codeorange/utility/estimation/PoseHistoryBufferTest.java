@@ -0,0 +1,141 @@
+package org.codeorange.utility.estimation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoseHistoryBufferTest {
+    private static final double kDt = 0.02;
+
+    private final PoseHistoryBuffer.Sample m_sample = new PoseHistoryBuffer.Sample();
+
+    /**
+     * Adds a sample at step n, moving 1 m in x per step and turning about z by 0.01 rad per step.
+     */
+    private static void addStep(PoseHistoryBuffer buffer, int n) {
+        buffer.addSample(n * kDt, n, 2.0 * n, -n, Math.cos(0.005 * n), 0.0, 0.0, Math.sin(0.005 * n));
+    }
+
+    @Test
+    void emptyBufferHasNoSamples() {
+        var buffer = new PoseHistoryBuffer(1.0, 8);
+        assertTrue(buffer.isEmpty());
+        assertFalse(buffer.getSample(0.0, m_sample));
+        assertTrue(Double.isNaN(buffer.getLatestTimestamp()));
+        assertTrue(Double.isNaN(buffer.getOldestTimestamp()));
+        assertThrows(IllegalArgumentException.class, () -> new PoseHistoryBuffer(1.0, 1));
+    }
+
+    @Test
+    void wrapsAroundPastCapacity() {
+        // Long enough a history that only the capacity limits it
+        var buffer = new PoseHistoryBuffer(100.0, 8);
+        for (int n = 0; n < 30; n++) {
+            addStep(buffer, n);
+        }
+        assertEquals(8, buffer.size());
+        assertEquals(22 * kDt, buffer.getOldestTimestamp(), 1e-12);
+        assertEquals(29 * kDt, buffer.getLatestTimestamp(), 1e-12);
+
+        for (int n = 22; n < 30; n++) {
+            assertTrue(buffer.getSample(n * kDt, m_sample));
+            assertEquals(n, m_sample.x, 1e-9);
+            assertEquals(2.0 * n, m_sample.y, 1e-9);
+            assertEquals(-n, m_sample.z, 1e-9);
+        }
+        // Interpolation works across the physical end of the arrays
+        assertTrue(buffer.getSample(23.5 * kDt, m_sample));
+        assertEquals(23.5, m_sample.x, 1e-9);
+    }
+
+    @Test
+    void dropsSamplesOlderThanTheHistory() {
+        var buffer = new PoseHistoryBuffer(0.1, 64);
+        for (int n = 0; n <= 20; n++) {
+            addStep(buffer, n);
+        }
+        // Samples 0.1 s or more older than the newest one are gone
+        assertEquals(5, buffer.size());
+        assertEquals(16 * kDt, buffer.getOldestTimestamp(), 1e-12);
+    }
+
+    @Test
+    void clampsOutsideTheStoredRange() {
+        var buffer = new PoseHistoryBuffer(10.0, 16);
+        for (int n = 5; n <= 10; n++) {
+            addStep(buffer, n);
+        }
+
+        assertTrue(buffer.getSample(0.0, m_sample));
+        assertEquals(5 * kDt, m_sample.timestampSeconds, 1e-12);
+        assertEquals(5.0, m_sample.x);
+        assertEquals(Math.sin(0.025), m_sample.qz);
+
+        assertTrue(buffer.getSample(100.0, m_sample));
+        assertEquals(10 * kDt, m_sample.timestampSeconds, 1e-12);
+        assertEquals(10.0, m_sample.x);
+        assertEquals(Math.sin(0.05), m_sample.qz);
+    }
+
+    @Test
+    void exactTimestampReturnsTheStoredSample() {
+        var buffer = new PoseHistoryBuffer(10.0, 16);
+        for (int n = 0; n <= 10; n++) {
+            addStep(buffer, n);
+        }
+        assertTrue(buffer.getSample(7 * kDt, m_sample));
+        assertEquals(7 * kDt, m_sample.timestampSeconds);
+        assertEquals(7.0, m_sample.x, 1e-12);
+        assertEquals(14.0, m_sample.y, 1e-12);
+        assertEquals(Math.cos(0.035), m_sample.qw, 1e-12);
+        assertEquals(Math.sin(0.035), m_sample.qz, 1e-12);
+    }
+
+    @Test
+    void interpolatesRotationTheShortWayAcrossHemispheres() {
+        var buffer = new PoseHistoryBuffer(10.0, 4);
+        // 0.2 rad and 0.4 rad about z, the second stored with its quaternion negated
+        buffer.addSample(0.0, 0, 0, 0, Math.cos(0.1), 0.0, 0.0, Math.sin(0.1));
+        buffer.addSample(1.0, 0, 0, 0, -Math.cos(0.2), 0.0, 0.0, -Math.sin(0.2));
+
+        assertTrue(buffer.getSample(0.5, m_sample));
+        double angle = 2.0 * Math.atan2(m_sample.qz, m_sample.qw);
+        assertEquals(0.3, angle, 1e-9);
+        assertEquals(1.0, Math.hypot(m_sample.qw, m_sample.qz), 1e-12);
+        assertEquals(0.0, m_sample.qx);
+        assertEquals(0.0, m_sample.qy);
+    }
+
+    @Test
+    void removeAfterKeepsSamplesAtOrBeforeTheTime() {
+        var buffer = new PoseHistoryBuffer(10.0, 16);
+        for (int n = 0; n <= 10; n++) {
+            addStep(buffer, n);
+        }
+        buffer.removeAfter(6 * kDt);
+        assertEquals(7, buffer.size());
+        assertEquals(6 * kDt, buffer.getLatestTimestamp(), 1e-12);
+        assertTrue(buffer.getSample(9 * kDt, m_sample));
+        assertEquals(6.0, m_sample.x, 1e-12);
+
+        // New samples carry on from the removal point
+        buffer.addSample(7.5 * kDt, 100, 0, 0, 1, 0, 0, 0);
+        assertTrue(buffer.getSample(7 * kDt, m_sample));
+        assertEquals(6.0 + (100.0 - 6.0) / 1.5, m_sample.x, 1e-9);
+
+        buffer.removeAfter(-1.0);
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    void addingAtOrBeforeTheNewestOverwrites() {
+        var buffer = new PoseHistoryBuffer(10.0, 16);
+        for (int n = 0; n <= 10; n++) {
+            addStep(buffer, n);
+        }
+        buffer.addSample(8 * kDt, -1, 0, 0, 1, 0, 0, 0);
+        assertEquals(9, buffer.size());
+        assertTrue(buffer.getSample(8 * kDt, m_sample));
+        assertEquals(-1.0, m_sample.x);
+    }
+}
@@ -0,0 +1,103 @@
+package org.codeorange.utility.estimation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoseSnapshotPublisherTest {
+    private static final int kReaders = 3;
+    private static final long kDurationNanos = 500_000_000L;
+
+    /**
+     * Publishes snapshot n with every field a different function of n.
+     */
+    private static void publish(PoseSnapshotPublisher publisher, long n) {
+        publisher.publish(n * 0.02, n, 2 * n, 3 * n, 4 * n, 5 * n, 6 * n, 7 * n, 8 * n, 9 * n, 10 * n, -n);
+    }
+
+    /**
+     * @return A description of the first field that does not belong to the snapshot's sequence number, or null.
+     */
+    private static String checkConsistent(PoseSnapshot snapshot) {
+        double n = snapshot.sequence;
+        double[] expected = {n * 0.02, n, 2 * n, 3 * n, 4 * n, 5 * n, 6 * n, 7 * n, 8 * n, 9 * n, 10 * n, -n};
+        double[] actual = {snapshot.timestampSeconds, snapshot.x, snapshot.y, snapshot.z, snapshot.qw, snapshot.qx,
+                snapshot.qy, snapshot.qz, snapshot.vx, snapshot.vy, snapshot.vz, snapshot.omega};
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                return "Field " + i + " of snapshot " + snapshot.sequence + " was " + actual[i] + ", expected " + expected[i];
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void readsNothingBeforeTheFirstPublish() {
+        var snapshot = new PoseSnapshotPublisher().read(new PoseSnapshot());
+        assertEquals(-1, snapshot.sequence);
+        assertEquals(1.0, snapshot.qw);
+    }
+
+    @Test
+    void readsTheLatestPublish() {
+        var publisher = new PoseSnapshotPublisher();
+        var snapshot = new PoseSnapshot();
+        for (long n = 0; n < 5; n++) {
+            publish(publisher, n);
+            publisher.read(snapshot);
+            assertEquals(n, snapshot.sequence);
+            assertNull(checkConsistent(snapshot));
+        }
+        assertEquals(5, publisher.getPublishCount());
+    }
+
+    @Test
+    void concurrentReadsAreNeverTorn() throws InterruptedException {
+        var publisher = new PoseSnapshotPublisher();
+        var running = new AtomicBoolean(true);
+        var failure = new AtomicReference<String>();
+        var reads = new AtomicLong();
+
+        var readers = new Thread[kReaders];
+        for (int r = 0; r < kReaders; r++) {
+            readers[r] = new Thread(() -> {
+                var snapshot = new PoseSnapshot();
+                long last = -1;
+                long count = 0;
+                while (running.get() && failure.get() == null) {
+                    publisher.read(snapshot);
+                    count++;
+                    if (snapshot.sequence < last) {
+                        failure.compareAndSet(null, "Sequence went backwards from " + last + " to " + snapshot.sequence);
+                    } else if (snapshot.sequence >= 0) {
+                        String error = checkConsistent(snapshot);
+                        if (error != null) {
+                            failure.compareAndSet(null, error);
+                        }
+                    }
+                    last = snapshot.sequence;
+                }
+                reads.addAndGet(count);
+            });
+            readers[r].start();
+        }
+
+        long published = 0;
+        long end = System.nanoTime() + kDurationNanos;
+        while (System.nanoTime() < end && failure.get() == null) {
+            publish(publisher, published++);
+        }
+        running.set(false);
+        for (var reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get(), failure.get());
+        assertEquals(published, publisher.getPublishCount());
+        assertTrue(reads.get() > 0);
+    }
+}
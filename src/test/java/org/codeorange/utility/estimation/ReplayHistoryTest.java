@@ -0,0 +1,133 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.geometry.Twist3d;
+import org.codeorange.utility.geometry.MutablePose2d;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayHistoryTest {
+    private static final double kDt = 0.02;
+    private static final Twist2d kStep = new Twist2d(0.05, 0.01, 0.03);
+
+    /**
+     * Integrates the same planar steps into both histories.
+     */
+    private static void drive(ReplayHistory planar, ReplayHistory spatial, MutablePose2d planarEstimate, int steps) {
+        var twist3d = new Twist3d(kStep.dx, kStep.dy, 0, 0, 0, kStep.dtheta);
+        var pose3d = planarEstimate.toPose3d();
+        for (int i = 1; i <= steps; i++) {
+            planarEstimate.exp(kStep);
+            pose3d = pose3d.exp(twist3d);
+            planar.addStep(i * kDt, kStep, planarEstimate);
+            spatial.addStep(i * kDt, twist3d, pose3d);
+        }
+    }
+
+    @Test
+    void planarReplayMatches3dReplay() {
+        var planar = new ReplayHistory(1.5, 128, 16, 1000);
+        var spatial = new ReplayHistory(1.5, 128, 16, 1000);
+        var estimate = new MutablePose2d();
+        drive(planar, spatial, estimate, 50);
+
+        var vision = new MutablePose2d(2.6, 0.9, 0.8);
+        assertTrue(planar.addObservation(0.333, vision, 0.4, 0.3, 0.2));
+        assertTrue(spatial.addObservation(0.333, vision.toPose3d(), 0.4, 0.3, 0.0, 0.2));
+
+        var replayed = new MutablePose2d();
+        assertTrue(planar.process(replayed));
+        Pose3d replayed3d = spatial.process();
+        assertNotNull(replayed3d);
+
+        assertEquals(replayed3d.getX(), replayed.getX(), 1e-9);
+        assertEquals(replayed3d.getY(), replayed.getY(), 1e-9);
+        assertEquals(replayed3d.getRotation().getZ(), replayed.getRadians(), 1e-9);
+    }
+
+    @Test
+    void outOfOrderObservationsReplayLikeInOrderOnes() {
+        var inOrder = new ReplayHistory(1.5, 128, 16, 1000);
+        var outOfOrder = new ReplayHistory(1.5, 128, 16, 10);
+        var unused = new ReplayHistory(1.5, 128, 16, 1000);
+        drive(inOrder, unused, new MutablePose2d(), 50);
+        drive(outOfOrder, unused, new MutablePose2d(), 50);
+
+        var early = new MutablePose2d(0.5, 0.2, 0.1);
+        var late = new MutablePose2d(2.0, 0.6, 0.5);
+        inOrder.addObservation(0.21, early, 0.5, 0.5, 0.5);
+        inOrder.addObservation(0.77, late, 0.5, 0.5, 0.5);
+
+        // The earlier observation arrives part way through the replay of the later one, which restarts it
+        var b = new MutablePose2d();
+        outOfOrder.addObservation(0.77, late, 0.5, 0.5, 0.5);
+        assertFalse(outOfOrder.process(b));
+        assertTrue(outOfOrder.isReplaying());
+        outOfOrder.addObservation(0.21, early, 0.5, 0.5, 0.5);
+        while (!outOfOrder.process(b)) {
+            assertTrue(outOfOrder.isReplaying());
+        }
+
+        var a = new MutablePose2d();
+        assertTrue(inOrder.process(a));
+        assertEquals(a.getX(), b.getX(), 1e-12);
+        assertEquals(a.getY(), b.getY(), 1e-12);
+        assertEquals(a.getRadians(), b.getRadians(), 1e-12);
+    }
+
+    @Test
+    void replayIsSpreadOverProcessCalls() {
+        var history = new ReplayHistory(1.5, 128, 16, 10);
+        var unused = new ReplayHistory(1.5, 128, 16, 10);
+        var estimate = new MutablePose2d();
+        drive(history, unused, estimate, 50);
+
+        // Snapping to the odometry's own pose at that time changes nothing
+        var atObservation = new MutablePose2d();
+        for (int i = 0; i < 10; i++) {
+            atObservation.exp(kStep);
+        }
+        history.addObservation(10 * kDt, atObservation, 1.0, 1.0, 1.0);
+
+        var out = new MutablePose2d(-1, -1, 0);
+        int calls = 0;
+        while (!history.process(out)) {
+            assertTrue(history.isReplaying());
+            assertEquals(-1.0, out.getX());
+            calls++;
+        }
+        // 41 steps from the one before the observation, 10 per call
+        assertEquals(4, calls);
+        assertEquals(estimate.getX(), out.getX(), 1e-9);
+        assertEquals(estimate.getY(), out.getY(), 1e-9);
+        assertEquals(estimate.getRadians(), out.getRadians(), 1e-9);
+    }
+
+    @Test
+    void switchingModeRestartsTheReplay() {
+        var history = new ReplayHistory(1.5, 128, 16, 10);
+        var reference = new ReplayHistory(1.5, 128, 16, 1000);
+        var unused = new ReplayHistory(1.5, 128, 16, 1000);
+        drive(history, unused, new MutablePose2d(), 50);
+        drive(reference, unused, new MutablePose2d(), 50);
+
+        var vision = new MutablePose2d(1.0, 0.5, 0.3);
+        history.addObservation(0.1, vision, 0.5, 0.5, 0.5);
+        reference.addObservation(0.1, vision, 0.5, 0.5, 0.5);
+
+        assertFalse(history.process(new MutablePose2d()));
+        Pose3d replayed = null;
+        while (replayed == null) {
+            replayed = history.process();
+        }
+        var expected = new MutablePose2d();
+        assertTrue(reference.process(expected));
+        assertEquals(expected.getX(), replayed.getX(), 1e-9);
+        assertEquals(expected.getY(), replayed.getY(), 1e-9);
+        assertEquals(0.0, replayed.getRotation().getX(), 1e-12);
+        assertEquals(new Rotation3d(0, 0, expected.getRadians()).getZ(), replayed.getRotation().getZ(), 1e-9);
+    }
+}
@@ -0,0 +1,172 @@
+package org.codeorange.utility.estimation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SensorCalibratorTest {
+    /** How late each camera's timestamps are, in seconds: the frames were captured this long before their timestamps. */
+    private static final double[] kLatencies = {0.06, -0.03};
+    /** The rotation from odometry's frame to the field frame. */
+    private static final double kOdometryRotation = 0.4;
+    private static final double kPeriod = 0.3;
+
+    /** The field position and velocity of a robot weaving around the field, as {x, y, vx, vy}. */
+    private static double[] state(double t) {
+        return new double[] {
+                2.0 * Math.sin(t), 1.5 * Math.cos(1.3 * t),
+                2.0 * Math.cos(t), -1.95 * Math.sin(1.3 * t)};
+    }
+
+    /**
+     * Feeds a camera's measurement captured at the given time to the calibrator the way the estimator does: the timestamp is
+     * corrected with the offset learned so far, and odometry is sampled at the corrected timestamp.
+     */
+    private static void observe(SensorCalibrator calibrator, int cameraId, double captureTime, double latency) {
+        double timestamp = calibrator.correctTimestamp(cameraId, captureTime + latency);
+        var vision = state(captureTime);
+        var odometry = state(timestamp);
+        double cos = Math.cos(kOdometryRotation);
+        double sin = Math.sin(kOdometryRotation);
+        // Odometry's position is in its own frame, rotated from the field
+        calibrator.observeTiming(cameraId, timestamp, vision[0], vision[1],
+                cos * odometry[0] + sin * odometry[1], -sin * odometry[0] + cos * odometry[1], cos, sin,
+                odometry[2], odometry[3]);
+    }
+
+    @Test
+    void timeOffsetsConvergeToEachCamerasLatency() {
+        var calibrator = new SensorCalibrator(2, 0.2, 0.15, 0.5, 0.0, 0.0);
+        for (int k = 0; k < 500; k++) {
+            for (int camera = 0; camera < 2; camera++) {
+                observe(calibrator, camera, k * kPeriod + 0.1 * camera, kLatencies[camera]);
+            }
+        }
+        for (int camera = 0; camera < 2; camera++) {
+            // Offsets are added to timestamps, so a late camera learns a negative offset
+            assertEquals(-kLatencies[camera], calibrator.getTimeOffset(camera), 2e-3);
+            assertEquals(-kLatencies[camera], calibrator.correctTimestamp(camera, 10.0) - 10.0, 2e-3);
+            assertTrue(calibrator.getTimeOffsetSampleCount(camera) > 100);
+        }
+        assertEquals(0.0, calibrator.getGyroBias());
+    }
+
+    @Test
+    void timeOffsetIsClamped() {
+        var calibrator = new SensorCalibrator(1, 0.2, 0.05, 0.5, 0.0, 0.0);
+        for (int k = 0; k < 500; k++) {
+            observe(calibrator, 0, k * kPeriod, 0.1);
+        }
+        assertEquals(-0.05, calibrator.getTimeOffset(0), 1e-12);
+    }
+
+    /**
+     * Simulates a gyro that reads high by a drift rate, with the estimator removing the learned drift every 20 ms step and each
+     * vision measurement pulling part of the heading error back out.
+     *
+     * @return The calibrator after the simulation.
+     */
+    private static SensorCalibrator simulateDrift(double driftRate, double maxGyroBias) {
+        var calibrator = new SensorCalibrator(1, 0.05, 0.15, 0.5, 0.2, maxGyroBias);
+        double headingError = 0.0;
+        for (int step = 1; step <= 20000; step++) {
+            headingError += (driftRate - calibrator.getGyroBias()) * 0.02;
+            if (step % 5 == 0) {
+                // Vision sees the true heading, so the residual is the estimate's error, negated
+                calibrator.observeHeading(-headingError);
+                headingError *= 0.8;
+            }
+        }
+        return calibrator;
+    }
+
+    @Test
+    void gyroBiasConvergesToTheDriftRate() {
+        var drifting = simulateDrift(0.004, 0.01);
+        assertEquals(0.004, drifting.getGyroBias(), 1e-5);
+        assertEquals(4000, drifting.getGyroBiasSampleCount());
+        assertEquals(0, drifting.getTimeOffsetSampleCount(0));
+
+        // A gyro reading low learns a negative bias
+        assertEquals(-0.003, simulateDrift(-0.003, 0.01).getGyroBias(), 1e-5);
+    }
+
+    @Test
+    void gyroBiasIsClamped() {
+        assertEquals(0.002, simulateDrift(0.004, 0.002).getGyroBias(), 1e-12);
+        assertEquals(-0.002, simulateDrift(-0.004, 0.002).getGyroBias(), 1e-12);
+    }
+
+    /**
+     * Observes a measurement for which vision saw the robot 0.1 m further along x than odometry did, at the given velocity.
+     */
+    private static void observeAt(SensorCalibrator calibrator, int cameraId, double timestampSeconds, double vx) {
+        calibrator.observeTiming(cameraId, timestampSeconds, 0.1, 0.0, 0.0, 0.0, 1.0, 0.0, vx, 0.0);
+    }
+
+    @Test
+    void waitsForEnoughBaselineAndVelocityChange() {
+        var calibrator = new SensorCalibrator(1, 1.0, 1.0, 0.5, 0.0, 0.0);
+        // The first measurement only becomes the anchor
+        calibrator.observeTiming(0, 1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0);
+        assertEquals(0, calibrator.getTimeOffsetSampleCount(0));
+
+        // Closer than the minimum baseline of 0.25 s, or too little change in velocity: the anchor is kept
+        observeAt(calibrator, 0, 1.2, 2.0);
+        observeAt(calibrator, 0, 1.5, 0.4);
+        assertEquals(0, calibrator.getTimeOffsetSampleCount(0));
+
+        // Against the first anchor: 0.1 m of disagreement over a 2 m/s change in velocity is 0.05 s
+        observeAt(calibrator, 0, 1.3, 2.0);
+        assertEquals(1, calibrator.getTimeOffsetSampleCount(0));
+        assertEquals(0.05, calibrator.getTimeOffset(0), 1e-12);
+    }
+
+    @Test
+    void oldAndOutOfOrderAnchorsAreReplaced() {
+        var calibrator = new SensorCalibrator(1, 1.0, 1.0, 0.5, 0.0, 0.0);
+        calibrator.observeTiming(0, 1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0);
+        // Older than the maximum baseline of 1.5 s, so this becomes the new anchor instead
+        observeAt(calibrator, 0, 2.6, 2.0);
+        assertEquals(0, calibrator.getTimeOffsetSampleCount(0));
+        // Earlier than the anchor, so this replaces it too
+        calibrator.observeTiming(0, 2.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0);
+        assertEquals(0, calibrator.getTimeOffsetSampleCount(0));
+
+        observeAt(calibrator, 0, 3.5, 2.0);
+        assertEquals(1, calibrator.getTimeOffsetSampleCount(0));
+
+        // After the anchors are cleared, the next measurement only anchors, but what was learned is kept
+        calibrator.clearAnchors();
+        observeAt(calibrator, 0, 3.8, -2.0);
+        assertEquals(1, calibrator.getTimeOffsetSampleCount(0));
+        assertEquals(0.05, calibrator.getTimeOffset(0), 1e-12);
+
+        calibrator.reset();
+        assertEquals(0.0, calibrator.getTimeOffset(0));
+        assertEquals(0, calibrator.getTimeOffsetSampleCount(0));
+    }
+
+    @Test
+    void outOfRangeCamerasShareTheLastSlot() {
+        var calibrator = new SensorCalibrator(2, 1.0, 1.0, 0.5, 0.0, 0.0);
+        // Anchored by one out-of-range camera and completed by another
+        calibrator.observeTiming(5, 1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0);
+        observeAt(calibrator, -1, 1.5, 2.0);
+
+        assertEquals(1, calibrator.getTimeOffsetSampleCount(1));
+        assertEquals(0.05, calibrator.getTimeOffset(1), 1e-12);
+        assertEquals(0.05, calibrator.getTimeOffset(7), 1e-12);
+        assertEquals(10.05, calibrator.correctTimestamp(-3, 10.0), 1e-12);
+        assertEquals(0, calibrator.getTimeOffsetSampleCount(0));
+        assertEquals(0.0, calibrator.getTimeOffset(0));
+    }
+
+    @Test
+    void rejectsInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new SensorCalibrator(0));
+        assertThrows(IllegalArgumentException.class, () -> new SensorCalibrator(1, 1.5, 0.1, 0.5, 0.0, 0.0));
+        assertThrows(IllegalArgumentException.class, () -> new SensorCalibrator(1, 0.1, 0.1, 0.0, 0.0, 0.0));
+        assertThrows(IllegalArgumentException.class, () -> new SensorCalibrator(1, 0.1, 0.1, 0.5, -0.1, 0.0));
+    }
+}
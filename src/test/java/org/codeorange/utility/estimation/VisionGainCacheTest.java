@@ -0,0 +1,90 @@
+package org.codeorange.utility.estimation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VisionGainCacheTest {
+    private static final double[] kStateVariances = {0.01, 0.01, 0.01, 0.0025};
+
+    @Test
+    void cachesGainsForRepeatedStdDevs() {
+        var cache = new VisionGainCache(kStateVariances);
+        var gains = new double[4];
+        cache.getGains(0.5, 0.5, 0.5, 0.3, gains);
+        cache.getGains(0.5, 0.5, 0.5, 0.3, gains);
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(VisionGainCache.computeGain(0.01, 0.5), gains[0], 1e-15);
+        assertEquals(VisionGainCache.computeGain(0.0025, 0.3), gains[3], 1e-15);
+    }
+
+    @Test
+    void cachesVeryLargeStdDevs() {
+        var cache = new VisionGainCache(kStateVariances);
+        var gains = new double[4];
+        for (int i = 0; i < 10; i++) {
+            cache.getGains(0.7, 0.7, 0.7, 9999999, gains);
+        }
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(9, cache.getHits());
+        assertEquals(VisionGainCache.computeGain(0.0025, 9999999), gains[3], 1e-15);
+        assertTrue(gains[3] < 1e-8);
+    }
+
+    @Test
+    void distinguishesLargeStdDevs() {
+        var cache = new VisionGainCache(kStateVariances);
+        var ignored = new double[4];
+        var trusted = new double[4];
+        cache.getGains(0.7, 0.7, 0.7, 9999999, ignored);
+        cache.getGains(0.7, 0.7, 0.7, 100, trusted);
+
+        assertEquals(2, cache.getMisses());
+        assertEquals(VisionGainCache.computeGain(0.0025, 100), trusted[3], 1e-15);
+        assertTrue(trusted[3] > 1000 * ignored[3]);
+    }
+
+    @Test
+    void computesInfiniteStdDevsDirectly() {
+        var cache = new VisionGainCache(kStateVariances);
+        var gains = new double[4];
+        cache.getGains(0.7, 0.7, 0.7, Double.POSITIVE_INFINITY, gains);
+        cache.getGains(0.7, 0.7, 0.7, Double.POSITIVE_INFINITY, gains);
+
+        assertEquals(0, cache.getHits());
+        assertEquals(0.0, gains[3]);
+        assertEquals(VisionGainCache.computeGain(0.01, 0.7), gains[0], 1e-15);
+    }
+
+    @Test
+    void roundsToTheQuantum() {
+        var cache = new VisionGainCache(kStateVariances);
+        var gains = new double[4];
+        cache.getGains(0.5, 0.5, 0.5, 0.5, gains);
+        cache.getGains(0.5002, 0.4998, 0.5, 0.5, gains);
+        assertEquals(1, cache.getHits());
+
+        cache.getGains(0.502, 0.5, 0.5, 0.5, gains);
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void rejectsNaNAndNegativeStdDevs() {
+        var cache = new VisionGainCache(kStateVariances);
+        var gains = new double[] {-1, -1, -1, -1};
+        assertThrows(IllegalArgumentException.class, () -> cache.getGains(Double.NaN, 0.5, 0.5, 0.5, gains));
+        assertThrows(IllegalArgumentException.class, () -> cache.getGains(0.5, 0.5, 0.5, Double.NaN, gains));
+        assertThrows(IllegalArgumentException.class, () -> cache.getGains(0.5, -0.5, 0.5, 0.5, gains));
+        assertThrows(IllegalArgumentException.class, () -> cache.getGains(0.5, 0.5, Double.NEGATIVE_INFINITY, 0.5, gains));
+        assertEquals(-1.0, gains[0]);
+        assertEquals(0, cache.getMisses());
+
+        // Nothing was cached under the key NaN would have rounded to
+        cache.getGains(0.0, 0.5, 0.5, 0.5, gains);
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+}
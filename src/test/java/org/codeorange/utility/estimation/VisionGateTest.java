@@ -0,0 +1,88 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Twist3d;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VisionGateTest {
+    // Innovation variances of 1 on every axis, so the squared distance is the squared innovation
+    private static final double[] kStateVariances = {0.75, 0.75, 0.75, 0.75};
+    private static final double[] kStdDevs = {0.5, 0.5, 0.5, 0.5};
+
+    @Test
+    void acceptsMeasurementsInsideTheDownWeightThreshold() {
+        var gate = new VisionGate(2);
+        assertEquals(VisionGate.Result.ACCEPTED, gate.evaluate(0, 1.0, 1.0, 1.0, kStateVariances, kStdDevs));
+        assertEquals(3.0, gate.getLastDistanceSquared(), 1e-12);
+        assertEquals(1.0, gate.getStdDevScale());
+        assertEquals(1, gate.getAcceptedCount(0));
+    }
+
+    @Test
+    void downWeightsMeasurementsBetweenTheThresholds() {
+        var gate = new VisionGate(2);
+        assertEquals(VisionGate.Result.DOWN_WEIGHTED, gate.evaluate(0, 3.0, 0.0, 0.0, kStateVariances, kStdDevs));
+        assertEquals(9.0, gate.getLastDistanceSquared(), 1e-12);
+        // The variance is inflated by d² / threshold
+        assertEquals(Math.sqrt(9.0 / VisionGate.kDefaultDownWeightThreshold), gate.getStdDevScale(), 1e-12);
+        assertEquals(1, gate.getDownWeightedCount(0));
+    }
+
+    @Test
+    void rejectsOutliersAndNaN() {
+        var gate = new VisionGate(2);
+        assertEquals(VisionGate.Result.REJECTED, gate.evaluate(0, 4.0, 0.0, 0.0, kStateVariances, kStdDevs));
+        assertEquals(VisionGate.Result.REJECTED, gate.evaluate(0, Double.NaN, 0.0, 0.0, kStateVariances, kStdDevs));
+        assertEquals(1.0, gate.getStdDevScale());
+        assertEquals(2, gate.getRejectedCount(0));
+    }
+
+    @Test
+    void usesTheRotationAngleOfA3dInnovation() {
+        var gate = new VisionGate(1);
+        gate.evaluate(0, new Twist3d(0.0, 0.0, 5.0, 1.0, 2.0, 2.0), kStateVariances, kStdDevs);
+        // z is not gated, and the rotation contributes its angle of 3
+        assertEquals(9.0, gate.getLastDistanceSquared(), 1e-12);
+    }
+
+    @Test
+    void ignoresAxesWithoutUncertainty() {
+        var gate = new VisionGate(1);
+        double[] zero = {0.0, 0.0, 0.0, 0.0};
+        assertEquals(VisionGate.Result.ACCEPTED, gate.evaluate(0, 10.0, 10.0, 10.0, zero, zero));
+        assertEquals(0.0, gate.getLastDistanceSquared());
+    }
+
+    @Test
+    void countsPerCamera() {
+        var gate = new VisionGate(2);
+        gate.evaluate(0, 0.0, 0.0, 0.0, kStateVariances, kStdDevs);
+        gate.evaluate(1, 0.0, 0.0, 0.0, kStateVariances, kStdDevs);
+        gate.evaluate(7, 0.0, 0.0, 0.0, kStateVariances, kStdDevs);
+        gate.evaluate(-1, 5.0, 0.0, 0.0, kStateVariances, kStdDevs);
+
+        assertEquals(1, gate.getAcceptedCount(0));
+        // Unknown camera ids share the last counter
+        assertEquals(2, gate.getAcceptedCount(1));
+        assertEquals(1, gate.getRejectedCount(1));
+
+        gate.resetCounts();
+        assertEquals(0, gate.getAcceptedCount(1));
+        assertEquals(0, gate.getRejectedCount(1));
+    }
+
+    @Test
+    void equalThresholdsDisableDownWeighting() {
+        var gate = new VisionGate(1, 4.0, 4.0);
+        assertEquals(VisionGate.Result.ACCEPTED, gate.evaluate(0, 2.0, 0.0, 0.0, kStateVariances, kStdDevs));
+        assertEquals(VisionGate.Result.REJECTED, gate.evaluate(0, 2.1, 0.0, 0.0, kStateVariances, kStdDevs));
+    }
+
+    @Test
+    void rejectsInvalidThresholds() {
+        assertThrows(IllegalArgumentException.class, () -> new VisionGate(1, 0.0, 1.0));
+        assertThrows(IllegalArgumentException.class, () -> new VisionGate(1, 2.0, 1.0));
+        assertThrows(IllegalArgumentException.class, () -> new VisionGate(0));
+    }
+}
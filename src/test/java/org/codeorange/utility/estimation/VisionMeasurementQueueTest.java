@@ -0,0 +1,187 @@
+package org.codeorange.utility.estimation;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import org.codeorange.utility.LimelightHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VisionMeasurementQueueTest {
+    private static final int kProducers = 4;
+    private static final int kPerProducer = 5000;
+
+    private static VisionMeasurement[] measurements(int count) {
+        var measurements = new VisionMeasurement[count];
+        for (int i = 0; i < count; i++) {
+            measurements[i] = new VisionMeasurement();
+        }
+        return measurements;
+    }
+
+    /**
+     * Offers a measurement tagged with a camera and a sequence number, which are written into several fields so that a torn slot
+     * shows up as a mismatch.
+     */
+    private static boolean offer(VisionMeasurementQueue queue, int cameraId, int sequence) {
+        return queue.offer(cameraId, new Pose3d(cameraId, sequence, 0, new Rotation3d()), sequence,
+                0.1, 0.2, 0.3, 0.4, sequence, cameraId, 0.5);
+    }
+
+    private static void assertMeasurement(VisionMeasurement measurement, int cameraId, int sequence) {
+        assertEquals(cameraId, measurement.cameraId);
+        assertEquals(sequence, measurement.timestampSeconds);
+        assertEquals(cameraId, measurement.pose.getX());
+        assertEquals(sequence, measurement.pose.getY());
+        assertEquals(sequence, measurement.tagCount);
+        assertEquals(cameraId, measurement.avgTagDist);
+        assertTrue(measurement.hasStdDevs);
+        assertEquals(0.4, measurement.stdDevs[3]);
+    }
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new VisionMeasurementQueue(2).capacity());
+        assertEquals(8, new VisionMeasurementQueue(5).capacity());
+        assertEquals(8, new VisionMeasurementQueue(8).capacity());
+        assertEquals(16, new VisionMeasurementQueue(9).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new VisionMeasurementQueue(1));
+    }
+
+    @Test
+    void concurrentProducersLoseNothingAndKeepTheirOrder() throws InterruptedException {
+        var queue = new VisionMeasurementQueue(64);
+        var start = new CountDownLatch(1);
+        var producers = new Thread[kProducers];
+        for (int p = 0; p < kProducers; p++) {
+            int cameraId = p;
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int sequence = 0; sequence < kPerProducer; sequence++) {
+                    // Retries whenever the consumer falls behind, so every measurement eventually gets in
+                    while (!offer(queue, cameraId, sequence)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            // So that a failed test does not leave the producers spinning forever
+            producers[p].setDaemon(true);
+            producers[p].start();
+        }
+
+        var out = measurements(16);
+        int[] next = new int[kProducers];
+        int received = 0;
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        start.countDown();
+        while (received < kProducers * kPerProducer) {
+            if (System.nanoTime() > deadline) {
+                fail("Only drained " + received + " measurements");
+            }
+            int count = queue.drain(out);
+            for (int i = 0; i < count; i++) {
+                int cameraId = out[i].cameraId;
+                // Each producer's measurements arrive exactly once and in the order it offered them
+                assertMeasurement(out[i], cameraId, next[cameraId]);
+                next[cameraId]++;
+            }
+            received += count;
+        }
+        for (var producer : producers) {
+            producer.join();
+        }
+
+        for (int p = 0; p < kProducers; p++) {
+            assertEquals(kPerProducer, next[p]);
+        }
+        assertEquals(0, queue.drain(out));
+    }
+
+    @Test
+    void dropsAndCountsMeasurementsWhenFull() {
+        var queue = new VisionMeasurementQueue(4);
+        for (int sequence = 0; sequence < 4; sequence++) {
+            assertTrue(offer(queue, 0, sequence));
+        }
+        assertFalse(offer(queue, 0, 4));
+        assertFalse(offer(queue, 0, 5));
+        assertEquals(2, queue.getDroppedCount());
+
+        // Draining into a short array frees only that many slots
+        var out = measurements(2);
+        assertEquals(2, queue.drain(out));
+        assertMeasurement(out[0], 0, 0);
+        assertMeasurement(out[1], 0, 1);
+        assertTrue(offer(queue, 0, 6));
+        assertTrue(offer(queue, 0, 7));
+        assertFalse(offer(queue, 0, 8));
+        assertEquals(3, queue.getDroppedCount());
+
+        out = measurements(8);
+        assertEquals(4, queue.drain(out));
+        int[] expected = {2, 3, 6, 7};
+        for (int i = 0; i < 4; i++) {
+            assertMeasurement(out[i], 0, expected[i]);
+        }
+        assertEquals(0, queue.drain(out));
+    }
+
+    @Test
+    void sequencesWrapAroundOverManyLaps() {
+        var queue = new VisionMeasurementQueue(4);
+        var out = measurements(4);
+        int offered = 0;
+        int drained = 0;
+        // Three in, then out in uneven pieces, so the head and tail land on every slot over many laps of the array
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(offer(queue, 1, offered++));
+            }
+            int count = queue.drain(round % 2 == 0 ? new VisionMeasurement[] {out[0], out[1]} : out);
+            for (int i = 0; i < count; i++) {
+                assertMeasurement(out[i], 1, drained++);
+            }
+        }
+        drained += queue.drain(out);
+        assertEquals(offered, drained);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    void offersLimelightEstimates() {
+        var queue = new VisionMeasurementQueue(4);
+        assertFalse(queue.offer(0, null, 0.1, 0.1, 0.1));
+        var empty = new LimelightHelpers.PoseEstimate(new Pose2d(), 1.0, 0.03, 0, 0.0, 0.0, 0.0,
+                new LimelightHelpers.RawFiducial[0]);
+        assertFalse(queue.offer(0, empty, 0.1, 0.1, 0.1));
+        // Empty estimates are not counted as drops
+        assertEquals(0, queue.getDroppedCount());
+
+        var estimate = new LimelightHelpers.PoseEstimate(new Pose2d(3.0, 4.0, new Rotation2d(0.5)), 2.0, 0.03, 2, 0.4, 3.5,
+                0.2, new LimelightHelpers.RawFiducial[0]);
+        assertTrue(queue.offer(2, estimate, 0.3, 0.4, 0.6));
+
+        var out = measurements(4);
+        assertEquals(1, queue.drain(out));
+        var measurement = out[0];
+        assertEquals(2, measurement.cameraId);
+        assertEquals(2.0, measurement.timestampSeconds);
+        assertEquals(3.0, measurement.pose.getX());
+        assertEquals(4.0, measurement.pose.getY());
+        assertEquals(0.0, measurement.pose.getZ());
+        assertEquals(0.5, measurement.pose.getRotation().getZ(), 1e-12);
+        assertTrue(measurement.hasStdDevs);
+        assertArrayEquals(new double[] {0.3, 0.4, 0.0, 0.6}, measurement.stdDevs);
+        assertEquals(2, measurement.tagCount);
+        assertEquals(3.5, measurement.avgTagDist);
+        assertEquals(0.2, measurement.avgTagArea);
+    }
+}
@@ -0,0 +1,135 @@
+package org.codeorange.utility.geometry;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.geometry.Twist3d;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MutablePose3dTest {
+    private static final double kTolerance = 1e-12;
+
+    private final Random m_random = new Random(1);
+
+    private double random(double magnitude) {
+        return (m_random.nextDouble() * 2 - 1) * magnitude;
+    }
+
+    private Pose3d randomPose() {
+        return new Pose3d(new Translation3d(random(5), random(5), random(1)),
+                new Rotation3d(new Quaternion(random(1), random(1), random(1), random(1)).normalize()));
+    }
+
+    /**
+     * A random twist whose rotation angle has the given size, so that the small-angle and near half-turn cases are covered.
+     */
+    private Twist3d randomTwist(double angle) {
+        double rx = random(1), ry = random(1), rz = random(1);
+        double scale = angle / Math.sqrt(rx * rx + ry * ry + rz * rz);
+        return new Twist3d(random(2), random(2), random(2), rx * scale, ry * scale, rz * scale);
+    }
+
+    private static void assertPose(Pose3d expected, MutablePose3d actual) {
+        assertPose(expected, actual, kTolerance);
+    }
+
+    /**
+     * Asserts that two poses match, treating a quaternion and its negation as the same rotation.
+     */
+    private static void assertPose(Pose3d expected, MutablePose3d actual, double tolerance) {
+        var q = expected.getRotation().getQuaternion();
+        assertEquals(expected.getX(), actual.getX(), tolerance);
+        assertEquals(expected.getY(), actual.getY(), tolerance);
+        assertEquals(expected.getZ(), actual.getZ(), tolerance);
+        double sign = Math.signum(q.getW() * actual.getQw() + q.getX() * actual.getQx() + q.getY() * actual.getQy()
+                + q.getZ() * actual.getQz());
+        assertEquals(q.getW(), sign * actual.getQw(), tolerance);
+        assertEquals(q.getX(), sign * actual.getQx(), tolerance);
+        assertEquals(q.getY(), sign * actual.getQy(), tolerance);
+        assertEquals(q.getZ(), sign * actual.getQz(), tolerance);
+    }
+
+    @Test
+    void expMatchesPose3d() {
+        var pose = new MutablePose3d();
+        for (int trial = 0; trial < 1000; trial++) {
+            var start = randomPose();
+            var twist = randomTwist(new double[] {0.0, 1e-12, 1e-6, 0.5, 2.0, Math.PI - 1e-6}[trial % 6]);
+            // Pose3d loses some precision for small rotations, which this does not
+            assertPose(start.exp(twist), pose.set(start).exp(twist), 1e-9);
+        }
+    }
+
+    @Test
+    void logMatchesPose3d() {
+        var start = new MutablePose3d();
+        var end = new MutablePose3d();
+        var twist = new Twist3d();
+        for (int trial = 0; trial < 1000; trial++) {
+            var a = randomPose();
+            var b = randomPose();
+            var expected = a.log(b);
+            start.set(a).log(end.set(b), twist);
+            assertEquals(expected.dx, twist.dx, 1e-9);
+            assertEquals(expected.dy, twist.dy, 1e-9);
+            assertEquals(expected.dz, twist.dz, 1e-9);
+            assertEquals(expected.rx, twist.rx, 1e-9);
+            assertEquals(expected.ry, twist.ry, 1e-9);
+            assertEquals(expected.rz, twist.rz, 1e-9);
+        }
+    }
+
+    @Test
+    void expUndoesLog() {
+        var start = new MutablePose3d();
+        var end = new MutablePose3d();
+        var twist = new Twist3d();
+        for (int trial = 0; trial < 1000; trial++) {
+            var a = randomPose();
+            // Includes the small rotations of a single odometry step, where the closed form loses precision
+            var b = a.exp(randomTwist(new double[] {0.0, 1e-9, 1e-7, 1e-5, 1e-3, 0.5, 3.0}[trial % 7]));
+            start.set(a).log(end.set(b), twist);
+            assertPose(b, start.exp(twist));
+        }
+    }
+
+    @Test
+    void logTakesTheShortWayForNegatedQuaternions() {
+        var start = new MutablePose3d().set(0, 0, 0, Math.cos(0.1), 0, 0, Math.sin(0.1));
+        var end = new MutablePose3d().set(0, 0, 0, -Math.cos(0.2), 0, 0, -Math.sin(0.2));
+        var twist = start.log(end, new Twist3d());
+        assertEquals(0.2, twist.rz, kTolerance);
+        assertEquals(0.0, twist.rx, kTolerance);
+        assertEquals(0.0, twist.dx, kTolerance);
+    }
+
+    @Test
+    void rotateAboutZMatchesRotation3d() {
+        var pose = new MutablePose3d();
+        for (int trial = 0; trial < 100; trial++) {
+            var start = randomPose();
+            double angle = random(Math.PI);
+            var expected = new Pose3d(start.getTranslation(), start.getRotation().plus(new Rotation3d(0, 0, angle)));
+            assertPose(expected, pose.set(start).rotateAboutZ(angle));
+            assertEquals(expected.getRotation().getZ(), pose.getYaw(), 1e-9);
+        }
+    }
+
+    @Test
+    void convertsToAndFromOtherPoses() {
+        var planar = new MutablePose2d(1.0, -2.0, 2.5);
+        var pose = new MutablePose3d().set(planar);
+        assertEquals(2.5, pose.getYaw(), kTolerance);
+        assertEquals(0.0, pose.getZ());
+        assertEquals(2.5, pose.toPose2d().getRotation().getRadians(), kTolerance);
+
+        var pose3d = randomPose();
+        assertPose(pose3d, new MutablePose3d(pose3d));
+        assertPose(pose3d, new MutablePose3d().set(new MutablePose3d(pose3d).toPose3d()));
+    }
+}
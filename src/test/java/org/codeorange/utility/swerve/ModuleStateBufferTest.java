@@ -0,0 +1,145 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModuleStateBufferTest {
+    private static final double kTolerance = 1e-12;
+
+    private final Random m_random = new Random(24);
+
+    private double random(double magnitude) {
+        return (m_random.nextDouble() * 2 - 1) * magnitude;
+    }
+
+    /**
+     * The optimization WPILib's SwerveModuleState does, keeping the steer rate.
+     */
+    private static SecondOrderModuleState baselineOptimize(SecondOrderModuleState desiredState, Rotation2d currentAngle) {
+        var delta = desiredState.angle.minus(currentAngle);
+        if (delta.getCos() < 0) {
+            return new SecondOrderModuleState(
+                    -desiredState.speedMetersPerSecond,
+                    desiredState.angle.rotateBy(Rotation2d.fromDegrees(180.0)),
+                    desiredState.omega);
+        }
+        return new SecondOrderModuleState(desiredState.speedMetersPerSecond, desiredState.angle, desiredState.omega);
+    }
+
+    @Test
+    void reversesOnlyPastAQuarterTurn() {
+        var buffer = new ModuleStateBuffer(2);
+        buffer.set(0, 2.0, 1.0, 0.0, 0.7);
+        buffer.set(1, 2.0, 1.0, 0.0, 0.7);
+
+        assertFalse(buffer.optimize(0, Math.cos(Math.toRadians(89)), Math.sin(Math.toRadians(89)), false));
+        assertEquals(2.0, buffer.speeds[0]);
+        assertEquals(1.0, buffer.cos[0]);
+        assertEquals(0.0, buffer.sin[0]);
+
+        assertTrue(buffer.optimize(1, Math.cos(Math.toRadians(91)), Math.sin(Math.toRadians(91)), false));
+        assertEquals(-2.0, buffer.speeds[1]);
+        assertEquals(-1.0, buffer.cos[1]);
+        assertEquals(-0.0, buffer.sin[1]);
+        // The steer rate is left alone
+        assertEquals(0.7, buffer.omegas[1]);
+    }
+
+    @Test
+    void reversingNegatesTheAngleAndSpeed() {
+        var buffer = new ModuleStateBuffer(1);
+        double angle = 0.4;
+        buffer.set(0, 1.5, Math.cos(angle), Math.sin(angle), -0.2);
+        // Facing nearly opposite, so the module turns 0.1 rad instead of pi - 0.1
+        assertTrue(buffer.optimize(0, Math.cos(angle + Math.PI - 0.1), Math.sin(angle + Math.PI - 0.1), false));
+        assertEquals(-1.5, buffer.speeds[0]);
+        assertEquals(-Math.cos(angle), buffer.cos[0]);
+        assertEquals(-Math.sin(angle), buffer.sin[0]);
+        assertEquals(angle - Math.PI, buffer.getAngleRadians(0), kTolerance);
+        assertEquals(-0.2, buffer.omegas[0]);
+    }
+
+    @Test
+    void cosineScalingKeepsOnlyTheSpeedAlongTheModule() {
+        var buffer = new ModuleStateBuffer(2);
+        buffer.set(0, 2.0, 1.0, 0.0, 0.0);
+        buffer.set(1, 2.0, 1.0, 0.0, 0.0);
+
+        // 60 degrees still to turn halves the speed
+        assertFalse(buffer.optimize(0, Math.cos(Math.PI / 3), Math.sin(Math.PI / 3), true));
+        assertEquals(1.0, buffer.speeds[0], kTolerance);
+
+        // 150 degrees away reverses, leaving 30 degrees to turn
+        assertTrue(buffer.optimize(1, Math.cos(5 * Math.PI / 6), Math.sin(5 * Math.PI / 6), true));
+        assertEquals(-2.0 * Math.cos(Math.PI / 6), buffer.speeds[1], kTolerance);
+
+        // Already pointing the right way leaves the speed as it was
+        buffer.set(0, 2.0, 1.0, 0.0, 0.0);
+        assertFalse(buffer.optimize(0, 1.0, 0.0, true));
+        assertEquals(2.0, buffer.speeds[0]);
+    }
+
+    @Test
+    void optimizesEveryModuleAgainstItsAngle() {
+        var buffer = new ModuleStateBuffer(3);
+        for (int i = 0; i < 3; i++) {
+            buffer.set(i, 1.0, 1.0, 0.0, 0.0);
+        }
+        buffer.optimize(new double[] {0.0, Math.PI, Math.PI / 3}, true);
+        assertEquals(1.0, buffer.speeds[0]);
+        assertEquals(-1.0, buffer.speeds[1], kTolerance);
+        assertEquals(-1.0, buffer.cos[1]);
+        assertEquals(0.5, buffer.speeds[2], kTolerance);
+        assertThrows(IllegalArgumentException.class, () -> buffer.optimize(new double[2], false));
+    }
+
+    @Test
+    void bufferMatchesModuleStates() {
+        var buffer = new ModuleStateBuffer(1);
+        for (int trial = 0; trial < 1000; trial++) {
+            double speed = random(4);
+            double angle = random(Math.PI);
+            double omega = random(10);
+            double current = random(Math.PI);
+            boolean scale = trial % 2 == 0;
+
+            buffer.set(0, speed, Math.cos(angle), Math.sin(angle), omega);
+            var state = new SecondOrderModuleState(speed, new Rotation2d(angle), omega);
+            assertEquals(state.optimize(Math.cos(current), Math.sin(current), scale),
+                    buffer.optimize(0, Math.cos(current), Math.sin(current), scale));
+            assertEquals(state.speedMetersPerSecond, buffer.speeds[0], kTolerance);
+            assertEquals(state.angle.getCos(), buffer.cos[0], kTolerance);
+            assertEquals(state.angle.getSin(), buffer.sin[0], kTolerance);
+            assertEquals(state.omega, buffer.omegas[0]);
+        }
+    }
+
+    @Test
+    void staticOptimizeMatchesBaseline() {
+        for (int trial = 0; trial < 1000; trial++) {
+            var desired = new SecondOrderModuleState(random(4), new Rotation2d(random(Math.PI)), random(10));
+            var current = new Rotation2d(random(Math.PI));
+            if (Math.abs(desired.angle.minus(current).getCos()) < 1e-9) {
+                // Exactly a quarter turn away, where rounding decides either way
+                continue;
+            }
+            double speed = desired.speedMetersPerSecond;
+            var angle = desired.angle;
+
+            var expected = baselineOptimize(desired, current);
+            var actual = SecondOrderModuleState.optimize(desired, current);
+            assertEquals(expected.speedMetersPerSecond, actual.speedMetersPerSecond);
+            assertEquals(expected.angle.getCos(), actual.angle.getCos(), kTolerance);
+            assertEquals(expected.angle.getSin(), actual.angle.getSin(), kTolerance);
+            assertEquals(expected.omega, actual.omega);
+
+            // The desired state is left as it was
+            assertEquals(speed, desired.speedMetersPerSecond);
+            assertSame(angle, desired.angle);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import org.codeorange.utility.TrajectoryDeserializer;
+import org.codeorange.utility.TrajectoryDeserializer.TimedTrajectory;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.DoubleUnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModuleStateTableTest {
+    private static final double kDt = 0.02;
+    private static final double kStartTime = 12.5;
+
+    private final SecondOrderKinematics m_kinematics = new SecondOrderKinematics(
+            new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+            new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+
+    /**
+     * Serializes a trajectory along a straight line at a fixed angle, with the velocity given at each of the times, and
+     * deserializes it.
+     */
+    private static TimedTrajectory straightLine(double angle, double[] times, DoubleUnaryOperator velocity) {
+        var rows = new double[times.length + 1][];
+        rows[0] = new double[] {kStartTime};
+        double distance = 0.0;
+        for (int k = 0; k < times.length; k++) {
+            if (k > 0) {
+                double dt = times[k] - times[k - 1];
+                distance += 0.5 * (velocity.applyAsDouble(times[k - 1]) + velocity.applyAsDouble(times[k])) * dt;
+            }
+            rows[k + 1] = new double[] {
+                    times[k], velocity.applyAsDouble(times[k]), 0.0,
+                    distance * Math.cos(angle), distance * Math.sin(angle), angle, 0.0};
+        }
+        return TrajectoryDeserializer.deserialize(rows);
+    }
+
+    private static double[] times(double end, double step) {
+        var times = new double[(int) Math.round(end / step) + 1];
+        for (int k = 0; k < times.length; k++) {
+            times[k] = k * step;
+        }
+        return times;
+    }
+
+    @Test
+    void modulesFollowTheDeserializedAngle() {
+        var trajectory = straightLine(0.7, times(2.0, 0.1), t -> 2.0);
+        assertEquals(kStartTime, trajectory.startTime());
+        assertEquals(0.7, trajectory.trajectory().sample(1.0).poseMeters.getRotation().getRadians(), 1e-12);
+
+        var table = ModuleStateTable.compute(m_kinematics, trajectory, t -> 0.0, kDt, null);
+        assertEquals(kStartTime, table.getStartTime());
+        assertEquals(kStartTime + 2.0, table.getEndTime(), 1e-9);
+        assertEquals(101, table.getSampleCount());
+
+        var states = table.sample(kStartTime + 0.73, new ModuleStateBuffer(4));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2.0, states.speeds[i], 1e-9);
+            assertEquals(Math.cos(0.7), states.cos[i], 1e-9);
+            assertEquals(Math.sin(0.7), states.sin[i], 1e-9);
+            assertEquals(0.0, states.omegas[i], 1e-9);
+        }
+    }
+
+    @Test
+    void chassisSpeedsAreRobotRelative() {
+        var trajectory = straightLine(0.0, times(2.0, 0.1), t -> 1.5);
+        var table = ModuleStateTable.compute(m_kinematics, trajectory, t -> 0.5 * t, kDt, null);
+
+        var speeds = new ChassisSpeeds();
+        var states = new ModuleStateBuffer(4);
+        for (double t = 0.1; t < 1.9; t += 0.17) {
+            table.sampleChassisSpeeds(kStartTime + t, speeds);
+            assertEquals(1.5 * Math.cos(0.5 * t), speeds.vxMetersPerSecond, 1e-3);
+            assertEquals(-1.5 * Math.sin(0.5 * t), speeds.vyMetersPerSecond, 1e-3);
+            assertEquals(0.5, speeds.omegaRadiansPerSecond, 1e-9);
+
+            // The interpolated module states match inverse kinematics of the interpolated chassis speeds
+            table.sample(kStartTime + t, states);
+            var expected = new SecondOrderKinematics(m_kinematics.getModuleTranslations())
+                    .toSwerveModuleStates(speeds, new ModuleStateBuffer(4));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(expected.speeds[i] * expected.cos[i], states.speeds[i] * states.cos[i], 1e-3);
+                assertEquals(expected.speeds[i] * expected.sin[i], states.speeds[i] * states.sin[i], 1e-3);
+            }
+        }
+    }
+
+    @Test
+    void stoppedModulesKeepTheirHeadingAndReversalsSpinWheelsBackward() {
+        // Accelerates from rest, then slows down and backs up along the same line
+        var trajectory = straightLine(1.0, times(4.0, 0.05), t -> 2.0 * Math.sin(Math.PI * t / 2.0));
+        var table = ModuleStateTable.compute(m_kinematics, trajectory, t -> 0.0, kDt, null);
+
+        var states = new ModuleStateBuffer(4);
+        for (int k = 0; k < table.getSampleCount(); k++) {
+            table.sample(kStartTime + k * kDt, states);
+            for (int i = 0; i < 4; i++) {
+                // Before the robot moves, the modules already face the way they first move
+                assertEquals(Math.cos(1.0), states.cos[i], 1e-9);
+                assertEquals(Math.sin(1.0), states.sin[i], 1e-9);
+            }
+        }
+        assertTrue(table.sample(kStartTime + 3.0, states).speeds[0] < -1.9);
+
+        // Speeds ramp like the trajectory's velocity, and accelerations are their derivative
+        assertEquals(Math.PI, table.sampleAcceleration(kStartTime, 0), 0.1);
+        assertEquals(0.0, table.sampleAcceleration(kStartTime + 1.0, 0), 0.1);
+        assertEquals(-Math.PI, table.sampleAcceleration(kStartTime + 2.0, 0), 0.1);
+    }
+
+    @Test
+    void samplesOutsideTheTableAreClamped() {
+        var trajectory = straightLine(0.0, times(1.0, 0.1), t -> 1.0 + t);
+        var table = ModuleStateTable.compute(m_kinematics, trajectory, t -> 0.0, kDt, null);
+
+        var states = new ModuleStateBuffer(4);
+        assertEquals(1.0, table.sample(kStartTime - 5.0, states).speeds[0], 1e-9);
+        assertEquals(2.0, table.sample(kStartTime + 5.0, states).speeds[0], 1e-9);
+        assertEquals(1.5, table.sample(kStartTime + 0.5, states).speeds[0], 1e-9);
+        assertThrows(IllegalArgumentException.class, () -> table.sample(kStartTime, new ModuleStateBuffer(3)));
+    }
+
+    @Test
+    void limitedTableIsFeasible() {
+        double maxAcceleration = 5.0;
+        // Starts at full speed, which the modules have to accelerate into, while spinning
+        var trajectory = straightLine(0.0, times(2.0, 0.1), t -> 3.0);
+        var generator = new SwerveSetpointGenerator(m_kinematics, 4.5, maxAcceleration, 10.0);
+        var table = ModuleStateTable.compute(m_kinematics, trajectory, t -> 0.8 * t, kDt, generator);
+
+        var states = new ModuleStateBuffer(4);
+        double[] previousVx = new double[4];
+        double[] previousVy = new double[4];
+        for (int k = 0; k < table.getSampleCount(); k++) {
+            table.sample(kStartTime + k * kDt, states);
+            for (int i = 0; i < 4; i++) {
+                double vx = states.speeds[i] * states.cos[i];
+                double vy = states.speeds[i] * states.sin[i];
+                if (k > 0) {
+                    assertTrue(Math.hypot(vx - previousVx[i], vy - previousVy[i]) <= maxAcceleration * kDt + 1e-9);
+                }
+                previousVx[i] = vx;
+                previousVy[i] = vy;
+            }
+        }
+        // Once caught up, the table follows the trajectory
+        var speeds = table.sampleChassisSpeeds(kStartTime + 1.9, new ChassisSpeeds());
+        assertEquals(3.0, Math.hypot(speeds.vxMetersPerSecond, speeds.vyMetersPerSecond), 1e-3);
+    }
+
+    @Test
+    void periodMustBePositive() {
+        var trajectory = straightLine(0.0, times(1.0, 0.1), t -> 1.0);
+        assertThrows(IllegalArgumentException.class,
+                () -> ModuleStateTable.compute(m_kinematics, trajectory, t -> 0.0, 0.0, null));
+    }
+}
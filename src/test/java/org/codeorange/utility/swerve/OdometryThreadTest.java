@@ -0,0 +1,123 @@
+package org.codeorange.utility.swerve;
+
+import com.ctre.phoenix6.hardware.Pigeon2;
+import com.ctre.phoenix6.hardware.TalonFX;
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.wpilibj.Timer;
+import org.codeorange.utility.estimation.PoseSnapshot;
+import org.codeorange.utility.wpimodified.SwerveDrivePoseEstimator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OdometryThreadTest {
+    private static final double kDriveRotationsToMeters = 0.05;
+    // On the roboRIO's bus each cycle sleeps for a period, so the samples are a period old when they are read
+    private static final double kFrequency = 50.0;
+
+    private final TalonFX[] m_driveMotors = new TalonFX[4];
+    private final TalonFX[] m_steerMotors = new TalonFX[4];
+    private Pigeon2 m_pigeon;
+    private OdometryThread m_odometry;
+    private double m_startTime;
+
+    @BeforeEach
+    void setUp() {
+        assertTrue(HAL.initialize(500, 0));
+        for (int i = 0; i < 4; i++) {
+            m_driveMotors[i] = new TalonFX(i * 2 + 1);
+            m_steerMotors[i] = new TalonFX(i * 2 + 2);
+        }
+        m_pigeon = new Pigeon2(9);
+
+        var positions = new SwerveModulePosition[4];
+        for (int i = 0; i < 4; i++) {
+            positions[i] = new SwerveModulePosition(0, new Rotation2d());
+        }
+        var kinematics = new SecondOrderKinematics(
+                new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+                new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+        var estimator = new SwerveDrivePoseEstimator(kinematics, new Rotation2d(), positions, new Pose2d());
+        m_odometry = new OdometryThread(estimator, m_pigeon, m_driveMotors, m_steerMotors, kDriveRotationsToMeters,
+                kFrequency);
+        m_startTime = Timer.getFPGATimestamp();
+    }
+
+    @AfterEach
+    void tearDown() {
+        m_odometry.stop();
+        for (int i = 0; i < 4; i++) {
+            m_driveMotors[i].close();
+            m_steerMotors[i].close();
+        }
+        m_pigeon.close();
+    }
+
+    /**
+     * Samples every module rolling forward at a constant speed, as it would be at the current time.
+     */
+    private void sampleDriving(double speedMetersPerSecond) {
+        double distance = speedMetersPerSecond * (Timer.getFPGATimestamp() - m_startTime);
+        for (var motor : m_driveMotors) {
+            var simState = motor.getSimState();
+            simState.setRotorVelocity(speedMetersPerSecond / kDriveRotationsToMeters);
+            simState.setRawRotorPosition(distance / kDriveRotationsToMeters);
+        }
+    }
+
+    @Test
+    void positionIsStampedWithTheTimeItWasCompensatedTo() {
+        double speed = 4.0;
+        var snapshot = new PoseSnapshot();
+        for (int cycle = 0; cycle < 10; cycle++) {
+            sampleDriving(speed);
+            double before = Timer.getFPGATimestamp();
+            assertTrue(m_odometry.runOnce());
+            double after = Timer.getFPGATimestamp();
+
+            m_odometry.getSnapshot(snapshot);
+            assertTrue(snapshot.timestampSeconds >= before && snapshot.timestampSeconds <= after);
+            // The samples were a period old, but the pose must be where the robot was at the snapshot's timestamp
+            assertEquals(speed * (snapshot.timestampSeconds - m_startTime), snapshot.x, 0.02);
+            assertEquals(0.0, snapshot.y, 1e-9);
+        }
+        assertEquals(10, m_odometry.getSuccessfulCycles());
+        assertEquals(0, m_odometry.getFailedCycles());
+    }
+
+    @Test
+    void headingIsStampedWithTheTimeItWasCompensatedTo() {
+        double rateDegreesPerSecond = 90.0;
+        var gyroSimState = m_pigeon.getSimState();
+        var snapshot = new PoseSnapshot();
+        for (int cycle = 0; cycle < 10; cycle++) {
+            gyroSimState.setAngularVelocityZ(rateDegreesPerSecond);
+            gyroSimState.setRawYaw(rateDegreesPerSecond * (Timer.getFPGATimestamp() - m_startTime));
+            assertTrue(m_odometry.runOnce());
+
+            m_odometry.getSnapshot(snapshot);
+            assertEquals(Math.toRadians(rateDegreesPerSecond * (snapshot.timestampSeconds - m_startTime)), snapshot.getYaw(),
+                    0.01);
+        }
+    }
+
+    @Test
+    void resetIsAppliedOnTheNextCycle() {
+        m_odometry.resetPosition(new Pose2d(3.0, -2.0, Rotation2d.fromDegrees(45)));
+        var snapshot = new PoseSnapshot();
+        m_odometry.getSnapshot(snapshot);
+        assertEquals(0.0, snapshot.x, 1e-9);
+
+        assertTrue(m_odometry.runOnce());
+        m_odometry.getSnapshot(snapshot);
+        assertEquals(3.0, snapshot.x, 1e-9);
+        assertEquals(-2.0, snapshot.y, 1e-9);
+        assertEquals(Math.PI / 4, snapshot.getYaw(), 1e-9);
+    }
+}
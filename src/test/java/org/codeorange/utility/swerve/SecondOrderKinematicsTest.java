@@ -0,0 +1,289 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SecondOrderKinematicsTest {
+    private static final double kTolerance = 1e-13;
+
+    private static final Translation2d[] kModules = {
+            new Translation2d(0.3, 0.25), new Translation2d(0.3, -0.25),
+            new Translation2d(-0.3, 0.25), new Translation2d(-0.3, -0.25)};
+
+    private final SecondOrderKinematics m_generic = new SecondOrderKinematics(false, kModules);
+    private final SecondOrderKinematics m_specialized = new SecondOrderKinematics(kModules);
+    private final Random m_random = new Random(19);
+
+    /**
+     * Asserts that two values match to {@link #kTolerance}, relative to their size once they are larger than 1, since a module
+     * close to the center of rotation steers very fast.
+     */
+    private static void assertClose(double expected, double actual) {
+        assertEquals(expected, actual, kTolerance * Math.max(1.0, Math.abs(expected)));
+    }
+
+    private double random(double magnitude) {
+        return (m_random.nextDouble() * 2 - 1) * magnitude;
+    }
+
+    @Test
+    void fourModulesAreSpecializedUnlessAskedNotTo() {
+        assertFalse(m_generic.isSpecialized());
+        assertTrue(m_specialized.isSpecialized());
+        assertFalse(new SecondOrderKinematics(kModules[0], kModules[1], kModules[2]).isSpecialized());
+    }
+
+    @Test
+    void inverseKinematicsMatchesGenericPath() {
+        var genericBuffer = new ModuleStateBuffer(4);
+        var specializedBuffer = new ModuleStateBuffer(4);
+        for (int trial = 0; trial < 1000; trial++) {
+            // Every tenth command is a stop, which keeps the previous headings
+            var speeds = trial % 10 == 0
+                    ? new ChassisSpeeds()
+                    : new ChassisSpeeds(random(5), random(5), random(10));
+            var centerOfRotation = trial % 3 == 0 ? new Translation2d() : new Translation2d(random(1), random(1));
+
+            var generic = m_generic.toSwerveModuleStates(speeds, centerOfRotation);
+            var specialized = m_specialized.toSwerveModuleStates(speeds, centerOfRotation);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(generic[i].speedMetersPerSecond, specialized[i].speedMetersPerSecond, kTolerance);
+                assertEquals(generic[i].angle.getCos(), specialized[i].angle.getCos(), kTolerance);
+                assertEquals(generic[i].angle.getSin(), specialized[i].angle.getSin(), kTolerance);
+                assertClose(generic[i].omega, specialized[i].omega);
+            }
+
+            m_generic.toSwerveModuleStates(speeds, centerOfRotation, genericBuffer);
+            m_specialized.toSwerveModuleStates(speeds, centerOfRotation, specializedBuffer);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(genericBuffer.speeds[i], specializedBuffer.speeds[i], kTolerance);
+                assertEquals(genericBuffer.cos[i], specializedBuffer.cos[i], kTolerance);
+                assertEquals(genericBuffer.sin[i], specializedBuffer.sin[i], kTolerance);
+                assertClose(genericBuffer.omegas[i], specializedBuffer.omegas[i]);
+            }
+        }
+    }
+
+    @Test
+    void forwardKinematicsMatchesGenericPath() {
+        var states = new SecondOrderModuleState[4];
+        double[] distanceDeltas = new double[4];
+        double[] angles = new double[4];
+        double[] moduleDx = new double[4];
+        double[] moduleDy = new double[4];
+        var genericTwist = new Twist2d();
+        var specializedTwist = new Twist2d();
+        for (int trial = 0; trial < 1000; trial++) {
+            for (int i = 0; i < 4; i++) {
+                distanceDeltas[i] = random(0.1);
+                angles[i] = random(Math.PI);
+                moduleDx[i] = distanceDeltas[i] * Math.cos(angles[i]);
+                moduleDy[i] = distanceDeltas[i] * Math.sin(angles[i]);
+                states[i] = new SecondOrderModuleState(random(5), new Rotation2d(angles[i]), 0.0);
+            }
+
+            var generic = m_generic.toChassisSpeeds(states);
+            var specialized = m_specialized.toChassisSpeeds(states);
+            assertEquals(generic.vxMetersPerSecond, specialized.vxMetersPerSecond, kTolerance);
+            assertEquals(generic.vyMetersPerSecond, specialized.vyMetersPerSecond, kTolerance);
+            assertEquals(generic.omegaRadiansPerSecond, specialized.omegaRadiansPerSecond, kTolerance);
+
+            m_generic.toTwist2d(distanceDeltas, angles, genericTwist);
+            m_specialized.toTwist2d(distanceDeltas, angles, specializedTwist);
+            assertEquals(genericTwist.dx, specializedTwist.dx, kTolerance);
+            assertEquals(genericTwist.dy, specializedTwist.dy, kTolerance);
+            assertEquals(genericTwist.dtheta, specializedTwist.dtheta, kTolerance);
+
+            m_generic.toTwist2dFromDisplacements(moduleDx, moduleDy, genericTwist);
+            m_specialized.toTwist2dFromDisplacements(moduleDx, moduleDy, specializedTwist);
+            assertEquals(genericTwist.dx, specializedTwist.dx, kTolerance);
+            assertEquals(genericTwist.dy, specializedTwist.dy, kTolerance);
+            assertEquals(genericTwist.dtheta, specializedTwist.dtheta, kTolerance);
+        }
+    }
+
+    @Test
+    void forwardKinematicsInvertsInverseKinematics() {
+        var buffer = new ModuleStateBuffer(4);
+        for (var kinematics : new SecondOrderKinematics[] {m_generic, m_specialized}) {
+            var speeds = new ChassisSpeeds(1.5, -0.7, 2.0);
+            var states = kinematics.toSwerveModuleStates(speeds);
+            var result = kinematics.toChassisSpeeds(states);
+            assertEquals(1.5, result.vxMetersPerSecond, kTolerance);
+            assertEquals(-0.7, result.vyMetersPerSecond, kTolerance);
+            assertEquals(2.0, result.omegaRadiansPerSecond, kTolerance);
+
+            kinematics.toSwerveModuleStates(speeds, buffer);
+            double[] distanceDeltas = buffer.speeds.clone();
+            double[] angles = new double[4];
+            for (int i = 0; i < 4; i++) {
+                angles[i] = buffer.getAngleRadians(i);
+            }
+            var twist = kinematics.toTwist2d(distanceDeltas, angles, new Twist2d());
+            assertEquals(1.5, twist.dx, kTolerance);
+            assertEquals(-0.7, twist.dy, kTolerance);
+            assertEquals(2.0, twist.dtheta, kTolerance);
+        }
+    }
+
+    /**
+     * @return A center of rotation on a circle around the robot, distinct for each index.
+     */
+    private static Translation2d centerOfRotation(int index) {
+        return new Translation2d(0.5 * Math.cos(0.4 * index), 0.5 * Math.sin(0.4 * index));
+    }
+
+    @Test
+    void inverseCacheEvictsTheLeastRecentlyUsedCenterOfRotation() {
+        var speeds = new ChassisSpeeds(1.0, 0.5, 2.0);
+        // The physical center is cached from construction, so eight more centers evict it
+        assertTrue(m_generic.isCenterOfRotationCached(new Translation2d()));
+        for (int i = 1; i <= SecondOrderKinematics.kCenterOfRotationCacheSize; i++) {
+            m_generic.toSwerveModuleStates(speeds, centerOfRotation(i));
+        }
+        assertFalse(m_generic.isCenterOfRotationCached(new Translation2d()));
+        for (int i = 1; i <= SecondOrderKinematics.kCenterOfRotationCacheSize; i++) {
+            assertTrue(m_generic.isCenterOfRotationCached(centerOfRotation(i)));
+        }
+
+        // Using the oldest center again makes the second oldest the one to go
+        m_generic.toSwerveModuleStates(speeds, centerOfRotation(1));
+        m_generic.toSwerveModuleStates(speeds, centerOfRotation(9));
+        assertTrue(m_generic.isCenterOfRotationCached(centerOfRotation(1)));
+        assertFalse(m_generic.isCenterOfRotationCached(centerOfRotation(2)));
+        assertTrue(m_generic.isCenterOfRotationCached(centerOfRotation(9)));
+    }
+
+    @Test
+    void inverseCacheKeepsAlternatingCornerCentersOfRotation() {
+        var speeds = new ChassisSpeeds(0.5, -1.0, 3.0);
+        for (int trial = 0; trial < 100; trial++) {
+            var corner = kModules[trial % 4];
+            var states = m_generic.toSwerveModuleStates(speeds, corner);
+            var expected = new SecondOrderKinematics(false, kModules).toSwerveModuleStates(speeds, corner);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(expected[i].speedMetersPerSecond, states[i].speedMetersPerSecond);
+                assertEquals(expected[i].angle.getRadians(), states[i].angle.getRadians());
+                assertEquals(expected[i].omega, states[i].omega);
+            }
+        }
+        for (var corner : kModules) {
+            assertTrue(m_generic.isCenterOfRotationCached(corner));
+        }
+        assertTrue(m_generic.isCenterOfRotationCached(new Translation2d()));
+    }
+
+    @Test
+    void cachedInverseKinematicsMatchFreshlyBuiltOnes() {
+        var threeModules = new SecondOrderKinematics(kModules[0], kModules[1], kModules[3]);
+        for (var kinematics : new SecondOrderKinematics[] {m_generic, threeModules}) {
+            var modules = kinematics.getModuleTranslations();
+            for (int trial = 0; trial < 200; trial++) {
+                // Cycles through more centers than the cache holds, so centers are evicted and rebuilt as well as reused
+                var centerOfRotation = centerOfRotation(trial % 3 == 0 ? trial % 12 : trial % 5);
+                var speeds = new ChassisSpeeds(random(3), random(3), random(5));
+                var states = kinematics.toSwerveModuleStates(speeds, centerOfRotation);
+                var expected = new SecondOrderKinematics(false, modules).toSwerveModuleStates(speeds, centerOfRotation);
+                for (int i = 0; i < modules.length; i++) {
+                    assertEquals(expected[i].speedMetersPerSecond, states[i].speedMetersPerSecond);
+                    assertEquals(expected[i].angle.getRadians(), states[i].angle.getRadians());
+                    assertEquals(expected[i].omega, states[i].omega);
+                }
+            }
+        }
+    }
+
+    private static SecondOrderModuleState[] states(double speed, double angle) {
+        var states = new SecondOrderModuleState[4];
+        for (int i = 0; i < 4; i++) {
+            states[i] = new SecondOrderModuleState(speed, new Rotation2d(angle), 0.0);
+        }
+        return states;
+    }
+
+    private static ModuleStateBuffer buffer(double speed, double angle) {
+        var buffer = new ModuleStateBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            buffer.set(i, speed, Math.cos(angle), Math.sin(angle), 0.0);
+        }
+        return buffer;
+    }
+
+    @Test
+    void desaturationBrakesStopCommandsAtTheAccelerationLimit() {
+        // 10 m/s^2 over 0.02 s allows 0.2 m/s per step
+        var previous = states(3.0, 0.4);
+        var previousBuffer = buffer(3.0, 0.4);
+        for (int step = 1; step <= 15; step++) {
+            var commanded = states(0.0, 0.4);
+            var commandedBuffer = buffer(0.0, 0.4);
+            SecondOrderKinematics.desaturateModuleStates(commanded, previous, 4.5, 10.0, 0.02);
+            SecondOrderKinematics.desaturateModuleStates(commandedBuffer, previousBuffer, 4.5, 10.0, 0.02);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Math.max(0.0, 3.0 - 0.2 * step), commanded[i].speedMetersPerSecond, 1e-9);
+                assertEquals(Math.max(0.0, 3.0 - 0.2 * step), commandedBuffer.speeds[i], 1e-9);
+            }
+            previous = commanded;
+            previousBuffer = commandedBuffer;
+        }
+        assertEquals(0.0, previous[0].speedMetersPerSecond, 1e-9);
+    }
+
+    @Test
+    void desaturationBrakesOneStoppedModuleOnItsOwn() {
+        var previous = states(2.0, 0.0);
+        var commanded = states(2.0, 0.0);
+        commanded[3].speedMetersPerSecond = 0.0;
+        double scale = SecondOrderKinematics.desaturateModuleStates(commanded, previous, 4.5, 10.0, 0.02);
+        assertEquals(1.0, scale, 1e-12);
+        assertEquals(2.0, commanded[0].speedMetersPerSecond, 1e-12);
+        assertEquals(1.8, commanded[3].speedMetersPerSecond, 1e-12);
+    }
+
+    @Test
+    void desaturationReversesThroughZero() {
+        var previous = buffer(2.0, 0.0);
+        for (int step = 1; step <= 20; step++) {
+            var commanded = buffer(-2.0, 0.0);
+            SecondOrderKinematics.desaturateModuleStates(commanded, previous, 4.5, 10.0, 0.02);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(2.0 - 0.2 * step, commanded.speeds[i], 1e-9);
+            }
+            previous = commanded;
+        }
+        assertEquals(-2.0, previous.speeds[0], 1e-9);
+    }
+
+    @Test
+    void desaturationLeavesSteadyStatesAlone() {
+        var speeds = new ChassisSpeeds(2.0, -1.0, 3.0);
+        var previous = m_specialized.toSwerveModuleStates(speeds);
+        var commanded = m_specialized.toSwerveModuleStates(speeds);
+        assertEquals(1.0, SecondOrderKinematics.desaturateModuleStates(commanded, previous, 4.5, 10.0, 0.02));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(previous[i].speedMetersPerSecond, commanded[i].speedMetersPerSecond);
+            assertEquals(previous[i].omega, commanded[i].omega);
+        }
+    }
+
+    @Test
+    void desaturationWithoutPreviousStatesOnlyLimitsSpeed() {
+        var commanded = m_specialized.toSwerveModuleStates(new ChassisSpeeds(6.0, 0.0, 2.0));
+        double fastest = 0.0;
+        for (var state : commanded) {
+            fastest = Math.max(fastest, Math.abs(state.speedMetersPerSecond));
+        }
+        double scale = SecondOrderKinematics.desaturateModuleStates(commanded, null, 4.5, 10.0, 0.02);
+        assertEquals(4.5 / fastest, scale, 1e-12);
+        var result = m_specialized.toChassisSpeeds(commanded);
+        assertEquals(6.0 * scale, result.vxMetersPerSecond, 1e-9);
+        assertEquals(2.0 * scale, result.omegaRadiansPerSecond, 1e-9);
+    }
+}
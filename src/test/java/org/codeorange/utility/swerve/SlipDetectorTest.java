@@ -0,0 +1,131 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.wpimodified.SwerveDriveOdometry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlipDetectorTest {
+    private static final double[][] kModules = {{0.3, 0.3}, {0.3, -0.3}, {-0.3, 0.3}, {-0.3, -0.3}};
+
+    private final SecondOrderKinematics m_kinematics = new SecondOrderKinematics(
+            new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+            new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+
+    /**
+     * Drives a weaving path for 10 s with module 2 spinning out 40% faster than the ground during 3 to 6 s, and module 0
+     * jumping 1 cm forward every 2 s.
+     *
+     * @return How far the odometry ended up from the true position, in meters.
+     */
+    private double driveWithSlip(SlipDetector detector) {
+        var positions = new SwerveModulePosition[4];
+        for (int i = 0; i < 4; i++) {
+            positions[i] = new SwerveModulePosition(0, new Rotation2d());
+        }
+        var odometry = new SwerveDriveOdometry(m_kinematics, new Rotation2d(), positions, new Pose2d());
+        if (detector != null) {
+            odometry.setSlipDetector(detector);
+        }
+
+        var random = new Random(3);
+        double[] distances = new double[4];
+        double[] angles = new double[4];
+        double x = 0, y = 0, heading = 0;
+        double dt = 0.004;
+        for (int step = 0; step < 2500; step++) {
+            double time = step * dt;
+            double vx = 2.0 * Math.sin(time);
+            double vy = 1.0;
+            double omega = 0.8 * Math.cos(0.7 * time);
+            for (int i = 0; i < 4; i++) {
+                double moduleVx = vx - omega * kModules[i][1];
+                double moduleVy = vy + omega * kModules[i][0];
+                angles[i] = Math.atan2(moduleVy, moduleVx);
+                double delta = Math.hypot(moduleVx, moduleVy) * dt + random.nextGaussian() * 1e-5;
+                if (i == 2 && time > 3 && time < 6) {
+                    delta *= 1.4;
+                }
+                if (i == 0 && step % 500 == 250) {
+                    delta += 0.01;
+                }
+                distances[i] += delta;
+            }
+            x += (Math.cos(heading) * vx - Math.sin(heading) * vy) * dt;
+            y += (Math.sin(heading) * vx + Math.cos(heading) * vy) * dt;
+            heading += omega * dt;
+            odometry.update(time, distances, angles, heading);
+        }
+        var pose = odometry.getPoseMeters();
+        return Math.hypot(pose.getX() - x, pose.getY() - y);
+    }
+
+    @Test
+    void slippingModulesAreExcludedFromOdometry() {
+        assertTrue(driveWithSlip(null) > 0.4);
+
+        var detector = new SlipDetector(m_kinematics);
+        assertTrue(driveWithSlip(detector) < 0.06);
+        // Every step of the spin out is flagged, as is each 1 cm jump, and nothing else
+        assertTrue(detector.getSlipCount(2) >= 700);
+        assertEquals(10, detector.getSlipCount(0));
+        assertEquals(0, detector.getSlipCount(1));
+        assertEquals(0, detector.getSlipCount(3));
+    }
+
+    @Test
+    void rigidMotionIsFitExactly() {
+        var detector = new SlipDetector(m_kinematics);
+        double dt = 0.02;
+        double[] deltas = new double[4];
+        double[] angles = new double[4];
+        var twist = new Twist2d();
+        for (int step = 0; step < 5; step++) {
+            double dx = 0.03, dy = -0.01, dtheta = 0.02;
+            for (int i = 0; i < 4; i++) {
+                double moduleDx = dx - dtheta * kModules[i][1];
+                double moduleDy = dy + dtheta * kModules[i][0];
+                deltas[i] = Math.hypot(moduleDx, moduleDy);
+                angles[i] = Math.atan2(moduleDy, moduleDx);
+            }
+            detector.solve(dt, deltas, angles, twist);
+            assertEquals(dx, twist.dx, 1e-12);
+            assertEquals(dy, twist.dy, 1e-12);
+            assertEquals(dtheta, twist.dtheta, 1e-12);
+        }
+        assertEquals(0, detector.getSlippingModules());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1.0, detector.getWeight(i), 1e-12);
+        }
+    }
+
+    @Test
+    void suddenJumpIsExcluded() {
+        var detector = new SlipDetector(m_kinematics);
+        double dt = 0.02;
+        double[] deltas = {0.02, 0.02, 0.02, 0.02};
+        double[] angles = new double[4];
+        var twist = new Twist2d();
+        detector.solve(dt, deltas, angles, twist);
+
+        deltas[3] = 0.06;
+        detector.solve(dt, deltas, angles, twist);
+        assertEquals(0b1000, detector.getSlippingModules());
+        assertEquals(0.0, detector.getWeight(3));
+        assertEquals(0.02, twist.dx, 1e-12);
+        assertEquals(0.0, twist.dtheta, 1e-12);
+    }
+
+    @Test
+    void thresholdsMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new SlipDetector(m_kinematics, 0.0, 12.0));
+        assertThrows(IllegalArgumentException.class, () -> new SlipDetector(m_kinematics, 0.25, Double.NaN));
+    }
+}
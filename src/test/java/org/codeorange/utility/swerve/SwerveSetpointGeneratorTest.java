@@ -0,0 +1,152 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SwerveSetpointGeneratorTest {
+    private static final double kMaxModuleSpeed = 4.5;
+    private static final double kMaxAcceleration = 10.0;
+    private static final double kMaxSteerRate = 10.0;
+    private static final double kDt = 0.02;
+    private static final double kEpsilon = 1e-9;
+
+    private final SecondOrderKinematics m_kinematics = new SecondOrderKinematics(
+            new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+            new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+    private final SwerveSetpointGenerator m_generator =
+            new SwerveSetpointGenerator(m_kinematics, kMaxModuleSpeed, kMaxAcceleration, kMaxSteerRate);
+    private final ModuleStateBuffer m_states = new ModuleStateBuffer(4);
+    private final double[] m_previousVx = new double[4];
+    private final double[] m_previousVy = new double[4];
+    private final double[] m_previousCos = {1, 1, 1, 1};
+    private final double[] m_previousSin = new double[4];
+
+    /**
+     * Generates setpoints toward the desired speeds, checking every module against both limits on every step.
+     *
+     * @return The number of steps it took for the setpoint to reach the desired speeds.
+     */
+    private int driveTo(double vx, double vy, double omega) {
+        var speeds = new ChassisSpeeds();
+        for (int step = 1; step <= 200; step++) {
+            m_generator.generate(vx, vy, omega, kDt, m_states);
+            for (int i = 0; i < 4; i++) {
+                double moduleVx = m_states.speeds[i] * m_states.cos[i];
+                double moduleVy = m_states.speeds[i] * m_states.sin[i];
+                double velocityChange = Math.hypot(moduleVx - m_previousVx[i], moduleVy - m_previousVy[i]);
+                assertTrue(velocityChange <= kMaxAcceleration * kDt + kEpsilon,
+                        "Module " + i + " changed velocity by " + velocityChange + " on step " + step);
+
+                double turn = Math.atan2(m_previousCos[i] * m_states.sin[i] - m_previousSin[i] * m_states.cos[i],
+                        m_previousCos[i] * m_states.cos[i] + m_previousSin[i] * m_states.sin[i]);
+                assertTrue(Math.abs(turn) <= kMaxSteerRate * kDt + kEpsilon,
+                        "Module " + i + " turned by " + turn + " on step " + step);
+                assertTrue(Math.abs(m_states.omegas[i]) <= kMaxSteerRate + kEpsilon);
+
+                m_previousVx[i] = moduleVx;
+                m_previousVy[i] = moduleVy;
+                m_previousCos[i] = m_states.cos[i];
+                m_previousSin[i] = m_states.sin[i];
+            }
+
+            m_generator.getChassisSpeeds(speeds);
+            if (Math.abs(speeds.vxMetersPerSecond - vx) < kEpsilon && Math.abs(speeds.vyMetersPerSecond - vy) < kEpsilon
+                    && Math.abs(speeds.omegaRadiansPerSecond - omega) < kEpsilon) {
+                return step;
+            }
+        }
+        return fail("The setpoint did not reach the desired speeds");
+    }
+
+    @Test
+    void sidewaysFromRestTurnsModulesBeforeAccelerating() {
+        int steps = driveTo(0.0, 4.0, 0.0);
+        // Turning 90 degrees takes 8 steps and accelerating to 4 m/s takes 20, and the modules speed up as they come around
+        assertTrue(steps > 20 && steps < 28, "Took " + steps + " steps");
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0.0, m_states.cos[i] * m_states.speeds[i], kEpsilon);
+            assertEquals(4.0, m_states.sin[i] * m_states.speeds[i], kEpsilon);
+        }
+    }
+
+    @Test
+    void reversalDeceleratesThroughZero() {
+        driveTo(4.0, 0.0, 0.0);
+        int steps = driveTo(-4.0, 0.0, 0.0);
+        assertEquals(40, steps);
+        for (int i = 0; i < 4; i++) {
+            // Driving backward is done by spinning the wheels backward, not by turning the modules around
+            assertEquals(1.0, m_states.cos[i], kEpsilon);
+            assertEquals(-4.0, m_states.speeds[i], kEpsilon);
+        }
+    }
+
+    @Test
+    void forwardToSidewaysAtSpeed() {
+        driveTo(4.0, 0.0, 0.0);
+        driveTo(0.0, 4.0, 0.0);
+        driveTo(-3.0, -3.0, 0.0);
+    }
+
+    @Test
+    void spinTransitions() {
+        driveTo(0.0, 0.0, 10.0);
+        driveTo(0.0, 0.0, -10.0);
+        driveTo(3.0, 0.0, 4.0);
+        driveTo(0.0, -3.0, -4.0);
+        driveTo(0.0, 0.0, 0.0);
+    }
+
+    @Test
+    void stopIsRateLimited() {
+        driveTo(3.0, 2.0, 0.0);
+        int steps = driveTo(0.0, 0.0, 0.0);
+        // 3.6 m/s at 0.2 m/s per step
+        assertEquals(19, steps);
+    }
+
+    @Test
+    void desiredSpeedsAreLimitedToTheMaxModuleSpeed() {
+        for (int step = 0; step < 50; step++) {
+            m_generator.generate(2 * kMaxModuleSpeed, 0.0, 2.0, kDt, m_states);
+        }
+        double fastest = 0.0;
+        for (int i = 0; i < 4; i++) {
+            fastest = Math.max(fastest, Math.abs(m_states.speeds[i]));
+        }
+        assertEquals(kMaxModuleSpeed, fastest, kEpsilon);
+        var speeds = m_generator.getChassisSpeeds(new ChassisSpeeds());
+        // The desired speeds are scaled down together, keeping their direction
+        assertEquals(2 * kMaxModuleSpeed / 2.0, speeds.vxMetersPerSecond / speeds.omegaRadiansPerSecond, 1e-6);
+    }
+
+    @Test
+    void generateIsFastAndDoesNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        double[][] commands = {{4, 0, 0}, {-4, 0, 0}, {0, 4, 0}, {0, 0, 10}, {3, -2, -5}, {0, 0, 0}};
+        // Warm up so that the timed calls are compiled
+        for (int call = 0; call < 200_000; call++) {
+            var command = commands[(call / 50) % commands.length];
+            m_generator.generate(command[0], command[1], command[2], kDt, m_states);
+        }
+
+        int calls = 100_000;
+        long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int call = 0; call < calls; call++) {
+            var command = commands[(call / 50) % commands.length];
+            m_generator.generate(command[0], command[1], command[2], kDt, m_states);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+        assertEquals(0, allocated);
+        // About 0.3 to 0.5 us per call on a desktop; the bound is loose so that slow machines do not fail
+        assertTrue(elapsed / calls < 10_000, "Took " + elapsed / calls + " ns per call");
+    }
+}
@@ -0,0 +1,125 @@
+package org.codeorange.utility.swerve;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import org.ejml.simple.SimpleMatrix;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WeightedForwardKinematicsTest {
+    private static final double kTolerance = 1e-15;
+
+    // An irregular five-module drivetrain, so that the generic path is tested and the normal matrix is not diagonal
+    private static final Translation2d[] kModules = {
+            new Translation2d(0.35, 0.3), new Translation2d(0.3, -0.25), new Translation2d(-0.3, 0.28),
+            new Translation2d(-0.32, -0.3), new Translation2d(0.05, 0.4)};
+
+    private final SecondOrderKinematics m_kinematics = new SecondOrderKinematics(kModules);
+    private final Random m_random = new Random(21);
+
+    /**
+     * Solves the weighted least-squares problem (AᵀWA)⁻¹AᵀWb with EJML, leaving out the modules below the minimum weight.
+     */
+    private static double[] solveWithEjml(double[] moduleDx, double[] moduleDy, double[] weights) {
+        var a = new SimpleMatrix(kModules.length * 2, 3);
+        var w = new SimpleMatrix(kModules.length * 2, kModules.length * 2);
+        var b = new SimpleMatrix(kModules.length * 2, 1);
+        for (int i = 0; i < kModules.length; i++) {
+            a.setRow(i * 2, 0, 1, 0, -kModules[i].getY());
+            a.setRow(i * 2 + 1, 0, 0, 1, kModules[i].getX());
+            double weight = weights[i] >= WeightedForwardKinematics.kMinWeight ? weights[i] : 0.0;
+            w.set(i * 2, i * 2, weight);
+            w.set(i * 2 + 1, i * 2 + 1, weight);
+            b.set(i * 2, 0, moduleDx[i]);
+            b.set(i * 2 + 1, 0, moduleDy[i]);
+        }
+        var atw = a.transpose().mult(w);
+        var x = atw.mult(a).invert().mult(atw).mult(b);
+        return new double[] {x.get(0, 0), x.get(1, 0), x.get(2, 0)};
+    }
+
+    private double random(double magnitude) {
+        return (m_random.nextDouble() * 2 - 1) * magnitude;
+    }
+
+    @Test
+    void matchesWeightedLeastSquares() {
+        var forwardKinematics = new WeightedForwardKinematics(m_kinematics);
+        double[] moduleDx = new double[5];
+        double[] moduleDy = new double[5];
+        double[] weights = new double[5];
+        var twist = new Twist2d();
+        for (int trial = 0; trial < 1000; trial++) {
+            // Change the weights every other trial, so that both fresh and cached inverses are checked
+            if (trial % 2 == 0) {
+                for (int i = 0; i < 5; i++) {
+                    weights[i] = m_random.nextDouble();
+                }
+                weights[trial % 5] = trial % 4 == 0 ? 0.0 : weights[trial % 5];
+            }
+            for (int i = 0; i < 5; i++) {
+                moduleDx[i] = random(0.1);
+                moduleDy[i] = random(0.1);
+            }
+
+            assertTrue(forwardKinematics.solve(moduleDx, moduleDy, weights, twist));
+            double[] expected = solveWithEjml(moduleDx, moduleDy, weights);
+            assertEquals(expected[0], twist.dx, kTolerance);
+            assertEquals(expected[1], twist.dy, kTolerance);
+            assertEquals(expected[2], twist.dtheta, kTolerance);
+        }
+    }
+
+    @Test
+    void equalWeightsMatchForwardKinematics() {
+        var forwardKinematics = new WeightedForwardKinematics(m_kinematics);
+        double[] deltas = {0.02, -0.01, 0.03, 0.015, 0.0};
+        double[] angles = {0.1, 2.0, -0.4, 1.2, -2.5};
+        var expected = m_kinematics.toTwist2d(deltas, angles, new Twist2d());
+        var actual = new Twist2d();
+        assertTrue(forwardKinematics.toTwist2d(deltas, angles, new double[] {0.5, 0.5, 0.5, 0.5, 0.5}, actual));
+        assertEquals(expected.dx, actual.dx, kTolerance);
+        assertEquals(expected.dy, actual.dy, kTolerance);
+        assertEquals(expected.dtheta, actual.dtheta, kTolerance);
+
+        var states = new SecondOrderModuleState[5];
+        for (int i = 0; i < 5; i++) {
+            states[i] = new SecondOrderModuleState(deltas[i], new Rotation2d(angles[i]), 0.0);
+        }
+        var speeds = forwardKinematics.toChassisSpeeds(new double[] {1, 1, 1, 1, 1}, states);
+        assertEquals(expected.dx, speeds.vxMetersPerSecond, kTolerance);
+        assertEquals(expected.dy, speeds.vyMetersPerSecond, kTolerance);
+        assertEquals(expected.dtheta, speeds.omegaRadiansPerSecond, kTolerance);
+    }
+
+    @Test
+    void unweightedModulesAreLeftOut() {
+        var forwardKinematics = new WeightedForwardKinematics(m_kinematics);
+        double[] moduleDx = {0.02, 0.02, 0.02, 0.02, 0.5};
+        double[] moduleDy = {0.0, 0.0, 0.0, 0.0, -0.3};
+        var twist = new Twist2d();
+        for (double weight : new double[] {0.0, WeightedForwardKinematics.kMinWeight / 2, Double.NaN}) {
+            assertTrue(forwardKinematics.solve(moduleDx, moduleDy, new double[] {1, 1, 1, 1, weight}, twist));
+            assertEquals(0.02, twist.dx, kTolerance);
+            assertEquals(0.0, twist.dy, kTolerance);
+            assertEquals(0.0, twist.dtheta, kTolerance);
+        }
+    }
+
+    @Test
+    void fallsBackToEqualWeightsWithFewerThanTwoModules() {
+        var forwardKinematics = new WeightedForwardKinematics(m_kinematics);
+        double[] moduleDx = {0.02, -0.01, 0.03, 0.015, 0.0};
+        double[] moduleDy = {0.01, 0.0, -0.02, 0.005, 0.01};
+        var expected = m_kinematics.toTwist2dFromDisplacements(moduleDx, moduleDy, new Twist2d());
+        var actual = new Twist2d();
+        assertFalse(forwardKinematics.solve(moduleDx, moduleDy, new double[] {0, 0, 1, 0, 0}, actual));
+        assertEquals(expected.dx, actual.dx, kTolerance);
+        assertEquals(expected.dy, actual.dy, kTolerance);
+        assertEquals(expected.dtheta, actual.dtheta, kTolerance);
+    }
+}
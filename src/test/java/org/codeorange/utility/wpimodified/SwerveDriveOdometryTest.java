@@ -0,0 +1,162 @@
+package org.codeorange.utility.wpimodified;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SwerveDriveOdometryTest {
+    private static final double[][] kModules = {{0.3, 0.3}, {0.3, -0.3}, {-0.3, 0.3}, {-0.3, -0.3}};
+    // The ground truth is integrated in steps this long, and odometry updated every kUpdateSteps of them (50 Hz)
+    private static final double kTruthDt = 1e-4;
+    private static final int kUpdateSteps = 200;
+
+    private enum Method {
+        kCurrentAngle, kArc, kArcWithSteerRates
+    }
+
+    /**
+     * Drives for 10 s at 3 m/s, the direction of travel in the robot's frame either turning steadily at 5 rad/s while the
+     * robot spins, or weaving back and forth by 1.5 rad at 8 rad/s without spinning.
+     *
+     * @return How far the odometry ended up from the true position, in meters.
+     */
+    private double drive(Method method, boolean weave) {
+        var kinematics = new SecondOrderKinematics(
+                new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+                new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+        var positions = new SwerveModulePosition[4];
+        for (int i = 0; i < 4; i++) {
+            positions[i] = new SwerveModulePosition(0, new Rotation2d());
+        }
+        var odometry = new SwerveDriveOdometry(kinematics, new Rotation2d(), positions, new Pose2d());
+        odometry.setArcIntegration(method != Method.kCurrentAngle);
+
+        double[] distances = new double[4];
+        double[] angles = new double[4];
+        double[] steerRates = new double[4];
+        double x = 0, y = 0, heading = 0;
+        for (int step = 1; step <= 100000; step++) {
+            double time = step * kTruthDt;
+            double direction, directionRate, omega, alpha;
+            if (weave) {
+                direction = 1.5 * Math.sin(8 * time);
+                directionRate = 12 * Math.cos(8 * time);
+                omega = 0;
+                alpha = 0;
+            } else {
+                direction = 5 * time;
+                directionRate = 5;
+                omega = 1.5 * Math.sin(0.5 * time);
+                alpha = 0.75 * Math.cos(0.5 * time);
+            }
+            double vx = 3 * Math.cos(direction), vy = 3 * Math.sin(direction);
+            double ax = -vy * directionRate, ay = vx * directionRate;
+
+            for (int i = 0; i < 4; i++) {
+                double moduleVx = vx - omega * kModules[i][1];
+                double moduleVy = vy + omega * kModules[i][0];
+                double moduleAx = ax - alpha * kModules[i][1];
+                double moduleAy = ay + alpha * kModules[i][0];
+                distances[i] += Math.hypot(moduleVx, moduleVy) * kTruthDt;
+                angles[i] = Math.atan2(moduleVy, moduleVx);
+                steerRates[i] = (moduleVx * moduleAy - moduleVy * moduleAx)
+                        / (moduleVx * moduleVx + moduleVy * moduleVy);
+            }
+            double midHeading = heading + 0.5 * omega * kTruthDt;
+            x += (Math.cos(midHeading) * vx - Math.sin(midHeading) * vy) * kTruthDt;
+            y += (Math.sin(midHeading) * vx + Math.cos(midHeading) * vy) * kTruthDt;
+            heading += omega * kTruthDt;
+
+            if (step % kUpdateSteps == 0) {
+                if (method == Method.kArcWithSteerRates) {
+                    odometry.update(time, distances, angles, steerRates, heading);
+                } else {
+                    odometry.update(time, distances, angles, heading);
+                }
+            }
+        }
+        var pose = odometry.getPoseMeters();
+        return Math.hypot(pose.getX() - x, pose.getY() - y);
+    }
+
+    @Test
+    void arcIntegrationFollowsSteadilyTurningModules() {
+        assertTrue(drive(Method.kCurrentAngle, false) > 0.05);
+        assertTrue(drive(Method.kArc, false) < 0.001);
+        assertTrue(drive(Method.kArcWithSteerRates, false) < 0.001);
+    }
+
+    @Test
+    void steerRatesFollowModulesThatReverseTheirTurn() {
+        assertTrue(drive(Method.kCurrentAngle, true) > 0.03);
+        // A constant-rate arc does not fit steering that reverses within a step
+        assertTrue(drive(Method.kArc, true) > 0.03);
+        assertTrue(drive(Method.kArcWithSteerRates, true) < 0.001);
+    }
+
+    /**
+     * Turns every module by 0.1 rad and rolls it 2 cm per step, through the primitive update or the one taking module
+     * positions.
+     */
+    private static void step(SwerveDriveOdometry odometry, int step, boolean primitive) {
+        double[] distances = new double[4];
+        double[] angles = new double[4];
+        var positions = new SwerveModulePosition[4];
+        for (int i = 0; i < 4; i++) {
+            distances[i] = 0.02 * step;
+            angles[i] = 0.1 * step + 0.2 * i;
+            positions[i] = new SwerveModulePosition(distances[i], new Rotation2d(angles[i]));
+        }
+        if (primitive) {
+            odometry.update(step * 0.02, distances, angles, 0.01 * step);
+        } else {
+            odometry.update(new Rotation2d(0.01 * step), positions);
+        }
+    }
+
+    @Test
+    void previousModulePositionsKeepTheLatestAngles() {
+        var kinematics = new SecondOrderKinematics(
+                new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+                new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+        for (boolean primitive : new boolean[] {false, true}) {
+            var positions = new SwerveModulePosition[4];
+            for (int i = 0; i < 4; i++) {
+                positions[i] = new SwerveModulePosition(0, new Rotation2d(0.2 * i));
+            }
+            var odometry = new SwerveDriveOdometry(kinematics, new Rotation2d(), positions, new Pose2d());
+            var reference = new SwerveDriveOdometry(kinematics, new Rotation2d(), positions, new Pose2d());
+            odometry.setArcIntegration(true);
+            reference.setArcIntegration(true);
+            for (int step = 1; step <= 10; step++) {
+                step(odometry, step, primitive);
+            }
+
+            var previous = odometry.getPreviousModulePositions();
+            for (int i = 0; i < 4; i++) {
+                assertEquals(0.2, previous[i].distanceMeters, 1e-12);
+                assertEquals(1.0 + 0.2 * i, previous[i].angle.getRadians(), 1e-12);
+            }
+
+            // Resetting to the previous positions seeds the arcs from where the modules actually point
+            odometry.resetPosition(new Rotation2d(0.1), previous, new Pose2d());
+            for (int i = 0; i < 4; i++) {
+                positions[i] = new SwerveModulePosition(0.2, new Rotation2d(1.0 + 0.2 * i));
+            }
+            reference.resetPosition(new Rotation2d(0.1), positions, new Pose2d());
+            for (int step = 11; step <= 15; step++) {
+                step(odometry, step, primitive);
+                step(reference, step, primitive);
+            }
+            var expected = reference.getPoseMeters();
+            var actual = odometry.getPoseMeters();
+            assertEquals(expected.getX(), actual.getX(), 1e-12);
+            assertEquals(expected.getY(), actual.getY(), 1e-12);
+        }
+    }
+}
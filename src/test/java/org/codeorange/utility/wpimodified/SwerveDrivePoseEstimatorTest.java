@@ -0,0 +1,342 @@
+package org.codeorange.utility.wpimodified;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.geometry.Twist3d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import org.codeorange.utility.estimation.SensorCalibrator;
+import org.codeorange.utility.estimation.VisionGate;
+import org.codeorange.utility.estimation.VisionMeasurement;
+import org.codeorange.utility.geometry.MutablePose2d;
+import org.codeorange.utility.swerve.SecondOrderKinematics;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SwerveDrivePoseEstimatorTest {
+    private static final double kDt = 0.02;
+
+    private final SwerveModulePosition[] m_positions = new SwerveModulePosition[4];
+
+    private SwerveDrivePoseEstimator createEstimator() {
+        var kinematics = new SecondOrderKinematics(
+                new Translation2d(0.3, 0.3), new Translation2d(0.3, -0.3),
+                new Translation2d(-0.3, 0.3), new Translation2d(-0.3, -0.3));
+        for (int i = 0; i < 4; i++) {
+            m_positions[i] = new SwerveModulePosition(0, new Rotation2d());
+        }
+        return new SwerveDrivePoseEstimator(kinematics, new Rotation2d(), m_positions, new Pose2d(1, 2, new Rotation2d(0.1)));
+    }
+
+    /**
+     * Drives a curve over a tilted floor, returning the estimate after every step.
+     */
+    private Pose3d[] drive3d(SwerveDrivePoseEstimator estimator, int steps) {
+        var estimates = new Pose3d[steps + 1];
+        estimates[0] = estimator.getEstimatedPosition3d();
+        for (int t = 1; t <= steps; t++) {
+            for (int i = 0; i < 4; i++) {
+                m_positions[i] = new SwerveModulePosition(m_positions[i].distanceMeters + 0.03,
+                        new Rotation2d(0.3 + 0.01 * t));
+            }
+            estimates[t] = estimator.updateWithTime(t * kDt, new Rotation3d(0.05, -0.08 + 0.002 * t, 0.01 * t), m_positions);
+        }
+        return estimates;
+    }
+
+    @Test
+    void getPoseAtIn3dModeCarriesCorrectionsBack() {
+        var estimator = createEstimator();
+        estimator.set3dMode(true);
+        var before = drive3d(estimator, 50);
+        var latestBefore = before[50];
+
+        estimator.addVisionMeasurement(new Pose2d(latestBefore.getX() + 0.3, latestBefore.getY() - 0.2,
+                new Rotation2d(latestBefore.getRotation().getZ() + 0.1)), 50 * kDt);
+        var latestAfter = estimator.getEstimatedPosition3d();
+
+        var out = new MutablePose2d();
+        for (int t : new int[] {10, 30, 49, 50}) {
+            assertTrue(estimator.getPoseAt(t * kDt, out));
+            // The estimate at t moved rigidly with the correction made at the latest update
+            var expected = latestAfter.exp(latestBefore.log(before[t]));
+            assertEquals(expected.getX(), out.getX(), 1e-9);
+            assertEquals(expected.getY(), out.getY(), 1e-9);
+            assertEquals(expected.toPose2d().getRotation().getRadians(), out.getRadians(), 1e-9);
+        }
+    }
+
+    @Test
+    void getPoseAtMatchesBetweenModes() {
+        var planar = createEstimator();
+        var spatial = createEstimator();
+        spatial.set3dMode(true);
+        for (int t = 1; t <= 50; t++) {
+            for (int i = 0; i < 4; i++) {
+                m_positions[i] = new SwerveModulePosition(0.03 * t, new Rotation2d(0.3 + 0.01 * t));
+            }
+            planar.updateWithTime(t * kDt, new Rotation2d(0.01 * t), m_positions);
+            spatial.updateWithTime(t * kDt, new Rotation3d(0, 0, 0.01 * t), m_positions);
+        }
+        var vision = new Pose2d(2.0, 2.5, new Rotation2d(0.4));
+        planar.addVisionMeasurement(vision, 40 * kDt);
+        spatial.addVisionMeasurement(vision, 40 * kDt);
+
+        var a = new MutablePose2d();
+        var b = new MutablePose2d();
+        for (int t : new int[] {5, 20, 45}) {
+            assertTrue(planar.getPoseAt(t * kDt, a));
+            assertTrue(spatial.getPoseAt(t * kDt, b));
+            assertEquals(a.getX(), b.getX(), 1e-9);
+            assertEquals(a.getY(), b.getY(), 1e-9);
+            assertEquals(a.getRadians(), b.getRadians(), 1e-9);
+        }
+    }
+
+    @Test
+    void getPoseAtOutsideTheHistoryFails() {
+        var estimator = createEstimator();
+        assertFalse(estimator.getPoseAt(0.0, new MutablePose2d()));
+        estimator.set3dMode(true);
+        drive3d(estimator, 100);
+        var out = new MutablePose2d(7, 7, 0);
+        assertFalse(estimator.getPoseAt(0.1, out));
+        assertEquals(7.0, out.getX());
+        assertTrue(estimator.getPoseAt(100 * kDt - 1.0, out));
+    }
+
+    private static void assertPose(Pose3d expected, Pose3d actual) {
+        assertEquals(expected.getX(), actual.getX(), 1e-9);
+        assertEquals(expected.getY(), actual.getY(), 1e-9);
+        assertEquals(expected.getZ(), actual.getZ(), 1e-9);
+        var difference = expected.getRotation().minus(actual.getRotation());
+        assertEquals(0.0, difference.getAngle(), 1e-9);
+    }
+
+    private static Twist3d negate(Twist3d twist) {
+        return new Twist3d(-twist.dx, -twist.dy, -twist.dz, -twist.rx, -twist.ry, -twist.rz);
+    }
+
+    @Test
+    void visionRollbackAndUndoIn3dModeMatchPose3dMath() {
+        var estimator = createEstimator();
+        estimator.set3dMode(true);
+        // Without corrections the estimate is the odometry, so these are also the odometry poses
+        var odometry = drive3d(estimator, 50);
+        var now = odometry[50];
+
+        // The default gains are 0.1 for x, y and rotation, and 0 for z
+        var vision = new Pose3d(new Translation3d(now.getX() + 0.3, now.getY() - 0.2, 0.4),
+                new Rotation3d(0.02, -0.03, odometry[30].getRotation().getZ() + 0.15));
+        estimator.addVisionMeasurement(vision, 30 * kDt);
+        var backtrack = now.log(odometry[30]);
+        var old = now.exp(backtrack);
+        var innovation = old.log(vision);
+        var corrected = old.exp(new Twist3d(0.1 * innovation.dx, 0.1 * innovation.dy, 0.0,
+                0.1 * innovation.rx, 0.1 * innovation.ry, 0.1 * innovation.rz));
+        var expected = corrected.exp(negate(backtrack));
+        assertPose(expected, estimator.getEstimatedPosition3d());
+
+        estimator.undoVisionMeasurement(odometry[30], 30 * kDt);
+        assertPose(now, estimator.getEstimatedPosition3d());
+
+        assertTrue(estimator.rollbackOdometry(20 * kDt));
+        assertPose(now.exp(now.log(odometry[20])), estimator.getEstimatedPosition3d());
+    }
+
+    @Test
+    void visionRollbackAndUndoIn3dModeDoNotAllocate() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var estimator = createEstimator();
+        estimator.set3dMode(true);
+        var odometry = drive3d(estimator, 50);
+        var vision = new Pose3d(new Translation3d(1.0, 2.0, 0.1), new Rotation3d(0.01, 0.02, 0.3));
+        var preUpdate = odometry[40];
+        var out = new MutablePose2d();
+
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up so that the measured pass is compiled
+            int calls = pass == 0 ? 20_000 : 1_000;
+            long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int call = 0; call < calls; call++) {
+                estimator.addVisionMeasurement(vision, (30 + call % 10) * kDt);
+                estimator.getPoseAt(25 * kDt, out);
+                estimator.undoVisionMeasurement(preUpdate, 40 * kDt);
+                estimator.rollbackOdometry(49 * kDt);
+            }
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+            if (pass == 1) {
+                assertEquals(0, allocated);
+            }
+        }
+    }
+
+    /**
+     * A calibrator that has learned fixed offsets for two cameras and learns nothing more.
+     */
+    private static class FixedOffsetCalibrator extends SensorCalibrator {
+        private static final double[] kOffsets = {0.0, -0.1};
+
+        FixedOffsetCalibrator() {
+            super(2, 0.0, kDefaultMaxTimeOffset, kDefaultMinVelocityChange, 0.0, kDefaultMaxGyroBias);
+        }
+
+        @Override
+        public double correctTimestamp(int cameraId, double timestampSeconds) {
+            return timestampSeconds + kOffsets[cameraId];
+        }
+    }
+
+    /**
+     * A calibrator that has learned a fixed gyro drift rate and learns nothing more.
+     */
+    private static class FixedDriftCalibrator extends SensorCalibrator {
+        FixedDriftCalibrator() {
+            super(1, 0.0, kDefaultMaxTimeOffset, kDefaultMinVelocityChange, 0.0, kDefaultMaxGyroBias);
+        }
+
+        @Override
+        public double getGyroBias() {
+            return 0.05;
+        }
+    }
+
+    private static VisionMeasurement measurement(int cameraId, double timestampSeconds, double x, double y, double yaw) {
+        return new VisionMeasurement(new Pose3d(new Translation3d(x, y, 0.05), new Rotation3d(0.01, -0.02, yaw)),
+                timestampSeconds).setSource(cameraId, 1, 2.0, 0.1);
+    }
+
+    /**
+     * Applies measurements from two cameras with different timestamp offsets to one estimator as a batch, and to another one at
+     * a time in the order of their corrected timestamps, and checks that both end up with the same estimate.
+     */
+    private void assertBatchMatchesSequential(boolean spatial, boolean gated) {
+        var batch = createEstimator();
+        var sequential = createEstimator();
+        for (var estimator : new SwerveDrivePoseEstimator[] {batch, sequential}) {
+            estimator.set3dMode(spatial);
+            estimator.setSensorCalibrator(new FixedOffsetCalibrator());
+            if (gated) {
+                estimator.setVisionGate(new VisionGate(2));
+            }
+        }
+        for (int t = 1; t <= 50; t++) {
+            for (int i = 0; i < 4; i++) {
+                m_positions[i] = new SwerveModulePosition(0.03 * t, new Rotation2d(0.3 + 0.01 * t));
+            }
+            batch.updateWithTime(t * kDt, new Rotation3d(0, 0, 0.02 * t), m_positions);
+            sequential.updateWithTime(t * kDt, new Rotation3d(0, 0, 0.02 * t), m_positions);
+        }
+
+        // In order of raw timestamps, which is not the order of corrected timestamps. With the gate, the third measurement is
+        // down-weighted and the last one rejected.
+        var estimate = batch.getEstimatedPosition();
+        double x = estimate.getX(), y = estimate.getY(), yaw = estimate.getRotation().getRadians();
+        var measurements = new VisionMeasurement[] {
+                measurement(0, 0.60, x - 0.4, y + 0.3, yaw + 0.2),
+                measurement(1, 0.62, x + 0.3, y - 0.5, yaw - 0.1),
+                measurement(1, 0.66, x - 2.7, y + 0.2, yaw + 0.3),
+                measurement(0, 0.70, x + 3.5, y, yaw)};
+        batch.addVisionMeasurements(measurements.clone());
+        for (int i : new int[] {1, 2, 0, 3}) {
+            sequential.addVisionMeasurement(measurements[i]);
+        }
+
+        var expected = sequential.getEstimatedPosition3d();
+        var actual = batch.getEstimatedPosition3d();
+        assertEquals(expected.getX(), actual.getX(), 1e-9);
+        assertEquals(expected.getY(), actual.getY(), 1e-9);
+        assertEquals(expected.getZ(), actual.getZ(), 1e-9);
+        assertEquals(0.0, expected.getRotation().minus(actual.getRotation()).getAngle(), 1e-9);
+        if (gated) {
+            var gate = batch.getVisionGate();
+            assertEquals(1, gate.getDownWeightedCount(1));
+            assertEquals(1, gate.getRejectedCount(0));
+        }
+    }
+
+    @Test
+    void batchMatchesSequentialMeasurementsInCorrectedOrder() {
+        assertBatchMatchesSequential(false, false);
+        assertBatchMatchesSequential(true, false);
+        assertBatchMatchesSequential(false, true);
+        assertBatchMatchesSequential(true, true);
+    }
+
+    @Test
+    void replayRemovesTheSameGyroDriftAsTheLiveEstimate() {
+        for (boolean spatial : new boolean[] {false, true}) {
+            var replayed = createEstimator();
+            var live = createEstimator();
+            var uncorrected = createEstimator();
+            for (var estimator : new SwerveDrivePoseEstimator[] {replayed, live, uncorrected}) {
+                estimator.set3dMode(spatial);
+                estimator.enableReplay(100);
+            }
+            replayed.setSensorCalibrator(new FixedDriftCalibrator());
+            live.setSensorCalibrator(new FixedDriftCalibrator());
+
+            for (int t = 1; t <= 60; t++) {
+                for (int i = 0; i < 4; i++) {
+                    m_positions[i] = new SwerveModulePosition(0.03 * t, new Rotation2d(0.3 + 0.01 * t));
+                }
+                var gyro = new Rotation3d(0.02, -0.03, 0.02 * t);
+                replayed.updateWithTime(t * kDt, gyro, m_positions);
+                live.updateWithTime(t * kDt, gyro, m_positions);
+                uncorrected.updateWithTime(t * kDt, gyro, m_positions);
+                if (t == 50) {
+                    // A measurement with no weight rewinds to its timestamp and re-integrates the steps after it unchanged
+                    replayed.addVisionMeasurement(new VisionMeasurement().set(new Pose3d(), 0.5,
+                            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                            Double.POSITIVE_INFINITY));
+                }
+            }
+
+            var expected = live.getEstimatedPosition3d();
+            var actual = replayed.getEstimatedPosition3d();
+            assertEquals(expected.getX(), actual.getX(), 1e-9);
+            assertEquals(expected.getY(), actual.getY(), 1e-9);
+            assertEquals(0.0, expected.getRotation().minus(actual.getRotation()).getAngle(), 1e-9);
+            // 1.2 s of drift at 0.05 rad/s
+            assertEquals(-0.06, expected.getRotation().toRotation2d().minus(
+                    uncorrected.getEstimatedPosition3d().getRotation().toRotation2d()).getRadians(), 1e-3);
+        }
+    }
+
+    @Test
+    void measurementsWithNaNStdDevsAreSkipped() {
+        for (boolean spatial : new boolean[] {false, true}) {
+            var estimator = createEstimator();
+            estimator.set3dMode(spatial);
+            for (int t = 1; t <= 50; t++) {
+                for (int i = 0; i < 4; i++) {
+                    m_positions[i] = new SwerveModulePosition(0.03 * t, new Rotation2d(0.3));
+                }
+                estimator.updateWithTime(t * kDt, new Rotation3d(0, 0, 0.01 * t), m_positions);
+            }
+            var before = estimator.getEstimatedPosition3d();
+            var vision = new Pose3d(before.getX() + 0.5, before.getY() - 0.5, 0.0, new Rotation3d());
+
+            estimator.addVisionMeasurement(new VisionMeasurement().set(vision, 0.9, Double.NaN, 0.1, 0.1, 0.1));
+            estimator.addVisionMeasurements(new VisionMeasurement[] {
+                    new VisionMeasurement().set(vision, 0.92, 0.1, 0.1, 0.1, Double.NaN),
+                    new VisionMeasurement().set(vision, 0.94, 0.1, -0.1, 0.1, 0.1)});
+            var after = estimator.getEstimatedPosition3d();
+            assertEquals(before.getX(), after.getX(), 1e-12);
+            assertEquals(before.getY(), after.getY(), 1e-12);
+            assertEquals(0.0, before.getRotation().minus(after.getRotation()).getAngle(), 1e-12);
+
+            // A good measurement in the same batch still applies
+            estimator.addVisionMeasurements(new VisionMeasurement[] {
+                    new VisionMeasurement().set(vision, 0.92, Double.NaN, 0.1, 0.1, 0.1),
+                    new VisionMeasurement().set(vision, 0.94, 0.1, 0.1, 0.1, 0.1)});
+            assertTrue(estimator.getEstimatedPosition3d().getX() > before.getX() + 0.1);
+        }
+    }
+}